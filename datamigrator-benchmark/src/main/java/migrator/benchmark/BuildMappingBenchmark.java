@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.soap.partner.sobject.SObject;
+import migrator.core.service.MetadataObjectHolder;
+import migrator.core.service.SforceLookupProperties;
+import migrator.core.service.SforceObject;
+import migrator.core.service.SforceObjectPair;
+import migrator.core.sobject.MigrableLookupObject;
+import migrator.core.utils.Utils;
+
+/**
+ * BuildMappingBenchmark : Per record cost of buildMapping and of the object lookups behind it, with
+ * the name index of the objects ("index") and with the linear scans of the object list it replaced
+ * ("scan"). The child object has one lookup field per lookup object, the lookup objects come last
+ * in the object list as they do after setup.
+ *
+ * Run with: mvn -P jmh package, then java -jar datamigrator-benchmark/target/benchmarks.jar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildMappingBenchmark {
+
+    private static final String CHILD = "Child__c";
+    private static final int RECORDS = 1024;
+
+    @Param({"index", "scan"})
+    public String lookup;
+
+    @Param({"30"})
+    public int objects;
+
+    @Param({"15"})
+    public int lookups;
+
+    private BenchmarkObject migrable;
+    private SforceObject child;
+    private SforceObjectPair[] records;
+    private String[] lookupNames;
+    private int next;
+
+    @Setup
+    public void setup() {
+        migrable = new BenchmarkObject("scan".equals(lookup));
+        List<SforceLookupProperties> lookupList = new ArrayList<SforceLookupProperties>();
+        lookupNames = new String[lookups];
+
+        // Standalone and parent objects first, the child last of them
+        for (int i = 0; i < objects - lookups - 1; i++) {
+            migrable.add(sforceObject("Object" + i + "__c", false, new ArrayList<String>()));
+        }
+        List<String> fields = new ArrayList<String>(Arrays.asList("Name", "Amount__c", "Description"));
+        for (int i = 0; i < lookups; i++) {
+            fields.add("Lookup" + i + "__c");
+        }
+        child = sforceObject(CHILD, false, fields);
+        migrable.add(child);
+
+        // Lookup objects with their records: source id to pair, and composite key to target id
+        for (int i = 0; i < lookups; i++) {
+            String lookupName = "Parent" + i + "__c";
+            lookupNames[i] = lookupName;
+            SforceObject lookupObject = sforceObject(lookupName, true, new ArrayList<String>());
+            Map<String, SforceObjectPair> lookupRecords = new HashMap<String, SforceObjectPair>();
+            for (int r = 0; r < RECORDS; r++) {
+                SObject source = new SObject();
+                source.setType(lookupName);
+                source.setId(sourceId(i, r));
+                source.setField("Name", "Parent " + i + " " + r);
+                SforceObjectPair pair = new SforceObjectPair();
+                pair.setSourceSObject(source);
+                pair.setSourceId(sourceId(i, r));
+                pair.setTargetId(targetId(i, r));
+                lookupRecords.put(sourceId(i, r), pair);
+                lookupRecords.put(Utils.getKey(lookupName, source, Arrays.asList("Name")), pair);
+            }
+            lookupObject.setLookupRecordsMap(lookupRecords);
+            migrable.add(lookupObject);
+
+            SforceLookupProperties lookupProperties = new SforceLookupProperties();
+            lookupProperties.setsObjectName(CHILD);
+            lookupProperties.setsLookupField("Lookup" + i + "__c");
+            lookupProperties.setsLookupSObjectName(lookupName);
+            lookupProperties.setCompositeKeyFields(Arrays.asList("Name"));
+            lookupList.add(lookupProperties);
+        }
+        migrable.setLookups(CHILD, lookupList);
+
+        records = new SforceObjectPair[RECORDS];
+        for (int r = 0; r < RECORDS; r++) {
+            SObject source = new SObject();
+            source.setType(CHILD);
+            source.setId("a00000000" + String.format("%06d", r) + "AAA");
+            source.setField("Name", "Child " + r);
+            source.setField("Amount__c", String.valueOf(r * 10));
+            source.setField("Description", "Record " + r);
+            for (int i = 0; i < lookups; i++) {
+                source.setField("Lookup" + i + "__c", sourceId(i, (r * 7 + i) % RECORDS));
+            }
+            records[r] = new SforceObjectPair();
+            records[r].setSourceSObject(source);
+            records[r].setSourceId(source.getId());
+        }
+    }
+
+    @Benchmark
+    public SObject buildMapping() {
+        SforceObjectPair record = records[next];
+        next = (next + 1) % RECORDS;
+        return migrable.buildMapping(child, record);
+    }
+
+    // The object lookups of one record alone
+    @Benchmark
+    public void lookupObjects(Blackhole blackhole) {
+        for (String lookupName : lookupNames) {
+            blackhole.consume(migrable.getLookupSforceObj(lookupName));
+        }
+        blackhole.consume(migrable.getSforceObject(CHILD));
+    }
+
+    private static String sourceId(int lookup, int record) {
+        return "a0" + (char) ('A' + lookup) + "000000" + String.format("%06d", record) + "AAA";
+    }
+
+    private static String targetId(int lookup, int record) {
+        return "a0" + (char) ('A' + lookup) + "000001" + String.format("%06d", record) + "AAA";
+    }
+
+    private static SforceObject sforceObject(String name, boolean isLookup, List<String> fields) {
+        MetadataObjectHolder.MetadataRefObject descRefObject = new MetadataObjectHolder.MetadataRefObject(name);
+        Map<String, FieldType> fieldToTypeMap = new HashMap<String, FieldType>();
+        for (String field : fields) {
+            fieldToTypeMap.put(field, field.startsWith("Amount") ? FieldType.currency : FieldType.string);
+        }
+        descRefObject.setPrimitiveFieldList(fields);
+        descRefObject.setFieldToTypeMap(fieldToTypeMap);
+        descRefObject.setSourceIdToNameRecordTypeMap(new HashMap<String, String>());
+        descRefObject.setTargetNameToIdRecordTypeMap(new HashMap<String, String>());
+
+        SforceObject sforceObject = new SforceObject();
+        sforceObject.setsObjectName(name);
+        sforceObject.setLookup(isLookup);
+        sforceObject.setDescRefObject(descRefObject);
+        return sforceObject;
+    }
+
+    /**
+     * The lookup object set up without orgs. With scan, objects are found by walking the object
+     * list as before the name index.
+     */
+    static class BenchmarkObject extends MigrableLookupObject {
+        private final boolean scan;
+
+        BenchmarkObject(boolean scan) {
+            this.scan = scan;
+        }
+
+        void add(SforceObject sforceObject) {
+            sForceObjectList.add(sforceObject);
+            sforceObjectIndex.add(sforceObject);
+        }
+
+        void setLookups(String sObjectName, List<SforceLookupProperties> lookupList) {
+            lookupPropertiesMap.put(sObjectName, lookupList);
+        }
+
+        @Override
+        public SforceObject getLookupSforceObj(String lookObjectName) {
+            if (!scan) {
+                return super.getLookupSforceObj(lookObjectName);
+            }
+            for (SforceObject sforceObject : sForceObjectList) {
+                String objectName = sforceObject.getsObjectName();
+                if (sforceObject.isLookup() && lookObjectName != null && objectName != null
+                        && lookObjectName.equalsIgnoreCase(objectName)) {
+                    return sforceObject;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public SforceObject getSforceObject(String sObjectName) {
+            if (!scan) {
+                return super.getSforceObject(sObjectName);
+            }
+            for (SforceObject sforceObject : sForceObjectList) {
+                if (sObjectName != null && sObjectName.equalsIgnoreCase(sforceObject.getsObjectName())) {
+                    return sforceObject;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.buffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.StatusCode;
+import migrator.core.connect.TargetConnectionPool;
+
+/**
+ * BatchScheduler : Shares the records of one call between the workers. There is no static split,
+ * every worker pulls the next batch as soon as it is done with its last one, so a slow connection
+ * only holds up its own batch. Results are written by index, the order of the results matches the
+ * order of the records. Workers run on the shared WorkerPool and lease a connection from the
+ * TargetConnectionPool for every batch. The BatchSizeController of the object and operation
+ * decides how many records (and estimated payload bytes) go in a batch and how many batches run at
+ * the same time, and learns from every completed call.
+ *
+ * Records failing with a status code of the RetryPolicy go back into the scheduler with a delay
+ * (backoff with jitter) and are sent again by the same workers, ahead of the records not sent yet,
+ * so the retries run while the first pass is still going. The result of the last attempt stays.
+ *
+ * Batches in flight are accounted with the MemoryAccountant: a worker waits for memory before
+ * sending while other batches are in flight, and batches are cut smaller as the budget runs out.
+ *
+ * Records can come with parent groups (see ParentAffinity): the records of a group are sent
+ * together, and a group is never in two batches at the same time. Children of the same parent then
+ * do not wait on each other's lock on the parent row.
+ */
+public class BatchScheduler {
+
+    static Logger log = Logger.getLogger(BatchScheduler.class.getName());
+
+    /**
+     * Work done for a batch of the records (indexes into the records)
+     */
+    public interface BatchOperation {
+
+        // Sends the records and writes their results. Returns the status code of each record that
+        // failed, null for the records that succeeded (or null for all succeeded)
+        public StatusCode[] execute(PartnerConnection connection, int[] indexes) throws Exception;
+
+        // The record is about to be sent again after failing with the status code
+        public void beforeRetry(int index, StatusCode statusCode);
+
+        // The batch could not be sent, record the failure for the records
+        public void failed(int[] indexes, Exception e);
+    }
+
+    private final String sObjectName;
+    private final TargetConnectionPool connectionPool;
+    private final int maxWorkers;
+    private final BatchSizeController controller;
+    private final RetryPolicy retryPolicy;
+    private final MemoryAccountant accountant = MemoryAccountant.getInstance();
+
+    // Records in sending order (grouped by parent), next position to hand out
+    private int[] order;
+    private int nextIndex;
+    private long[] recordBytes;
+
+    // Parent group per record (-1 for none), records of each group being sent, group remainders
+    // that did not fit in one batch
+    private int[] groups;
+    private int[] groupRecordsInFlight;
+    private final List<int[]> groupRemainders = new ArrayList<int[]>();
+
+    // Attempts made per record, retries waiting for their time and batches being sent
+    private int[] attempts;
+    private final PriorityQueue<RetryBatch> retries = new PriorityQueue<RetryBatch>(11,
+            new Comparator<RetryBatch>() {
+                @Override
+                public int compare(RetryBatch r1, RetryBatch r2) {
+                    return Long.compare(r1.dueMillis, r2.dueMillis);
+                }
+            });
+    private int batchesInFlight;
+    private int recordsRetried;
+
+    // Records a batch was run for (results written or failed), no batch is handed out once aborted
+    private boolean[] handled;
+    private volatile boolean aborted;
+
+    public BatchScheduler(String sObjectName, TargetConnectionPool connectionPool, int maxWorkers,
+            BatchSizeController controller, RetryPolicy retryPolicy) {
+        this.sObjectName = sObjectName;
+        this.connectionPool = connectionPool;
+        this.maxWorkers = maxWorkers;
+        this.controller = controller;
+        this.retryPolicy = retryPolicy != null ? retryPolicy : RetryPolicy.NONE;
+    }
+
+    public int execute(final int size, long[] recordBytes, final BatchOperation operation) {
+        return execute(size, recordBytes, null, operation);
+    }
+
+    /**
+     * Runs the operation over all the records, at most one worker per pooled connection. Returns
+     * when every batch (and retry) has been processed. Records left without a batch, because their
+     * worker died or the wait was interrupted, are reported failed with the error.
+     *
+     * @param int size: Number of records
+     * @param long[] recordBytes: Estimated payload bytes per record, null to cut by count only
+     * @param int[] groups: Parent group per record (-1 for none), null for no groups
+     * @param BatchOperation operation: Work done for each batch
+     */
+    public int execute(final int size, long[] recordBytes, int[] groups, final BatchOperation operation) {
+        if (size == 0) {
+            return 0;
+        }
+        this.recordBytes = recordBytes;
+        this.groups = groups;
+        this.order = groups != null ? ParentAffinity.order(groups) : null;
+        this.groupRecordsInFlight = groups != null ? new int[ParentAffinity.count(groups)] : null;
+        nextIndex = 0;
+        groupRemainders.clear();
+        attempts = new int[size];
+        retries.clear();
+        batchesInFlight = 0;
+        recordsRetried = 0;
+        handled = new boolean[size];
+        aborted = false;
+
+        int batch = controller.getBatchSize();
+        int workerCount = Math.min(Math.min(maxWorkers, connectionPool.getSize()), (size + batch - 1) / batch);
+        workerCount = Math.max(1, workerCount);
+        controller.setMaxWorkers(workerCount);
+
+        List<Future<Integer>> list = new ArrayList<Future<Integer>>();
+
+        for (int i = 0; i < workerCount; i++) {
+            final int sequence = i + 1;
+            list.add(WorkerPool.getExecutor().submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int recordsProcessed = 0;
+                    while (true) {
+                        controller.enter();
+                        try {
+                            int[] indexes = nextBatch(size);
+                            if (indexes == null) {
+                                break;
+                            }
+                            List<int[]> retryIndexes = new ArrayList<int[]>();
+                            long batchBytes = bytes(indexes);
+                            try {
+                                accountant.acquire(MemoryAccountant.Stage.INSERT, sObjectName, batchBytes);
+                                try {
+                                    runBatch(operation, indexes, sequence, retryIndexes);
+                                } finally {
+                                    accountant.release(MemoryAccountant.Stage.INSERT, sObjectName, batchBytes);
+                                }
+                            } finally {
+                                completed(indexes, retryIndexes);
+                            }
+                            recordsProcessed += indexes.length;
+                        } finally {
+                            controller.exit();
+                        }
+                        log.info(sObjectName + " : Thread[" + sequence + "] Batch Records: " + recordsProcessed);
+                    }
+                    return recordsProcessed;
+                }
+            }));
+        }
+
+        int results = 0;
+        Exception failure = null;
+        boolean interrupted = false;
+        for (Future<Integer> future : list) {
+            while (true) {
+                try {
+                    results = results + future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // No new batches, wait for the batches in flight
+                    log.error(sObjectName + " : interrupted, waiting for the batches in flight", e);
+                    interrupted = true;
+                    abort();
+                    failure = failure != null ? failure : e;
+                } catch (ExecutionException e) {
+                    log.error(sObjectName + " : worker failed", e.getCause());
+                    failure = failure != null ? failure
+                            : e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    break;
+                }
+            }
+        }
+        failUnhandled(operation, failure);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (recordsRetried > 0) {
+            log.info(sObjectName + " : Records sent again: " + recordsRetried);
+        }
+        return results;
+    }
+
+    // Next batch: a retry that is due, else the rest of a large parent group, else the next records.
+    // Records of a group being sent wait. Waits while there is work in flight, null when all is done
+    private synchronized int[] nextBatch(int size) throws InterruptedException {
+        while (!aborted) {
+            long now = System.currentTimeMillis();
+            long nextDueMillis = Long.MAX_VALUE;
+            RetryBatch dueRetry = null;
+            for (RetryBatch retry : retries) {
+                if (retry.dueMillis > now) {
+                    nextDueMillis = Math.min(nextDueMillis, retry.dueMillis);
+                } else if (isFree(retry.indexes) && (dueRetry == null || retry.dueMillis < dueRetry.dueMillis)) {
+                    dueRetry = retry;
+                }
+            }
+            if (dueRetry != null) {
+                retries.remove(dueRetry);
+                return take(dueRetry.indexes);
+            }
+
+            for (int i = 0; i < groupRemainders.size(); i++) {
+                int[] remainder = groupRemainders.get(i);
+                if (isFree(remainder)) {
+                    int count = fit(remainder, 0, remainder.length);
+                    if (count < remainder.length) {
+                        groupRemainders.set(i, Arrays.copyOfRange(remainder, count, remainder.length));
+                    } else {
+                        groupRemainders.remove(i);
+                    }
+                    return take(Arrays.copyOf(remainder, count));
+                }
+            }
+
+            if (nextIndex < size) {
+                return take(nextRecords(size));
+            }
+            if (retries.isEmpty() && groupRemainders.isEmpty() && batchesInFlight == 0) {
+                return null;
+            }
+            // Wait for the next retry to be due, or for a batch in flight to free a group or add retries
+            wait(nextDueMillis != Long.MAX_VALUE ? Math.max(1L, nextDueMillis - now) : 0L);
+        }
+        return null;
+    }
+
+    private synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    // Fails the records no batch was run for
+    private void failUnhandled(BatchOperation operation, Exception failure) {
+        int count = 0;
+        int[] indexes = new int[handled.length];
+        for (int i = 0; i < handled.length; i++) {
+            if (!handled[i]) {
+                indexes[count++] = i;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        log.error(sObjectName + " : " + count + " records were not sent");
+        operation.failed(Arrays.copyOf(indexes, count),
+                failure != null ? failure : new IllegalStateException(count + " records were not sent"));
+    }
+
+    private void handled(int[] indexes) {
+        for (int index : indexes) {
+            handled[index] = true;
+        }
+    }
+
+    // Next records in sending order: up to the batch size, cut earlier when the payload budget is
+    // used up. Parent groups are not split unless a group alone does not fit, the rest of such a
+    // group is sent once this batch is done
+    private int[] nextRecords(int size) {
+        if (order == null) {
+            int count = fit(null, nextIndex, size);
+            int[] indexes = new int[count];
+            for (int i = 0; i < count; i++) {
+                indexes[i] = nextIndex + i;
+            }
+            nextIndex += count;
+            return indexes;
+        }
+        int batchSize = controller.getBatchSize();
+        long maxBytes = accountant.capBatchBytes(controller.getMaxBytes());
+        int fromIndex = nextIndex;
+        long bytes = 0;
+        while (nextIndex < size) {
+            int group = groups[order[nextIndex]];
+            int groupEnd = nextIndex + 1;
+            while (group >= 0 && groupEnd < size && groups[order[groupEnd]] == group) {
+                groupEnd++;
+            }
+            long groupBytes = bytes(order, nextIndex, groupEnd);
+            if (nextIndex - fromIndex + groupEnd - nextIndex <= batchSize && bytes + groupBytes <= maxBytes) {
+                bytes += groupBytes;
+                nextIndex = groupEnd;
+            } else if (nextIndex == fromIndex) {
+                int count = fit(order, nextIndex, groupEnd);
+                groupRemainders.add(Arrays.copyOfRange(order, nextIndex + count, groupEnd));
+                nextIndex = groupEnd;
+                return Arrays.copyOfRange(order, fromIndex, fromIndex + count);
+            } else {
+                break;
+            }
+        }
+        return Arrays.copyOfRange(order, fromIndex, nextIndex);
+    }
+
+    // Number of records from fromIndex (positions in indexes, or record indexes when null) that fit
+    // in a batch, at least one
+    private int fit(int[] indexes, int fromIndex, int toIndex) {
+        int count = Math.min(controller.getBatchSize(), toIndex - fromIndex);
+        if (recordBytes == null) {
+            return Math.max(1, count);
+        }
+        long maxBytes = accountant.capBatchBytes(controller.getMaxBytes());
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            bytes += recordBytes[indexes != null ? indexes[fromIndex + i] : fromIndex + i];
+            if (i > 0 && bytes > maxBytes) {
+                return i;
+            }
+        }
+        return Math.max(1, count);
+    }
+
+    private long bytes(int[] indexes, int fromIndex, int toIndex) {
+        if (recordBytes == null) {
+            return 0L;
+        }
+        long bytes = 0;
+        for (int i = fromIndex; i < toIndex; i++) {
+            bytes += recordBytes[indexes[i]];
+        }
+        return bytes;
+    }
+
+    // True if no record of the parent groups of the records is being sent
+    private boolean isFree(int[] indexes) {
+        if (groups == null) {
+            return true;
+        }
+        for (int index : indexes) {
+            if (groups[index] >= 0 && groupRecordsInFlight[groups[index]] > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int[] take(int[] indexes) {
+        batchesInFlight++;
+        if (groups != null) {
+            for (int index : indexes) {
+                if (groups[index] >= 0) {
+                    groupRecordsInFlight[groups[index]]++;
+                }
+            }
+        }
+        return indexes;
+    }
+
+    // A batch is done, frees its groups and queues its records to send again (grouped by delay)
+    private synchronized void completed(int[] indexes, List<int[]> retryIndexes) {
+        batchesInFlight--;
+        if (groups != null) {
+            for (int index : indexes) {
+                if (groups[index] >= 0) {
+                    groupRecordsInFlight[groups[index]]--;
+                }
+            }
+        }
+        for (int[] retry : retryIndexes) {
+            recordsRetried++;
+            RetryBatch batch = new RetryBatch();
+            batch.indexes = new int[] {retry[0]};
+            batch.dueMillis = System.currentTimeMillis() + retry[1];
+            retries.add(batch);
+        }
+        mergeRetries();
+        notifyAll();
+    }
+
+    // Retries due within a second of each other go in one batch
+    private void mergeRetries() {
+        if (retries.size() < 2) {
+            return;
+        }
+        List<RetryBatch> merged = new ArrayList<RetryBatch>();
+        RetryBatch current = null;
+        int batchSize = controller.getBatchSize();
+        while (!retries.isEmpty()) {
+            RetryBatch next = retries.poll();
+            if (current != null && next.dueMillis - current.dueMillis <= 1000L
+                    && current.indexes.length + next.indexes.length <= batchSize) {
+                int[] indexes = Arrays.copyOf(current.indexes, current.indexes.length + next.indexes.length);
+                System.arraycopy(next.indexes, 0, indexes, current.indexes.length, next.indexes.length);
+                current.indexes = indexes;
+            } else {
+                if (current != null) {
+                    merged.add(current);
+                }
+                current = next;
+            }
+        }
+        merged.add(current);
+        retries.addAll(merged);
+    }
+
+    private long bytes(int[] indexes) {
+        if (recordBytes == null) {
+            return 0L;
+        }
+        long bytes = 0;
+        for (int index : indexes) {
+            bytes += recordBytes[index];
+        }
+        return bytes;
+    }
+
+    // Runs a batch, a batch rejected as too large is sent again in two halves
+    private void runBatch(BatchOperation operation, int[] indexes, int sequence, List<int[]> retryIndexes) {
+        if (!executeBatch(operation, indexes, sequence, retryIndexes)) {
+            controller.requestTooLarge(indexes.length, bytes(indexes));
+            int middle = indexes.length / 2;
+            runBatch(operation, Arrays.copyOfRange(indexes, 0, middle), sequence, retryIndexes);
+            runBatch(operation, Arrays.copyOfRange(indexes, middle, indexes.length), sequence, retryIndexes);
+        }
+    }
+
+    // Runs one batch on a leased connection, logs in again once if the session has expired.
+    // Returns false if the batch was too large and has to be split (nothing recorded yet)
+    private boolean executeBatch(BatchOperation operation, int[] indexes, int sequence, List<int[]> retryIndexes) {
+        TargetConnectionPool.PooledConnection pooled = null;
+        try {
+            pooled = connectionPool.lease();
+            long start = System.currentTimeMillis();
+            StatusCode[] statusCodes;
+            try {
+                statusCodes = operation.execute(pooled.getConnection(), indexes);
+            } catch (Exception e) {
+                if (TargetConnectionPool.isInvalidSession(e) && connectionPool.relogin(pooled)) {
+                    start = System.currentTimeMillis();
+                    statusCodes = operation.execute(pooled.getConnection(), indexes);
+                } else {
+                    throw e;
+                }
+            }
+            long latency = System.currentTimeMillis() - start;
+
+            int lockErrors = 0;
+            if (statusCodes != null) {
+                for (int i = 0; i < statusCodes.length; i++) {
+                    if (statusCodes[i] == null) {
+                        continue;
+                    }
+                    if (statusCodes[i] == StatusCode.UNABLE_TO_LOCK_ROW) {
+                        lockErrors++;
+                    }
+                    int index = indexes[i];
+                    long delay = retryPolicy.delayMillis(statusCodes[i], ++attempts[index]);
+                    if (delay >= 0) {
+                        operation.beforeRetry(index, statusCodes[i]);
+                        retryIndexes.add(new int[] {index, (int) Math.min(Integer.MAX_VALUE, delay)});
+                    }
+                }
+            }
+            controller.completed(indexes.length, latency, lockErrors);
+            handled(indexes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            operation.failed(indexes, e);
+            handled(indexes);
+        } catch (Exception e) {
+            if (indexes.length > 1 && BatchSizeController.isRequestTooLarge(e)) {
+                return false;
+            }
+            log.error(sObjectName + " : Thread[" + sequence + "] batch of " + indexes.length + " records from index "
+                    + indexes[0] + " failed", e);
+            operation.failed(indexes, e);
+            handled(indexes);
+        } finally {
+            connectionPool.release(pooled);
+        }
+        return true;
+    }
+
+    // Records to send again at dueMillis
+    private static class RetryBatch {
+        int[] indexes;
+        long dueMillis;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.buffer;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.fault.ApiFault;
+import com.sforce.soap.partner.fault.ExceptionCode;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.XmlObject;
+import migrator.core.service.PropertiesReader;
+
+/**
+ * BatchSizeController : Batch size, payload budget and concurrency of the API calls of one sObject
+ * and operation (e.g. Account create). Batches are cut at the batch size or at batch.max.bytes of
+ * estimated SOAP payload, whichever comes first, so wide records (long text, base64) go in smaller
+ * batches. A call rejected as too large halves the payload budget. With batch.adaptive, the batch
+ * size and the number of concurrent calls also follow the calls: they grow step by step while the
+ * calls are fast and clean, and are cut when the calls get slower than batch.target.latency.ms or
+ * too many records fail with UNABLE_TO_LOCK_ROW. The controllers live for the run, what is learned
+ * from one call is used for the next call of the same object and operation.
+ */
+public class BatchSizeController {
+
+    static Logger log = Logger.getLogger(BatchSizeController.class.getName());
+
+    // Max records per create/update/upsert/delete call
+    public static final int API_MAX_BATCH_SIZE = 200;
+
+    private static final long DEFAULT_MAX_BYTES = 10000000L;
+    private static final long MIN_MAX_BYTES = 64 * 1024;
+    private static final long DEFAULT_TARGET_LATENCY_MS = 15000L;
+    private static final double DEFAULT_LOCK_ERROR_RATE = 0.05;
+
+    // Clean batches in a row before one more concurrent call is allowed
+    private static final int WORKER_INCREASE_BATCHES = 5;
+
+    // Estimated SOAP envelope bytes of a record and of a field around its value
+    private static final int RECORD_OVERHEAD_BYTES = 64;
+    private static final int FIELD_OVERHEAD_BYTES = 8;
+
+    private static final Map<String, BatchSizeController> controllers =
+            new ConcurrentHashMap<String, BatchSizeController>();
+
+    private final String name;
+    private final boolean adaptive;
+    private final int maxBatchSize;
+    private final long configuredMaxBytes;
+    private final long targetLatencyMs;
+    private final double lockErrorRate;
+
+    private int batchSize;
+    private long maxBytes;
+    private int maxWorkers;
+    private int workers;
+    private int activeWorkers;
+    private int cleanBatches;
+
+    BatchSizeController(String name, int configuredBatchSize, boolean adaptive, long maxBytes, long targetLatencyMs,
+            double lockErrorRate) {
+        this.name = name;
+        this.adaptive = adaptive;
+        this.batchSize = Math.min(configuredBatchSize > 0 ? configuredBatchSize : API_MAX_BATCH_SIZE,
+                API_MAX_BATCH_SIZE);
+        this.maxBatchSize = adaptive ? API_MAX_BATCH_SIZE : batchSize;
+        this.configuredMaxBytes = Math.max(MIN_MAX_BYTES, maxBytes);
+        this.maxBytes = configuredMaxBytes;
+        this.targetLatencyMs = targetLatencyMs;
+        this.lockErrorRate = lockErrorRate;
+        this.maxWorkers = 1;
+        // Set on the first execution
+        this.workers = 0;
+    }
+
+    /**
+     * Controller of the sObject and operation, created with the batch size of the mapping on first
+     * use
+     *
+     * @param String sObjectName: sObject API name
+     * @param String operation: e.g. create, update, upsert, delete
+     * @param int configuredBatchSize: batchSize of the JSON mapping (0 for the API max)
+     */
+    public static BatchSizeController get(String sObjectName, String operation, int configuredBatchSize) {
+        String key = sObjectName + "." + operation;
+        BatchSizeController controller = controllers.get(key);
+        if (controller == null) {
+            BatchSizeController created =
+                    new BatchSizeController(key, configuredBatchSize,
+                            Boolean.parseBoolean(getProperty("batch.adaptive", "false")),
+                            Long.parseLong(getProperty("batch.max.bytes", String.valueOf(DEFAULT_MAX_BYTES))),
+                            Long.parseLong(getProperty("batch.target.latency.ms",
+                                    String.valueOf(DEFAULT_TARGET_LATENCY_MS))),
+                            Double.parseDouble(getProperty("batch.lock.error.rate",
+                                    String.valueOf(DEFAULT_LOCK_ERROR_RATE))));
+            controller = controllers.putIfAbsent(key, created);
+            if (controller == null) {
+                controller = created;
+            }
+        }
+        return controller;
+    }
+
+    public static void clear() {
+        controllers.clear();
+    }
+
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Upper bound of concurrent calls for the next execution (pooled connections, or 1 when single
+     * threaded). Without batch.adaptive all of them are used.
+     */
+    public synchronized void setMaxWorkers(int maxWorkers) {
+        this.maxWorkers = Math.max(1, maxWorkers);
+        if (!adaptive || workers > this.maxWorkers || workers < 1) {
+            workers = this.maxWorkers;
+        }
+        notifyAll();
+    }
+
+    // Waits until one more call may run
+    public synchronized void enter() throws InterruptedException {
+        while (activeWorkers >= workers) {
+            wait();
+        }
+        activeWorkers++;
+    }
+
+    public synchronized void exit() {
+        activeWorkers--;
+        notifyAll();
+    }
+
+    /**
+     * A call has completed
+     *
+     * @param int records: Records of the call
+     * @param long latencyMs: Time of the call
+     * @param int lockErrors: Records rejected with UNABLE_TO_LOCK_ROW
+     */
+    public synchronized void completed(int records, long latencyMs, int lockErrors) {
+        if (!adaptive) {
+            return;
+        }
+        if (lockErrors > 0 && lockErrors >= records * lockErrorRate) {
+            batchSize = Math.max(1, batchSize / 2);
+            workers = Math.max(1, workers - 1);
+            cleanBatches = 0;
+            log.info(name + " : " + lockErrors + " of " + records + " records locked, batch size " + batchSize
+                    + ", workers " + workers);
+        } else if (latencyMs > targetLatencyMs) {
+            // Cut in proportion to the overshoot, at most by half
+            batchSize = Math.max(1, Math.max(batchSize / 2, (int) (batchSize * targetLatencyMs / latencyMs)));
+            cleanBatches = 0;
+            log.info(name + " : call took " + latencyMs + " ms, batch size " + batchSize);
+        } else {
+            batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, maxBatchSize / 10));
+            maxBytes = Math.min(configuredMaxBytes, maxBytes + configuredMaxBytes / 10);
+            if (++cleanBatches >= WORKER_INCREASE_BATCHES && workers < maxWorkers) {
+                workers++;
+                cleanBatches = 0;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A call was rejected as too large, the records are sent again in two halves
+     *
+     * @param int records: Records of the call
+     * @param long bytes: Estimated payload of the call
+     */
+    public synchronized void requestTooLarge(int records, long bytes) {
+        maxBytes = Math.max(MIN_MAX_BYTES, Math.min(maxBytes, bytes) / 2);
+        if (adaptive) {
+            batchSize = Math.max(1, Math.min(batchSize, records / 2));
+        }
+        cleanBatches = 0;
+        log.warn(name + " : request of " + records + " records (" + bytes + " bytes) too large, payload budget "
+                + maxBytes + " bytes");
+    }
+
+    public static boolean isRequestTooLarge(Throwable e) {
+        if (e instanceof ApiFault) {
+            return ((ApiFault) e).getExceptionCode() == ExceptionCode.EXCEEDED_MAX_SIZE_REQUEST;
+        }
+        return e.getMessage() != null && e.getMessage().contains("EXCEEDED_MAX_SIZE_REQUEST");
+    }
+
+    /**
+     * Estimated SOAP payload of the records, one entry per record
+     */
+    public static long[] estimateBytes(SObject[] records) {
+        long[] bytes = new long[records.length];
+        for (int i = 0; i < records.length; i++) {
+            bytes[i] = estimateBytes(records[i]);
+        }
+        return bytes;
+    }
+
+    public static long estimateBytes(SObject record) {
+        if (record == null) {
+            return RECORD_OVERHEAD_BYTES;
+        }
+        long bytes = RECORD_OVERHEAD_BYTES;
+        Iterator<XmlObject> children = record.getChildren();
+        while (children.hasNext()) {
+            XmlObject child = children.next();
+            String field = child.getName().getLocalPart();
+            // Field name in the start and end tag
+            bytes += 2 * field.length() + FIELD_OVERHEAD_BYTES;
+            Object value = child.getValue();
+            if (value instanceof byte[]) {
+                bytes += (((byte[]) value).length + 2) / 3 * 4;
+            } else if (value != null) {
+                bytes += value.toString().length();
+            }
+        }
+        String[] fieldsToNull = record.getFieldsToNull();
+        if (fieldsToNull != null) {
+            for (String field : fieldsToNull) {
+                bytes += field.length() + 2 * "fieldsToNull".length() + FIELD_OVERHEAD_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    private static String getProperty(String name, String defaultValue) {
+        String value = PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, name);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+}
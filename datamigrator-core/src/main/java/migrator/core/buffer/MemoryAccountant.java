@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.buffer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.sobject.SObject;
+import migrator.core.service.PropertiesReader;
+
+/**
+ * MemoryAccountant : Estimated bytes held by the stages of a run, per stage and sObject: source
+ * pages waiting for the mapping (QUERY), pages of the record stores (STORE), built insert records
+ * (TRANSFORM) and batches being sent (INSERT). With memory.budget.mb, a query reader or an insert
+ * worker waits in acquire while other work of its own stage holds memory and the total is over the
+ * budget (there is always one in flight per stage, so a stage never waits on itself), and insert
+ * batches are cut smaller as the free memory runs out (see capBatchBytes). The peaks per sObject
+ * and stage are logged at the end of the run (see report), to size the heap of a migration.
+ *
+ * The estimates are those of BatchSizeController.estimateBytes and RecordStore, not heap
+ * measurements.
+ */
+public class MemoryAccountant {
+
+    static Logger log = Logger.getLogger(MemoryAccountant.class.getName());
+
+    public enum Stage {
+        QUERY, STORE, TRANSFORM, INSERT
+    }
+
+    private static MemoryAccountant instance;
+
+    // 0 for accounting only
+    private final long budgetBytes;
+
+    private long heldBytes;
+    private long peakBytes;
+    private final long[] stageBytes = new long[Stage.values().length];
+    private final long[] stagePeakBytes = new long[Stage.values().length];
+    private final Map<String, long[]> objectBytes = new TreeMap<String, long[]>(String.CASE_INSENSITIVE_ORDER);
+    private long waits;
+
+    public static synchronized MemoryAccountant getInstance() {
+        if (instance == null) {
+            String budget =
+                    PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                            "memory.budget.mb");
+            long budgetMb = budget == null || budget.trim().equals("") ? 0 : Long.parseLong(budget.trim());
+            instance = new MemoryAccountant(Math.max(0, budgetMb) * 1024 * 1024);
+            if (budgetMb > 0) {
+                log.info("MemoryAccountant: memory budget " + budgetMb + " MB");
+            }
+        }
+        return instance;
+    }
+
+    private MemoryAccountant(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Accounts the bytes, waits first while the budget is used up by others of the stage
+     */
+    public synchronized void acquire(Stage stage, String sObjectName, long bytes) throws InterruptedException {
+        boolean waited = false;
+        while (budgetBytes > 0 && stageBytes[stage.ordinal()] > 0 && heldBytes + bytes > budgetBytes) {
+            if (!waited) {
+                waited = true;
+                waits++;
+                log.debug("MemoryAccountant: " + stage + " " + sObjectName + " waiting for " + bytes
+                        + " bytes, held " + heldBytes);
+            }
+            wait();
+        }
+        add(stage, sObjectName, bytes);
+    }
+
+    /**
+     * Accounts the bytes without waiting (memory already allocated)
+     */
+    public synchronized void add(Stage stage, String sObjectName, long bytes) {
+        heldBytes += bytes;
+        peakBytes = Math.max(peakBytes, heldBytes);
+        stageBytes[stage.ordinal()] += bytes;
+        stagePeakBytes[stage.ordinal()] = Math.max(stagePeakBytes[stage.ordinal()], stageBytes[stage.ordinal()]);
+        long[] object = objectBytes.get(sObjectName);
+        if (object == null) {
+            // held, peak
+            object = new long[2];
+            objectBytes.put(sObjectName, object);
+        }
+        object[0] += bytes;
+        object[1] = Math.max(object[1], object[0]);
+    }
+
+    public synchronized void release(Stage stage, String sObjectName, long bytes) {
+        heldBytes -= bytes;
+        stageBytes[stage.ordinal()] -= bytes;
+        long[] object = objectBytes.get(sObjectName);
+        if (object != null) {
+            object[0] -= bytes;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Payload budget of the next insert batch: maxBytes while there is room, else half of the free
+     * memory (at least one record is always sent)
+     */
+    public synchronized long capBatchBytes(long maxBytes) {
+        if (budgetBytes == 0) {
+            return maxBytes;
+        }
+        long free = budgetBytes - heldBytes;
+        return free >= 2 * maxBytes ? maxBytes : Math.max(0, free / 2);
+    }
+
+    /**
+     * Logs the peaks of the run
+     */
+    public synchronized void report() {
+        log.info("MemoryAccountant: peak " + mb(peakBytes) + " MB" + (budgetBytes > 0 ? " of " + mb(budgetBytes)
+                + " MB budget, " + waits + " waits" : ""));
+        for (Stage stage : Stage.values()) {
+            log.info("MemoryAccountant: peak " + stage + " " + mb(stagePeakBytes[stage.ordinal()]) + " MB");
+        }
+        for (Map.Entry<String, long[]> entry : objectBytes.entrySet()) {
+            log.info("MemoryAccountant: peak " + entry.getKey() + " " + mb(entry.getValue()[1]) + " MB");
+        }
+    }
+
+    /**
+     * Estimated bytes of the records (see BatchSizeController.estimateBytes)
+     */
+    public static long estimateBytes(SObject[] records) {
+        return records == null ? 0 : total(BatchSizeController.estimateBytes(records));
+    }
+
+    public static long total(long[] bytes) {
+        long total = 0;
+        for (long recordBytes : bytes) {
+            total += recordBytes;
+        }
+        return total;
+    }
+
+    public synchronized long getHeldBytes() {
+        return heldBytes;
+    }
+
+    private static String mb(long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.buffer;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * ParentAffinity : Groups child records by their (target) parent ids, for the BatchScheduler to
+ * keep the children of a parent out of concurrent batches. Records sharing any parent are in the
+ * same group, so a junction record joins the groups of both its parents.
+ */
+public class ParentAffinity {
+
+    private ParentAffinity() {}
+
+    /**
+     * Parent group per record, -1 for records without a parent. Groups are numbered in order of
+     * their first record.
+     *
+     * @param SObject[] records: Records to send
+     * @param Collection<String> parentFields: Fields holding the parent id (e.g. master-detail)
+     */
+    public static int[] groups(SObject[] records, Collection<String> parentFields) {
+        Map<String, Integer> parentNodes = new HashMap<String, Integer>();
+        int[] recordNodes = new int[records.length];
+        int[] nodes = new int[Math.max(16, records.length)];
+        int nodeCount = 0;
+
+        for (int i = 0; i < records.length; i++) {
+            recordNodes[i] = -1;
+            for (String parentField : parentFields) {
+                Object parentId = records[i].getField(parentField);
+                if (parentId == null || parentId.toString().equals("")) {
+                    continue;
+                }
+                Integer node = parentNodes.get(parentId.toString());
+                if (node == null) {
+                    if (nodeCount == nodes.length) {
+                        int[] grown = new int[nodes.length * 2];
+                        System.arraycopy(nodes, 0, grown, 0, nodeCount);
+                        nodes = grown;
+                    }
+                    node = nodeCount;
+                    nodes[nodeCount++] = node;
+                    parentNodes.put(parentId.toString(), node);
+                }
+                if (recordNodes[i] < 0) {
+                    recordNodes[i] = node;
+                } else {
+                    union(nodes, recordNodes[i], node);
+                }
+            }
+        }
+
+        // Number the groups by their roots
+        int[] groupOfRoot = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            groupOfRoot[i] = -1;
+        }
+        int[] groups = new int[records.length];
+        int groupCount = 0;
+        for (int i = 0; i < records.length; i++) {
+            if (recordNodes[i] < 0) {
+                groups[i] = -1;
+                continue;
+            }
+            int root = find(nodes, recordNodes[i]);
+            if (groupOfRoot[root] < 0) {
+                groupOfRoot[root] = groupCount++;
+            }
+            groups[i] = groupOfRoot[root];
+        }
+        return groups;
+    }
+
+    /**
+     * Record indexes with the records of each group next to each other, groups in order of their
+     * first record, records without a group where they are
+     */
+    public static int[] order(int[] groups) {
+        int groupCount = count(groups);
+        // Position of each group: counting sort, a record without a group is a group of its own
+        int[] groupSizes = new int[groupCount];
+        for (int group : groups) {
+            if (group >= 0) {
+                groupSizes[group]++;
+            }
+        }
+        int[] groupPositions = new int[groupCount];
+        boolean[] placed = new boolean[groupCount];
+        int[] order = new int[groups.length];
+        int position = 0;
+        for (int i = 0; i < groups.length; i++) {
+            int group = groups[i];
+            if (group < 0) {
+                order[position++] = i;
+            } else {
+                if (!placed[group]) {
+                    placed[group] = true;
+                    groupPositions[group] = position;
+                    position += groupSizes[group];
+                }
+                order[groupPositions[group]++] = i;
+            }
+        }
+        return order;
+    }
+
+    public static int count(int[] groups) {
+        int count = 0;
+        for (int group : groups) {
+            count = Math.max(count, group + 1);
+        }
+        return count;
+    }
+
+    private static int find(int[] nodes, int node) {
+        while (nodes[node] != node) {
+            nodes[node] = nodes[nodes[node]];
+            node = nodes[node];
+        }
+        return node;
+    }
+
+    private static void union(int[] nodes, int a, int b) {
+        int rootA = find(nodes, a);
+        int rootB = find(nodes, b);
+        if (rootA != rootB) {
+            // Keep the older root, groups are numbered in order of their first record
+            nodes[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+}
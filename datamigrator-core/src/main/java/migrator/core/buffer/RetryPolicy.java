@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.buffer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import com.sforce.soap.partner.StatusCode;
+import migrator.core.service.PropertiesReader;
+
+/**
+ * RetryPolicy : Which failed records are sent again, how often and after how long. Every retryable
+ * status code has its own number of attempts (first call included) and backoff: the delay doubles
+ * with every attempt from the base delay up to the max delay, and a random part of it (jitter) is
+ * taken off so records that failed together are not sent again together. Defaults can be overridden
+ * per status code, e.g. retry.UNABLE_TO_LOCK_ROW.attempts=8, retry.UNABLE_TO_LOCK_ROW.delay.ms=500,
+ * retry.UNABLE_TO_LOCK_ROW.max.delay.ms=60000
+ */
+public class RetryPolicy {
+
+    // Row locks (parent records updated by triggers, roll-up summaries) clear within seconds
+    private static final Rule LOCK = new Rule(5, 1000L, 30000L);
+    // Referenced record may still be in flight (e.g. parent created by another worker)
+    private static final Rule CROSS_REFERENCE = new Rule(2, 2000L, 2000L);
+    // Record is changed before it is sent again (see BatchOperation.beforeRetry)
+    private static final Rule CHANGED_RECORD = new Rule(2, 0L, 0L);
+
+    private static final Map<StatusCode, Rule> DEFAULTS = new EnumMap<StatusCode, Rule>(StatusCode.class);
+    static {
+        DEFAULTS.put(StatusCode.UNABLE_TO_LOCK_ROW, LOCK);
+        DEFAULTS.put(StatusCode.INVALID_CROSS_REFERENCE_KEY, CROSS_REFERENCE);
+        DEFAULTS.put(StatusCode.INVALID_FIELD_FOR_INSERT_UPDATE, CHANGED_RECORD);
+    }
+
+    public static final RetryPolicy NONE = new RetryPolicy();
+
+    private final Map<StatusCode, Rule> rules = new EnumMap<StatusCode, Rule>(StatusCode.class);
+
+    private RetryPolicy() {}
+
+    /**
+     * Policy retrying the given status codes
+     */
+    public static RetryPolicy of(StatusCode... statusCodes) {
+        RetryPolicy policy = new RetryPolicy();
+        for (StatusCode statusCode : statusCodes) {
+            Rule rule = DEFAULTS.get(statusCode);
+            if (rule == null) {
+                rule = LOCK;
+            }
+            String prefix = "retry." + statusCode.name() + ".";
+            policy.rules.put(statusCode, new Rule(getInt(prefix + "attempts", rule.attempts), getLong(prefix
+                    + "delay.ms", rule.delayMillis), getLong(prefix + "max.delay.ms", rule.maxDelayMillis)));
+        }
+        return policy;
+    }
+
+    /**
+     * Delay before the next attempt of a record, -1 when the record is not retried (status code not
+     * retryable or no attempts left)
+     *
+     * @param StatusCode statusCode: Status code of the failure
+     * @param int attempt: Attempts made so far (1 after the first call)
+     */
+    public long delayMillis(StatusCode statusCode, int attempt) {
+        Rule rule = statusCode != null ? rules.get(statusCode) : null;
+        if (rule == null || attempt >= rule.attempts) {
+            return -1;
+        }
+        long delay = rule.delayMillis << Math.min(attempt - 1, 20);
+        delay = Math.min(rule.maxDelayMillis, delay);
+        if (delay <= 0) {
+            return 0;
+        }
+        // Equal jitter: half fixed, half random
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    private static class Rule {
+        final int attempts;
+        final long delayMillis;
+        final long maxDelayMillis;
+
+        Rule(int attempts, long delayMillis, long maxDelayMillis) {
+            this.attempts = attempts;
+            this.delayMillis = delayMillis;
+            this.maxDelayMillis = Math.max(delayMillis, maxDelayMillis);
+        }
+    }
+
+    private static int getInt(String name, int defaultValue) {
+        String value = PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, name);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    private static long getLong(String name, long defaultValue) {
+        String value = PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, name);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return Long.parseLong(value.trim());
+    }
+}
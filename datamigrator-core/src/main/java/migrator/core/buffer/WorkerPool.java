@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.buffer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import migrator.core.service.PropertiesReader;
+
+/**
+ * WorkerPool : Long-lived, size-bounded pool of worker threads shared by every object of a run
+ * (sized by target.threads.count). Idle threads go away after a minute and are created again on
+ * demand, the threads are daemons so they never keep the JVM alive.
+ *
+ * Blocking I/O next to the workers (source query readers, describes) runs on a second shared pool,
+ * getIoExecutor, which is not bounded: a reader waiting for the workers to drain its queue must
+ * never hold a worker thread. Callers bound their own number of tasks.
+ */
+public class WorkerPool {
+
+    static Logger log = Logger.getLogger(WorkerPool.class.getName());
+
+    private static ThreadPoolExecutor executor;
+    private static ThreadPoolExecutor ioExecutor;
+
+    private WorkerPool() {}
+
+    public static synchronized ExecutorService getExecutor() {
+        if (executor == null || executor.isShutdown()) {
+            int size = getSize();
+            log.info("Starting worker pool with " + size + " threads");
+
+            executor =
+                    new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new WorkerThreadFactory("migrator-worker-"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    public static synchronized ExecutorService getIoExecutor() {
+        if (ioExecutor == null || ioExecutor.isShutdown()) {
+            ioExecutor =
+                    new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                            new SynchronousQueue<Runnable>(), new WorkerThreadFactory("migrator-io-"));
+        }
+        return ioExecutor;
+    }
+
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        if (ioExecutor != null) {
+            ioExecutor.shutdown();
+            ioExecutor = null;
+        }
+    }
+
+    private static int getSize() {
+        String threadCount =
+                PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                        "target.threads.count");
+        if (threadCount == null || threadCount.trim().equals("")) {
+            return 1;
+        }
+        return Math.max(1, Integer.parseInt(threadCount.trim()));
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger(0);
+        private final String prefix;
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.ws.ConnectorConfig;
+import migrator.core.connect.ApiThrottler;
+import migrator.core.connect.ThrottledPartnerConnection;
+import migrator.core.service.PropertiesReader;
+
+/**
+ * BulkApiClient : Minimal Bulk API 2.0 REST client (ingest and query jobs). Uses the session of a
+ * logged-in PartnerConnection. The REST base url is derived from the SOAP service endpoint and can
+ * be overridden with bulk.api.base.url (e.g. to run against a local stand-in of the job endpoints).
+ */
+public class BulkApiClient {
+
+    static Logger log = Logger.getLogger(BulkApiClient.class.getName());
+
+    public static final String INGEST = "ingest";
+    public static final String QUERY = "query";
+
+    // Default time between two job status checks
+    private static final long DEFAULT_POLL_MILLIS = 2000;
+    private static final long MAX_POLL_MILLIS = 30000;
+
+    /**
+     * Writes the CSV data of a job upload
+     */
+    public interface CsvUpload {
+        public void write(CsvWriter csvWriter) throws IOException;
+    }
+
+    /**
+     * One page of query results
+     */
+    public static class QueryResultPage {
+        public String csv;
+        public String locator;
+    }
+
+    private final String baseUrl;
+    private final String sessionId;
+    private final Proxy proxy;
+    private final long pollMillis;
+    // Throttler of the connection's org, null for a plain PartnerConnection
+    private final ApiThrottler throttler;
+
+    public BulkApiClient(PartnerConnection connection) {
+        ConnectorConfig config = connection.getConfig();
+        String override =
+                PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, "bulk.api.base.url");
+        if (override != null && !override.trim().equals("")) {
+            this.baseUrl = override.trim().replaceAll("/+$", "");
+        } else {
+            this.baseUrl = getRestBaseUrl(config.getServiceEndpoint());
+        }
+        this.sessionId = config.getSessionId();
+        this.proxy = config.getProxy();
+        this.throttler =
+                connection instanceof ThrottledPartnerConnection ? ((ThrottledPartnerConnection) connection)
+                        .getThrottler() : null;
+
+        String poll =
+                PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                        "bulk.poll.interval.ms");
+        this.pollMillis = (poll == null || poll.trim().equals("")) ? DEFAULT_POLL_MILLIS : Long.parseLong(poll.trim());
+    }
+
+    /**
+     * e.g. https://na1.salesforce.com/services/Soap/u/44.0/00D.. to
+     * https://na1.salesforce.com/services/data/v44.0
+     */
+    public static String getRestBaseUrl(String serviceEndpoint) {
+        int servicesIndex = serviceEndpoint.indexOf("/services/");
+        String host = serviceEndpoint.substring(0, servicesIndex);
+        String version = "44.0";
+        String[] parts = serviceEndpoint.substring(servicesIndex).split("/");
+        for (int i = 0; i < parts.length - 1; i++) {
+            if (parts[i].equals("u")) {
+                version = parts[i + 1];
+            }
+        }
+        return host + "/services/data/v" + version;
+    }
+
+    public String createIngestJob(String sObjectName, String operation, String externalIdField) throws IOException {
+        JSONObject job = new JSONObject();
+        try {
+            job.put("object", sObjectName);
+            job.put("operation", operation);
+            job.put("contentType", "CSV");
+            job.put("lineEnding", "LF");
+            if (externalIdField != null && !externalIdField.equals("")) {
+                job.put("externalIdFieldName", externalIdField);
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        return getString(send("POST", "/jobs/ingest", job), "id");
+    }
+
+    /**
+     * Streams the CSV data of an ingest job (no need to hold the whole CSV in memory)
+     */
+    public void uploadJobData(String jobId, CsvUpload upload) throws IOException {
+        HttpURLConnection http = open("PUT", "/jobs/ingest/" + jobId + "/batches", "text/csv");
+        http.setChunkedStreamingMode(64 * 1024);
+        OutputStream out = http.getOutputStream();
+        try {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            CsvWriter csvWriter = new CsvWriter(writer);
+            upload.write(csvWriter);
+            csvWriter.flush();
+        } finally {
+            out.close();
+        }
+        readResponse(http);
+    }
+
+    // Marks the upload as complete, the job gets queued for processing
+    public void closeJob(String jobId) throws IOException {
+        setState(INGEST, jobId, "UploadComplete");
+    }
+
+    public void abortJob(String kind, String jobId) {
+        try {
+            setState(kind, jobId, "Aborted");
+        } catch (IOException e) {
+            log.warn("Could not abort bulk job " + jobId + ": " + e.getMessage());
+        }
+    }
+
+    public String createQueryJob(String soql) throws IOException {
+        JSONObject job = new JSONObject();
+        try {
+            job.put("operation", "query");
+            job.put("query", soql);
+            job.put("contentType", "CSV");
+            job.put("lineEnding", "LF");
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        return getString(send("POST", "/jobs/query", job), "id");
+    }
+
+    /**
+     * Polls the job until it is done. Returns the last job info (state, errorMessage, ...)
+     */
+    public JSONObject waitForJob(String kind, String jobId) throws IOException, InterruptedException {
+        long wait = pollMillis;
+        while (true) {
+            JSONObject job = send("GET", "/jobs/" + kind + "/" + jobId, null);
+            String state = job.optString("state");
+            if ("JobComplete".equals(state) || "Failed".equals(state) || "Aborted".equals(state)) {
+                log.info("Bulk " + kind + " job " + jobId + " " + state + ", records processed: "
+                        + job.optString("numberRecordsProcessed") + ", failed: " + job.optString("numberRecordsFailed"));
+                return job;
+            }
+            Thread.sleep(wait);
+            wait = Math.min(wait * 2, MAX_POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Opens one of successfulResults, failedResults or unprocessedrecords of an ingest job
+     */
+    public Reader openIngestResults(String jobId, String resultType) throws IOException {
+        HttpURLConnection http = open("GET", "/jobs/ingest/" + jobId + "/" + resultType, null);
+        http.setRequestProperty("Accept", "text/csv");
+        checkStatus(http);
+        return new InputStreamReader(http.getInputStream(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Downloads a page of query results. The locator of the next page is null on the last page.
+     */
+    public QueryResultPage getQueryResults(String jobId, String locator, int maxRecords) throws IOException {
+        String path = "/jobs/query/" + jobId + "/results?maxRecords=" + maxRecords;
+        if (locator != null) {
+            path = path + "&locator=" + URLEncoder.encode(locator, "UTF-8");
+        }
+        HttpURLConnection http = open("GET", path, null);
+        http.setRequestProperty("Accept", "text/csv");
+        checkStatus(http);
+
+        QueryResultPage page = new QueryResultPage();
+        page.csv = readFully(http.getInputStream());
+        String next = http.getHeaderField("Sforce-Locator");
+        page.locator = (next == null || next.equals("") || next.equals("null")) ? null : next;
+        return page;
+    }
+
+    private void setState(String kind, String jobId, String state) throws IOException {
+        JSONObject body = new JSONObject();
+        try {
+            body.put("state", state);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        // HttpURLConnection has no PATCH, use the REST API method override
+        send("POST", "/jobs/" + kind + "/" + jobId + "?_HttpMethod=PATCH", body);
+    }
+
+    private JSONObject send(String method, String path, JSONObject body) throws IOException {
+        HttpURLConnection http = open(method, path, body == null ? null : "application/json; charset=UTF-8");
+        if (body != null) {
+            OutputStream out = http.getOutputStream();
+            try {
+                out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+            } finally {
+                out.close();
+            }
+        }
+        String response = readResponse(http);
+        if (response == null || response.trim().equals("")) {
+            return new JSONObject();
+        }
+        try {
+            return new JSONObject(response);
+        } catch (JSONException e) {
+            throw new IOException("Unexpected bulk api response: " + response, e);
+        }
+    }
+
+    private HttpURLConnection open(String method, String path, String contentType) throws IOException {
+        if (throttler != null) {
+            try {
+                throttler.pace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the API throttler", e);
+            }
+        }
+        URL url = new URL(baseUrl + path);
+        HttpURLConnection http =
+                (HttpURLConnection) (proxy != null ? url.openConnection(proxy) : url.openConnection());
+        http.setRequestMethod(method);
+        http.setRequestProperty("Authorization", "Bearer " + sessionId);
+        http.setRequestProperty("Accept", "application/json");
+        if (contentType != null) {
+            http.setDoOutput(true);
+            http.setRequestProperty("Content-Type", contentType);
+        }
+        return http;
+    }
+
+    private String readResponse(HttpURLConnection http) throws IOException {
+        checkStatus(http);
+        return readFully(http.getInputStream());
+    }
+
+    private void checkStatus(HttpURLConnection http) throws IOException {
+        int status = http.getResponseCode();
+        if (throttler != null) {
+            throttler.update(http.getHeaderField("Sforce-Limit-Info"));
+        }
+        if (status >= 400) {
+            InputStream error = http.getErrorStream();
+            String message = error != null ? readFully(error) : "";
+            throw new IOException("Bulk api call " + http.getRequestMethod() + " " + http.getURL() + " failed: "
+                    + status + " " + message);
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        try {
+            Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, read);
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String getString(JSONObject json, String key) throws IOException {
+        try {
+            return json.getString(key);
+        } catch (JSONException e) {
+            throw new IOException("Bulk api response without " + key + ": " + json, e);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.bulk;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.StatusCode;
+import com.sforce.soap.partner.UpsertResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.XmlObject;
+import migrator.core.buffer.WorkerPool;
+import migrator.core.service.IQueryPageHandler;
+import migrator.core.service.MetadataObjectHolder;
+import migrator.core.service.PropertiesReader;
+import migrator.core.service.SforceObject;
+
+/**
+ * BulkTransport : Runs reads and writes of large objects as Bulk API 2.0 jobs instead of 200
+ * record SOAP calls. The records are streamed as CSV into ingest jobs, the job results
+ * (successful, failed and unprocessed rows) are mapped back to the index of the record, so the
+ * callers get the same SaveResult/UpsertResult arrays as from the SOAP calls. Query jobs hand their
+ * result pages to an IQueryPageHandler, the next page is downloaded while the current one is
+ * handled.
+ *
+ * Used for objects with "bulkThreshold" in the JSON mapping once the number of records reaches
+ * the threshold. Objects with base64 fields stay on SOAP (not supported by Bulk API 2.0 CSV).
+ */
+public class BulkTransport {
+
+    static Logger log = Logger.getLogger(BulkTransport.class.getName());
+
+    // Default records per ingest job
+    private static final int DEFAULT_JOB_RECORDS = 100000;
+
+    // Default records per query result page
+    private static final int DEFAULT_QUERY_PAGE_RECORDS = 50000;
+
+    // Marks the end of the query result pages
+    private static final Object END_OF_PAGES = new Object();
+
+    private final BulkApiClient client;
+
+    public BulkTransport(PartnerConnection connection) {
+        this.client = new BulkApiClient(connection);
+    }
+
+    /**
+     * @return true if the records of the object should be sent through the Bulk API
+     */
+    public static boolean useBulk(SforceObject sforceObject, int records) {
+        int threshold = sforceObject.getBulkThreshold();
+        if (threshold <= 0 || records < threshold) {
+            return false;
+        }
+        return !hasBinaryFields(sforceObject);
+    }
+
+    public static boolean hasBinaryFields(SforceObject sforceObject) {
+        MetadataObjectHolder.MetadataRefObject descRefObj = sforceObject.getDescRefObject();
+        if (descRefObj == null || descRefObj.getFieldToTypeMap() == null) {
+            return false;
+        }
+        if (sforceObject.getQueryFields() == null) {
+            return descRefObj.getFieldToTypeMap().containsValue(FieldType.base64);
+        }
+        // Only the queried fields are migrated
+        for (String field : sforceObject.getQueryFields()) {
+            if (descRefObj.getFieldToTypeMap().get(field) == FieldType.base64) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public SaveResult[] insert(SforceObject sforceObject, SObject[] records) {
+        BulkResult[] results = ingest("insert", sforceObject.getsObjectName(), null, records);
+        SaveResult[] saveResults = new SaveResult[results.length];
+        for (int i = 0; i < results.length; i++) {
+            saveResults[i] = new SaveResult();
+            saveResults[i].setId(results[i].id);
+            saveResults[i].setSuccess(results[i].success);
+            saveResults[i].setErrors(results[i].getErrors());
+        }
+        return saveResults;
+    }
+
+    public SaveResult[] update(SforceObject sforceObject, SObject[] records) {
+        BulkResult[] results = ingest("update", sforceObject.getsObjectName(), null, records);
+        SaveResult[] saveResults = new SaveResult[results.length];
+        for (int i = 0; i < results.length; i++) {
+            saveResults[i] = new SaveResult();
+            saveResults[i].setId(results[i].id);
+            saveResults[i].setSuccess(results[i].success);
+            saveResults[i].setErrors(results[i].getErrors());
+        }
+        return saveResults;
+    }
+
+    public UpsertResult[] upsert(SforceObject sforceObject, String externalIdField, SObject[] records) {
+        BulkResult[] results = ingest("upsert", sforceObject.getsObjectName(), externalIdField, records);
+        UpsertResult[] upsertResults = new UpsertResult[results.length];
+        for (int i = 0; i < results.length; i++) {
+            upsertResults[i] = new UpsertResult();
+            upsertResults[i].setId(results[i].id);
+            upsertResults[i].setSuccess(results[i].success);
+            upsertResults[i].setCreated(results[i].created);
+            upsertResults[i].setErrors(results[i].getErrors());
+        }
+        return upsertResults;
+    }
+
+    /**
+     * Runs the SOQL as a Bulk API 2.0 query job and hands every result page to the pageHandler
+     */
+    public void query(final SforceObject sforceObject, String soql, IQueryPageHandler pageHandler)
+            throws IOException, InterruptedException {
+
+        final String jobId = client.createQueryJob(soql);
+        JSONObject job = client.waitForJob(BulkApiClient.QUERY, jobId);
+        if (!"JobComplete".equals(job.optString("state"))) {
+            throw new IOException("Bulk query job " + jobId + " for " + sforceObject.getsObjectName() + " "
+                    + job.optString("state") + ": " + job.optString("errorMessage"));
+        }
+
+        final int pageRecords = getIntProperty("bulk.query.page.records", DEFAULT_QUERY_PAGE_RECORDS);
+        final BlockingQueue<Object> pages = new ArrayBlockingQueue<Object>(2);
+
+        // The next page is downloaded while the current page is handled
+        Future<?> downloader = WorkerPool.getIoExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String locator = null;
+                    do {
+                        BulkApiClient.QueryResultPage page = client.getQueryResults(jobId, locator, pageRecords);
+                        pages.put(page);
+                        locator = page.locator;
+                    } while (locator != null);
+                    pages.put(END_OF_PAGES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    try {
+                        pages.put(e);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+
+        try {
+            while (true) {
+                Object page = pages.take();
+                if (page == END_OF_PAGES) {
+                    break;
+                }
+                if (page instanceof Exception) {
+                    throw new IOException("Bulk query results download failed for job " + jobId, (Exception) page);
+                }
+                SObject[] records = toSObjects(sforceObject.getsObjectName(), ((BulkApiClient.QueryResultPage) page).csv);
+                if (records.length > 0) {
+                    pageHandler.handlePage(sforceObject, records);
+                }
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            downloader.cancel(true);
+        }
+    }
+
+    // Sends the records as one or more ingest jobs, returns a result per record (same order)
+    private BulkResult[] ingest(String operation, String sObjectName, String externalIdField, SObject[] records) {
+        int size = records.length;
+        BulkResult[] results = new BulkResult[size];
+        int jobRecords = getIntProperty("bulk.ingest.job.records", DEFAULT_JOB_RECORDS);
+
+        for (int fromIndex = 0; fromIndex < size; fromIndex += jobRecords) {
+            int toIndex = Math.min(fromIndex + jobRecords, size);
+            String failure = null;
+            try {
+                failure = ingestJob(operation, sObjectName, externalIdField, records, fromIndex, toIndex, results);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = "Interrupted";
+            } catch (Exception e) {
+                e.printStackTrace();
+                log.error("BulkTransport.ingest: sObjectAPIName: " + sObjectName + " operation: " + operation, e);
+                failure = e.getMessage();
+            }
+            for (int i = fromIndex; i < toIndex; i++) {
+                if (results[i] == null) {
+                    results[i] = BulkResult.failed(failure != null ? failure : "No result returned by the bulk job");
+                }
+            }
+        }
+        return results;
+    }
+
+    // Runs one ingest job for the records [fromIndex, toIndex), returns the job error if any
+    private String ingestJob(String operation, String sObjectName, String externalIdField, final SObject[] records,
+            final int fromIndex, final int toIndex, BulkResult[] results) throws IOException,
+            InterruptedException {
+
+        final boolean withId = operation.equals("update");
+        final String keyColumn = withId ? "Id" : (operation.equals("upsert") ? externalIdField : null);
+        final String[] columns = getColumns(records, fromIndex, toIndex, withId);
+        final Map<String, LinkedList<Integer>> rowIndex = new HashMap<String, LinkedList<Integer>>();
+
+        String jobId = client.createIngestJob(sObjectName, operation, externalIdField);
+        log.info("Bulk " + operation + " job " + jobId + " for " + sObjectName + " records: " + (toIndex - fromIndex));
+        try {
+            client.uploadJobData(jobId, new BulkApiClient.CsvUpload() {
+                @Override
+                public void write(CsvWriter csvWriter) throws IOException {
+                    csvWriter.writeRow(columns);
+                    Map<String, Integer> columnIndex = new HashMap<String, Integer>();
+                    for (int i = 0; i < columns.length; i++) {
+                        columnIndex.put(columns[i], i);
+                    }
+                    for (int i = fromIndex; i < toIndex; i++) {
+                        String[] row = toRow(csvWriter, records[i], columnIndex, withId);
+                        csvWriter.writeRow(row);
+                        addRow(rowIndex, rowKey(row, columns, keyColumn), i);
+                    }
+                }
+            });
+            client.closeJob(jobId);
+        } catch (IOException e) {
+            client.abortJob(BulkApiClient.INGEST, jobId);
+            throw e;
+        }
+
+        JSONObject job = client.waitForJob(BulkApiClient.INGEST, jobId);
+
+        readResults(jobId, "successfulResults", columns, keyColumn, rowIndex, results);
+        readResults(jobId, "failedResults", columns, keyColumn, rowIndex, results);
+        readResults(jobId, "unprocessedrecords", columns, keyColumn, rowIndex, results);
+
+        if (!"JobComplete".equals(job.optString("state"))) {
+            return "Bulk job " + jobId + " " + job.optString("state") + ": " + job.optString("errorMessage");
+        }
+        return null;
+    }
+
+    // Maps the result rows back to the records through the row key
+    private void readResults(String jobId, String resultType, String[] columns, String keyColumn,
+            Map<String, LinkedList<Integer>> rowIndex, BulkResult[] results) throws IOException {
+        Reader reader = client.openIngestResults(jobId, resultType);
+        try {
+            CsvReader csvReader = new CsvReader(reader);
+            String[] header = csvReader.readRow();
+            if (header == null) {
+                return;
+            }
+            Map<String, Integer> headerIndex = new HashMap<String, Integer>();
+            for (int i = 0; i < header.length; i++) {
+                headerIndex.put(header[i], i);
+            }
+            Integer idIndex = headerIndex.get("sf__Id");
+            Integer createdIndex = headerIndex.get("sf__Created");
+            Integer errorIndex = headerIndex.get("sf__Error");
+
+            String[] row;
+            while ((row = csvReader.readRow()) != null) {
+                String[] original = new String[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    Integer index = headerIndex.get(columns[i]);
+                    original[i] = (index != null && index < row.length) ? row[index] : "";
+                }
+                LinkedList<Integer> indexes = rowIndex.get(rowKey(original, columns, keyColumn));
+                if (indexes == null || indexes.isEmpty()) {
+                    log.warn("Bulk job " + jobId + " " + resultType + " row not matched to a record");
+                    continue;
+                }
+                int recordIndex = indexes.removeFirst();
+
+                BulkResult result = new BulkResult();
+                result.id = idIndex != null && idIndex < row.length && !row[idIndex].equals("") ? row[idIndex] : null;
+                if (resultType.equals("successfulResults")) {
+                    result.success = true;
+                    result.created = createdIndex != null && "true".equalsIgnoreCase(row[createdIndex]);
+                } else if (resultType.equals("failedResults")) {
+                    result.setError(errorIndex != null ? row[errorIndex] : "");
+                } else {
+                    result.setError("UNKNOWN_EXCEPTION:Record not processed by the bulk job");
+                }
+                results[recordIndex] = result;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Field names of the records, in order of first appearance
+    private static String[] getColumns(SObject[] records, int fromIndex, int toIndex, boolean withId) {
+        Map<String, Boolean> columns = new LinkedHashMap<String, Boolean>();
+        if (withId) {
+            columns.put("Id", Boolean.TRUE);
+        }
+        for (int i = fromIndex; i < toIndex; i++) {
+            Iterator<XmlObject> children = records[i].getChildren();
+            while (children.hasNext()) {
+                String name = children.next().getName().getLocalPart();
+                if (!isSkipped(name, withId)) {
+                    columns.put(name, Boolean.TRUE);
+                }
+            }
+            String[] fieldsToNull = records[i].getFieldsToNull();
+            if (fieldsToNull != null) {
+                for (String field : fieldsToNull) {
+                    columns.put(field, Boolean.TRUE);
+                }
+            }
+        }
+        return columns.keySet().toArray(new String[columns.size()]);
+    }
+
+    private static String[] toRow(CsvWriter csvWriter, SObject record, Map<String, Integer> columnIndex,
+            boolean withId) {
+        String[] row = new String[columnIndex.size()];
+        Iterator<XmlObject> children = record.getChildren();
+        while (children.hasNext()) {
+            XmlObject child = children.next();
+            String name = child.getName().getLocalPart();
+            Integer index = columnIndex.get(name);
+            if (index != null && !isSkipped(name, withId)) {
+                row[index] = csvWriter.format(child.getValue());
+            }
+        }
+        String[] fieldsToNull = record.getFieldsToNull();
+        if (fieldsToNull != null) {
+            for (String field : fieldsToNull) {
+                row[columnIndex.get(field)] = CsvWriter.NULL_VALUE;
+            }
+        }
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] == null) {
+                row[i] = "";
+            }
+        }
+        return row;
+    }
+
+    private static boolean isSkipped(String name, boolean withId) {
+        return name.equals("type") || name.equals("fieldsToNull") || (!withId && name.equalsIgnoreCase("Id"));
+    }
+
+    // Key used to find the record of a result row: Id, external id, or the whole row
+    private static String rowKey(String[] row, String[] columns, String keyColumn) {
+        if (keyColumn != null) {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].equalsIgnoreCase(keyColumn) && row[i] != null && !row[i].equals("")) {
+                    return row[i];
+                }
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        for (String value : row) {
+            key.append(value).append('\u0001');
+        }
+        return key.toString();
+    }
+
+    private static void addRow(Map<String, LinkedList<Integer>> rowIndex, String key, int index) {
+        LinkedList<Integer> indexes = rowIndex.get(key);
+        if (indexes == null) {
+            indexes = new LinkedList<Integer>();
+            rowIndex.put(key, indexes);
+        }
+        indexes.add(index);
+    }
+
+    private static SObject[] toSObjects(String sObjectName, String csv) throws IOException {
+        CsvReader csvReader = new CsvReader(new StringReader(csv));
+        String[] header = csvReader.readRow();
+        if (header == null) {
+            return new SObject[0];
+        }
+        List<SObject> records = new ArrayList<SObject>();
+        String[] row;
+        while ((row = csvReader.readRow()) != null) {
+            SObject sObject = new SObject();
+            sObject.setType(sObjectName);
+            for (int i = 0; i < header.length && i < row.length; i++) {
+                if (row[i].equals("")) {
+                    continue;
+                }
+                if (header[i].equalsIgnoreCase("Id")) {
+                    sObject.setId(row[i]);
+                } else {
+                    sObject.setField(header[i], row[i]);
+                }
+            }
+            records.add(sObject);
+        }
+        return records.toArray(new SObject[records.size()]);
+    }
+
+    private static int getIntProperty(String name, int defaultValue) {
+        String value = PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, name);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    // Result of one record in a bulk job
+    private static class BulkResult {
+        String id;
+        boolean success;
+        boolean created;
+        StatusCode statusCode;
+        String message;
+
+        static BulkResult failed(String message) {
+            BulkResult result = new BulkResult();
+            result.statusCode = StatusCode.UNKNOWN_EXCEPTION;
+            result.message = message;
+            return result;
+        }
+
+        // sf__Error is STATUS_CODE:message
+        void setError(String error) {
+            int index = error.indexOf(':');
+            String code = index > 0 ? error.substring(0, index) : error;
+            message = index > 0 ? error.substring(index + 1) : error;
+            try {
+                statusCode = StatusCode.valueOf(code.trim());
+            } catch (IllegalArgumentException e) {
+                statusCode = StatusCode.UNKNOWN_EXCEPTION;
+            }
+        }
+
+        com.sforce.soap.partner.Error[] getErrors() {
+            if (success) {
+                return new com.sforce.soap.partner.Error[0];
+            }
+            com.sforce.soap.partner.Error error = new com.sforce.soap.partner.Error();
+            error.setStatusCode(statusCode);
+            error.setMessage(message);
+            return new com.sforce.soap.partner.Error[] {error};
+        }
+    }
+}
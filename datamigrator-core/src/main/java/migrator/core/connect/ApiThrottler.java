@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.connect;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.LimitInfo;
+import com.sforce.soap.partner.LimitInfoHeader_element;
+import com.sforce.soap.partner.fault.ApiFault;
+import com.sforce.soap.partner.fault.ExceptionCode;
+import migrator.core.service.PropertiesReader;
+
+/**
+ * ApiThrottler : Paces the API calls of all the connections of one org (source or target). Every
+ * response carries the org's API usage (LimitInfoHeader of the SOAP calls, Sforce-Limit-Info of the
+ * REST calls), which sets the rate of a token bucket shared by the connections:
+ * <ul>
+ * <li>plenty left: api.throttle.calls.per.second (0 = no pacing)</li>
+ * <li>less than api.throttle.slowdown.pct of the daily allocation left: the rate goes down in
+ * proportion to what is left above the reserve, to api.throttle.min.calls.per.second at most</li>
+ * <li>reserve (api.throttle.source.reserve / api.throttle.target.reserve calls) reached, or
+ * REQUEST_LIMIT_EXCEEDED: calls wait. One call every api.throttle.reserve.check.seconds goes
+ * through to read the usage again, the calls go on once it is above the reserve</li>
+ * </ul>
+ * At most api.throttle.max.concurrent calls run at the same time per org.
+ */
+public class ApiThrottler {
+
+    static Logger log = Logger.getLogger(ApiThrottler.class.getName());
+
+    public static final String API_REQUESTS = "API REQUESTS";
+
+    // Rate the slowdown starts from when calls are not paced otherwise
+    private static final double SLOWDOWN_CALLS_PER_SECOND = 10.0;
+    private static final double DEFAULT_RESERVE_CHECK_SECONDS = 300;
+
+    private static final Map<SfdcConnection.ORG_TYPE, ApiThrottler> throttlers =
+            new EnumMap<SfdcConnection.ORG_TYPE, ApiThrottler>(SfdcConnection.ORG_TYPE.class);
+
+    private final String name;
+    private final double maxRate;
+    private final double minRate;
+    private final double slowdownFraction;
+    private final int reserve;
+    private final long reserveCheckNanos;
+    private final Semaphore concurrent;
+
+    // Allowed calls per second, 0 for no pacing
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos;
+
+    // Last usage reported by the org, -1 if unknown
+    private int current = -1;
+    private int limit = -1;
+    private boolean slowedDown = false;
+
+    // Reserve reached: calls wait, one goes through at nextCheckNanos to read the usage
+    private boolean exhausted = false;
+    private long nextCheckNanos;
+
+    ApiThrottler(String name, double maxRate, double minRate, double slowdownFraction, int reserve,
+            int maxConcurrent, double reserveCheckSeconds) {
+        this.name = name;
+        this.maxRate = Math.max(0, maxRate);
+        this.minRate = minRate > 0 ? minRate : 0.1;
+        this.slowdownFraction = slowdownFraction;
+        this.reserve = Math.max(0, reserve);
+        this.reserveCheckNanos = (long) (Math.max(0.001, reserveCheckSeconds) * 1e9);
+        this.concurrent = new Semaphore(Math.max(1, maxConcurrent), true);
+        this.rate = this.maxRate;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public static synchronized ApiThrottler get(SfdcConnection.ORG_TYPE orgType) {
+        ApiThrottler throttler = throttlers.get(orgType);
+        if (throttler == null) {
+            String org = orgType.name().toLowerCase();
+            throttler =
+                    new ApiThrottler(org, getDouble("api.throttle.calls.per.second", 0),
+                            getDouble("api.throttle.min.calls.per.second", 0.1),
+                            getDouble("api.throttle.slowdown.pct", 10) / 100,
+                            (int) getDouble("api.throttle." + org + ".reserve", 0),
+                            (int) getDouble("api.throttle.max.concurrent", 25),
+                            getDouble("api.throttle.reserve.check.seconds", DEFAULT_RESERVE_CHECK_SECONDS));
+            throttlers.put(orgType, throttler);
+        }
+        return throttler;
+    }
+
+    /**
+     * Waits for a token and a concurrent call slot, release() must follow
+     */
+    public void acquire() throws InterruptedException {
+        pace();
+        concurrent.acquire();
+    }
+
+    /**
+     * A call is done, the usage of the response (may be null) updates the rate
+     */
+    public void release(LimitInfoHeader_element limitInfoHeader) {
+        concurrent.release();
+        if (limitInfoHeader != null && limitInfoHeader.getLimitInfo() != null) {
+            for (LimitInfo limitInfo : limitInfoHeader.getLimitInfo()) {
+                if (API_REQUESTS.equalsIgnoreCase(limitInfo.getType())) {
+                    update(limitInfo.getCurrent(), limitInfo.getLimit());
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a token only (e.g. REST calls of the Bulk API), and while the reserve is reached
+     */
+    public void pace() throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            waitForUsageCheck();
+            long now = System.nanoTime();
+            if (rate <= 0) {
+                lastRefillNanos = now;
+                return;
+            }
+            // Bucket holds up to a second of calls
+            double burst = Math.max(1.0, rate);
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) / 1e9 * rate);
+            lastRefillNanos = now;
+            tokens -= 1.0;
+            // Negative: the token is taken in advance, wait until it has been refilled
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+        }
+    }
+
+    /**
+     * Sforce-Limit-Info response header of the REST API, e.g. api-usage=25/15000
+     */
+    public void update(String sforceLimitInfo) {
+        if (sforceLimitInfo == null) {
+            return;
+        }
+        for (String part : sforceLimitInfo.split(",")) {
+            String[] nameValue = part.trim().split("=");
+            if (nameValue.length == 2 && nameValue[0].trim().equals("api-usage")) {
+                String[] usage = nameValue[1].trim().split("/");
+                try {
+                    update(Integer.parseInt(usage[0].trim()), Integer.parseInt(usage[1].trim()));
+                } catch (RuntimeException e) {
+                    log.warn(name + " : unexpected Sforce-Limit-Info: " + sforceLimitInfo);
+                }
+            }
+        }
+    }
+
+    public synchronized void update(int current, int limit) {
+        this.current = current;
+        this.limit = limit;
+        if (limit <= 0) {
+            return;
+        }
+        double remaining = limit - current - reserve;
+        if (remaining <= 0) {
+            if (!exhausted) {
+                log.warn(name + " : API usage " + current + "/" + limit + " reached the reserve (" + reserve
+                        + "), calls wait until the usage goes down");
+            }
+            exhaust();
+            return;
+        }
+        if (exhausted) {
+            log.info(name + " : API usage " + current + "/" + limit + ", above the reserve again");
+            exhausted = false;
+            notifyAll();
+        }
+        double slowdownCalls = limit * slowdownFraction;
+        if (remaining >= slowdownCalls) {
+            if (slowedDown) {
+                log.info(name + " : API usage " + current + "/" + limit + ", back to full rate");
+                slowedDown = false;
+            }
+            setRate(maxRate);
+            return;
+        }
+        double base = maxRate > 0 ? maxRate : SLOWDOWN_CALLS_PER_SECOND;
+        double slowRate = Math.max(minRate, base * Math.max(0, remaining) / Math.max(1.0, slowdownCalls));
+        if (!slowedDown || Math.abs(slowRate - rate) >= rate / 2) {
+            log.warn(name + " : API usage " + current + "/" + limit + " (reserve " + reserve + "), slowing down to "
+                    + String.format("%.2f", slowRate) + " calls per second");
+        }
+        slowedDown = true;
+        setRate(slowRate);
+    }
+
+    /**
+     * A call failed. Returns true for REQUEST_LIMIT_EXCEEDED: the calls wait as at the reserve, and
+     * the failed call is to be made again once acquire lets it through
+     */
+    public synchronized boolean failed(Throwable e) {
+        if (e instanceof ApiFault && ((ApiFault) e).getExceptionCode() == ExceptionCode.REQUEST_LIMIT_EXCEEDED) {
+            log.warn(name + " : REQUEST_LIMIT_EXCEEDED, calls wait " + reserveCheckNanos / 1000000000L
+                    + " seconds before trying again");
+            exhaust();
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isExhausted() {
+        return exhausted;
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized int getCurrent() {
+        return current;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    private void exhaust() {
+        if (!exhausted) {
+            exhausted = true;
+            nextCheckNanos = System.nanoTime() + reserveCheckNanos;
+        }
+    }
+
+    // Waits while the reserve is reached, lets one call through per check interval
+    private void waitForUsageCheck() throws InterruptedException {
+        while (exhausted) {
+            long waitNanos = nextCheckNanos - System.nanoTime();
+            if (waitNanos <= 0) {
+                nextCheckNanos = System.nanoTime() + reserveCheckNanos;
+                return;
+            }
+            wait(Math.max(1L, waitNanos / 1000000L));
+        }
+    }
+
+    private void setRate(double newRate) {
+        if (newRate != rate) {
+            tokens = Math.min(tokens, Math.max(1.0, newRate));
+            rate = newRate;
+        }
+    }
+
+    private static double getDouble(String name, double defaultValue) {
+        String value = PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, name);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return Double.parseDouble(value.trim());
+    }
+}
@@ -48,6 +48,9 @@ public class SfdcConnection {
 
     List<PartnerConnection> connectionTargets;
 
+    // Shared by the workers of all the objects migrated in this run
+    TargetConnectionPool targetConnectionPool;
+
     String sourceUserName = "";
     String sourcePassword = "";
     String sourceAuthEndPoint = "";
@@ -122,7 +125,7 @@ public class SfdcConnection {
                 config.setProxy(proxyHost, new Integer(proxyPort));
             }
 
-            connectionSource = new PartnerConnection(config);
+            connectionSource = new ThrottledPartnerConnection(config, ORG_TYPE.SOURCE);
 
             // Add source to blacklisted urls. We never want to
             // create/update/delete anything in source
@@ -154,7 +157,7 @@ public class SfdcConnection {
                 config.setProxy(proxyHost, new Integer(proxyPort));
             }
 
-            connectionTarget = new PartnerConnection(config);
+            connectionTarget = new ThrottledPartnerConnection(config, ORG_TYPE.TARGET);
 
             printUserInfoImport(config, connectionTarget);
 
@@ -163,15 +166,19 @@ public class SfdcConnection {
             ce.printStackTrace();
         }
 
-        loginTargetMulti();
+        if (success) {
+            success = loginTargetMulti();
+        }
 
         System.out.println("loginTarget END...");
         return success;
     }
 
-    private void loginTargetMulti() {
+    // Logs in the pooled target connections, false (and no pool) if one of the logins failed: the
+    // workers would otherwise wait for connections that never come
+    private boolean loginTargetMulti() {
         if (connectionTargets.size() > 0) {
-            return;
+            return true;
         }
 
         try {
@@ -191,30 +198,51 @@ public class SfdcConnection {
 
             if (threadCount <= 1) {
                 connectionTargets.add(connectionTarget);
-                return;
+            } else {
+                for (int i = 0; i < threadCount; i++) {
+                    connectionTargets.add(newTargetConnection());
+                }
             }
 
-            for (int i = 0; i < threadCount; i++) {
-
-                ConnectorConfig config = new ConnectorConfig();
-                config.setUsername(PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
-                        "target.sfdc.login"));
-                config.setPassword(PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
-                        "target.sfdc.password"));
+        } catch (ConnectionException ce) {
+            log.error("SfdcConnection.loginTargetMulti: pooled target connection login failed", ce);
+            connectionTargets.clear();
+            return false;
+        }
 
-                System.out.println("AuthEndPoint:: " + targetAuthEndPoint);
-                config.setAuthEndpoint(targetAuthEndPoint);
+        long idleValidationMillis = 0;
+        String idleValidation =
+                PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                        "target.connection.idle.validation.ms");
+        if (idleValidation != null && !idleValidation.equals("")) {
+            idleValidationMillis = Long.parseLong(idleValidation.trim());
+        }
 
-                PartnerConnection connTarget = new PartnerConnection(config);
-                connectionTargets.add(connTarget);
+        targetConnectionPool =
+                new TargetConnectionPool(connectionTargets, new TargetConnectionPool.ConnectionFactory() {
+                    public PartnerConnection login() throws ConnectionException {
+                        return newTargetConnection();
+                    }
+                }, idleValidationMillis);
+        return true;
+    }
 
-                printUserInfoImport(config, connTarget);
-            }
+    // Logs in a new target connection (one per worker)
+    private PartnerConnection newTargetConnection() throws ConnectionException {
+        ConnectorConfig config = new ConnectorConfig();
+        config.setUsername(targetUserName);
+        config.setPassword(targetPassword);
 
-        } catch (ConnectionException ce) {
-            ce.printStackTrace();
+        System.out.println("AuthEndPoint:: " + targetAuthEndPoint);
+        config.setAuthEndpoint(targetAuthEndPoint);
+        if (proxyHost != null && !proxyHost.equals("")) {
+            config.setProxy(proxyHost, new Integer(proxyPort));
         }
 
+        PartnerConnection connTarget = new ThrottledPartnerConnection(config, ORG_TYPE.TARGET);
+
+        printUserInfoImport(config, connTarget);
+        return connTarget;
     }
 
     private void readProperties() {
@@ -291,9 +319,19 @@ public class SfdcConnection {
      * @return the connectionTargets
      */
     public List<PartnerConnection> getConnectionTargets() {
+        if (targetConnectionPool != null) {
+            return targetConnectionPool.getConnections();
+        }
         return connectionTargets;
     }
 
+    /**
+     * @return the pool of target connections used by the workers
+     */
+    public TargetConnectionPool getTargetConnectionPool() {
+        return targetConnectionPool;
+    }
+
     /**
      * @param connectionTargets the connectionTargets to set
      */
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.connect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.fault.ApiFault;
+import com.sforce.soap.partner.fault.ExceptionCode;
+import com.sforce.ws.ConnectionException;
+
+/**
+ * TargetConnectionPool : Pool of logged-in target org connections shared by all the workers of a
+ * run. A connection is leased for one API call (batch) and returned afterwards. Connections that
+ * were idle for a while are validated before they are handed out, and a connection whose session
+ * is gone (INVALID_SESSION_ID) logs in again.
+ */
+public class TargetConnectionPool {
+
+    static Logger log = Logger.getLogger(TargetConnectionPool.class.getName());
+
+    // Validate connections idle for more than 5 minutes (default)
+    private static final long DEFAULT_IDLE_VALIDATION_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Creates a new logged-in connection (used to replace a connection with an expired session)
+     */
+    public interface ConnectionFactory {
+        public PartnerConnection login() throws ConnectionException;
+    }
+
+    private final LinkedBlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<PooledConnection>();
+    private final List<PooledConnection> all = new ArrayList<PooledConnection>();
+    private final ConnectionFactory connectionFactory;
+    private final long idleValidationMillis;
+
+    /**
+     * @throws IllegalArgumentException without connections, lease would wait forever
+     */
+    public TargetConnectionPool(List<PartnerConnection> connections, ConnectionFactory connectionFactory,
+            long idleValidationMillis) {
+        if (connections.isEmpty() || connections.contains(null)) {
+            throw new IllegalArgumentException("Target connection pool without logged-in connections");
+        }
+        this.connectionFactory = connectionFactory;
+        this.idleValidationMillis = idleValidationMillis > 0 ? idleValidationMillis : DEFAULT_IDLE_VALIDATION_MILLIS;
+        for (PartnerConnection connection : connections) {
+            PooledConnection pooled = new PooledConnection(connection);
+            all.add(pooled);
+            idle.add(pooled);
+        }
+    }
+
+    /**
+     * Leases a connection, waits until one is returned if all of them are in use
+     */
+    public PooledConnection lease() throws InterruptedException {
+        PooledConnection pooled = idle.take();
+        if (System.currentTimeMillis() - pooled.lastUsed > idleValidationMillis) {
+            validate(pooled);
+        }
+        return pooled;
+    }
+
+    /**
+     * Returns the connection to the pool
+     */
+    public void release(PooledConnection pooled) {
+        if (pooled == null) {
+            return;
+        }
+        pooled.lastUsed = System.currentTimeMillis();
+        idle.offer(pooled);
+    }
+
+    /**
+     * Replaces the connection with a newly logged-in one. Returns false if the login failed.
+     */
+    public boolean relogin(PooledConnection pooled) {
+        log.info("Logging in again for pooled target connection: " + pooled);
+        try {
+            pooled.connection = connectionFactory.login();
+            pooled.lastUsed = System.currentTimeMillis();
+            return true;
+        } catch (ConnectionException ce) {
+            log.error("TargetConnectionPool.relogin...", ce);
+            ce.printStackTrace();
+        }
+        return false;
+    }
+
+    public int getSize() {
+        return all.size();
+    }
+
+    /**
+     * @return the current connections of the pool (leased or not)
+     */
+    public List<PartnerConnection> getConnections() {
+        List<PartnerConnection> connections = new ArrayList<PartnerConnection>();
+        for (PooledConnection pooled : all) {
+            connections.add(pooled.connection);
+        }
+        return connections;
+    }
+
+    public static boolean isInvalidSession(Throwable e) {
+        return e instanceof ApiFault && ((ApiFault) e).getExceptionCode() == ExceptionCode.INVALID_SESSION_ID;
+    }
+
+    // Cheap call to check the session is still valid
+    private void validate(PooledConnection pooled) {
+        try {
+            pooled.connection.getServerTimestamp();
+        } catch (ConnectionException ce) {
+            if (isInvalidSession(ce)) {
+                relogin(pooled);
+            } else {
+                log.warn("Pooled target connection validation failed: " + ce.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Connection handed out by the pool
+     */
+    public static class PooledConnection {
+        private volatile PartnerConnection connection;
+        private volatile long lastUsed;
+
+        PooledConnection(PartnerConnection connection) {
+            this.connection = connection;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public PartnerConnection getConnection() {
+            return connection;
+        }
+
+        public String toString() {
+            return "PooledConnection[" + System.identityHashCode(this) + "]";
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.connect;
+
+import com.sforce.soap.partner.DeleteResult;
+import com.sforce.soap.partner.DescribeSObjectResult;
+import com.sforce.soap.partner.LimitInfoHeader_element;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.UpsertResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+
+/**
+ * ThrottledPartnerConnection : PartnerConnection whose data and describe calls go through the
+ * ApiThrottler of its org, so the connections of a run share one budget per org. A call failing
+ * with REQUEST_LIMIT_EXCEEDED waits with the other calls of the org and is made again.
+ */
+public class ThrottledPartnerConnection extends PartnerConnection {
+
+    private final SfdcConnection.ORG_TYPE orgType;
+    private final ApiThrottler throttler;
+
+    public ThrottledPartnerConnection(ConnectorConfig config, SfdcConnection.ORG_TYPE orgType)
+            throws ConnectionException {
+        super(config);
+        this.orgType = orgType;
+        this.throttler = ApiThrottler.get(orgType);
+    }
+
+    public SfdcConnection.ORG_TYPE getOrgType() {
+        return orgType;
+    }
+
+    public ApiThrottler getThrottler() {
+        return throttler;
+    }
+
+    @Override
+    public QueryResult query(final String queryString) throws ConnectionException {
+        return call(new Call<QueryResult>() {
+            @Override
+            public QueryResult call() throws ConnectionException {
+                return ThrottledPartnerConnection.super.query(queryString);
+            }
+        });
+    }
+
+    @Override
+    public QueryResult queryAll(final String queryString) throws ConnectionException {
+        return call(new Call<QueryResult>() {
+            @Override
+            public QueryResult call() throws ConnectionException {
+                return ThrottledPartnerConnection.super.queryAll(queryString);
+            }
+        });
+    }
+
+    @Override
+    public QueryResult queryMore(final String queryLocator) throws ConnectionException {
+        return call(new Call<QueryResult>() {
+            @Override
+            public QueryResult call() throws ConnectionException {
+                return ThrottledPartnerConnection.super.queryMore(queryLocator);
+            }
+        });
+    }
+
+    @Override
+    public SaveResult[] create(final SObject[] sObjects) throws ConnectionException {
+        return call(new Call<SaveResult[]>() {
+            @Override
+            public SaveResult[] call() throws ConnectionException {
+                return ThrottledPartnerConnection.super.create(sObjects);
+            }
+        });
+    }
+
+    @Override
+    public SaveResult[] update(final SObject[] sObjects) throws ConnectionException {
+        return call(new Call<SaveResult[]>() {
+            @Override
+            public SaveResult[] call() throws ConnectionException {
+                return ThrottledPartnerConnection.super.update(sObjects);
+            }
+        });
+    }
+
+    @Override
+    public UpsertResult[] upsert(final String externalIDFieldName, final SObject[] sObjects)
+            throws ConnectionException {
+        return call(new Call<UpsertResult[]>() {
+            @Override
+            public UpsertResult[] call() throws ConnectionException {
+                return ThrottledPartnerConnection.super.upsert(externalIDFieldName, sObjects);
+            }
+        });
+    }
+
+    @Override
+    public DeleteResult[] delete(final String[] ids) throws ConnectionException {
+        return call(new Call<DeleteResult[]>() {
+            @Override
+            public DeleteResult[] call() throws ConnectionException {
+                return ThrottledPartnerConnection.super.delete(ids);
+            }
+        });
+    }
+
+    @Override
+    public SObject[] retrieve(final String fieldList, final String sObjectType, final String[] ids)
+            throws ConnectionException {
+        return call(new Call<SObject[]>() {
+            @Override
+            public SObject[] call() throws ConnectionException {
+                return ThrottledPartnerConnection.super.retrieve(fieldList, sObjectType, ids);
+            }
+        });
+    }
+
+    @Override
+    public DescribeSObjectResult describeSObject(final String sObjectType) throws ConnectionException {
+        return call(new Call<DescribeSObjectResult>() {
+            @Override
+            public DescribeSObjectResult call() throws ConnectionException {
+                return ThrottledPartnerConnection.super.describeSObject(sObjectType);
+            }
+        });
+    }
+
+    @Override
+    public DescribeSObjectResult[] describeSObjects(final String[] sObjectType) throws ConnectionException {
+        return call(new Call<DescribeSObjectResult[]>() {
+            @Override
+            public DescribeSObjectResult[] call() throws ConnectionException {
+                return ThrottledPartnerConnection.super.describeSObjects(sObjectType);
+            }
+        });
+    }
+
+    // Runs the call through the throttler. A call failing with REQUEST_LIMIT_EXCEEDED is made again
+    // once the throttler lets calls through (see ApiThrottler.failed)
+    private <T> T call(Call<T> call) throws ConnectionException {
+        while (true) {
+            acquire();
+            LimitInfoHeader_element limitInfoHeader = null;
+            try {
+                T result = call.call();
+                limitInfoHeader = getLimitInfoHeader();
+                return result;
+            } catch (ConnectionException e) {
+                if (!throttler.failed(e)) {
+                    throw e;
+                }
+            } finally {
+                // A failed call leaves the limit info header of an earlier call
+                throttler.release(limitInfoHeader);
+            }
+        }
+    }
+
+    private void acquire() throws ConnectionException {
+        try {
+            throttler.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectionException("Interrupted while waiting for the API throttler", e);
+        }
+    }
+
+    private interface Call<T> {
+        T call() throws ConnectionException;
+    }
+}
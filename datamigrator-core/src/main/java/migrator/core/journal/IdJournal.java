@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.Logger;
+import migrator.core.service.PropertiesReader;
+import migrator.core.service.SforceObjectPair;
+
+/**
+ * IdJournal : Append-only journal of (sObject, source id, target id, status), written as each
+ * create/upsert/update batch completes and forced to disk once per batch. When a run is started
+ * again with the same journal.file, the journal is memory-mapped (a window at a time) and read
+ * back, so the records already migrated are skipped and get their target ids from the journal. The
+ * journal is closed at the end of each mapping (see shutdown).
+ *
+ * Record layout: int length, byte status, then sObject, source id and target id, each as an
+ * unsigned short length and UTF-8 bytes. A record cut off by a crash is dropped on load.
+ */
+public class IdJournal {
+
+    static Logger log = Logger.getLogger(IdJournal.class.getName());
+
+    public static final byte FAILED = 0;
+    public static final byte CREATED = 1;
+    public static final byte UPDATED = 2;
+
+    // "DMJ1"
+    private static final int MAGIC = 0x444D4A31;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Bytes of the journal mapped at a time on load
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    // Status and three strings of at most 64 KB
+    private static final int MAX_RECORD_LENGTH = 1 + 3 * (2 + 0xFFFF);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static IdJournal instance;
+    private static boolean initialized = false;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long mapWindowSize;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    // Read back from an earlier run: sObject -> source id -> target id
+    private final Map<String, Map<String, String>> createdIds = new HashMap<String, Map<String, String>>();
+    // sObject -> source ids updated
+    private final Map<String, Set<String>> updatedIds = new HashMap<String, Set<String>>();
+
+    /**
+     * @return the journal of the run, null if journal.file is not set
+     */
+    public static synchronized IdJournal getInstance() {
+        if (!initialized) {
+            initialized = true;
+            String path =
+                    PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, "journal.file");
+            if (path != null && !path.trim().equals("")) {
+                try {
+                    instance = new IdJournal(new File(path.trim()));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    log.error("IdJournal: could not open " + path + ", running without journal", e);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private IdJournal(File file) throws IOException {
+        this(file, MAP_WINDOW_SIZE);
+    }
+
+    // A window holds at least one whole record
+    IdJournal(File file, long mapWindowSize) throws IOException {
+        this.file = file;
+        this.mapWindowSize = Math.max(mapWindowSize, 4 + MAX_RECORD_LENGTH);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+
+        if (channel.size() == 0) {
+            buffer.putInt(MAGIC);
+            flushBuffer();
+            channel.force(true);
+        } else {
+            long validEnd = load();
+            if (validEnd < channel.size()) {
+                log.warn("IdJournal: dropping " + (channel.size() - validEnd) + " bytes of an incomplete record");
+                channel.truncate(validEnd);
+            }
+        }
+        channel.position(channel.size());
+    }
+
+    // Reads the journal through read-only mappings of up to mapWindowSize bytes (one mapping is
+    // limited to 2 GB), returns the end of the last complete record
+    private long load() throws IOException {
+        long size = channel.size();
+        if (size < 4 || channel.map(FileChannel.MapMode.READ_ONLY, 0, 4).getInt() != MAGIC) {
+            throw new IOException("Not an id journal: " + file);
+        }
+
+        int created = 0;
+        int updated = 0;
+        long position = 4;
+        while (size - position >= 4) {
+            long windowSize = Math.min(mapWindowSize, size - position);
+            boolean lastWindow = position + windowSize == size;
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+            boolean corrupt = false;
+            while (mapped.remaining() >= 4) {
+                int start = mapped.position();
+                int length = mapped.getInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    corrupt = true;
+                    mapped.position(start);
+                    break;
+                }
+                if (mapped.remaining() < length) {
+                    // Cut off, or continued in the next window
+                    mapped.position(start);
+                    break;
+                }
+                byte status = mapped.get();
+                String sObjectName = readString(mapped);
+                String sourceId = readString(mapped);
+                String targetId = readString(mapped);
+
+                if (status == CREATED) {
+                    Map<String, String> ids = createdIds.get(sObjectName);
+                    if (ids == null) {
+                        ids = new HashMap<String, String>();
+                        createdIds.put(sObjectName, ids);
+                    }
+                    ids.put(sourceId, targetId);
+                    created++;
+                } else if (status == UPDATED) {
+                    Set<String> ids = updatedIds.get(sObjectName);
+                    if (ids == null) {
+                        ids = new HashSet<String>();
+                        updatedIds.put(sObjectName, ids);
+                    }
+                    ids.add(sourceId);
+                    updated++;
+                }
+            }
+            position += mapped.position();
+            if (corrupt || lastWindow) {
+                break;
+            }
+        }
+        log.info("IdJournal: resuming from " + file + " created: " + created + " updated: " + updated);
+        return position;
+    }
+
+    /**
+     * Appends a record, written to disk by the next sync
+     */
+    public synchronized void append(String sObjectName, String sourceId, String targetId, byte status)
+            throws IOException {
+        byte[] name = bytes(sObjectName);
+        byte[] source = bytes(sourceId);
+        byte[] target = bytes(targetId);
+        int length = 1 + 2 + name.length + 2 + source.length + 2 + target.length;
+
+        if (buffer.remaining() < 4 + length) {
+            flushBuffer();
+        }
+        buffer.putInt(length);
+        buffer.put(status);
+        buffer.putShort((short) name.length).put(name);
+        buffer.putShort((short) source.length).put(source);
+        buffer.putShort((short) target.length).put(target);
+    }
+
+    /**
+     * Writes the appended records and forces them to disk (once per batch)
+     */
+    public synchronized void sync() throws IOException {
+        flushBuffer();
+        channel.force(false);
+    }
+
+    public synchronized void close() {
+        try {
+            sync();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("IdJournal.close", e);
+        }
+    }
+
+    /**
+     * Closes the journal of the run (end of a mapping). The next getInstance opens it again and
+     * reads back what was written so far.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+        initialized = false;
+    }
+
+    /**
+     * @return the target id of a record created by an earlier run, null if not created yet
+     */
+    public String getCreatedId(String sObjectName, String sourceId) {
+        Map<String, String> ids = createdIds.get(sObjectName);
+        return ids != null ? ids.get(sourceId) : null;
+    }
+
+    public boolean isUpdated(String sObjectName, String sourceId) {
+        Set<String> ids = updatedIds.get(sObjectName);
+        return ids != null && ids.contains(sourceId);
+    }
+
+    /**
+     * Skips the records done by an earlier run. Created records get their target id from the
+     * journal.
+     *
+     * @return the records still to be sent
+     */
+    public List<SforceObjectPair> pending(String sObjectName, List<SforceObjectPair> sourceRecords, byte status) {
+        if ((status == CREATED && !createdIds.containsKey(sObjectName))
+                || (status == UPDATED && !updatedIds.containsKey(sObjectName))) {
+            return sourceRecords;
+        }
+        List<SforceObjectPair> pending = new ArrayList<SforceObjectPair>(sourceRecords.size());
+        for (SforceObjectPair pair : sourceRecords) {
+            if (status == CREATED) {
+                String targetId = getCreatedId(sObjectName, pair.getSourceId());
+                if (targetId != null) {
+                    pair.setTargetId(targetId);
+                    continue;
+                }
+            } else if (isUpdated(sObjectName, pair.getSourceId())) {
+                continue;
+            }
+            pending.add(pair);
+        }
+        log.info("IdJournal: " + sObjectName + " skipping " + (sourceRecords.size() - pending.size())
+                + " records done by an earlier run");
+        return pending;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static byte[] bytes(String value) {
+        return value != null ? value.getBytes(UTF8) : new byte[0];
+    }
+
+    private static String readString(ByteBuffer source) {
+        int length = source.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        source.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
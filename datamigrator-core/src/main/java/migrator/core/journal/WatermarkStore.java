@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.journal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.sobject.SObject;
+import migrator.core.service.PropertiesReader;
+import migrator.core.service.SforceObject;
+
+/**
+ * WatermarkStore : Delta runs. Keeps the highest SystemModstamp read of every delta object (per
+ * object and where clause) in delta.watermark.file. The next run only reads the records modified
+ * since then, the watermark included (minus delta.overlap.minutes, for transactions committed
+ * late), the upserts make the overlap harmless. A watermark is only saved when the run read and
+ * wrote all the records of the object: a failed or cut short source query, or failed records, keep
+ * the watermark where it was.
+ */
+public class WatermarkStore {
+
+    static Logger log = Logger.getLogger(WatermarkStore.class.getName());
+
+    public static final String FIELD = "SystemModstamp";
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    private static WatermarkStore instance;
+    private static boolean initialized = false;
+
+    private final File file;
+    private final Properties marks = new Properties();
+    private final long overlapMillis;
+
+    // Highest SystemModstamp read in this run, per key
+    private final Map<String, String> observed = new ConcurrentHashMap<String, String>();
+    // sObjects with failed records in this run
+    private final Set<String> failed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @return the store of the run, null if delta.watermark.file is not set
+     */
+    public static synchronized WatermarkStore getInstance() {
+        if (!initialized) {
+            initialized = true;
+            String path =
+                    PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                            "delta.watermark.file");
+            if (path != null && !path.trim().equals("")) {
+                try {
+                    instance = new WatermarkStore(new File(path.trim()));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    log.error("WatermarkStore: could not read " + path + ", running without delta", e);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private WatermarkStore(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                marks.load(in);
+            } finally {
+                in.close();
+            }
+            log.info("WatermarkStore: " + marks.size() + " watermarks in " + file);
+        }
+        String overlap =
+                PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                        "delta.overlap.minutes");
+        this.overlapMillis =
+                (overlap == null || overlap.trim().equals("") ? 5 : Long.parseLong(overlap.trim())) * 60 * 1000L;
+    }
+
+    /**
+     * SOQL datetime to read the records modified since, null if the object has no watermark yet
+     */
+    public String since(SforceObject sforceObject) {
+        String mark = marks.getProperty(key(sforceObject));
+        if (mark == null) {
+            return null;
+        }
+        try {
+            SimpleDateFormat format = dateFormat();
+            return format.format(new Date(format.parse(mark).getTime() - overlapMillis));
+        } catch (ParseException e) {
+            log.error("WatermarkStore: invalid watermark " + mark + " for " + key(sforceObject));
+            return null;
+        }
+    }
+
+    /**
+     * Records read from the source
+     */
+    public void observe(SforceObject sforceObject, SObject[] records) {
+        if (records == null || records.length == 0) {
+            return;
+        }
+        String max = null;
+        for (SObject record : records) {
+            Object value = record.getField(FIELD);
+            if (value != null && (max == null || value.toString().compareTo(max) > 0)) {
+                max = value.toString();
+            }
+        }
+        if (max == null) {
+            return;
+        }
+        String key = key(sforceObject);
+        synchronized (observed) {
+            String current = observed.get(key);
+            if (current == null || max.compareTo(current) > 0) {
+                observed.put(key, max);
+            }
+        }
+    }
+
+    /**
+     * Records of the object failed, or its query did not read all of them: its watermark is not
+     * moved
+     */
+    public void failed(String sObjectName) {
+        failed.add(sObjectName);
+    }
+
+    /**
+     * Saves the watermarks of the objects written without failures
+     */
+    public synchronized void save() {
+        int saved = 0;
+        for (Map.Entry<String, String> entry : observed.entrySet()) {
+            String sObjectName = entry.getKey().split("\\|", 2)[0];
+            if (failed.contains(sObjectName)) {
+                log.warn("WatermarkStore: " + sObjectName + " had failed records, keeping its watermark");
+                continue;
+            }
+            marks.setProperty(entry.getKey(), entry.getValue());
+            saved++;
+        }
+        observed.clear();
+        if (saved == 0) {
+            return;
+        }
+        try {
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                marks.store(out, "SystemModstamp watermarks (sObject|where)");
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Could not replace " + file);
+                }
+            }
+            log.info("WatermarkStore: saved " + saved + " watermarks to " + file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("WatermarkStore: could not save " + file, e);
+        }
+    }
+
+    private static String key(SforceObject sforceObject) {
+        String where = sforceObject.getWhere();
+        return sforceObject.getsObjectName() + "|" + (where == null ? "" : where.trim());
+    }
+
+    private static SimpleDateFormat dateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+}
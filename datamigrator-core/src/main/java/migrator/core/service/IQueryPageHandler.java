@@ -23,49 +23,21 @@
  * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
  * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-package migrator.core.buffer;
+package migrator.core.service;
+
+import com.sforce.soap.partner.sobject.SObject;
 
 /**
- * Acts as a delete buffer
- *
- * @author anoop.singh
+ * Receives the query results one page (query/queryMore call) at a time
  */
+public interface IQueryPageHandler {
 
-public class SObjectDeleteBuffer {
-    private String[] ids = null;
-    int index = 0;
-    int size = 0;
-    // adjust the buffer size as per your need
-    int batchSize = 200;
-
-    public SObjectDeleteBuffer(String[] ids) {
-        this.ids = ids;
-        this.size = ids.length;
-    }
-
-    public boolean hasAvailable() {
-        if (index == size) {
-            return false;
-        }
-        if (index < size)
-            return true;
-        return false;
-    }
-
-    public String[] getBuffer() {
-        int newSize = 0;
-        if ((size - index) > batchSize) {
-            newSize = batchSize;
-        } else {
-            newSize = size - index;
-        }
-        String[] buffer = new String[newSize];
-
-        for (int i = 0; i < newSize; i++) {
-            buffer[i] = ids[index];
-            index++;
-        }
-        return buffer;
-    }
+    /**
+     * Called for every page returned by the source. Pages are delivered in query order.
+     *
+     * @param SforceObject sforceObject: Object being queried
+     * @param SObject [] records: Records of the page
+     */
+    public void handlePage(SforceObject sforceObject, SObject[] records) throws Exception;
 
 }
@@ -39,4 +39,6 @@ public interface ISourceLoader {
 
     public ArrayList<QueryResult> querySource(PartnerConnection connection, SforceObject sforceObject);
 
+    public void querySource(PartnerConnection connection, SforceObject sforceObject, IQueryPageHandler pageHandler);
+
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.service;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import migrator.core.utils.SalesforceId;
+import migrator.core.utils.Utils;
+
+/**
+ * IdPairMap : Map of the record pairs of an object by source id. Ids are kept as longs (see
+ * SalesforceId) in an open addressing table (linear probing, no entry objects), a 15 character id
+ * finds the pair of its 18 character form. Composite keys (Utils.PREFIX_COMPOSITE_KEY) and other
+ * keys that are not ids go into a separate index. Not thread-safe, like HashMap.
+ */
+public class IdPairMap extends AbstractMap<String, SforceObjectPair> {
+
+    private static final long EMPTY = SalesforceId.NONE;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private SforceObjectPair[] values;
+    private int size;
+
+    // Composite keys and keys that are not ids
+    private final Map<String, SforceObjectPair> others = new HashMap<String, SforceObjectPair>();
+
+    public IdPairMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Pairs of the map without the composite key duplicates
+     */
+    public static List<SforceObjectPair> pairs(Map<String, SforceObjectPair> map) {
+        List<SforceObjectPair> pairs = new ArrayList<SforceObjectPair>(map.size());
+        if (map instanceof IdPairMap) {
+            IdPairMap idMap = (IdPairMap) map;
+            for (int slot = 0; slot < idMap.keys.length; slot++) {
+                if (idMap.keys[slot] != EMPTY) {
+                    pairs.add(idMap.values[slot]);
+                }
+            }
+            for (Map.Entry<String, SforceObjectPair> entry : idMap.others.entrySet()) {
+                if (!entry.getKey().startsWith(Utils.PREFIX_COMPOSITE_KEY)) {
+                    pairs.add(entry.getValue());
+                }
+            }
+            return pairs;
+        }
+        for (Map.Entry<String, SforceObjectPair> entry : map.entrySet()) {
+            if (!entry.getKey().startsWith(Utils.PREFIX_COMPOSITE_KEY)) {
+                pairs.add(entry.getValue());
+            }
+        }
+        return pairs;
+    }
+
+    @Override
+    public int size() {
+        return size + others.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public SforceObjectPair get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        long encoded = SalesforceId.encode((String) key);
+        if (encoded == EMPTY) {
+            return others.get(key);
+        }
+        int slot = find(SalesforceId.key(encoded));
+        return keys[slot] == EMPTY ? null : values[slot];
+    }
+
+    @Override
+    public SforceObjectPair put(String key, SforceObjectPair value) {
+        long encoded = SalesforceId.encode(key);
+        if (encoded == EMPTY) {
+            return others.put(key, value);
+        }
+        int slot = find(SalesforceId.key(encoded));
+        if (keys[slot] != EMPTY) {
+            SforceObjectPair previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+        keys[slot] = encoded;
+        values[slot] = value;
+        if (++size > keys.length * 3 / 4) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    @Override
+    public SforceObjectPair remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        long encoded = SalesforceId.encode((String) key);
+        if (encoded == EMPTY) {
+            return others.remove(key);
+        }
+        int slot = find(SalesforceId.key(encoded));
+        if (keys[slot] == EMPTY) {
+            return null;
+        }
+        SforceObjectPair previous = values[slot];
+        delete(slot, null);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+        others.clear();
+    }
+
+    @Override
+    public Set<Map.Entry<String, SforceObjectPair>> entrySet() {
+        return new AbstractSet<Map.Entry<String, SforceObjectPair>>() {
+            @Override
+            public int size() {
+                return IdPairMap.this.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, SforceObjectPair>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    // Slot of the key, or the empty slot where it goes
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && SalesforceId.key(keys[slot]) != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Backward shift deletion, keeps the probe sequences without tombstones. The iterator removing
+    // the slot is told of the entries shifted from slots it has not visited into slots it has
+    private void delete(int slot, EntryIterator iterator) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int home = hash(SalesforceId.key(keys[next])) & mask;
+            // Move the entry into the hole if the hole is between its home slot and its slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                if (iterator != null && next < slot && hole >= slot) {
+                    iterator.shifted(keys[next]);
+                }
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+        values[hole] = null;
+        size--;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        SforceObjectPair[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(SalesforceId.key(oldKeys[i]));
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new SforceObjectPair[capacity];
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // Id entries, then the other keys. The table is scanned from the last slot down, so a removal
+    // only shifts entries back into visited slots; the ones shifted there from the start of the table
+    // (probe sequences wrapping around the end) are returned after the scan.
+    private class EntryIterator implements Iterator<Map.Entry<String, SforceObjectPair>> {
+        private static final int NONE = 0;
+        private static final int TABLE = 1;
+        private static final int SHIFTED = 2;
+        private static final int OTHERS = 3;
+
+        // Slots below this one are not visited yet
+        private int slot = keys.length;
+        private final List<Long> shifted = new ArrayList<Long>();
+        private int shiftedIndex;
+        private final Iterator<Map.Entry<String, SforceObjectPair>> othersIterator = others.entrySet().iterator();
+
+        // What the last entry returned was, for remove
+        private int last = NONE;
+        private int lastSlot;
+        private long lastShifted;
+
+        // Next slot to visit, -1 at the end of the table
+        private int nextSlot() {
+            while (slot > 0 && keys[slot - 1] == EMPTY) {
+                slot--;
+            }
+            return slot - 1;
+        }
+
+        void shifted(long encoded) {
+            shifted.add(encoded);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextSlot() >= 0 || shiftedIndex < shifted.size() || othersIterator.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, SforceObjectPair> next() {
+            int next = nextSlot();
+            if (next >= 0) {
+                slot = next;
+                last = TABLE;
+                lastSlot = next;
+                return entry(keys[next], values[next]);
+            }
+            if (shiftedIndex < shifted.size()) {
+                last = SHIFTED;
+                lastShifted = shifted.get(shiftedIndex++);
+                return entry(lastShifted, values[find(SalesforceId.key(lastShifted))]);
+            }
+            if (!othersIterator.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = OTHERS;
+            return othersIterator.next();
+        }
+
+        @Override
+        public void remove() {
+            switch (last) {
+                case TABLE:
+                    delete(lastSlot, this);
+                    break;
+                case SHIFTED:
+                    delete(find(SalesforceId.key(lastShifted)), null);
+                    break;
+                case OTHERS:
+                    othersIterator.remove();
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+            last = NONE;
+        }
+
+        private Map.Entry<String, SforceObjectPair> entry(long encoded, SforceObjectPair value) {
+            return new AbstractMap.SimpleImmutableEntry<String, SforceObjectPair>(SalesforceId.decode(encoded),
+                    value);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * RecordSpill : Memory budget of the record stores (see RecordStore). Full pages are tracked with
+ * their heap estimate; when the resident pages go over source.store.memory.mb, pages not accessed
+ * since the last sweep (clock) are written to memory-mapped segment files in
+ * source.store.spill.dir and dropped from the heap. A spilled page is read back when one of its
+ * rows is accessed. Pages are written once, the source records do not change after the query.
+ *
+ * Each store has its own segment files, deleted when the store is cleared (or when the JVM exits).
+ */
+public class RecordSpill {
+
+    static Logger log = Logger.getLogger(RecordSpill.class.getName());
+
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static RecordSpill instance;
+    private static boolean initialized = false;
+
+    private final long budgetBytes;
+    private final File dir;
+
+    // Full pages, resident or spilled, in clock order
+    private final List<RecordStore.Page> pages = new ArrayList<RecordStore.Page>();
+    private int hand;
+    private long residentBytes;
+    private long spilledPages;
+
+    // Segment files per store, guarded by segmentLock (taken inside the page locks)
+    private final Object segmentLock = new Object();
+    private final Map<RecordStore, List<Segment>> segments = new IdentityHashMap<RecordStore, List<Segment>>();
+    private int segmentFiles;
+
+    /**
+     * @return the spill of the run, null if source.store.memory.mb is not set (no budget)
+     */
+    public static synchronized RecordSpill getInstance() {
+        if (!initialized) {
+            initialized = true;
+            String budget =
+                    PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                            "source.store.memory.mb");
+            if (budget != null && !budget.trim().equals("") && Long.parseLong(budget.trim()) > 0) {
+                String path =
+                        PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                                "source.store.spill.dir");
+                if (path == null || path.trim().equals("")) {
+                    path = System.getProperty("java.io.tmpdir");
+                }
+                File dir = new File(path.trim(), "migrator-spill-" + System.currentTimeMillis());
+                instance = new RecordSpill(Long.parseLong(budget.trim()) * 1024 * 1024, dir);
+                log.info("RecordSpill: memory budget " + budget.trim() + " MB, spill directory " + dir);
+            }
+        }
+        return instance;
+    }
+
+    private RecordSpill(long budgetBytes, File dir) {
+        this.budgetBytes = budgetBytes;
+        this.dir = dir;
+    }
+
+    /**
+     * A page is full, spills pages until the resident ones fit the budget
+     */
+    synchronized void track(RecordStore.Page page) {
+        pages.add(page);
+        residentBytes += page.bytes;
+        fit();
+    }
+
+    /**
+     * A spilled page was read back
+     */
+    synchronized void loaded(RecordStore.Page page) {
+        residentBytes += page.bytes;
+        fit();
+    }
+
+    /**
+     * Forgets the pages of a store that is cleared, deletes its segment files
+     */
+    synchronized void release(RecordStore store) {
+        Iterator<RecordStore.Page> iterator = pages.iterator();
+        while (iterator.hasNext()) {
+            RecordStore.Page page = iterator.next();
+            if (page.getStore() == store) {
+                if (page.isResident()) {
+                    residentBytes -= page.bytes;
+                }
+                iterator.remove();
+            }
+        }
+        hand = 0;
+        List<Segment> released;
+        synchronized (segmentLock) {
+            released = segments.remove(store);
+        }
+        if (released != null) {
+            for (Segment segment : released) {
+                // The disk space is freed once the mapped buffer is collected as well
+                if (!segment.file.delete()) {
+                    log.warn("RecordSpill: could not delete " + segment.file + " of " + store.getsObjectName());
+                }
+            }
+        }
+    }
+
+    // Clock sweep: a referenced page gets a second chance, the others are spilled
+    private void fit() {
+        int checked = 0;
+        while (residentBytes > budgetBytes && checked < 2 * pages.size()) {
+            if (hand >= pages.size()) {
+                hand = 0;
+            }
+            RecordStore.Page page = pages.get(hand++);
+            checked++;
+            if (!page.isResident()) {
+                continue;
+            }
+            if (page.referenced) {
+                page.referenced = false;
+                continue;
+            }
+            try {
+                if (page.evict(this)) {
+                    residentBytes -= page.bytes;
+                    if (++spilledPages == 1) {
+                        log.info("RecordSpill: over the memory budget, spilling pages to " + dir);
+                    } else if (spilledPages % 100 == 0) {
+                        log.debug("RecordSpill: " + spilledPages + " pages spilled, resident "
+                                + residentBytes / 1024 / 1024 + " MB");
+                    }
+                }
+            } catch (IOException e) {
+                // Keeps the page on the heap
+                log.error("RecordSpill: could not spill page " + page.index + " of "
+                        + page.getStore().getsObjectName(), e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends the page bytes to the segment files of the store, returns the segment (high int) and
+     * offset (low int)
+     */
+    long write(RecordStore store, byte[] data) throws IOException {
+        synchronized (segmentLock) {
+            List<Segment> storeSegments = segments.get(store);
+            if (storeSegments == null) {
+                storeSegments = new ArrayList<Segment>();
+                segments.put(store, storeSegments);
+            }
+            Segment segment = storeSegments.isEmpty() ? null : storeSegments.get(storeSegments.size() - 1);
+            if (segment == null || segment.buffer.remaining() < data.length) {
+                segment = newSegment(Math.max(SEGMENT_BYTES, data.length));
+                storeSegments.add(segment);
+            }
+            int offset = segment.buffer.position();
+            segment.buffer.put(data);
+            return ((long) (storeSegments.size() - 1) << 32) | offset;
+        }
+    }
+
+    byte[] read(RecordStore store, int segmentIndex, int offset, int length) {
+        ByteBuffer segment;
+        synchronized (segmentLock) {
+            List<Segment> storeSegments = segments.get(store);
+            if (storeSegments == null) {
+                throw new IllegalStateException("RecordSpill: the pages of " + store.getsObjectName()
+                        + " were released");
+            }
+            segment = storeSegments.get(segmentIndex).buffer.duplicate();
+        }
+        byte[] data = new byte[length];
+        segment.position(offset);
+        segment.get(data);
+        return data;
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        dir.mkdirs();
+        dir.deleteOnExit();
+        File file = new File(dir, "segment-" + segmentFiles++ + ".spill");
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return new Segment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } finally {
+            // The mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,659 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.XmlObject;
+import migrator.core.buffer.MemoryAccountant;
+import migrator.core.utils.SalesforceId;
+
+/**
+ * RecordStore : Columnar store of the source records of a SforceObject, in place of the SObject
+ * (XmlObject tree) of every record. There is one column per field, typed from the describe:
+ * ids and references as encoded longs (see SalesforceId), numbers as unscaled long and scale,
+ * booleans as bits, other values dictionary encoded until the column has more than
+ * source.store.dictionary.entries distinct values, then as plain Strings. Values a typed column
+ * cannot hold exactly (e.g. relationship XmlObjects) are kept as they are.
+ *
+ * The rows are split in pages of source.store.page.rows, each with its own columns. Full pages can
+ * be spilled to disk and read back when accessed (see RecordSpill).
+ *
+ * Records are appended while the object is queried and read by row (see SforceObjectPair).
+ */
+public class RecordStore {
+
+    private static final int DEFAULT_DICTIONARY_ENTRIES = 1024;
+    private static final int DEFAULT_PAGE_ROWS = 8192;
+    private static final int MIN_CAPACITY = 64;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String sObjectName;
+    private final Map<String, FieldType> fieldToTypeMap;
+    private final int dictionaryEntries;
+    private final int pageRows;
+
+    private final List<Page> pages = new ArrayList<Page>();
+    private int rows;
+
+    public RecordStore(SforceObject sforceObject) {
+        this.sObjectName = sforceObject.getsObjectName();
+        this.fieldToTypeMap =
+                sforceObject.getDescRefObject() != null ? sforceObject.getDescRefObject().getFieldToTypeMap() : null;
+        this.dictionaryEntries = getInt("source.store.dictionary.entries", DEFAULT_DICTIONARY_ENTRIES);
+        this.pageRows = getInt("source.store.page.rows", DEFAULT_PAGE_ROWS);
+    }
+
+    /**
+     * Source records of non-lookup objects are kept in a RecordStore when source.store.columnar is
+     * true
+     */
+    public static boolean isEnabled(SforceObject sforceObject) {
+        String value =
+                PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                        "source.store.columnar");
+        return !sforceObject.isLookup() && value != null && value.trim().equalsIgnoreCase("true");
+    }
+
+    /**
+     * Appends the fields of the record, returns its row
+     */
+    public synchronized int add(SObject record) {
+        Page page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+        if (page == null || page.rows == pageRows) {
+            if (page != null) {
+                page.seal();
+            }
+            page = new Page(pages.size());
+            pages.add(page);
+        }
+        page.add(record);
+        return rows++;
+    }
+
+    /**
+     * Value of the field, null if the record has none
+     */
+    public Object get(int row, String field) {
+        Column column = pages.get(row / pageRows).columns().get(field);
+        return column == null ? null : column.get(row % pageRows);
+    }
+
+    /**
+     * The record as an SObject with the given fields (all the fields if null)
+     */
+    public SObject toSObject(int row, Collection<String> fields) {
+        Map<String, Column> columns = pages.get(row / pageRows).columns();
+        int pageRow = row % pageRows;
+        SObject record = new SObject();
+        record.setType(sObjectName);
+        Column idColumn = columns.get("Id");
+        if (idColumn != null && idColumn.get(pageRow) != null) {
+            record.setId(idColumn.get(pageRow).toString());
+        }
+        for (String field : fields != null ? fields : columns.keySet()) {
+            Column column = columns.get(field);
+            if (column != null && !field.equals("Id")) {
+                setField(record, field, column.get(pageRow));
+            }
+        }
+        return record;
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    public synchronized void clear() {
+        for (Page page : pages) {
+            if (page.bytes > 0 && page.isResident()) {
+                MemoryAccountant.getInstance().release(MemoryAccountant.Stage.STORE, sObjectName, page.bytes);
+            }
+        }
+        RecordSpill spill = RecordSpill.getInstance();
+        if (spill != null) {
+            spill.release(this);
+        }
+        pages.clear();
+        rows = 0;
+    }
+
+    String getsObjectName() {
+        return sObjectName;
+    }
+
+    private static void setField(SObject record, String field, Object value) {
+        if (value != null) {
+            record.setField(field, value);
+        }
+    }
+
+    private Column newColumn(String name, int capacity) {
+        FieldType type = fieldToTypeMap != null ? fieldToTypeMap.get(name) : null;
+        if (name.equals("Id") || type == FieldType.id || type == FieldType.reference) {
+            return new IdColumn(name, capacity);
+        } else if (type == FieldType._double || type == FieldType.currency || type == FieldType.percent
+                || type == FieldType._int || type == FieldType._long) {
+            return new NumberColumn(name, capacity);
+        } else if (type == FieldType._boolean) {
+            return new BooleanColumn(name, capacity);
+        }
+        return new StringColumn(name, capacity, dictionaryEntries);
+    }
+
+    /**
+     * Rows of one page, its columns are null while the page is spilled
+     */
+    class Page {
+        final int index;
+        private volatile Map<String, Column> columns = new LinkedHashMap<String, Column>();
+        private int capacity = MIN_CAPACITY;
+        int rows;
+        // Heap estimate, set when the page is full
+        long bytes;
+        // Accessed since the last clock sweep (see RecordSpill)
+        volatile boolean referenced;
+        // Location in the spill files, -1 until the page is first written
+        int spillSegment = -1;
+        int spillOffset;
+        int spillLength;
+
+        Page(int index) {
+            this.index = index;
+        }
+
+        RecordStore getStore() {
+            return RecordStore.this;
+        }
+
+        void add(SObject record) {
+            if (rows == capacity) {
+                capacity = Math.min(capacity + (capacity >> 1), pageRows);
+                for (Column column : columns.values()) {
+                    column.grow(capacity);
+                }
+            }
+            int row = rows++;
+            Iterator<XmlObject> children = record.getChildren();
+            while (children.hasNext()) {
+                XmlObject child = children.next();
+                String name = child.getName().getLocalPart();
+                if (name.equals("type")) {
+                    continue;
+                }
+                // Same as SObject.getField: the first value of a field
+                Column column = column(name);
+                if (column.get(row) == null) {
+                    column.set(row, child.hasChildren() ? child : child.getValue());
+                }
+            }
+        }
+
+        private Column column(String name) {
+            Column column = columns.get(name);
+            if (column == null) {
+                column = newColumn(name, capacity);
+                columns.put(name, column);
+            }
+            return column;
+        }
+
+        // Full: from now on the page can be spilled
+        void seal() {
+            long estimate = 0;
+            for (Column column : columns.values()) {
+                estimate += column.bytes();
+            }
+            bytes = estimate;
+            MemoryAccountant.getInstance().add(MemoryAccountant.Stage.STORE, sObjectName, bytes);
+            RecordSpill spill = RecordSpill.getInstance();
+            if (spill != null) {
+                spill.track(this);
+            }
+        }
+
+        Map<String, Column> columns() {
+            referenced = true;
+            Map<String, Column> current = columns;
+            return current != null ? current : load();
+        }
+
+        private Map<String, Column> load() {
+            RecordSpill spill = RecordSpill.getInstance();
+            Map<String, Column> current;
+            boolean loaded = false;
+            synchronized (this) {
+                current = columns;
+                if (current == null) {
+                    current = decode(spill.read(RecordStore.this, spillSegment, spillOffset, spillLength));
+                    columns = current;
+                    loaded = true;
+                }
+            }
+            // Outside of the page lock, the spill locks the pages it evicts
+            if (loaded) {
+                MemoryAccountant.getInstance().add(MemoryAccountant.Stage.STORE, sObjectName, bytes);
+                spill.loaded(this);
+            }
+            return current;
+        }
+
+        /**
+         * Drops the columns from the heap, written to the spill files the first time. False if the
+         * page holds values that cannot be written (e.g. relationship XmlObjects)
+         */
+        synchronized boolean evict(RecordSpill spill) throws IOException {
+            if (columns == null) {
+                return false;
+            }
+            if (spillSegment < 0) {
+                byte[] data = encode(columns);
+                if (data == null) {
+                    return false;
+                }
+                long location = spill.write(RecordStore.this, data);
+                spillSegment = (int) (location >>> 32);
+                spillOffset = (int) location;
+                spillLength = data.length;
+            }
+            columns = null;
+            MemoryAccountant.getInstance().release(MemoryAccountant.Stage.STORE, sObjectName, bytes);
+            return true;
+        }
+
+        boolean isResident() {
+            return columns != null;
+        }
+
+        // Column name, then per row a tag (0 no value, 1 text) and the UTF-8 text
+        private byte[] encode(Map<String, Column> current) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(rows);
+            out.writeInt(current.size());
+            for (Column column : current.values()) {
+                out.writeUTF(column.name);
+                for (int row = 0; row < rows; row++) {
+                    Object value = column.get(row);
+                    if (value == null) {
+                        out.writeByte(0);
+                    } else if (value instanceof String) {
+                        byte[] text = ((String) value).getBytes(UTF8);
+                        out.writeByte(1);
+                        out.writeInt(text.length);
+                        out.write(text);
+                    } else {
+                        return null;
+                    }
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private Map<String, Column> decode(byte[] data) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                int decodedRows = in.readInt();
+                int count = in.readInt();
+                Map<String, Column> decoded = new LinkedHashMap<String, Column>();
+                for (int i = 0; i < count; i++) {
+                    Column column = newColumn(in.readUTF(), Math.max(decodedRows, 1));
+                    for (int row = 0; row < decodedRows; row++) {
+                        if (in.readByte() == 1) {
+                            byte[] text = new byte[in.readInt()];
+                            in.readFully(text);
+                            column.set(row, new String(text, UTF8));
+                        }
+                    }
+                    decoded.put(column.name, column);
+                }
+                return decoded;
+            } catch (IOException e) {
+                // A byte array does not fail, a spill file cut short does
+                throw new IllegalStateException("RecordStore: could not read back page " + index + " of "
+                        + sObjectName, e);
+            }
+        }
+    }
+
+    private static int getInt(String name, int defaultValue) {
+        String value = PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, name);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    // One field of all the rows, values that do not fit the typed arrays go into others
+    private abstract static class Column {
+        final String name;
+        Object[] others;
+
+        Column(String name) {
+            this.name = name;
+        }
+
+        abstract void set(int row, Object value);
+
+        abstract Object get(int row);
+
+        abstract void grow(int capacity);
+
+        // Heap estimate of the column
+        abstract long bytes();
+
+        long othersBytes() {
+            if (others == null) {
+                return 0;
+            }
+            long bytes = 16 + 4L * others.length;
+            for (Object other : others) {
+                if (other != null) {
+                    bytes += other instanceof String ? 40 + 2 * ((String) other).length() : 512;
+                }
+            }
+            return bytes;
+        }
+
+        void setOther(int row, Object value, int capacity) {
+            if (others == null) {
+                others = new Object[capacity];
+            }
+            others[row] = value;
+        }
+
+        Object getOther(int row) {
+            return others == null ? null : others[row];
+        }
+
+        void growOthers(int capacity) {
+            if (others != null) {
+                others = Arrays.copyOf(others, capacity);
+            }
+        }
+    }
+
+    private static class IdColumn extends Column {
+        long[] keys;
+
+        IdColumn(String name, int capacity) {
+            super(name);
+            keys = new long[capacity];
+            Arrays.fill(keys, SalesforceId.NONE);
+        }
+
+        void set(int row, Object value) {
+            long key = value instanceof String ? SalesforceId.encode((String) value) : SalesforceId.NONE;
+            if (key != SalesforceId.NONE) {
+                keys[row] = key;
+            } else {
+                setOther(row, value, keys.length);
+            }
+        }
+
+        Object get(int row) {
+            return keys[row] != SalesforceId.NONE ? SalesforceId.decode(keys[row]) : getOther(row);
+        }
+
+        long bytes() {
+            return 16 + 8L * keys.length + othersBytes();
+        }
+
+        void grow(int capacity) {
+            int from = keys.length;
+            keys = Arrays.copyOf(keys, capacity);
+            Arrays.fill(keys, from, capacity, SalesforceId.NONE);
+            growOthers(capacity);
+        }
+    }
+
+    // Decimal text as unscaled value and scale ("12.50" is 1250 and 2), exact round trip only
+    private static class NumberColumn extends Column {
+        private static final byte NONE = -1;
+        long[] unscaled;
+        byte[] scales;
+
+        NumberColumn(String name, int capacity) {
+            super(name);
+            unscaled = new long[capacity];
+            scales = new byte[capacity];
+            Arrays.fill(scales, NONE);
+        }
+
+        void set(int row, Object value) {
+            if (value instanceof String && parse((String) value, row)) {
+                return;
+            }
+            setOther(row, value, scales.length);
+        }
+
+        private boolean parse(String text, int row) {
+            int length = text.length();
+            int start = length > 0 && text.charAt(0) == '-' ? 1 : 0;
+            // Up to 18 digits fit in a long, no leading zeros to lose
+            if (length == start || length - start > 19
+                    || (text.charAt(start) == '0' && length > start + 1 && text.charAt(start + 1) != '.')) {
+                return false;
+            }
+            long value = 0;
+            int scale = NONE;
+            int digits = 0;
+            for (int i = start; i < length; i++) {
+                char c = text.charAt(i);
+                if (c == '.' && scale == NONE && i > start && i < length - 1) {
+                    scale = 0;
+                } else if (c >= '0' && c <= '9' && ++digits <= 18) {
+                    value = value * 10 + (c - '0');
+                    if (scale != NONE) {
+                        scale++;
+                    }
+                } else {
+                    return false;
+                }
+            }
+            if (start == 1 && value == 0) {
+                // "-0" / "-0.0"
+                return false;
+            }
+            unscaled[row] = start == 1 ? -value : value;
+            // Scale 0 is a number with a point and no decimals, not possible: keep 0 for integers
+            scales[row] = (byte) (scale == NONE ? 0 : scale + 1);
+            return true;
+        }
+
+        Object get(int row) {
+            byte scale = scales[row];
+            if (scale == NONE) {
+                return getOther(row);
+            }
+            long value = unscaled[row];
+            if (scale == 0) {
+                return Long.toString(value);
+            }
+            int decimals = scale - 1;
+            StringBuilder text = new StringBuilder(Long.toString(Math.abs(value)));
+            while (text.length() <= decimals) {
+                text.insert(0, '0');
+            }
+            text.insert(text.length() - decimals, '.');
+            if (value < 0) {
+                text.insert(0, '-');
+            }
+            return text.toString();
+        }
+
+        long bytes() {
+            return 32 + 9L * scales.length + othersBytes();
+        }
+
+        void grow(int capacity) {
+            int from = scales.length;
+            unscaled = Arrays.copyOf(unscaled, capacity);
+            scales = Arrays.copyOf(scales, capacity);
+            Arrays.fill(scales, from, capacity, NONE);
+            growOthers(capacity);
+        }
+    }
+
+    private static class BooleanColumn extends Column {
+        final BitSet known = new BitSet();
+        final BitSet values = new BitSet();
+        int capacity;
+
+        BooleanColumn(String name, int capacity) {
+            super(name);
+            this.capacity = capacity;
+        }
+
+        void set(int row, Object value) {
+            if ("true".equals(value) || "false".equals(value)) {
+                known.set(row);
+                values.set(row, "true".equals(value));
+            } else {
+                setOther(row, value, capacity);
+            }
+        }
+
+        Object get(int row) {
+            if (known.get(row)) {
+                return values.get(row) ? "true" : "false";
+            }
+            return getOther(row);
+        }
+
+        void grow(int capacity) {
+            this.capacity = capacity;
+            growOthers(capacity);
+        }
+
+        long bytes() {
+            return 64 + capacity / 4 + othersBytes();
+        }
+    }
+
+    // Dictionary codes (0 for no value) while the column has few distinct values, plain values after
+    private static class StringColumn extends Column {
+        final int maxEntries;
+        Map<String, Character> dictionary = new HashMap<String, Character>();
+        List<String> entries = new ArrayList<String>();
+        char[] codes;
+        String[] plain;
+
+        StringColumn(String name, int capacity, int maxEntries) {
+            super(name);
+            this.maxEntries = Math.min(maxEntries, Character.MAX_VALUE - 1);
+            codes = new char[capacity];
+        }
+
+        void set(int row, Object value) {
+            if (!(value instanceof String)) {
+                setOther(row, value, plain != null ? plain.length : codes.length);
+                return;
+            }
+            String text = (String) value;
+            if (plain != null) {
+                plain[row] = text;
+                return;
+            }
+            Character code = dictionary.get(text);
+            if (code == null) {
+                if (entries.size() >= maxEntries) {
+                    toPlain();
+                    plain[row] = text;
+                    return;
+                }
+                entries.add(text);
+                code = (char) entries.size();
+                dictionary.put(text, code);
+            }
+            codes[row] = code;
+        }
+
+        Object get(int row) {
+            if (plain != null) {
+                return plain[row] != null ? plain[row] : getOther(row);
+            }
+            char code = codes[row];
+            return code != 0 ? entries.get(code - 1) : getOther(row);
+        }
+
+        private void toPlain() {
+            plain = new String[codes.length];
+            for (int row = 0; row < codes.length; row++) {
+                if (codes[row] != 0) {
+                    plain[row] = entries.get(codes[row] - 1);
+                }
+            }
+            codes = null;
+            dictionary = null;
+            entries = null;
+        }
+
+        long bytes() {
+            long bytes = 16 + othersBytes();
+            if (plain != null) {
+                bytes += 4L * plain.length;
+                for (String value : plain) {
+                    if (value != null) {
+                        bytes += 40 + 2 * value.length();
+                    }
+                }
+                return bytes;
+            }
+            bytes += 2L * codes.length;
+            for (String entry : entries) {
+                bytes += 72 + 2 * entry.length();
+            }
+            return bytes;
+        }
+
+        void grow(int capacity) {
+            if (plain != null) {
+                plain = Arrays.copyOf(plain, capacity);
+            } else {
+                codes = Arrays.copyOf(codes, capacity);
+            }
+            growOthers(capacity);
+        }
+    }
+}
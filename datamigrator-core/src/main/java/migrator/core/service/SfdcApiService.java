@@ -25,6 +25,7 @@
  */
 package migrator.core.service;
 
+import com.sforce.soap.partner.DeleteResult;
 import com.sforce.soap.partner.PartnerConnection;
 import com.sforce.soap.partner.QueryResult;
 import com.sforce.soap.partner.sobject.SObject;
@@ -105,6 +106,20 @@ public interface SfdcApiService {
                                              // master)
             List<SforceObject> sForceObjectList, boolean bSource);
 
+    /**
+     * Queries the Object based on the its API name. Each query/queryMore page is handed to the
+     * pageHandler as it arrives instead of being collected in memory. Throws a RuntimeException
+     * when the query fails part way, the object must not be taken as complete.
+     *
+     * @param PartnerConnection connection: connection to Salesforce org
+     * @param SforceObject sforceObject: Object to be queried
+     * @param IQueryPageHandler pageHandler: Receives the records page by page
+     * @param boolean source: True for source environment, otherwise its for target environment
+     *
+     */
+    public void queryPages(PartnerConnection connection, SforceObject sforceObject, IQueryPageHandler pageHandler,
+            boolean bSource);
+
     /**
      * Queries the Object based on the its API name. Returns the List of QueryResults
      *
@@ -142,4 +157,26 @@ public interface SfdcApiService {
      */
     public void delete(String sObjectName, SfdcConnection sfdcConnection);
 
+    /**
+     * Deletes the records with the given ids in concurrent batches
+     *
+     * @param String sObjectAPIName: Object of the records (API name)
+     * @param String[] deleteIds: Ids of the records in the Target Org
+     * @param boolean singleThreaded: True to send the batches one after another
+     *
+     */
+    public DeleteResult[] divideWorkDelete(String sObjectAPIName, String[] deleteIds, boolean singleThreaded);
+
+    /**
+     * Delta runs: deletes from the Target Org the records deleted in the Source Org since the
+     * watermark of the object, matched on its external id. Returns the number of records deleted.
+     *
+     * @param PartnerConnection sourceConnection: connection to the Source Org (queryAll)
+     * @param PartnerConnection targetConnection: connection to the Target Org
+     * @param SforceObject sforceObject: Delta object with an external id field
+     *
+     */
+    public int deleteRemoved(PartnerConnection sourceConnection, PartnerConnection targetConnection,
+            SforceObject sforceObject);
+
 }
@@ -67,6 +67,15 @@ public class SforceMasterDetail {
     // batch size, default is 200
     private int batchSize;
 
+    // Stream the source query pages straight into the inserts instead of holding all records
+    private boolean streaming = false;
+
+    // Use the Bulk API from this many records on, 0 to always use the SOAP API
+    private int bulkThreshold = 0;
+
+    // Read the source in this many Id ranges (in parallel, keyset pages), 0 for one query
+    private int idRanges = 0;
+
     public SforceMasterDetail() {
         this.batchSize = 200;
     }
@@ -185,6 +194,30 @@ public class SforceMasterDetail {
         this.batchSize = batchSize;
     }
 
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public int getBulkThreshold() {
+        return bulkThreshold;
+    }
+
+    public void setBulkThreshold(int bulkThreshold) {
+        this.bulkThreshold = bulkThreshold;
+    }
+
+    public int getIdRanges() {
+        return idRanges;
+    }
+
+    public void setIdRanges(int idRanges) {
+        this.idRanges = idRanges;
+    }
+
     public String toString() {
         return "SforceMasterDetail[" + "sObjectName:" + sObjectName + "]";
     }
@@ -98,12 +98,33 @@ public class SforceObject {
 
     private Set<String> commonFields;
 
+    // Fields the source query selects (see MigrableLookupObject.projection), null for all the
+    // common fields
+    private Set<String> queryFields;
+
     // batch size, default is 200
     private int batchSize;
 
+    // Stream the source query pages straight into the inserts instead of holding all records
+    private boolean streaming = false;
+
+    // Use the Bulk API from this many records on, 0 to always use the SOAP API
+    private int bulkThreshold = 0;
+
+    // Read the source in this many Id ranges (in parallel, keyset pages), 0 for one query
+    private int idRanges = 0;
+
+    // Source records of the object (see RecordStore), created on first use
+    private RecordStore recordStore;
+
+    // Delta run: only the records modified since modifiedSince are read (see WatermarkStore), all
+    // of them on the first run (modifiedSince null)
+    private boolean delta = false;
+    private String modifiedSince;
+
     public SforceObject() {
-        recordsMap = new HashMap<String, SforceObjectPair>();
-        lookupRecordsMap = new HashMap<String, SforceObjectPair>();
+        recordsMap = new IdPairMap();
+        lookupRecordsMap = new IdPairMap();
         parentFieldObjectMap = new HashMap<String, String>();
 
         isLookup = false;
@@ -296,6 +317,14 @@ public class SforceObject {
         this.commonFields = commonFields;
     }
 
+    public Set<String> getQueryFields() {
+        return queryFields;
+    }
+
+    public void setQueryFields(Set<String> queryFields) {
+        this.queryFields = queryFields;
+    }
+
     public int getBatchSize() {
         return batchSize;
     }
@@ -304,6 +333,73 @@ public class SforceObject {
         this.batchSize = batchSize;
     }
 
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public int getBulkThreshold() {
+        return bulkThreshold;
+    }
+
+    public void setBulkThreshold(int bulkThreshold) {
+        this.bulkThreshold = bulkThreshold;
+    }
+
+    public int getIdRanges() {
+        return idRanges;
+    }
+
+    public void setIdRanges(int idRanges) {
+        this.idRanges = idRanges;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    public String getModifiedSince() {
+        return modifiedSince;
+    }
+
+    public void setModifiedSince(String modifiedSince) {
+        this.modifiedSince = modifiedSince;
+    }
+
+    public synchronized RecordStore getRecordStore() {
+        if (recordStore == null) {
+            recordStore = new RecordStore(this);
+        }
+        return recordStore;
+    }
+
+    /**
+     * Drops the source records once nothing reads them (see SourceLifecycle), the records maps keep
+     * the source and target ids
+     */
+    public void releaseSource() {
+        dropSource(recordsMap);
+        dropSource(lookupRecordsMap);
+        if (recordStore != null)
+            recordStore.clear();
+    }
+
+    private static void dropSource(Map<String, SforceObjectPair> records) {
+        if (records != null) {
+            for (SforceObjectPair pair : records.values()) {
+                if (pair != null)
+                    pair.dropSource();
+            }
+        }
+    }
+
     public void cleanup() {
         if (recordsMap != null)
             recordsMap.clear();
@@ -317,6 +413,10 @@ public class SforceObject {
             masterDetail = null;
         if (commonFields != null)
             commonFields.clear();
+        if (queryFields != null)
+            queryFields.clear();
+        if (recordStore != null)
+            recordStore.clear();
     }
 
     public String toString() {
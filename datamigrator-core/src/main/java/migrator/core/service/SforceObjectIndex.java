@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * SforceObjectIndex : Case-insensitive name index over the SforceObject list, split by role
+ * (lookup and non-lookup), so the per record lookups of parents and lookup objects don't scan the
+ * list. Like the scans it replaces, the first object of a name in the list wins.
+ */
+public class SforceObjectIndex {
+
+    private final Map<String, SforceObject> allObjects = new HashMap<String, SforceObject>();
+    private final Map<String, SforceObject> lookupObjects = new HashMap<String, SforceObject>();
+    private final Map<String, SforceObject> nonLookupObjects = new HashMap<String, SforceObject>();
+
+    public SforceObjectIndex() {}
+
+    public SforceObjectIndex(List<SforceObject> sForceObjectList) {
+        rebuild(sForceObjectList);
+    }
+
+    public void rebuild(List<SforceObject> sForceObjectList) {
+        clear();
+        if (sForceObjectList != null) {
+            for (SforceObject sforceObject : sForceObjectList) {
+                add(sforceObject);
+            }
+        }
+    }
+
+    // Call for every object added to the list
+    public void add(SforceObject sforceObject) {
+        String objectName = sforceObject.getsObjectName();
+        if (objectName == null) {
+            return;
+        }
+        put(allObjects, objectName, sforceObject);
+        put(sforceObject.isLookup() ? lookupObjects : nonLookupObjects, objectName, sforceObject);
+    }
+
+    public void clear() {
+        allObjects.clear();
+        lookupObjects.clear();
+        nonLookupObjects.clear();
+    }
+
+    // Object of any role
+    public SforceObject get(String sObjectName) {
+        return get(allObjects, sObjectName);
+    }
+
+    public SforceObject getLookup(String sObjectName) {
+        return get(lookupObjects, sObjectName);
+    }
+
+    // Standalone, parent or child object
+    public SforceObject getNonLookup(String sObjectName) {
+        return get(nonLookupObjects, sObjectName);
+    }
+
+    // Every object is stored under its name and its lower case name, the exact name avoids the
+    // lower casing for the usual lookups
+    private static void put(Map<String, SforceObject> objects, String objectName, SforceObject sforceObject) {
+        String key = objectName.toLowerCase(Locale.ENGLISH);
+        if (!objects.containsKey(key)) {
+            objects.put(key, sforceObject);
+            objects.put(objectName, sforceObject);
+        }
+    }
+
+    private static SforceObject get(Map<String, SforceObject> objects, String sObjectName) {
+        if (sObjectName == null) {
+            return null;
+        }
+        SforceObject sforceObject = objects.get(sObjectName);
+        if (sforceObject == null) {
+            sforceObject = objects.get(sObjectName.toLowerCase(Locale.ENGLISH));
+        }
+        return sforceObject;
+    }
+}
@@ -25,9 +25,11 @@
  */
 package migrator.core.service;
 
-import java.util.Map;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import com.sforce.soap.partner.sobject.SObject;
+import migrator.core.utils.SalesforceId;
 
 /**
  * Wrapper class - Relate the source and target environment records
@@ -36,43 +38,92 @@ import com.sforce.soap.partner.sobject.SObject;
  */
 public class SforceObjectPair implements ISforceObjectPair {
 
-    // record id from source org
+    // record id from source org, encoded (see SalesforceId), the String only if it is not an id
+    protected long sourceKey = SalesforceId.NONE;
     protected String sourceId;
-    // record id from target org
+    // record id from target org, encoded like the source id
+    protected long targetKey = SalesforceId.NONE;
     protected String targetId;
     // This is self SObject (from source org)
     protected SObject sourceSObject;
+    // Or its row in the store of the object (see RecordStore)
+    protected RecordStore sourceStore;
+    protected int sourceRow = -1;
     // This is self SObject (from target org)
     protected SObject targetSObject;
-    // This is from source org (field, sobject)
+    // This is from source org (field, sobject), only allocated when a parent is attached: parents
+    // are otherwise found by the child's reference in the parent's records map
     protected Map<String, SObject> sourceSObjectParentMap;
 
-    public SforceObjectPair() {
-        sourceSObjectParentMap = new HashMap<String, SObject>();
-    }
+    public SforceObjectPair() {}
 
     public String getSourceId() {
-        return this.sourceId;
+        return sourceKey != SalesforceId.NONE ? SalesforceId.decode(sourceKey) : this.sourceId;
     }
 
     public String getTargetId() {
-        return this.targetId;
+        return targetKey != SalesforceId.NONE ? SalesforceId.decode(targetKey) : this.targetId;
     }
 
     public void setSourceId(String id) {
-        this.sourceId = id;
+        this.sourceKey = SalesforceId.encode(id);
+        this.sourceId = sourceKey != SalesforceId.NONE ? null : id;
     }
 
     public void setTargetId(String id) {
-        this.targetId = id;
+        this.targetKey = SalesforceId.encode(id);
+        this.targetId = targetKey != SalesforceId.NONE ? null : id;
     }
 
     public SObject getSourceSObject() {
+        if (sourceStore != null) {
+            return sourceStore.toSObject(sourceRow, null);
+        }
         return this.sourceSObject;
     }
 
     public void setSourceSObject(SObject sObjectSelf) {
         this.sourceSObject = sObjectSelf;
+        this.sourceStore = null;
+        this.sourceRow = -1;
+    }
+
+    /**
+     * Keeps the source record in the store instead of as an SObject
+     */
+    public void setSourceRecord(RecordStore store, SObject sObjectSelf) {
+        this.sourceSObject = null;
+        this.sourceStore = store;
+        this.sourceRow = store.add(sObjectSelf);
+    }
+
+    public RecordStore getSourceStore() {
+        return sourceStore;
+    }
+
+    public int getSourceRow() {
+        return sourceRow;
+    }
+
+    /**
+     * Value of a field of the source record without building the SObject
+     */
+    public Object getSourceField(String field) {
+        if (sourceStore != null) {
+            return sourceStore.get(sourceRow, field);
+        }
+        return sourceSObject != null ? sourceSObject.getField(field) : null;
+    }
+
+    /**
+     * Drops the source and target records, the ids are kept
+     */
+    public void dropSource() {
+        this.sourceSObject = null;
+        this.sourceStore = null;
+        this.sourceRow = -1;
+        this.targetSObject = null;
+        this.sourceSObjectParentMap = null;
     }
 
     public SObject getTargetSObject() {
@@ -84,15 +135,25 @@ public class SforceObjectPair implements ISforceObjectPair {
     }
 
     public Map<String, SObject> getSourceSObjectParentMap() {
+        if (sourceSObjectParentMap == null) {
+            return Collections.emptyMap();
+        }
         return sourceSObjectParentMap;
     }
 
+    public void attachParent(String field, SObject parent) {
+        if (sourceSObjectParentMap == null) {
+            sourceSObjectParentMap = new HashMap<String, SObject>(4);
+        }
+        sourceSObjectParentMap.put(field, parent);
+    }
+
     public void setSourceSObjectParentMap(Map<String, SObject> sourceSObjectParentMap) {
         this.sourceSObjectParentMap = sourceSObjectParentMap;
     }
 
     public String toString() {
-        return "SforceObjectPair[" + "sourceId:" + sourceId + ", targetId:" + targetId + "]";
+        return "SforceObjectPair[" + "sourceId:" + getSourceId() + ", targetId:" + getTargetId() + "]";
     }
 
 }
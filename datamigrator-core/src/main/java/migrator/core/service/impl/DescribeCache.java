@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.service.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.namespace.QName;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.DescribeSObjectResult;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+import com.sforce.ws.bind.TypeMapper;
+import com.sforce.ws.parser.XmlInputStream;
+import com.sforce.ws.parser.XmlOutputStream;
+import migrator.core.buffer.WorkerPool;
+import migrator.core.bulk.BulkApiClient;
+import migrator.core.connect.ApiThrottler;
+import migrator.core.connect.SfdcConnection;
+import migrator.core.connect.ThrottledPartnerConnection;
+import migrator.core.service.PropertiesReader;
+
+/**
+ * DescribeCache : Describe results of the source and target orgs, kept for the run. Objects are
+ * described with describeSObjects calls of up to 100 names, both orgs at the same time. With
+ * metadata.cache (default false) the results are also written to metadata.cache.dir, one directory
+ * per org id and API version, and read back by later runs. A result older than
+ * metadata.cache.revalidate.minutes is checked with a conditional REST describe (If-Modified-Since)
+ * first, which returns no describe when the object has not changed.
+ */
+public class DescribeCache {
+
+    static Logger log = Logger.getLogger(DescribeCache.class.getName());
+
+    // Most names a describeSObjects call takes
+    private static final int MAX_BATCH = 100;
+    private static final int DEFAULT_REVALIDATE_MINUTES = 60;
+    private static final int DEFAULT_THREADS = 8;
+    private static final String NAMESPACE = "urn:partner.soap.sforce.com";
+    private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+
+    private static final DescribeCache instance = new DescribeCache();
+
+    // Org (see getOrgKey) to the describes by lower case object name
+    private final Map<String, Map<String, DescribeSObjectResult>> orgs =
+            new ConcurrentHashMap<String, Map<String, DescribeSObjectResult>>();
+
+    private DescribeCache() {}
+
+    public static DescribeCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Describe of an object in the org of the connection, described now if it is not cached
+     */
+    public DescribeSObjectResult describe(PartnerConnection connection, String sObjectName)
+            throws ConnectionException {
+        Map<String, DescribeSObjectResult> describes = getDescribes(connection);
+        DescribeSObjectResult result = describes.get(sObjectName.toLowerCase());
+        if (result == null) {
+            readCached(connection, describes, Collections.singletonList(sObjectName));
+            result = describes.get(sObjectName.toLowerCase());
+        }
+        if (result == null) {
+            result = connection.describeSObject(sObjectName);
+            put(connection, describes, sObjectName, result);
+        }
+        return result;
+    }
+
+    /**
+     * Describes the objects in the source (when logged in) and target orgs at the same time
+     */
+    public void prefetch(SfdcConnection sfdcConnection, final Collection<String> sObjectNames) {
+        long start = System.currentTimeMillis();
+        List<PartnerConnection> connections = new ArrayList<PartnerConnection>();
+        if (sfdcConnection.getSourceConnection() != null) {
+            connections.add(sfdcConnection.getSourceConnection());
+        }
+        if (sfdcConnection.getTargetConnection() != null) {
+            connections.add(sfdcConnection.getTargetConnection());
+        }
+        if (connections.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = WorkerPool.getIoExecutor();
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (final PartnerConnection connection : connections) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        prefetch(connection, sObjectNames);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("DescribeCache.prefetch failed", e.getCause());
+        }
+        log.info("Described " + sObjectNames.size() + " objects in " + connections.size() + " orgs in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Describes the objects that are not cached yet in the org of the connection
+     */
+    public void prefetch(PartnerConnection connection, Collection<String> sObjectNames) {
+        if (connection == null) {
+            return;
+        }
+        Map<String, DescribeSObjectResult> describes = getDescribes(connection);
+        List<String> missing = new ArrayList<String>();
+        for (String sObjectName : new LinkedHashSet<String>(sObjectNames)) {
+            if (!describes.containsKey(sObjectName.toLowerCase())) {
+                missing.add(sObjectName);
+            }
+        }
+        missing = readCached(connection, describes, missing);
+
+        for (int i = 0; i < missing.size(); i += MAX_BATCH) {
+            List<String> batch = missing.subList(i, Math.min(i + MAX_BATCH, missing.size()));
+            try {
+                DescribeSObjectResult[] results = connection.describeSObjects(batch.toArray(new String[0]));
+                for (DescribeSObjectResult result : results) {
+                    put(connection, describes, result.getName(), result);
+                }
+            } catch (ConnectionException ce) {
+                // A single unknown name fails the whole call, describe them one by one
+                log.warn("DescribeCache.prefetch describeSObjects failed, describing one at a time: " + ce);
+                for (String sObjectName : batch) {
+                    try {
+                        put(connection, describes, sObjectName, connection.describeSObject(sObjectName));
+                    } catch (ConnectionException e) {
+                        log.error("DescribeCache.prefetch ConnectionException: sObjectName: " + sObjectName, e);
+                    }
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        orgs.clear();
+    }
+
+    private Map<String, DescribeSObjectResult> getDescribes(PartnerConnection connection) {
+        String orgKey = getOrgKey(connection);
+        synchronized (orgs) {
+            Map<String, DescribeSObjectResult> describes = orgs.get(orgKey);
+            if (describes == null) {
+                describes = new ConcurrentHashMap<String, DescribeSObjectResult>();
+                orgs.put(orgKey, describes);
+            }
+            return describes;
+        }
+    }
+
+    private void put(PartnerConnection connection, Map<String, DescribeSObjectResult> describes,
+            String sObjectName, DescribeSObjectResult result) {
+        if (result == null) {
+            return;
+        }
+        describes.put(sObjectName.toLowerCase(), result);
+        File dir = getCacheDir(connection);
+        if (dir != null) {
+            write(new File(dir, sObjectName.toLowerCase() + ".xml"), result);
+        }
+    }
+
+    // Reads the cached describes of the names into describes, returns the names that are not
+    // cached or have changed
+    private List<String> readCached(final PartnerConnection connection, Map<String, DescribeSObjectResult> describes,
+            List<String> sObjectNames) {
+        File dir = getCacheDir(connection);
+        if (dir == null || sObjectNames.isEmpty()) {
+            return sObjectNames;
+        }
+        List<String> missing = new ArrayList<String>();
+        Map<String, File> stale = new LinkedHashMap<String, File>();
+        long revalidateMillis = getInt("metadata.cache.revalidate.minutes", DEFAULT_REVALIDATE_MINUTES) * 60000L;
+        for (String sObjectName : sObjectNames) {
+            File file = new File(dir, sObjectName.toLowerCase() + ".xml");
+            if (!file.isFile()) {
+                missing.add(sObjectName);
+            } else if (System.currentTimeMillis() - file.lastModified() < revalidateMillis) {
+                if (!load(file, sObjectName, describes)) {
+                    missing.add(sObjectName);
+                }
+            } else {
+                stale.put(sObjectName, file);
+            }
+        }
+        if (stale.isEmpty()) {
+            return missing;
+        }
+
+        // metadata.cache.threads checks at a time, each task takes the next stale describe
+        final List<Map.Entry<String, File>> entries = new ArrayList<Map.Entry<String, File>>(stale.entrySet());
+        final AtomicInteger next = new AtomicInteger();
+        final Map<String, Boolean> unchanged = new ConcurrentHashMap<String, Boolean>();
+        int threads = Math.max(1, Math.min(entries.size(), getInt("metadata.cache.threads", DEFAULT_THREADS)));
+        List<Future<Object>> checks = new ArrayList<Future<Object>>();
+        for (int i = 0; i < threads; i++) {
+            checks.add(WorkerPool.getIoExecutor().submit(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    int index;
+                    while ((index = next.getAndIncrement()) < entries.size()) {
+                        Map.Entry<String, File> entry = entries.get(index);
+                        unchanged.put(entry.getKey(),
+                                isNotModified(connection, entry.getKey(), entry.getValue().lastModified()));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Object> check : checks) {
+            waitFor(check);
+        }
+        for (Map.Entry<String, File> entry : entries) {
+            File file = entry.getValue();
+            if (Boolean.TRUE.equals(unchanged.get(entry.getKey())) && load(file, entry.getKey(), describes)) {
+                file.setLastModified(System.currentTimeMillis());
+            } else {
+                missing.add(entry.getKey());
+            }
+        }
+        log.info(getOrgKey(connection) + " : " + (sObjectNames.size() - missing.size()) + " of "
+                + sObjectNames.size() + " describes from the cache, " + stale.size() + " revalidated");
+        return missing;
+    }
+
+    // Describes the task did not check are described again
+    private static void waitFor(Future<Object> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("DescribeCache revalidation failed: " + e.getCause());
+        }
+    }
+
+    // Conditional REST describe: 304 when the object has not changed since the cached describe
+    private static boolean isNotModified(PartnerConnection connection, String sObjectName, long since) {
+        ConnectorConfig config = connection.getConfig();
+        ApiThrottler throttler =
+                connection instanceof ThrottledPartnerConnection ? ((ThrottledPartnerConnection) connection)
+                        .getThrottler() : null;
+        HttpURLConnection http = null;
+        try {
+            if (throttler != null) {
+                throttler.pace();
+            }
+            String baseUrl = BulkApiClient.getRestBaseUrl(config.getServiceEndpoint());
+            URL url = new URL(baseUrl + "/sobjects/" + sObjectName + "/describe");
+            Proxy proxy = config.getProxy();
+            http = (HttpURLConnection) (proxy != null ? url.openConnection(proxy) : url.openConnection());
+            http.setRequestProperty("Authorization", "Bearer " + config.getSessionId());
+            http.setRequestProperty("Accept", "application/json");
+            ZonedDateTime modifiedSince = ZonedDateTime.ofInstant(Instant.ofEpochMilli(since), ZoneOffset.UTC);
+            http.setRequestProperty("If-Modified-Since", DateTimeFormatter.RFC_1123_DATE_TIME.format(modifiedSince));
+            int status = http.getResponseCode();
+            if (throttler != null) {
+                throttler.update(http.getHeaderField("Sforce-Limit-Info"));
+            }
+            return status == HttpURLConnection.HTTP_NOT_MODIFIED;
+        } catch (IOException e) {
+            log.warn("DescribeCache revalidation failed: sObjectName: " + sObjectName + " " + e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (http != null) {
+                http.disconnect();
+            }
+        }
+    }
+
+    private static boolean load(File file, String sObjectName, Map<String, DescribeSObjectResult> describes) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            XmlInputStream xin = new XmlInputStream();
+            xin.setInput(in, "UTF-8");
+            DescribeSObjectResult result = new DescribeSObjectResult();
+            result.load(xin, new TypeMapper());
+            describes.put(sObjectName.toLowerCase(), result);
+            return true;
+        } catch (Exception e) {
+            log.warn("DescribeCache could not read " + file + ": " + e);
+            return false;
+        } finally {
+            close(in);
+        }
+    }
+
+    // Written next to the file and moved over it, a run never reads half a describe
+    private static void write(File file, DescribeSObjectResult result) {
+        File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            XmlOutputStream xout = new XmlOutputStream(out, false);
+            xout.setPrefix("", NAMESPACE);
+            xout.setPrefix("xsi", XSI_NAMESPACE);
+            xout.startDocument();
+            result.write(new QName(NAMESPACE, "result"), xout, new TypeMapper());
+            xout.endDocument();
+            xout.close();
+            out = null;
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("DescribeCache could not write " + file + ": " + e);
+            tmp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    // Directory of the org's describes, null unless metadata.cache is true
+    private static File getCacheDir(PartnerConnection connection) {
+        PropertiesReader properties = PropertiesReader.getInstance();
+        String enabled = properties.getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, "metadata.cache");
+        if (enabled == null || !enabled.trim().equalsIgnoreCase("true")) {
+            return null;
+        }
+        String dir = properties.getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, "metadata.cache.dir");
+        if (dir == null || dir.trim().equals("")) {
+            dir = new File(System.getProperty("java.io.tmpdir"), "migrator-describe").getPath();
+        }
+        File orgDir = new File(dir.trim(), getOrgKey(connection));
+        if (!orgDir.isDirectory() && !orgDir.mkdirs()) {
+            log.warn("DescribeCache could not create " + orgDir);
+            return null;
+        }
+        return orgDir;
+    }
+
+    /**
+     * Org id and API version of the connection, e.g. 00D000000000001EAA-44.0 for
+     * https://na1.salesforce.com/services/Soap/u/44.0/00D000000000001EAA
+     */
+    static String getOrgKey(PartnerConnection connection) {
+        String endpoint = connection.getConfig().getServiceEndpoint();
+        String[] parts = endpoint.replaceAll("/+$", "").split("/");
+        String key = endpoint;
+        if (parts.length > 2 && parts[parts.length - 1].startsWith("00D")) {
+            key = parts[parts.length - 1] + "-" + parts[parts.length - 2];
+        }
+        return key.replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+
+    private static int getInt(String name, int defaultValue) {
+        String value = PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, name);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.service.impl;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+import migrator.core.buffer.MemoryAccountant;
+import migrator.core.buffer.WorkerPool;
+import migrator.core.connect.ThrottledPartnerConnection;
+import migrator.core.service.IQueryPageHandler;
+import migrator.core.service.PropertiesReader;
+import migrator.core.service.SforceObject;
+
+/**
+ * IdRangeReader : Reads an object in Id ranges instead of one query and its queryMore chain (for
+ * objects with "idRanges" in the JSON mapping). The Ids between the lowest and the highest Id are
+ * split into ranges, the boundaries are interpolated on the base 62 record number of the Id. Every
+ * range is read with keyset pages (WHERE Id > :lastId ORDER BY Id LIMIT n), so no query locator has
+ * to live for the whole object, and the ranges are read in parallel on the shared I/O pool
+ * (WorkerPool), on connections sharing the session of the given connection (source.query.threads
+ * at the same time). A range whose read fails is read again from its last Id; a range still failing
+ * after source.query.range.retries cancels the others and fails the read. Pages are handed to the
+ * page handler on the calling thread, in Id order within a range. The pages waiting to be handled
+ * are accounted as QUERY memory, the readers pause while they use up the budget (see
+ * MemoryAccountant).
+ */
+public class IdRangeReader {
+
+    static Logger log = Logger.getLogger(IdRangeReader.class.getName());
+
+    private static final String BASE62 = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final int ID_LENGTH = 15;
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_PAGE_RECORDS = 10000;
+    private static final int DEFAULT_RETRIES = 3;
+
+    // Marks the end of a range on the page queue
+    private static final Page END_OF_RANGE = new Page(null);
+
+    private final PartnerConnection connection;
+    private final SforceObject sforceObject;
+    private final String select;
+    private final String where;
+    private final int ranges;
+    private final int threads;
+    private final int pageRecords;
+    private final int retries;
+    private final MemoryAccountant accountant = MemoryAccountant.getInstance();
+
+    /**
+     * @param PartnerConnection connection: Logged in connection, the readers share its session
+     * @param SforceObject sforceObject: Object to read
+     * @param String select: SELECT ... FROM ... of the query (Id has to be one of the fields)
+     * @param String where: Filter of the object, null for none
+     */
+    public IdRangeReader(PartnerConnection connection, SforceObject sforceObject, String select, String where) {
+        this.connection = connection;
+        this.sforceObject = sforceObject;
+        this.select = select;
+        this.where = (where == null || where.trim().equals("")) ? null : where;
+        this.ranges = Math.max(1, sforceObject.getIdRanges());
+        this.threads = Math.max(1, Math.min(ranges, getInt("source.query.threads", DEFAULT_THREADS)));
+        this.pageRecords = getInt("source.query.range.page.records", DEFAULT_PAGE_RECORDS);
+        this.retries = getInt("source.query.range.retries", DEFAULT_RETRIES);
+    }
+
+    /**
+     * Reads all the ranges, returns the number of records read. Throws the error of the first range
+     * that still fails after source.query.range.retries: the other ranges are cancelled, the pages
+     * handed over so far are not the whole object.
+     */
+    public int read(final IQueryPageHandler pageHandler) throws Exception {
+        String minId = boundaryId("ASC");
+        if (minId == null) {
+            return 0;
+        }
+        String maxId = boundaryId("DESC");
+        final List<String> boundaries = split(minId, maxId, ranges);
+        final int rangeCount = boundaries.size() + 1;
+        int readers = Math.min(threads, rangeCount);
+        log.info(sforceObject.getsObjectName() + " : reading " + rangeCount + " Id ranges from " + minId
+                + " to " + maxId + " on " + readers + " connections");
+
+        // Every reader takes the next range until there are none left or a range failed
+        final BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(2 * readers);
+        final AtomicInteger nextRange = new AtomicInteger(0);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < readers; i++) {
+            final PartnerConnection readerConnection = i == 0 ? connection : sameSession(connection);
+            futures.add(WorkerPool.getIoExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int range;
+                        while (failure.get() == null && (range = nextRange.getAndIncrement()) < rangeCount) {
+                            String lowerId = range == 0 ? null : boundaries.get(range - 1);
+                            String upperId = range == boundaries.size() ? null : boundaries.get(range);
+                            try {
+                                readRange(readerConnection, lowerId, upperId, pages, failure);
+                            } catch (InterruptedException e) {
+                                throw e;
+                            } catch (Exception e) {
+                                log.error(sforceObject.getsObjectName() + " : Id range (" + lowerId + ", "
+                                        + upperId + "] failed", e);
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                        pages.put(END_OF_RANGE);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }));
+        }
+
+        int records = 0;
+        int readersDone = 0;
+        try {
+            while (readersDone < readers) {
+                Page page = pages.take();
+                if (page == END_OF_RANGE) {
+                    readersDone++;
+                    continue;
+                }
+                try {
+                    // Once a range failed, the pages still coming in are dropped
+                    if (failure.get() == null) {
+                        records += page.records.length;
+                        pageHandler.handlePage(sforceObject, page.records);
+                    }
+                } finally {
+                    accountant.release(MemoryAccountant.Stage.QUERY, sforceObject.getsObjectName(), page.bytes);
+                }
+            }
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            // Pages left behind by a failed handler
+            for (Page page : pages) {
+                accountant.release(MemoryAccountant.Stage.QUERY, sforceObject.getsObjectName(), page.bytes);
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        log.info(sforceObject.getsObjectName() + " : read " + records + " records in Id ranges");
+        return records;
+    }
+
+    // Reads (lowerId, upperId] page by page, from the last Id read when a query fails. Stops once
+    // another range failed
+    private void readRange(PartnerConnection rangeConnection, String lowerId, String upperId,
+            BlockingQueue<Page> pages, AtomicReference<Exception> failure) throws Exception {
+        String lastId = lowerId;
+        int failures = 0;
+        boolean done = false;
+        while (!done && failure.get() == null) {
+            try {
+                QueryResult qr = rangeConnection.query(rangeQuery(lastId, upperId));
+                int read = 0;
+                while (true) {
+                    SObject[] records = qr.getRecords();
+                    if (records != null && records.length > 0) {
+                        read += records.length;
+                        // Waits while the pages not handled yet use up the memory budget
+                        Page page = new Page(records);
+                        accountant.acquire(MemoryAccountant.Stage.QUERY, sforceObject.getsObjectName(), page.bytes);
+                        pages.put(page);
+                        lastId = records[records.length - 1].getId();
+                    }
+                    if (qr.isDone() || failure.get() != null) {
+                        break;
+                    }
+                    qr = rangeConnection.queryMore(qr.getQueryLocator());
+                }
+                // A short page is the last one of the range
+                done = read < pageRecords;
+                failures = 0;
+            } catch (ConnectionException e) {
+                if (++failures > retries) {
+                    throw e;
+                }
+                log.warn(sforceObject.getsObjectName() + " : Id range read failed (" + e.getMessage()
+                        + "), resuming after " + lastId);
+            }
+        }
+    }
+
+    private String rangeQuery(String lastId, String upperId) {
+        StringBuilder query = new StringBuilder(select);
+        String separator = " WHERE ";
+        if (where != null) {
+            query.append(separator).append("(").append(where).append(")");
+            separator = " AND ";
+        }
+        if (lastId != null) {
+            query.append(separator).append("Id > '").append(lastId).append("'");
+            separator = " AND ";
+        }
+        if (upperId != null) {
+            query.append(separator).append("Id <= '").append(upperId).append("'");
+        }
+        query.append(" ORDER BY Id LIMIT ").append(pageRecords);
+        return query.toString();
+    }
+
+    // Lowest (ASC) or highest (DESC) Id of the object, null if there are no records
+    private String boundaryId(String direction) throws ConnectionException {
+        String query = "SELECT Id FROM " + sforceObject.getsObjectName();
+        if (where != null) {
+            query += " WHERE " + where;
+        }
+        query += " ORDER BY Id " + direction + " LIMIT 1";
+        SObject[] records = connection.query(query).getRecords();
+        if (records == null || records.length == 0) {
+            return null;
+        }
+        return records[0].getId().substring(0, ID_LENGTH);
+    }
+
+    /**
+     * Boundaries splitting (minId, maxId] into ranges of about the same number of Ids: the part
+     * after the common prefix is read as a base 62 number and interpolated
+     */
+    static List<String> split(String minId, String maxId, int ranges) {
+        List<String> boundaries = new ArrayList<String>();
+        int prefix = 0;
+        while (prefix < ID_LENGTH && minId.charAt(prefix) == maxId.charAt(prefix)) {
+            prefix++;
+        }
+        if (prefix == ID_LENGTH || ranges < 2) {
+            return boundaries;
+        }
+        BigInteger min = decode(minId.substring(prefix));
+        BigInteger max = decode(maxId.substring(prefix));
+        BigInteger step = max.subtract(min).divide(BigInteger.valueOf(ranges));
+        if (step.signum() <= 0) {
+            return boundaries;
+        }
+        for (int i = 1; i < ranges; i++) {
+            BigInteger boundary = min.add(step.multiply(BigInteger.valueOf(i)));
+            boundaries.add(minId.substring(0, prefix) + encode(boundary, ID_LENGTH - prefix));
+        }
+        return boundaries;
+    }
+
+    private static BigInteger decode(String digits) {
+        BigInteger value = BigInteger.ZERO;
+        BigInteger base = BigInteger.valueOf(62);
+        for (int i = 0; i < digits.length(); i++) {
+            value = value.multiply(base).add(BigInteger.valueOf(BASE62.indexOf(digits.charAt(i))));
+        }
+        return value;
+    }
+
+    private static String encode(BigInteger value, int length) {
+        char[] digits = new char[length];
+        BigInteger base = BigInteger.valueOf(62);
+        for (int i = length - 1; i >= 0; i--) {
+            BigInteger[] divRem = value.divideAndRemainder(base);
+            digits[i] = BASE62.charAt(divRem[1].intValue());
+            value = divRem[0];
+        }
+        return new String(digits);
+    }
+
+    // Connection on the session of the given one, no login
+    private static PartnerConnection sameSession(PartnerConnection connection) throws ConnectionException {
+        ConnectorConfig loggedIn = connection.getConfig();
+        ConnectorConfig config = new ConnectorConfig();
+        config.setSessionId(loggedIn.getSessionId());
+        config.setServiceEndpoint(loggedIn.getServiceEndpoint());
+        if (loggedIn.getProxy() != null) {
+            config.setProxy(loggedIn.getProxy());
+        }
+        if (connection instanceof ThrottledPartnerConnection) {
+            return new ThrottledPartnerConnection(config, ((ThrottledPartnerConnection) connection).getOrgType());
+        }
+        return new PartnerConnection(config);
+    }
+
+    private static int getInt(String name, int defaultValue) {
+        String value = PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, name);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    // Records of one query page
+    private static class Page {
+        final SObject[] records;
+        // Estimated size, accounted while the page waits to be handled (see MemoryAccountant)
+        final long bytes;
+
+        Page(SObject[] records) {
+            this.records = records;
+            this.bytes = MemoryAccountant.estimateBytes(records);
+        }
+    }
+}
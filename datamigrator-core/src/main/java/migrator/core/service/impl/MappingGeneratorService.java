@@ -63,6 +63,7 @@ public class MappingGeneratorService {
     public String generate(String args) {
         String[] objectsArray = args.split(",");
         List<String> migrableObjects = Arrays.asList(objectsArray);
+        DescribeCache.getInstance().prefetch(sfdcConnection.getTargetConnection(), migrableObjects);
 
         for (String migrableObject : migrableObjects) {
             MetadataObjectHolder.getInstance().initTarget(SfdcConnection.ORG_TYPE.TARGET, sfdcConnection,
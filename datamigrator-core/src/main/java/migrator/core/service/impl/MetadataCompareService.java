@@ -29,6 +29,7 @@ import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -72,6 +73,7 @@ public class MetadataCompareService {
     public boolean compare(String objects) {
         String[] objectsArray = objects.replace(" ", "").split(",");
         List<String> migrableObjects = Arrays.asList(objectsArray);
+        prefetch(migrableObjects);
 
         String sourceType =
                 PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, "source.type");
@@ -91,6 +93,13 @@ public class MetadataCompareService {
         return false;
     }
 
+    /**
+     * Describes the objects in both orgs up front (see DescribeCache)
+     */
+    public void prefetch(Collection<String> objectNames) {
+        DescribeCache.getInstance().prefetch(sfdcConnection, objectNames);
+    }
+
     public Set<String> findCommonFields(String objectName) {
         return findCommonFields(objectName, false);
     }
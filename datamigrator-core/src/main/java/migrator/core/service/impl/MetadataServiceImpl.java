@@ -89,12 +89,14 @@ public class MetadataServiceImpl implements MetadataService {
         Map<String, String> sourceIdToNameRecordTypeMap = new HashMap<String, String>();
         MetadataObjectHolder.MetadataRefObject refObject = null;
         try {
-            // Make the describe call
+            // Make the describe call (or take it from the cache)
             DescribeSObjectResult describeSObjectResult = null;
             if (orgType == SfdcConnection.ORG_TYPE.SOURCE) {
-                describeSObjectResult = sfdcConnection.getSourceConnection().describeSObject(sObjectName);;
+                describeSObjectResult =
+                        DescribeCache.getInstance().describe(sfdcConnection.getSourceConnection(), sObjectName);
             } else if (orgType == SfdcConnection.ORG_TYPE.TARGET) {
-                describeSObjectResult = sfdcConnection.getTargetConnection().describeSObject(sObjectName);;
+                describeSObjectResult =
+                        DescribeCache.getInstance().describe(sfdcConnection.getTargetConnection(), sObjectName);
             }
 
             com.sforce.soap.partner.RecordTypeInfo[] recordTypes = describeSObjectResult.getRecordTypeInfos();
@@ -226,7 +228,7 @@ public class MetadataServiceImpl implements MetadataService {
             // Get target record types for this object
             if (sfdcConnection.getTargetConnection() != null) {
                 DescribeSObjectResult describeSObjectResultTarget =
-                        sfdcConnection.getTargetConnection().describeSObject(sObjectName);
+                        DescribeCache.getInstance().describe(sfdcConnection.getTargetConnection(), sObjectName);
 
                 Map<String, String> targetNameToIdRecordTypeMap = new HashMap<String, String>();
                 com.sforce.soap.partner.RecordTypeInfo[] recordTypesTarget =
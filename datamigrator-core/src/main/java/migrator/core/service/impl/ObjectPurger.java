@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.service.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.DeleteResult;
+import com.sforce.soap.partner.Field;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.StatusCode;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import migrator.core.service.PropertiesReader;
+import migrator.core.service.SforceObject;
+
+/**
+ * ObjectPurger : Deletes all the target records of the objects of a mapping. The Ids are streamed
+ * from the query pages into concurrent delete batches (delete.chunk.records at a time), never held
+ * for a whole object. Objects are deleted children first, except the children of a cascade delete
+ * (master-detail) reference to an object of the same purge: those are checked after their parents
+ * and only what the cascade left behind is deleted. Objects with failures get a second pass at the
+ * end, once the records referencing them are gone, as do objects whose Ids could not all be read
+ * (incomplete, see Counts).
+ */
+public class ObjectPurger {
+
+    static Logger log = Logger.getLogger(ObjectPurger.class.getName());
+
+    private static final int DEFAULT_CHUNK_RECORDS = 10000;
+
+    private final PartnerConnection connection;
+    private final List<String> objectNames = new ArrayList<String>();
+    private final Map<String, SforceObject> objects = new LinkedHashMap<String, SforceObject>();
+    private final Map<String, Counts> counts = new LinkedHashMap<String, Counts>();
+    private final int chunkRecords;
+
+    /**
+     * @param PartnerConnection connection: Target org connection to query the Ids
+     * @param List<SforceObject> sforceObjects: Objects in mapping (sequence) order, lookups are
+     *        skipped
+     */
+    public ObjectPurger(PartnerConnection connection, List<SforceObject> sforceObjects) {
+        this.connection = connection;
+        for (SforceObject sforceObject : sforceObjects) {
+            if (!sforceObject.isLookup() && !objects.containsKey(sforceObject.getsObjectName().toLowerCase())) {
+                objects.put(sforceObject.getsObjectName().toLowerCase(), sforceObject);
+                objectNames.add(sforceObject.getsObjectName());
+            }
+        }
+        this.chunkRecords = getInt("delete.chunk.records", DEFAULT_CHUNK_RECORDS);
+    }
+
+    /**
+     * Deletes the records, returns the counts per object (in the order the objects were purged)
+     */
+    public Map<String, Counts> purge() {
+        List<String> order = new ArrayList<String>();
+        List<String> cascaded = new ArrayList<String>();
+        for (int i = objectNames.size() - 1; i >= 0; i--) {
+            if (cascadeParent(objectNames.get(i)) == null) {
+                order.add(objectNames.get(i));
+            }
+        }
+        // Cascaded children after their parents (mapping order has parents first)
+        for (String objectName : objectNames) {
+            if (cascadeParent(objectName) != null) {
+                cascaded.add(objectName);
+                counts.put(objectName, new Counts(count(objectName)));
+            }
+        }
+        order.addAll(cascaded);
+
+        for (String objectName : order) {
+            if (!counts.containsKey(objectName)) {
+                counts.put(objectName, new Counts(-1));
+            }
+            Counts objectCounts = counts.get(objectName);
+            if (cascaded.contains(objectName)) {
+                int left = count(objectName);
+                if (objectCounts.before >= 0 && left >= 0) {
+                    objectCounts.cascaded = objectCounts.before - left;
+                }
+                log.info(objectName + " : " + objectCounts.cascaded + " records deleted by the cascade from "
+                        + cascadeParent(objectName) + ", " + left + " left");
+                if (left == 0) {
+                    continue;
+                }
+            }
+            purge(objectName, objectCounts);
+        }
+
+        // Second pass for objects still referenced during the first one, or not read in full
+        for (String objectName : order) {
+            Counts objectCounts = counts.get(objectName);
+            if (objectCounts.failed > 0 || objectCounts.incomplete) {
+                log.info(objectName + " : deleting the " + objectCounts.failed + " failed records again"
+                        + (objectCounts.incomplete ? ", and the records not read" : ""));
+                objectCounts.failed = 0;
+                objectCounts.incomplete = false;
+                purge(objectName, objectCounts);
+            }
+        }
+
+        for (Map.Entry<String, Counts> entry : counts.entrySet()) {
+            Counts objectCounts = entry.getValue();
+            if (objectCounts.failed > 0 || objectCounts.incomplete) {
+                log.error("Purged " + entry.getKey() + " : " + objectCounts);
+            } else {
+                log.info("Purged " + entry.getKey() + " : " + objectCounts);
+            }
+        }
+        return counts;
+    }
+
+    // Streams the Ids of an object into delete batches
+    private void purge(String objectName, Counts objectCounts) {
+        log.info("ObjectPurger.purge START: sObjectName: " + objectName);
+        List<String> ids = new ArrayList<String>();
+        try {
+            QueryResult qr = connection.query("SELECT Id FROM " + objectName);
+            while (true) {
+                SObject[] records = qr.getRecords();
+                if (records != null) {
+                    for (SObject record : records) {
+                        ids.add(record.getId());
+                    }
+                }
+                if (ids.size() >= chunkRecords) {
+                    delete(objectName, ids, objectCounts);
+                    ids.clear();
+                }
+                if (qr.isDone()) {
+                    break;
+                }
+                qr = connection.queryMore(qr.getQueryLocator());
+            }
+            if (!ids.isEmpty()) {
+                delete(objectName, ids, objectCounts);
+            }
+        } catch (ConnectionException ce) {
+            // The Ids not read yet are neither deleted nor failed
+            log.error("ObjectPurger.purge ConnectionException: sObjectName: " + objectName, ce);
+            objectCounts.incomplete = true;
+        }
+        log.info("ObjectPurger.purge END: sObjectName: " + objectName + " " + objectCounts);
+    }
+
+    private void delete(String objectName, List<String> ids, Counts objectCounts) {
+        DeleteResult[] results =
+                SfdcApiServiceImpl.getSOQLQueryService().divideWorkDelete(objectName, ids.toArray(new String[0]),
+                        false);
+        for (DeleteResult result : results) {
+            if (result != null && (result.isSuccess() || isDeleted(result))) {
+                objectCounts.deleted++;
+            } else {
+                objectCounts.failed++;
+            }
+        }
+    }
+
+    // Deleted in the meantime (e.g. by a cascade)
+    private static boolean isDeleted(DeleteResult result) {
+        return result.getErrors() != null && result.getErrors().length > 0
+                && result.getErrors()[0].getStatusCode() == StatusCode.ENTITY_IS_DELETED;
+    }
+
+    // Object of this purge whose delete cascades to the records of objectName, null if none
+    private String cascadeParent(String objectName) {
+        SforceObject sforceObject = objects.get(objectName.toLowerCase());
+        if (sforceObject.getDescRefObject() == null || sforceObject.getDescRefObject().getFieldListAsSet() == null) {
+            return null;
+        }
+        for (Field field : sforceObject.getDescRefObject().getFieldListAsSet()) {
+            if (!field.isCascadeDelete() || field.getReferenceTo() == null) {
+                continue;
+            }
+            for (String referenceTo : field.getReferenceTo()) {
+                if (!referenceTo.equalsIgnoreCase(objectName) && objects.containsKey(referenceTo.toLowerCase())) {
+                    return objects.get(referenceTo.toLowerCase()).getsObjectName();
+                }
+            }
+        }
+        return null;
+    }
+
+    // Record count, -1 if it could not be read
+    private int count(String objectName) {
+        try {
+            return connection.query("SELECT COUNT() FROM " + objectName).getSize();
+        } catch (ConnectionException ce) {
+            log.error("ObjectPurger.count ConnectionException: sObjectName: " + objectName, ce);
+            return -1;
+        }
+    }
+
+    private static int getInt(String name, int defaultValue) {
+        String value = PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, name);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Records of an object deleted by the purge, deleted by a cascade from the parent and failed.
+     * Incomplete when the Ids of the object could not all be read, records may be left that are not
+     * counted as failed.
+     */
+    public static class Counts {
+        final int before;
+        int deleted;
+        int cascaded;
+        int failed;
+        boolean incomplete;
+
+        Counts(int before) {
+            this.before = before;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        public int getCascaded() {
+            return cascaded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public boolean isIncomplete() {
+            return incomplete;
+        }
+
+        public String toString() {
+            return "deleted:" + deleted + ", cascaded:" + cascaded + ", failed:" + failed
+                    + (incomplete ? ", incomplete" : "");
+        }
+    }
+}
@@ -25,38 +25,44 @@
  */
 package migrator.core.service.impl;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.HashSet;
 import org.apache.log4j.Logger;
 import com.sforce.soap.partner.DeleteResult;
 import com.sforce.soap.partner.PartnerConnection;
 import com.sforce.soap.partner.QueryResult;
 import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.StatusCode;
 import com.sforce.soap.partner.UpsertResult;
 import com.sforce.ws.ConnectionException;
 import com.sforce.soap.partner.sobject.SObject;
-import migrator.core.buffer.SObjectBuffer;
-import migrator.core.buffer.SObjectDeleteBuffer;
+import migrator.core.buffer.BatchScheduler;
+import migrator.core.buffer.BatchSizeController;
+import migrator.core.buffer.MemoryAccountant;
+import migrator.core.buffer.ParentAffinity;
+import migrator.core.buffer.RetryPolicy;
+import migrator.core.bulk.BulkTransport;
 import migrator.core.connect.SfdcConnection;
 import migrator.core.connect.SfdcConnectionFactory;
+import migrator.core.connect.TargetConnectionPool;
+import migrator.core.journal.IdJournal;
+import migrator.core.journal.WatermarkStore;
+import migrator.core.service.IQueryPageHandler;
 import migrator.core.service.ISourceLoader;
+import migrator.core.service.IdPairMap;
 import migrator.core.service.MetadataObjectHolder;
 import migrator.core.service.PropertiesReader;
+import migrator.core.service.RecordStore;
 import migrator.core.service.SfdcApiService;
 import migrator.core.service.SforceLookupProperties;
 import migrator.core.service.SforceMasterDetail;
 import migrator.core.service.SforceObject;
 import migrator.core.service.SforceObjectPair;
 import migrator.core.utils.Utils;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 /**
  * MigrationConfigServiceImpl :
@@ -66,6 +72,9 @@ import java.util.concurrent.Future;
 public class SfdcApiServiceImpl implements SfdcApiService {
 
     private static SfdcApiService service = new SfdcApiServiceImpl();
+
+    // Ids per delete call
+    private static final int DELETE_BATCH_SIZE = 200;
     static Logger log = Logger.getLogger(SfdcApiServiceImpl.class.getName());
 
     public static SfdcApiService getSOQLQueryService() {
@@ -117,7 +126,7 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
                     if (bSource) {
                         pair.setSourceId(sObject.getId());
-                        pair.setSourceSObject(sObject);
+                        setSourceRecord(sforceObject, pair, sObject);
 
                         // Note: only for source
                         sObjectRecordsMap.put(sObject.getId(), pair);
@@ -133,6 +142,15 @@ public class SfdcApiServiceImpl implements SfdcApiService {
         return sObjectRecordsMap;
     }
 
+    // Source records of non-lookup objects go into the columnar store of the object
+    private void setSourceRecord(SforceObject sforceObject, SforceObjectPair pair, SObject sObject) {
+        if (RecordStore.isEnabled(sforceObject)) {
+            pair.setSourceRecord(sforceObject.getRecordStore(), sObject);
+        } else {
+            pair.setSourceSObject(sObject);
+        }
+    }
+
     /**
      * Queries the Object based on the its API name. The results are stored in the sObjectRecords
      * List
@@ -233,7 +251,7 @@ public class SfdcApiServiceImpl implements SfdcApiService {
                             if (loopProperty.getsLookupSObjectName().equalsIgnoreCase(sforceObject.getsObjectName())) {
                                 Map<String, SforceObjectPair> sforceObjPairMap = sforceObject.getLookupRecordsMap();
                                 if (sforceObjPairMap == null) {
-                                    sforceObjPairMap = new HashMap<String, SforceObjectPair>();
+                                    sforceObjPairMap = new IdPairMap();
                                 }
 
                                 compositeKey =
@@ -272,6 +290,31 @@ public class SfdcApiServiceImpl implements SfdcApiService {
         return compositeKey;
     }
 
+    /**
+     * Queries the Object based on the its API name. Each query/queryMore page is handed to the
+     * pageHandler as it arrives instead of being collected in memory. Throws a RuntimeException
+     * when the query fails part way, the object must not be taken as complete.
+     *
+     * @param PartnerConnection connection: connection to Salesforce org
+     * @param SforceObject sforceObject: Object to be queried
+     * @param IQueryPageHandler pageHandler: Receives the records page by page
+     * @param boolean source: True for source environment, otherwise its for target environment
+     *
+     */
+    public void queryPages(PartnerConnection connection, SforceObject sforceObject, IQueryPageHandler pageHandler,
+            boolean bSource) {
+
+        fakeReLogin();
+
+        long t1 = System.currentTimeMillis();
+        log.debug("Running SF streaming query for [" + sforceObject.getsObjectName() + "]");
+
+        new SourceLoaderFactory().getLoader(bSource).querySource(connection, sforceObject, pageHandler);
+
+        log.debug("SF streaming query for type [" + sforceObject.getsObjectName() + "] took ["
+                + (System.currentTimeMillis() - t1) + "]ms");
+    }
+
     class SourceLoaderFactory {
         ISourceLoader sourceLoader;
 
@@ -290,7 +333,28 @@ public class SfdcApiServiceImpl implements SfdcApiService {
     class OrgSourceLoader implements ISourceLoader {
 
         public ArrayList<QueryResult> querySource(PartnerConnection connection, SforceObject sforceObject) {
-            return queryResults(connection, sforceObject, new ArrayList<QueryResult>());
+            ArrayList<QueryResult> queryResults =
+                    queryResults(connection, sforceObject, new ArrayList<QueryResult>());
+            if (sforceObject.isDelta()) {
+                for (QueryResult queryResult : queryResults) {
+                    WatermarkStore.getInstance().observe(sforceObject, queryResult.getRecords());
+                }
+            }
+            return queryResults;
+        }
+
+        public void querySource(PartnerConnection connection, SforceObject sforceObject,
+                final IQueryPageHandler pageHandler) {
+            if (!sforceObject.isDelta()) {
+                queryPages(connection, sforceObject, pageHandler);
+                return;
+            }
+            queryPages(connection, sforceObject, new IQueryPageHandler() {
+                public void handlePage(SforceObject sforceObject, SObject[] records) throws Exception {
+                    WatermarkStore.getInstance().observe(sforceObject, records);
+                    pageHandler.handlePage(sforceObject, records);
+                }
+            });
         }
     }
 
@@ -299,6 +363,18 @@ public class SfdcApiServiceImpl implements SfdcApiService {
         public ArrayList<QueryResult> querySource(PartnerConnection connection, SforceObject sforceObject) {
             return new SfdcSerializerService().deSerialize(sforceObject);
         }
+
+        public void querySource(PartnerConnection connection, SforceObject sforceObject,
+                IQueryPageHandler pageHandler) {
+            try {
+                for (QueryResult queryResult : new SfdcSerializerService().deSerialize(sforceObject)) {
+                    pageHandler.handlePage(sforceObject, queryResult.getRecords());
+                }
+            } catch (Exception e) {
+                log.error("JsonSourceLoader.querySource...", e);
+                throw queryFailed(sforceObject, e);
+            }
+        }
     }
 
 
@@ -348,7 +424,7 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
                     if (bSource) {
                         childPair.setSourceId(sChildObject.getId());
-                        childPair.setSourceSObject(sChildObject);
+                        setSourceRecord(sforceObject, childPair, sChildObject);
                         // Also duplicate the pair with the source id
                         sObjectRecordsMap.put(sChildObject.getId(), childPair);
                     } else {
@@ -356,11 +432,8 @@ public class SfdcApiServiceImpl implements SfdcApiService {
                         childPair.setTargetSObject(sChildObject);
                     }
 
-                    // Get the source parent and attach in the logical pair
-                    // object
-                    findAndAttachParents(sforceObject.getsObjectName(), sChildObject, childPair, masterDetail,
-                            sForceObjectList);
-
+                    // Parents are not attached here: the child's reference is looked up in the
+                    // parent's records map when the child is mapped (getParentId)
                 }
             }
 
@@ -425,7 +498,6 @@ public class SfdcApiServiceImpl implements SfdcApiService {
         String sObjectAPIName = sforceObject.getsObjectName();
         String[] result = new String[size];
         List<ErrorResult> errorList = new ArrayList<ErrorResult>();
-        List<RetryRecords> retryList = new ArrayList<RetryRecords>();
 
         log.info(sObjectAPIName + " Records: " + sObjectInsertRecords.length);
 
@@ -433,7 +505,11 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
         try {
 
-            SaveResult[] saveResults = divideWork(sforceObject, sObjectInsertRecords, false);
+            String[] sourceIds = journalSourceIds(sObjectSourceRecords, relateSourceTargetRecs);
+            // Lock and cross reference failures are sent again during the pass (see RetryPolicy)
+            SaveResult[] saveResults =
+                    divideWork(sforceObject, sObjectInsertRecords, false, sourceIds, IdJournal.CREATED,
+                            RetryPolicy.of(StatusCode.UNABLE_TO_LOCK_ROW, StatusCode.INVALID_CROSS_REFERENCE_KEY));
 
             log.info("START Printing " + sObjectAPIName + " Record IDs:");
             // Iterate through the results.
@@ -449,31 +525,14 @@ public class SfdcApiServiceImpl implements SfdcApiService {
                     String errorMsg = saveResults[i].getErrors()[0].getMessage();
                     String statusCode = saveResults[i].getErrors()[0].getStatusCode().toString();
 
-                    Set<String> errorCodesSet = new HashSet<String>();
-                    for (com.sforce.soap.partner.Error error : saveResults[i].getErrors()) {
-                        errorCodesSet.add(error.getStatusCode().toString());
-                    }
-
                     String logErrorMsg =
                             sObjectAPIName + " " + " SourceId: " + sourceId + " ," + " could not create Record "
                                     + "for array element " + i + ". \n" + " The error reported was: "
                                     // + errorMsg
                                     + " statusCode: " + statusCode;
 
-                    if (statusCode != null) {
-                        if ((errorCodesSet.contains("UNABLE_TO_LOCK_ROW"))
-                                || (errorCodesSet.contains("INVALID_CROSS_REFERENCE_KEY"))) {
-                            retryList.add(new RetryRecords(i, sObjectAPIName, sourceId, statusCode));
-
-                            log.debug(logErrorMsg);
-                        } else {
-                            errorList.add(new ErrorResult(i, sObjectAPIName, sourceId, errorMsg));
-                            log.error("Error: " + logErrorMsg + " errorMsg:" + errorMsg);
-                        }
-                    } else {
-                        errorList.add(new ErrorResult(i, sObjectAPIName, sourceId, errorMsg));
-                        log.error("Error: " + logErrorMsg + " errorMsg:" + errorMsg);
-                    }
+                    errorList.add(new ErrorResult(i, sObjectAPIName, sourceId, errorMsg));
+                    log.error("Error: " + logErrorMsg + " errorMsg:" + errorMsg);
 
                     result[resultCounter] = saveResults[i].getId();
                 }
@@ -482,50 +541,6 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
             log.info("END Printing " + sObjectAPIName + " Record IDs: \n\n");
 
-            // Process Retries
-            if (retryList.size() > 0) {
-
-                log.info("Retries(Create): Single Threaded: retryList.size(): " + retryList.size());
-
-                SObject[] sObjectInsertRetryRecords = new SObject[retryList.size()];
-
-                for (int i = 0; i < retryList.size(); i++) {
-                    sObjectInsertRetryRecords[i] = sObjectInsertRecords[retryList.get(i).originlIndex];
-                }
-                SaveResult[] saveResultsRetries = divideWork(sforceObject, sObjectInsertRetryRecords, true);
-
-                log.info("START Printing Retries " + sObjectAPIName + " Record IDs:");
-                // Iterate through the results.
-                // for (int i = 0; i < saveResultsRetries.length; i++) {
-                for (int i = 0; i < retryList.size(); i++) {
-                    String sourceId =
-                            ((SforceObjectPair) sObjectSourceRecords.get(retryList.get(i).originlIndex)).getSourceId();
-
-                    if (saveResultsRetries[i].isSuccess()) {
-                        log.debug("Successfully created Retries:" + " Original Index was: "
-                                + retryList.get(i).originlIndex + " SourceId: " + sourceId + " Target Record ID: "
-                                + saveResultsRetries[i].getId());
-                        result[retryList.get(i).originlIndex] = saveResultsRetries[i].getId();
-                    } else {
-
-                        String errorMsg = saveResultsRetries[i].getErrors()[0].getMessage();
-
-                        log.error("Error Retry: " + sObjectAPIName + " SourceId: " + sourceId + " ,"
-                                + " could not create Record " + "for array element " + i + ". \n"
-                                + " The error reported was: " + errorMsg + "\n");
-
-                        errorList
-                                .add(new ErrorResult(retryList.get(i).originlIndex, sObjectAPIName, sourceId, errorMsg));
-
-                        result[retryList.get(i).originlIndex] = saveResultsRetries[i].getId();
-                    }
-                    resultCounter++;
-                }
-
-                log.info("END Printing Retries " + sObjectAPIName + " Record IDs: \n\n");
-            }
-
-
             if (relateSourceTargetRecs) {
                 // Print results and relate source-target
                 for (int i = 0; i < result.length; i++) {
@@ -580,8 +595,6 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
         String[] result = new String[size];
         List<ErrorResult> errorList = new ArrayList<ErrorResult>();
-        List<RetryRecords> retryList = new ArrayList<RetryRecords>();
-        List<RetryRecords> retryUpdateableList = new ArrayList<RetryRecords>();
 
         try {
 
@@ -589,8 +602,13 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
             int resultCounter = 0;
 
+            String[] sourceIds = journalSourceIds(sObjectSourceRecords, relateSourceTargetRecs);
+            byte journalStatus = bUpdate ? IdJournal.UPDATED : IdJournal.CREATED;
             UpsertResult[] upsertResults =
-                    divideWorkUpsert(sforceObject, sObjectInsertRecords, sExternalIdField, false);
+                    divideWorkUpsert(sforceObject, sObjectInsertRecords, sExternalIdField, false, sourceIds,
+                            journalStatus, RetryPolicy.of(StatusCode.UNABLE_TO_LOCK_ROW,
+                                    StatusCode.INVALID_CROSS_REFERENCE_KEY,
+                                    StatusCode.INVALID_FIELD_FOR_INSERT_UPDATE));
 
             // Iterate through the results.
             if (upsertResults != null) {
@@ -604,11 +622,6 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
                         String sourceId = ((SforceObjectPair) sObjectSourceRecords.get(resultCounter)).getSourceId();
 
-                        Set<String> errorCodesSet = new HashSet<String>();
-                        for (com.sforce.soap.partner.Error error : upsertResults[i].getErrors()) {
-                            errorCodesSet.add(error.getStatusCode().toString());
-                        }
-
                         String errorMsg = upsertResults[i].getErrors()[0].getMessage();
                         String statusCode = upsertResults[i].getErrors()[0].getStatusCode().toString();
 
@@ -619,21 +632,8 @@ public class SfdcApiServiceImpl implements SfdcApiService {
                                         // + errorMsg
                                         + " statusCode: " + statusCode;
 
-                        if (errorCodesSet.size() > 0) {
-                            if (errorCodesSet.contains("UNABLE_TO_LOCK_ROW")
-                                    || errorCodesSet.contains("INVALID_CROSS_REFERENCE_KEY")
-                                    || errorCodesSet.contains("INVALID_FIELD_FOR_INSERT_UPDATE")) {
-
-                                retryList.add(new RetryRecords(i, sforceObject.getsObjectName(), sourceId, statusCode));
-                                log.error("Error: " + logErrorMsg + " errorMsg:" + errorMsg);
-                            } else {
-                                errorList.add(new ErrorResult(i, sforceObject.getsObjectName(), sourceId, errorMsg));
-                                log.error("Error: " + logErrorMsg + " errorMsg:" + errorMsg);
-                            }
-                        } else {
-                            errorList.add(new ErrorResult(i, sforceObject.getsObjectName(), sourceId, errorMsg));
-                            log.error("Error: " + logErrorMsg + " errorMsg:" + errorMsg);
-                        }
+                        errorList.add(new ErrorResult(i, sforceObject.getsObjectName(), sourceId, errorMsg));
+                        log.error("Error: " + logErrorMsg + " errorMsg:" + errorMsg);
 
                         result[resultCounter] = upsertResults[i].getId();
 
@@ -644,65 +644,6 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
             log.info("END Printing " + sforceObject.getsObjectName() + " Record IDs: \n\n");
 
-            // Process Retries
-            if (retryList.size() > 0) {
-
-                log.info("Retries(Create/Upsert): Single Threaded: retryList.size(): " + retryList.size());
-
-                MetadataObjectHolder.MetadataRefObject descRefObj =
-                        MetadataObjectHolder.getInstance().get(sforceObject.getsObjectName());
-
-                if (!descRefObj.getUpdateableFieldSet().isEmpty())
-                    descRefObj.getCreateableFieldSet().removeAll(descRefObj.getUpdateableFieldSet());
-
-                SObject[] sObjectInsertRetryRecords = new SObject[retryList.size()];
-
-                for (int i = 0; i < retryList.size(); i++) {
-                    sObjectInsertRetryRecords[i] = sObjectInsertRecords[retryList.get(i).originlIndex];
-
-                    // Remove fields that are non-updateable
-                    if (retryList.get(i).statusCode.equals("INVALID_FIELD_FOR_INSERT_UPDATE")) {
-                        for (String updateableField : descRefObj.getCreateableFieldSet()) {
-                            sObjectInsertRetryRecords[i].removeField(updateableField);
-                        }
-                    }
-                }
-                UpsertResult[] upsertResultsRetries =
-                        divideWorkUpsert(sforceObject, sObjectInsertRetryRecords, sExternalIdField, true);
-
-                log.info("START Printing Crete/Upsert Retries: " + sforceObject.getsObjectName() + " Record IDs:");
-
-                // Iterate through the retry results.
-                for (int i = 0; i < retryList.size(); i++) {
-                    String sourceId =
-                            ((SforceObjectPair) sObjectSourceRecords.get(retryList.get(i).originlIndex)).getSourceId();
-
-                    if (upsertResultsRetries[i].isSuccess()) {
-                        log.debug("Successfully Created/Upserted Retries:" + " Original Index was: "
-                                + retryList.get(i).originlIndex + " SourceId: " + sourceId + " Target Record ID: "
-                                + upsertResultsRetries[i].getId());
-                        result[retryList.get(i).originlIndex] = upsertResultsRetries[i].getId();
-
-                    } else {
-
-                        String errorMsg = upsertResultsRetries[i].getErrors()[0].getMessage();
-
-                        log.error("Error create/upsert retry: " + sforceObject.getsObjectName() + " SourceId: "
-                                + sourceId + " ," + " could not create/upsert Record " + "for array element "
-                                + retryList.get(i).originlIndex + ". \n" + " The error reported was: " + errorMsg
-                                + "\n");
-
-                        errorList.add(new ErrorResult(retryList.get(i).originlIndex, sforceObject.getsObjectName(),
-                                sourceId, errorMsg));
-
-                        result[retryList.get(i).originlIndex] = upsertResultsRetries[i].getId();
-                    }
-                    resultCounter++;
-                }
-
-                log.info("END Printing Retries " + sforceObject.getsObjectName() + " Record IDs: \n\n");
-            }
-
             if (relateSourceTargetRecs) {
                 // Print results and relate source-target
                 for (int i = 0; i < result.length; i++) {
@@ -734,7 +675,6 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
         String[] result = new String[size];
         List<ErrorResult> errorList = new ArrayList<ErrorResult>();
-        List<RetryRecords> retryList = new ArrayList<RetryRecords>();
 
         try {
 
@@ -742,7 +682,10 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
             int resultCounter = 0;
 
-            SaveResult[] updateResults = divideWorkUpdate(sforceObject, sObjectInsertRecords, false);
+            String[] sourceIds = journalSourceIds(sObjectSourceRecords, relateSourceTargetRecs);
+            SaveResult[] updateResults =
+                    divideWorkUpdate(sforceObject, sObjectInsertRecords, false, sourceIds, IdJournal.UPDATED,
+                            RetryPolicy.of(StatusCode.UNABLE_TO_LOCK_ROW, StatusCode.INVALID_CROSS_REFERENCE_KEY));
 
             // Iterate through the results.
             if (updateResults != null) {
@@ -756,11 +699,6 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
                         String sourceId = ((SforceObjectPair) sObjectSourceRecords.get(resultCounter)).getSourceId();
 
-                        Set<String> errorCodesSet = new HashSet<String>();
-                        for (com.sforce.soap.partner.Error error : updateResults[i].getErrors()) {
-                            errorCodesSet.add(error.getStatusCode().toString());
-                        }
-
                         String errorMsg = updateResults[i].getErrors()[0].getMessage();
                         String statusCode = updateResults[i].getErrors()[0].getStatusCode().toString();
 
@@ -771,20 +709,8 @@ public class SfdcApiServiceImpl implements SfdcApiService {
                                         // + errorMsg
                                         + " statusCode: " + statusCode;
 
-                        if (errorCodesSet.size() > 0) {
-                            if (errorCodesSet.contains("UNABLE_TO_LOCK_ROW")
-                                    || errorCodesSet.contains("INVALID_CROSS_REFERENCE_KEY")) {
-
-                                retryList.add(new RetryRecords(i, sforceObject.getsObjectName(), sourceId, statusCode));
-                                log.debug(logErrorMsg);
-                            } else {
-                                errorList.add(new ErrorResult(i, sforceObject.getsObjectName(), sourceId, errorMsg));
-                                log.error("Error: " + logErrorMsg + " errorMsg:" + errorMsg);
-                            }
-                        } else {
-                            errorList.add(new ErrorResult(i, sforceObject.getsObjectName(), sourceId, errorMsg));
-                            log.error("Error: " + logErrorMsg + " errorMsg:" + errorMsg);
-                        }
+                        errorList.add(new ErrorResult(i, sforceObject.getsObjectName(), sourceId, errorMsg));
+                        log.error("Error: " + logErrorMsg + " errorMsg:" + errorMsg);
 
                         result[resultCounter] = updateResults[i].getId();
 
@@ -795,55 +721,6 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
             log.info("END Printing " + sforceObject.getsObjectName() + " Record IDs: \n\n");
 
-            // Process Retries
-            if (retryList.size() > 0) {
-
-                log.info("Retries(Create/Upsert): Single Threaded: retryList.size(): " + retryList.size());
-
-                // fakeReLogin();
-
-                SObject[] sObjectInsertRetryRecords = new SObject[retryList.size()];
-
-                for (int i = 0; i < retryList.size(); i++) {
-                    sObjectInsertRetryRecords[i] = sObjectInsertRecords[retryList.get(i).originlIndex];
-                }
-                SaveResult[] updateResultsRetries = divideWorkUpdate(sforceObject, sObjectInsertRetryRecords, true);
-
-                log.info("START Printing Crete/update Retries: " + sforceObject.getsObjectName() + " Record IDs:");
-
-                // Iterate through the retry results.
-
-                // for (int i = 0; i < saveResultsRetries.length; i++) {
-                for (int i = 0; i < retryList.size(); i++) {
-                    String sourceId =
-                            ((SforceObjectPair) sObjectSourceRecords.get(retryList.get(i).originlIndex)).getSourceId();
-
-                    if (updateResultsRetries[i].isSuccess()) {
-                        log.debug("Successfully Created/Upserted Retries:" + " Original Index was: "
-                                + retryList.get(i).originlIndex + " SourceId: " + sourceId + " Target Record ID: "
-                                + updateResultsRetries[i].getId());
-                        result[retryList.get(i).originlIndex] = updateResultsRetries[i].getId();
-
-                    } else {
-
-                        String errorMsg = updateResultsRetries[i].getErrors()[0].getMessage();
-
-                        log.error("Error create/upsert retry: " + sforceObject.getsObjectName() + " SourceId: "
-                                + sourceId + " ," + " could not create/upsert Record " + "for array element "
-                                + retryList.get(i).originlIndex + ". \n" + " The error reported was: " + errorMsg
-                                + "\n");
-
-                        errorList.add(new ErrorResult(retryList.get(i).originlIndex, sforceObject.getsObjectName(),
-                                sourceId, errorMsg));
-
-                        result[retryList.get(i).originlIndex] = updateResultsRetries[i].getId();
-                    }
-                    resultCounter++;
-                }
-
-                log.info("END Printing Retries " + sforceObject.getsObjectName() + " Record IDs: \n\n");
-            }
-
             if (relateSourceTargetRecs) {
                 // Print results and relate source-target
                 for (int i = 0; i < result.length; i++) {
@@ -880,6 +757,34 @@ public class SfdcApiServiceImpl implements SfdcApiService {
 
             log.debug("query:" + query);
 
+            if (useBulkQuery(connection, sforceObject)) {
+                final ArrayList<QueryResult> bulkResults = queryResults;
+                queryBulk(connection, sforceObject, query, new IQueryPageHandler() {
+                    public void handlePage(SforceObject sforceObject, SObject[] records) {
+                        QueryResult qr = new QueryResult();
+                        qr.setRecords(records);
+                        qr.setSize(records.length);
+                        qr.setDone(true);
+                        bulkResults.add(qr);
+                    }
+                });
+                return queryResults;
+            }
+
+            if (sforceObject.getIdRanges() > 0) {
+                final ArrayList<QueryResult> rangeResults = queryResults;
+                queryIdRanges(connection, sforceObject, new IQueryPageHandler() {
+                    public void handlePage(SforceObject sforceObject, SObject[] records) {
+                        QueryResult qr = new QueryResult();
+                        qr.setRecords(records);
+                        qr.setSize(records.length);
+                        qr.setDone(true);
+                        rangeResults.add(qr);
+                    }
+                });
+                return queryResults;
+            }
+
             QueryResult qr = connection.query(query);
             int records = qr.getRecords().length;
 
@@ -900,14 +805,127 @@ public class SfdcApiServiceImpl implements SfdcApiService {
             } else {
                 log.debug("No records found.");
             }
-        } catch (ConnectionException ce) {
-            log.error("ConnectionException..." + ce.getMessage());
-            log.error("ConnectionException...", ce);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("queryResults interrupted: sObjectAPIName: " + sforceObject.getsObjectName());
+            keepWatermark(sforceObject);
+        } catch (Exception ce) {
+            log.error("Exception..." + ce.getMessage());
+            log.error("Exception...", ce);
             ce.printStackTrace();
+            keepWatermark(sforceObject);
         }
         return queryResults;
     }
 
+    /**
+     * Queries the Object based on the its API name. Walks the queryMore chain and hands over every
+     * page to the pageHandler, the pages are not kept. A query that fails part way throws, the
+     * pages handed over so far are not the whole object.
+     *
+     * @param PartnerConnection connection: connection to Salesforce org
+     * @param SforceObject sforceObject: Object to be queried
+     * @param IQueryPageHandler pageHandler: Receives the records page by page
+     *
+     */
+    private void queryPages(PartnerConnection connection, SforceObject sforceObject, IQueryPageHandler pageHandler) {
+
+        String query = null;
+        try {
+
+            query = buildQuery(connection, sforceObject, false);
+
+            log.debug("query:" + query);
+
+            if (useBulkQuery(connection, sforceObject)) {
+                queryBulk(connection, sforceObject, query, pageHandler);
+                return;
+            }
+
+            if (sforceObject.getIdRanges() > 0) {
+                queryIdRanges(connection, sforceObject, pageHandler);
+                return;
+            }
+
+            QueryResult qr = connection.query(query);
+            int records = 0;
+
+            boolean done = false;
+            while (!done) {
+                SObject[] pageRecords = qr.getRecords();
+                if (pageRecords != null && pageRecords.length > 0) {
+                    records += pageRecords.length;
+                    pageHandler.handlePage(sforceObject, pageRecords);
+                }
+                if (qr.isDone()) {
+                    done = true;
+                } else {
+                    qr = connection.queryMore(qr.getQueryLocator());
+                }
+            }
+            log.debug("\nLogged-in user can see " + records + " " + sforceObject.getsObjectName() + " records.");
+        } catch (Exception ce) {
+            log.error("queryPages.Exception: sObjectAPIName: " + sforceObject.getsObjectName(), ce);
+            throw queryFailed(sforceObject, ce);
+        }
+    }
+
+    private static RuntimeException queryFailed(SforceObject sforceObject, Exception e) {
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        keepWatermark(sforceObject);
+        return new RuntimeException("Query of " + sforceObject.getsObjectName() + " failed", e);
+    }
+
+    // A query that failed part way did not read all the records modified since the watermark, the
+    // watermark of the object stays where it is
+    private static void keepWatermark(SforceObject sforceObject) {
+        if (WatermarkStore.getInstance() != null) {
+            WatermarkStore.getInstance().failed(sforceObject.getsObjectName());
+        }
+    }
+
+    // Objects with a bulkThreshold in the JSON mapping are queried through the Bulk API once the
+    // record count reaches the threshold
+    private boolean useBulkQuery(PartnerConnection connection, SforceObject sforceObject) throws ConnectionException {
+        if (sforceObject.getBulkThreshold() <= 0 || BulkTransport.hasBinaryFields(sforceObject)) {
+            return false;
+        }
+        String countQuery = "SELECT COUNT() FROM " + sforceObject.getsObjectName();
+        if (whereClause(sforceObject) != null) {
+            countQuery = countQuery + " WHERE " + whereClause(sforceObject);
+        }
+        int count = connection.query(countQuery).getSize();
+        log.debug("sforceObject.count=" + count + " for " + sforceObject.getsObjectName());
+        return count >= sforceObject.getBulkThreshold();
+    }
+
+    private void queryBulk(PartnerConnection connection, SforceObject sforceObject, String query,
+            IQueryPageHandler pageHandler) throws Exception {
+        long t1 = System.currentTimeMillis();
+        new BulkTransport(connection).query(sforceObject, query, pageHandler);
+        log.debug("Bulk query for type [" + sforceObject.getsObjectName() + "] took ["
+                + (System.currentTimeMillis() - t1) + "]ms");
+    }
+
+    // Objects with idRanges in the JSON mapping are read in parallel Id ranges (see IdRangeReader)
+    private void queryIdRanges(PartnerConnection connection, SforceObject sforceObject,
+            IQueryPageHandler pageHandler) throws Exception {
+        long t1 = System.currentTimeMillis();
+        String select = buildSelect(sforceObject, false);
+        Set<String> fieldList = sforceObject.getQueryFields();
+        if (fieldList == null) {
+            fieldList = sforceObject.getCommonFields();
+        }
+        if (!fieldList.contains("Id")) {
+            select = select.replaceFirst("SELECT ", "SELECT Id,");
+        }
+        new IdRangeReader(connection, sforceObject, select, whereClause(sforceObject)).read(pageHandler);
+        log.debug("Id range query for type [" + sforceObject.getsObjectName() + "] took ["
+                + (System.currentTimeMillis() - t1) + "]ms");
+    }
+
     /**
      * Builds the SOQL query. Returns the comma separated fields in SObject
      *
@@ -916,9 +934,33 @@ public class SfdcApiServiceImpl implements SfdcApiService {
      *
      */
     private String buildQuery(PartnerConnection connection, SforceObject sforceObject, boolean lookup) {
-        MetadataObjectHolder.MetadataRefObject descRefObj =
-                MetadataObjectHolder.getInstance().get(sforceObject.getsObjectName());
+        String query = buildSelect(sforceObject, lookup);
+
+        String whereClause = whereClause(sforceObject);
+        if (whereClause != null) {
+            query = query + " WHERE " + whereClause;
+        }
+        log.debug("sforceObject.query=" + query);
+
+        return query;
+    }
 
+    // Where clause of the object, with the watermark of delta runs (inclusive, records modified at
+    // the watermark itself are read again and upserted). Null for none
+    private static String whereClause(SforceObject sforceObject) {
+        String where = sforceObject.getWhere();
+        if (where != null && where.trim().equals("")) {
+            where = null;
+        }
+        if (sforceObject.isDelta() && sforceObject.getModifiedSince() != null) {
+            String modified = WatermarkStore.FIELD + " >= " + sforceObject.getModifiedSince();
+            where = where == null ? modified : "(" + where + ") AND " + modified;
+        }
+        return where;
+    }
+
+    // SELECT ... FROM ... part of the query, without the where clause
+    private String buildSelect(SforceObject sforceObject, boolean lookup) {
         String fields = "";
         if (lookup) {
             if (sforceObject.getCompositeKeyFields() != null && sforceObject.getCompositeKeyFields().size() > 0) {
@@ -931,63 +973,23 @@ public class SfdcApiServiceImpl implements SfdcApiService {
             }
 
         } else {
-            Set<String> fieldList = sforceObject.getCommonFields();
+            Set<String> fieldList = sforceObject.getQueryFields();
+            if (fieldList == null) {
+                fieldList = sforceObject.getCommonFields();
+            }
             for (String field : fieldList) {
                 fields = fields + field + ",";
             }
+            // Delta runs read the watermark field
+            if (sforceObject.isDelta() && !fieldList.contains(WatermarkStore.FIELD)) {
+                fields = fields + WatermarkStore.FIELD + ",";
+            }
             if (fields.length() > 1) {
                 fields = fields.substring(0, fields.length() - 1);
             }
         }
 
-        String query = "SELECT " + fields + "  FROM " + sforceObject.getsObjectName();
-
-        String whereClause = "";
-        if (sforceObject.getWhere() != null && !sforceObject.getWhere().equals("")) {
-            whereClause = " WHERE " + sforceObject.getWhere();
-            query = query + whereClause;
-        }
-        log.debug("sforceObject.query=" + query);
-
-        return query;
-    }
-
-    @SuppressWarnings({"rawtypes", "unchecked"})
-    private void findAndAttachParents(String sChildObjectAPIName, SObject sChildObjectRecord,
-            SforceObjectPair childPair, SforceMasterDetail masterDetail, List<SforceObject> sForceObjectList) {
-
-        Class params[] = {};
-        Object paramsObj[] = {};
-
-        // Find parent sforceObject
-        for (Map.Entry<String, String> parentFieldObj : masterDetail.getParentFieldObjectMap().entrySet()) {
-            String masterFieldName = parentFieldObj.getKey();
-            String masterObjectName = parentFieldObj.getValue();
-
-            // Get the parent SforceObject
-            SforceObject parentSforceObj = getSforceObject(masterObjectName, sForceObjectList);
-            try {
-
-                Object sParentObj = sChildObjectRecord.getField(masterFieldName);
-                // Attach parent
-                if (sParentObj != null) {
-
-                    // Find the master SforceObject records
-                    Map<String, SforceObjectPair> parentPairMap = parentSforceObj.getRecordsMap();
-                    if (parentPairMap.containsKey(sParentObj.toString())) {
-                        SforceObjectPair parentPair = parentPairMap.get(sParentObj.toString());
-
-                        Map<String, SObject> parentsourceSObject = childPair.getSourceSObjectParentMap();
-                        parentsourceSObject.put(masterFieldName, parentPair.getSourceSObject());
-                    }
-
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                log.error("findAndAttachParents...", e);
-            }
-        }
-
+        return "SELECT " + fields + "  FROM " + sforceObject.getsObjectName();
     }
 
     /**
@@ -998,54 +1000,9 @@ public class SfdcApiServiceImpl implements SfdcApiService {
      *
      */
     public void delete(String sObjectName, SfdcConnection sfdcConnection) {
-        log.info("SOQLQueryServiceImpl.delete START: sObjectName: " + sObjectName);
-
-        List<String> ids = new ArrayList<String>();
-
-        ArrayList<QueryResult> queryResults = new ArrayList<QueryResult>();
-        String query = null;
-        try {
-            query = "SELECT Id FROM " + sObjectName;
-            QueryResult qr = sfdcConnection.getTargetConnection().query(query);
-            queryResults.add(qr);
-
-            if (qr.getSize() > 0) {
-                boolean done = false;
-                while (!done) {
-                    if (qr.isDone()) {
-                        done = true;
-                    } else {
-                        qr = sfdcConnection.getTargetConnection().queryMore(qr.getQueryLocator());
-                        queryResults.add(qr);
-                    }
-                }
-            } else {
-                log.debug("No records found.");
-            }
-
-            for (int iQueryResult = 0; iQueryResult < queryResults.size(); iQueryResult++) {
-                QueryResult queryResult = queryResults.get(iQueryResult);
-                SObject[] records = queryResult.getRecords();
-
-                for (int i = 0; i < records.length; i++) {
-                    SObject af = (SObject) records[i];
-                    ids.add(af.getId());
-                }
-            }
-
-            log.info("\nLogged-in user can see " + ids.size() + " " + sObjectName + " delete records.");
-
-            String[] array = ids.toArray(new String[0]);
-
-            divideWorkDelete(sObjectName, array, false);
-
-
-        } catch (ConnectionException ce) {
-            log.error("ConnectionException..." + ce.getMessage());
-            ce.printStackTrace();
-            log.error("ConnectionException...", ce);
-        }
-
+        SforceObject sforceObject = new SforceObject();
+        sforceObject.setsObjectName(sObjectName);
+        new ObjectPurger(sfdcConnection.getTargetConnection(), Collections.singletonList(sforceObject)).purge();
     }
 
     /**
@@ -1136,22 +1093,14 @@ public class SfdcApiServiceImpl implements SfdcApiService {
     }
 
 
-    private SforceObject getSforceObject(String sObjectName, List<SforceObject> sForceObjectList) {
-        for (SforceObject sforceObj : sForceObjectList) {
-            // Don't relate to lookup, since this is for parent-child, so relate
-            // to parent(which is non-lookup)
-            if (!sforceObj.isLookup() && sObjectName.equalsIgnoreCase(sforceObj.getsObjectName())) {
-                return sforceObj;
-            }
-        }
-        return null;
-    }
-
     private void reportError(String sObjectName, List<ErrorResult> errorList) {
         if (errorList == null || errorList.size() == 0) {
             return;
         }
 
+        if (WatermarkStore.getInstance() != null) {
+            WatermarkStore.getInstance().failed(sObjectName);
+        }
         log.error("\nError Report for Object: " + sObjectName);
         for (ErrorResult error : errorList) {
             log.error(error);
@@ -1213,786 +1162,438 @@ public class SfdcApiServiceImpl implements SfdcApiService {
         }
     }
 
-    private static class RetryRecords {
-        public String sObjectName;
-        public String sourceId;
-        public String statusCode;
-        public int originlIndex;
+    public SaveResult[] divideWork(SforceObject sforceObject, final SObject[] sObjectInsertRecords,
+            boolean singleThreaded) {
+        return divideWork(sforceObject, sObjectInsertRecords, singleThreaded, null, IdJournal.CREATED,
+                RetryPolicy.NONE);
+    }
 
-        public RetryRecords(int originlIndex, String sObjectName, String sourceId, String statusCode) {
-            this.originlIndex = originlIndex;
-            this.sObjectName = sObjectName;
-            this.sourceId = sourceId;
-            this.statusCode = statusCode;
-        }
+    // sourceIds: source id per record to journal the batches, null for no journal
+    private SaveResult[] divideWork(final SforceObject sforceObject, final SObject[] sObjectInsertRecords,
+            boolean singleThreaded, final String[] sourceIds, final byte journalStatus, RetryPolicy retryPolicy) {
 
-        public String toString() {
-            return "originlIndex: " + originlIndex + " ,ObjectName: " + sObjectName + " ,sourceId: " + sourceId
-                    + " ,Status Code: " + statusCode;
-        }
-    }
-
-    public SaveResult[] divideWork(SforceObject sforceObject, final SObject[] sObjectInsertRecords,
-            boolean singleThreaded) {
-
-        String sObjectAPIName = sforceObject.getsObjectName();
-        int threadCount =
-                new Integer(PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
-                        "target.threads.count")).intValue();
-
-        if (!singleThreaded) {
-            singleThreaded = isSingleThreaded(sObjectAPIName);
+        if (BulkTransport.useBulk(sforceObject, sObjectInsertRecords.length)) {
+            SaveResult[] saveResults = getBulkTransport().insert(sforceObject, sObjectInsertRecords);
+            journal(sforceObject, sourceIds, journalStatus, null, saveResults);
+            return saveResults;
         }
 
-        SfdcConnection sfdcConnection = SfdcConnectionFactory.getConnection();
-        List<PartnerConnection> connections = sfdcConnection.getConnectionTargets();
-
-        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-        List<Future<CreateWorkerResponse>> list = new ArrayList<Future<CreateWorkerResponse>>();
-
-        int workerSize = 0;
-
-        if (sObjectInsertRecords.length >= threadCount && !singleThreaded) {
-            workerSize = sObjectInsertRecords.length / threadCount;
-
-            // Create Callables (It can be 1 if number of records are less than threadCount )
-            int startIndex = 0;
-            int endIndex = 0;
-            int sequence = 1;
-            for (startIndex = 0; startIndex < sObjectInsertRecords.length;) {
-
-                // If last sequence, then add everything remaining
-                int leftOuts = 0;
-                if (sequence == threadCount) {
-                    leftOuts = sObjectInsertRecords.length % threadCount;
-                }
-
-                endIndex = startIndex + workerSize + leftOuts;
-
-                SObject[] subList = new SObject[workerSize + leftOuts];
-                for (int j = 0; (startIndex + j) < endIndex; j++) {
-                    subList[j] = sObjectInsertRecords[startIndex + j];
-                }
+        final SaveResult[] saveResults = new SaveResult[sObjectInsertRecords.length];
 
-                Callable<CreateWorkerResponse> worker =
-                        new CreateWorkerThread(connections.get(sequence - 1), sequence, startIndex, endIndex, subList,
-                                sforceObject);
-                Future<CreateWorkerResponse> submit = executor.submit(worker);
-                list.add(submit);
-
-                startIndex = startIndex + workerSize;
-
-                // get out if we are at last sequence since we are adding left overs in the last one
-                if (sequence == threadCount) {
-                    break;
-                }
-
-                sequence++;
-
-            }
-        } else {
-            Callable<CreateWorkerResponse> worker =
-                    new CreateWorkerThread(sfdcConnection.getTargetConnection(), 1, 0, sObjectInsertRecords.length,
-                            sObjectInsertRecords, sforceObject);
-            Future<CreateWorkerResponse> submit = executor.submit(worker);
-            list.add(submit);
-        }
-
-        int results = 0;
-        for (Future<CreateWorkerResponse> future : list) {
-            try {
-                CreateWorkerResponse resp = future.get();
-                results = results + resp.recordsProcessed;
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
-        SaveResult[] saveResults = new SaveResult[results];
-        int resultCounter = 0;
-
-        for (Future<CreateWorkerResponse> future : list) {
-            try {
-                CreateWorkerResponse resp = future.get();
+        // The insert records are held until the call is done
+        long[] recordBytes = BatchSizeController.estimateBytes(sObjectInsertRecords);
+        long transformBytes = MemoryAccountant.total(recordBytes);
+        MemoryAccountant.getInstance().add(MemoryAccountant.Stage.TRANSFORM, sforceObject.getsObjectName(),
+                transformBytes);
+        try {
+            getBatchScheduler(sforceObject, "create", singleThreaded, retryPolicy).execute(sObjectInsertRecords.length,
+                    recordBytes, parentGroups(sforceObject, sObjectInsertRecords),
+                    new BatchScheduler.BatchOperation() {
+
+                        public StatusCode[] execute(PartnerConnection connection, int[] indexes) throws Exception {
+                            SaveResult[] batchResults = connection.create(records(sObjectInsertRecords, indexes));
+                            for (int i = 0; i < indexes.length; i++) {
+                                saveResults[indexes[i]] = batchResults[i];
+                            }
+                            journal(sforceObject, sourceIds, journalStatus, indexes, batchResults);
+                            return statusCodes(batchResults);
+                        }
 
-                List<SaveResult[]> saveResultslist = resp.saveResultsList;
+                        public void beforeRetry(int index, StatusCode statusCode) {}
 
-                for (int i = 0; i < saveResultslist.size(); i++) {
-                    for (int j = 0; j < saveResultslist.get(i).length; j++) {
-                        saveResults[resultCounter] = saveResultslist.get(i)[j];
-                        resultCounter++;
-                    }
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+                        public void failed(int[] indexes, Exception e) {
+                            for (int index : indexes) {
+                                saveResults[index] = failedSaveResult(e);
+                            }
+                        }
+                    });
+        } finally {
+            MemoryAccountant.getInstance().release(MemoryAccountant.Stage.TRANSFORM, sforceObject.getsObjectName(),
+                    transformBytes);
         }
-        executor.shutdown();
         return saveResults;
     }
 
-    private static class CreateWorkerResponse {
-        List<SaveResult[]> saveResultsList;
-        int sequence;
-        int startIndex;
-        int endIndex;
-
-        int recordsProcessed;
+    public UpsertResult[] divideWorkUpsert(SforceObject sforceObject, final SObject[] sObjectInsertRecords,
+            final String sExternalIdField, boolean singleThreaded) {
+        return divideWorkUpsert(sforceObject, sObjectInsertRecords, sExternalIdField, singleThreaded, null,
+                IdJournal.CREATED, RetryPolicy.NONE);
     }
 
-    class CreateWorkerThread implements Callable<CreateWorkerResponse> {
-        PartnerConnection connection;
-
-        List<SaveResult[]> saveResultsList;
-        int sequence;
-        int startIndex;
-        int endIndex;
-        SforceObject sforceObject;
-
-        SObject[] subList;
+    private UpsertResult[] divideWorkUpsert(final SforceObject sforceObject, final SObject[] sObjectInsertRecords,
+            final String sExternalIdField, boolean singleThreaded, final String[] sourceIds,
+            final byte journalStatus, RetryPolicy retryPolicy) {
 
-        public CreateWorkerThread(PartnerConnection connection, int sequence, int startIndex, int endIndex,
-                SObject[] subList1, SforceObject sforceObject) {
-            this.connection = connection;
-            this.sequence = sequence;
-            this.startIndex = startIndex;
-            this.endIndex = endIndex;
-            this.subList = subList1;
-            this.sforceObject = sforceObject;
-
-            this.saveResultsList = new ArrayList<SaveResult[]>();
+        if (BulkTransport.useBulk(sforceObject, sObjectInsertRecords.length)) {
+            UpsertResult[] upsertResults =
+                    getBulkTransport().upsert(sforceObject, sExternalIdField, sObjectInsertRecords);
+            journal(sforceObject, sourceIds, journalStatus, null, upsertResults);
+            return upsertResults;
         }
 
-        @Override
-        public CreateWorkerResponse call() throws Exception {
-            CreateWorkerResponse resp = new CreateWorkerResponse();
-
-            resp.sequence = sequence;
-            resp.startIndex = startIndex;
-            resp.endIndex = endIndex;
-
-            resp.saveResultsList = saveResultsList;
-
-            try {
-                SObjectBuffer sObjectBuffer = new SObjectBuffer(subList, sforceObject.getBatchSize());
-
-                log.info(sforceObject.getsObjectName() + " : Thread[" + sequence + "] Records: " + subList.length);
-
-                while (sObjectBuffer.hasAvailable()) {
-
-                    SObject[] buffernn = sObjectBuffer.getBuffer();
-                    SObject[] buffer = Arrays.copyOf(buffernn, buffernn.length, SObject[].class);
-
-                    SaveResult[] saveResults = connection.create(buffer);
-
-                    saveResultsList.add(saveResults);
-                    resp.recordsProcessed = resp.recordsProcessed + saveResults.length;
+        final UpsertResult[] upsertResults = new UpsertResult[sObjectInsertRecords.length];
 
-                    log.info("Thread[" + sequence + "] Batch Records: " + resp.recordsProcessed);
-                }
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                log.error("Exception...", e);
-
-                Thread.currentThread().interrupt();
-                throw e;
-            } finally {
+        // The insert records are held until the call is done
+        long[] recordBytes = BatchSizeController.estimateBytes(sObjectInsertRecords);
+        long transformBytes = MemoryAccountant.total(recordBytes);
+        MemoryAccountant.getInstance().add(MemoryAccountant.Stage.TRANSFORM, sforceObject.getsObjectName(),
+                transformBytes);
+        try {
+            getBatchScheduler(sforceObject, "upsert", singleThreaded, retryPolicy).execute(sObjectInsertRecords.length,
+                    recordBytes, parentGroups(sforceObject, sObjectInsertRecords),
+                    new BatchScheduler.BatchOperation() {
+
+                        public StatusCode[] execute(PartnerConnection connection, int[] indexes) throws Exception {
+                            UpsertResult[] batchResults =
+                                    connection.upsert(sExternalIdField, records(sObjectInsertRecords, indexes));
+                            for (int i = 0; i < indexes.length; i++) {
+                                upsertResults[indexes[i]] = batchResults[i];
+                            }
+                            journal(sforceObject, sourceIds, journalStatus, indexes, batchResults);
+                            return statusCodes(batchResults);
+                        }
 
-            }
-            return resp;
-        }
+                        // Fields that can be created but not updated are left out when the record is sent again
+                        public void beforeRetry(int index, StatusCode statusCode) {
+                            if (statusCode == StatusCode.INVALID_FIELD_FOR_INSERT_UPDATE) {
+                                MetadataObjectHolder.MetadataRefObject descRefObj =
+                                        MetadataObjectHolder.getInstance().get(sforceObject.getsObjectName());
+                                for (String createableField : descRefObj.getCreateableFieldSet()) {
+                                    if (!descRefObj.getUpdateableFieldSet().contains(createableField)) {
+                                        sObjectInsertRecords[index].removeField(createableField);
+                                    }
+                                }
+                            }
+                        }
 
-        public String toString() {
-            return "CreateWorkerResponse[Thread[" + sequence + "] ,startIndex: " + startIndex + " ,endIndex:"
-                    + endIndex + "]";
+                        public void failed(int[] indexes, Exception e) {
+                            for (int index : indexes) {
+                                UpsertResult upsertResult = new UpsertResult();
+                                upsertResult.setSuccess(false);
+                                upsertResult.setErrors(batchErrors(e));
+                                upsertResults[index] = upsertResult;
+                            }
+                        }
+                    });
+        } finally {
+            MemoryAccountant.getInstance().release(MemoryAccountant.Stage.TRANSFORM, sforceObject.getsObjectName(),
+                    transformBytes);
         }
+        return upsertResults;
     }
 
-    public UpsertResult[] divideWorkUpsert(SforceObject sforceObject, final SObject[] sObjectInsertRecords,
-            String sExternalIdField, boolean singleThreaded) {
+    public SaveResult[] divideWorkUpdate(SforceObject sforceObject, final SObject[] sObjectInsertRecords,
+            boolean singleThreaded) {
+        return divideWorkUpdate(sforceObject, sObjectInsertRecords, singleThreaded, null, IdJournal.UPDATED,
+                RetryPolicy.NONE);
+    }
 
-        String sObjectAPIName = sforceObject.getsObjectName();
-        int threadCount =
-                new Integer(PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
-                        "target.threads.count")).intValue();
+    private SaveResult[] divideWorkUpdate(final SforceObject sforceObject, final SObject[] sObjectInsertRecords,
+            boolean singleThreaded, final String[] sourceIds, final byte journalStatus, RetryPolicy retryPolicy) {
 
-        if (!singleThreaded) {
-            singleThreaded = isSingleThreaded(sObjectAPIName);
+        if (BulkTransport.useBulk(sforceObject, sObjectInsertRecords.length)) {
+            SaveResult[] saveResults = getBulkTransport().update(sforceObject, sObjectInsertRecords);
+            journal(sforceObject, sourceIds, journalStatus, null, saveResults);
+            return saveResults;
         }
 
-        SfdcConnection sfdcConnection = SfdcConnectionFactory.getConnection();
-        List<PartnerConnection> connections = sfdcConnection.getConnectionTargets();
-
-        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-        List<Future<UpsertWorkerResponse>> list = new ArrayList<Future<UpsertWorkerResponse>>();
+        final SaveResult[] saveResults = new SaveResult[sObjectInsertRecords.length];
 
-        int workerSize = 0;
+        // The insert records are held until the call is done
+        long[] recordBytes = BatchSizeController.estimateBytes(sObjectInsertRecords);
+        long transformBytes = MemoryAccountant.total(recordBytes);
+        MemoryAccountant.getInstance().add(MemoryAccountant.Stage.TRANSFORM, sforceObject.getsObjectName(),
+                transformBytes);
+        try {
+            getBatchScheduler(sforceObject, "update", singleThreaded, retryPolicy).execute(sObjectInsertRecords.length,
+                    recordBytes, parentGroups(sforceObject, sObjectInsertRecords),
+                    new BatchScheduler.BatchOperation() {
+
+                        public StatusCode[] execute(PartnerConnection connection, int[] indexes) throws Exception {
+                            SaveResult[] batchResults = connection.update(records(sObjectInsertRecords, indexes));
+                            for (int i = 0; i < indexes.length; i++) {
+                                saveResults[indexes[i]] = batchResults[i];
+                            }
+                            journal(sforceObject, sourceIds, journalStatus, indexes, batchResults);
+                            return statusCodes(batchResults);
+                        }
 
-        if (sObjectInsertRecords.length >= threadCount && !singleThreaded) {
-            workerSize = sObjectInsertRecords.length / threadCount;
+                        public void beforeRetry(int index, StatusCode statusCode) {}
 
-            // Create Callables (It can be 1 if number of records are less threadCount )
-            int startIndex = 0;
-            int endIndex = 0;
-            int sequence = 1;
-            for (startIndex = 0; startIndex < sObjectInsertRecords.length;) {
+                        public void failed(int[] indexes, Exception e) {
+                            for (int index : indexes) {
+                                saveResults[index] = failedSaveResult(e);
+                            }
+                        }
+                    });
+        } finally {
+            MemoryAccountant.getInstance().release(MemoryAccountant.Stage.TRANSFORM, sforceObject.getsObjectName(),
+                    transformBytes);
+        }
+        return saveResults;
+    }
 
-                // If last sequence, then add everything remaining
-                int leftOuts = 0;
-                if (sequence == threadCount) {
-                    leftOuts = sObjectInsertRecords.length % threadCount;
-                }
+    public DeleteResult[] divideWorkDelete(final String sObjectAPIName, final String[] deleteIds,
+            boolean singleThreaded) {
 
-                endIndex = startIndex + workerSize + leftOuts;
+        final DeleteResult[] deleteResults = new DeleteResult[deleteIds.length];
 
-                System.out.println("Thread[" + sequence + "], startIndex: " + startIndex + ", endIndex: " + endIndex);
+        getBatchScheduler(sObjectAPIName, "delete", DELETE_BATCH_SIZE, singleThreaded,
+                RetryPolicy.of(StatusCode.UNABLE_TO_LOCK_ROW)).execute(deleteIds.length, null,
+                new BatchScheduler.BatchOperation() {
 
-                SObject[] subList = new SObject[workerSize + leftOuts];
-                for (int j = 0; (startIndex + j) < endIndex; j++) {
-                    subList[j] = sObjectInsertRecords[startIndex + j];
-                }
+                    public StatusCode[] execute(PartnerConnection connection, int[] indexes) throws Exception {
+                        String[] batchIds = new String[indexes.length];
+                        for (int i = 0; i < indexes.length; i++) {
+                            batchIds[i] = deleteIds[indexes[i]];
+                        }
+                        DeleteResult[] batchResults = connection.delete(batchIds);
+                        for (int i = 0; i < batchResults.length; i++) {
+                            DeleteResult deleteResult = batchResults[i];
+                            if (!deleteResult.isSuccess()) {
+                                // Handle the errors.
+                                com.sforce.soap.partner.Error[] errors = deleteResult.getErrors();
+                                if (errors.length > 0) {
+                                    log.error("Error: could not delete " + "Record ID " + deleteResult.getId() + ".");
+                                    log.error("   The error reported was: (" + errors[0].getStatusCode() + ") "
+                                            + errors[0].getMessage() + "\n");
+                                }
+                            }
+                            deleteResults[indexes[i]] = deleteResult;
+                        }
+                        return statusCodes(batchResults);
+                    }
 
-                Callable<UpsertWorkerResponse> worker =
-                        new UpsertWorkerThread(connections.get(sequence - 1), sequence, startIndex, endIndex, subList,
-                                sforceObject, sExternalIdField);
-                Future<UpsertWorkerResponse> submit = executor.submit(worker);
-                list.add(submit);
+                    public void beforeRetry(int index, StatusCode statusCode) {}
 
-                startIndex = startIndex + workerSize;
+                    public void failed(int[] indexes, Exception e) {
+                        for (int index : indexes) {
+                            DeleteResult deleteResult = new DeleteResult();
+                            deleteResult.setId(deleteIds[index]);
+                            deleteResult.setSuccess(false);
+                            deleteResult.setErrors(batchErrors(e));
+                            deleteResults[index] = deleteResult;
+                        }
+                    }
+                });
+        return deleteResults;
+    }
 
-                // get out if we are at last sequence since we are adding left overs in the last one
-                if (sequence == threadCount) {
+    public int deleteRemoved(PartnerConnection sourceConnection, PartnerConnection targetConnection,
+            SforceObject sforceObject) {
+        String externalIdField = sforceObject.getExternalIdField();
+        if (!sforceObject.isDelta() || sforceObject.getModifiedSince() == null || externalIdField == null
+                || externalIdField.equals("")) {
+            return 0;
+        }
+        String objectName = sforceObject.getsObjectName();
+        int deleted = 0;
+        try {
+            // External ids of the deleted source records, the source id when not set (see
+            // FieldMappingPlan)
+            List<String> externalIds = new ArrayList<String>();
+            String query =
+                    "SELECT Id," + externalIdField + " FROM " + objectName + " WHERE " + whereClause(sforceObject)
+                            + " AND IsDeleted = true";
+            QueryResult qr = sourceConnection.queryAll(query);
+            while (true) {
+                for (SObject record : qr.getRecords()) {
+                    Object externalId = record.getField(externalIdField);
+                    externalIds.add(externalId != null && !externalId.equals("") ? externalId.toString()
+                            : record.getId());
+                }
+                if (qr.isDone()) {
                     break;
                 }
-                sequence++;
+                qr = sourceConnection.queryMore(qr.getQueryLocator());
             }
-        } else {
-            Callable<UpsertWorkerResponse> worker =
-                    new UpsertWorkerThread(sfdcConnection.getTargetConnection(), 1, 0, sObjectInsertRecords.length,
-                            sObjectInsertRecords, sforceObject, sExternalIdField);
-            Future<UpsertWorkerResponse> submit = executor.submit(worker);
-            list.add(submit);
-        }
-
-        int results = 0;
-        for (Future<UpsertWorkerResponse> future : list) {
-            try {
-                UpsertWorkerResponse resp = future.get();
-
-                results = results + resp.recordsProcessed;
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (Exception e) {
-                e.printStackTrace();
+            if (externalIds.isEmpty()) {
+                return 0;
             }
-        }
-
-        UpsertResult[] saveResults = new UpsertResult[results];
-        int resultCounter = 0;
-
-        for (Future<UpsertWorkerResponse> future : list) {
-            try {
-                UpsertWorkerResponse resp = future.get();
-
-                List<UpsertResult[]> saveResultslist = resp.saveResultsList;
 
-                for (int i = 0; i < saveResultslist.size(); i++) {
-                    for (int j = 0; j < saveResultslist.get(i).length; j++) {
-                        saveResults[resultCounter] = saveResultslist.get(i)[j];
-                        resultCounter++;
+            List<String> targetIds = new ArrayList<String>();
+            for (int start = 0; start < externalIds.size(); start += DELETE_BATCH_SIZE) {
+                StringBuilder in = new StringBuilder();
+                for (String externalId : externalIds.subList(start,
+                        Math.min(start + DELETE_BATCH_SIZE, externalIds.size()))) {
+                    in.append(in.length() == 0 ? "'" : ",'")
+                            .append(externalId.replace("\\", "\\\\").replace("'", "\\'")).append("'");
+                }
+                QueryResult targetQr =
+                        targetConnection.query("SELECT Id FROM " + objectName + " WHERE " + externalIdField + " IN ("
+                                + in + ")");
+                while (true) {
+                    for (SObject record : targetQr.getRecords()) {
+                        targetIds.add(record.getId());
                     }
+                    if (targetQr.isDone()) {
+                        break;
+                    }
+                    targetQr = targetConnection.queryMore(targetQr.getQueryLocator());
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (Exception e) {
-                e.printStackTrace();
+            }
+            log.info(objectName + " : " + externalIds.size() + " records deleted in the source since "
+                    + sforceObject.getModifiedSince() + ", " + targetIds.size() + " in the target");
+
+            for (DeleteResult deleteResult : divideWorkDelete(objectName, targetIds.toArray(new String[0]), false)) {
+                if (deleteResult != null && deleteResult.isSuccess()) {
+                    deleted++;
+                } else if (WatermarkStore.getInstance() != null) {
+                    WatermarkStore.getInstance().failed(objectName);
+                }
+            }
+        } catch (ConnectionException ce) {
+            log.error("deleteRemoved.ConnectionException: sObjectAPIName: " + objectName, ce);
+            ce.printStackTrace();
+            if (WatermarkStore.getInstance() != null) {
+                WatermarkStore.getInstance().failed(objectName);
             }
         }
-        executor.shutdown();
-        return saveResults;
-    }
-
-    private static class UpsertWorkerResponse {
-        List<UpsertResult[]> saveResultsList;
-        int sequence;
-        int startIndex;
-        int endIndex;
-
-        int recordsProcessed;
+        return deleted;
     }
 
-    class UpsertWorkerThread implements Callable<UpsertWorkerResponse> {
-        PartnerConnection connection;
-
-        List<UpsertResult[]> saveResultsList;
-        int sequence;
-        int startIndex;
-        int endIndex;
-        String sObjectAPIName;
-        SforceObject sforceObject;
-        String sExternalIdField;
-
-        SObject[] subList;
-
-        public UpsertWorkerThread(PartnerConnection connection, int sequence, int startIndex, int endIndex,
-                SObject[] subList1, SforceObject sforceObject, String sExternalIdField) {
-            this.connection = connection;
-            this.sequence = sequence;
-            this.startIndex = startIndex;
-            this.endIndex = endIndex;
-            this.subList = subList1;
-            this.sforceObject = sforceObject;
-            this.sExternalIdField = sExternalIdField;
-
-            this.saveResultsList = new ArrayList<UpsertResult[]>();
+    // Children of the same master are kept out of concurrent batches (lock on the master row)
+    private static int[] parentGroups(SforceObject sforceObject, SObject[] records) {
+        SforceMasterDetail masterDetail = sforceObject.getMasterDetail();
+        if (masterDetail == null || masterDetail.getParentFieldObjectMap() == null
+                || masterDetail.getParentFieldObjectMap().isEmpty()) {
+            return null;
         }
-
-        @Override
-        public UpsertWorkerResponse call() throws Exception {
-            UpsertWorkerResponse resp = new UpsertWorkerResponse();
-
-            resp.sequence = sequence;
-            resp.startIndex = startIndex;
-            resp.endIndex = endIndex;
-
-            resp.saveResultsList = saveResultsList;
-
-            try {
-
-                SObjectBuffer sObjectBuffer = new SObjectBuffer(subList, sforceObject.getBatchSize());
-
-                log.info(sforceObject.getsObjectName() + " : Thread[" + sequence + "] Create/Upsert Records: "
-                        + subList.length);
-
-                while (sObjectBuffer.hasAvailable()) {
-
-                    SObject[] buffernn = sObjectBuffer.getBuffer();
-                    SObject[] buffer = Arrays.copyOf(buffernn, buffernn.length, SObject[].class);
-
-                    UpsertResult[] saveResults = connection.upsert(sExternalIdField, buffer);
-
-                    saveResultsList.add(saveResults);
-                    resp.recordsProcessed = resp.recordsProcessed + saveResults.length;
-
-                    log.info("Thread[" + sequence + "] Batch Records: " + resp.recordsProcessed);
-                }
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                log.error("Exception...", e);
-
-                Thread.currentThread().interrupt();
-                throw e;
-            } finally {
-
-            }
-            return resp;
+        String affinity =
+                PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                        "batch.parent.affinity");
+        if (affinity == null || !affinity.trim().equalsIgnoreCase("true")) {
+            return null;
         }
+        return ParentAffinity.groups(records, masterDetail.getParentFieldObjectMap().keySet());
+    }
 
-        public String toString() {
-            return "UpsertWorkerResponse[Thread[" + sequence + "] ,startIndex: " + startIndex + " ,endIndex:"
-                    + endIndex + "]";
+    private static SObject[] records(SObject[] records, int[] indexes) {
+        SObject[] batch = new SObject[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            batch[i] = records[indexes[i]];
         }
+        return batch;
     }
 
-    public SaveResult[] divideWorkUpdate(SforceObject sforceObject, final SObject[] sObjectInsertRecords,
-            boolean singleThreaded) {
-
-        int threadCount =
-                new Integer(PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
-                        "target.threads.count")).intValue();
-
-        if (!singleThreaded) {
-            singleThreaded = isSingleThreaded(sforceObject.getsObjectName());
+    // Source ids to journal, null when there is no journal or the records are not related
+    private String[] journalSourceIds(List<?> sObjectSourceRecords, boolean relateSourceTargetRecs) {
+        if (!relateSourceTargetRecs || IdJournal.getInstance() == null) {
+            return null;
         }
-
-        SfdcConnection sfdcConnection = SfdcConnectionFactory.getConnection();
-        List<PartnerConnection> connections = sfdcConnection.getConnectionTargets();
-
-        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-        List<Future<UpdateWorkerResponse>> list = new ArrayList<Future<UpdateWorkerResponse>>();
-
-        int workerSize = 0;
-
-        if (sObjectInsertRecords.length >= threadCount && !singleThreaded) {
-            workerSize = sObjectInsertRecords.length / threadCount;
-
-            // Create Callables (It can be 1 if number of records are less threadCount )
-            int startIndex = 0;
-            int endIndex = 0;
-            int sequence = 1;
-            for (startIndex = 0; startIndex < sObjectInsertRecords.length;) {
-
-                // If last sequence, then add everything remaining
-                int leftOuts = 0;
-                if (sequence == threadCount) {
-                    leftOuts = sObjectInsertRecords.length % threadCount;
-                }
-
-                endIndex = startIndex + workerSize + leftOuts;
-
-                System.out.println("Thread[" + sequence + "], startIndex: " + startIndex + ", endIndex: " + endIndex);
-
-                SObject[] subList = new SObject[workerSize + leftOuts];
-                for (int j = 0; (startIndex + j) < endIndex; j++) {
-                    subList[j] = sObjectInsertRecords[startIndex + j];
-                }
-
-                Callable<UpdateWorkerResponse> worker =
-                        new UpdateWorkerThread(connections.get(sequence - 1), sequence, startIndex, endIndex, subList,
-                                sforceObject);
-                Future<UpdateWorkerResponse> submit = executor.submit(worker);
-                list.add(submit);
-
-                startIndex = startIndex + workerSize;
-
-                // get out if we are at last sequence since we are adding left overs in the last one
-                if (sequence == threadCount) {
-                    break;
-                }
-
-                sequence++;
-
-            }
-        } else {
-            Callable<UpdateWorkerResponse> worker =
-                    new UpdateWorkerThread(sfdcConnection.getTargetConnection(), 1, 0, sObjectInsertRecords.length,
-                            sObjectInsertRecords, sforceObject);
-            Future<UpdateWorkerResponse> submit = executor.submit(worker);
-            list.add(submit);
+        String[] sourceIds = new String[sObjectSourceRecords.size()];
+        for (int i = 0; i < sourceIds.length; i++) {
+            sourceIds[i] = ((SforceObjectPair) sObjectSourceRecords.get(i)).getSourceId();
         }
+        return sourceIds;
+    }
 
-        int results = 0;
-        for (Future<UpdateWorkerResponse> future : list) {
-            try {
-                UpdateWorkerResponse resp = future.get();
-
-                results = results + resp.recordsProcessed;
-
-                System.out.println("WorkerResponse[sequence: " + resp.sequence + " ,startIndex: " + resp.startIndex
-                        + " ,endIndex:" + resp.endIndex + " ,recordsProcessed:" + resp.recordsProcessed + "]");
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    // Journals a completed batch (indexes of the records, null for all the records)
+    private void journal(SforceObject sforceObject, String[] sourceIds, byte status, int[] indexes,
+            SaveResult[] results) {
+        if (sourceIds == null) {
+            return;
         }
-
-        SaveResult[] saveResults = new SaveResult[results];
-        int resultCounter = 0;
-
-        for (Future<UpdateWorkerResponse> future : list) {
-            try {
-                UpdateWorkerResponse resp = future.get();
-
-                List<SaveResult[]> saveResultslist = resp.saveResultsList;
-
-                for (int i = 0; i < saveResultslist.size(); i++) {
-                    for (int j = 0; j < saveResultslist.get(i).length; j++) {
-                        saveResults[resultCounter] = saveResultslist.get(i)[j];
-                        resultCounter++;
-                    }
-                }
-
-                System.out.println("UpdateWorkerResponse[sequence: " + resp.sequence + " ,startIndex: "
-                        + resp.startIndex + " ,endIndex:" + resp.endIndex + " ,recordsProcessed:"
-                        + resp.recordsProcessed + "]");
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (Exception e) {
-                e.printStackTrace();
+        IdJournal journal = IdJournal.getInstance();
+        try {
+            for (int i = 0; i < results.length; i++) {
+                journal.append(sforceObject.getsObjectName(), sourceIds[indexes != null ? indexes[i] : i],
+                        results[i].getId(), results[i].isSuccess() ? status : IdJournal.FAILED);
             }
+            journal.sync();
+        } catch (IOException e) {
+            // The records are in the target org, only a resumed run would not know about them
+            log.error("journal.Exception: sObjectAPIName: " + sforceObject.getsObjectName(), e);
+            e.printStackTrace();
         }
-        executor.shutdown();
-        return saveResults;
     }
 
-    private static class UpdateWorkerResponse {
-        List<SaveResult[]> saveResultsList;
-        int sequence;
-        int startIndex;
-        int endIndex;
-
-        int recordsProcessed;
-    }
-
-    class UpdateWorkerThread implements Callable<UpdateWorkerResponse> {
-        PartnerConnection connection;
-
-        List<SaveResult[]> saveResultsList;
-        int sequence;
-        int startIndex;
-        int endIndex;
-        SforceObject sforceObject;
-
-        SObject[] subList;
-
-        public UpdateWorkerThread(PartnerConnection connection, int sequence, int startIndex, int endIndex,
-                SObject[] subList1, SforceObject sforceObject) {
-            this.connection = connection;
-            this.sequence = sequence;
-            this.startIndex = startIndex;
-            this.endIndex = endIndex;
-            this.subList = subList1;
-            this.sforceObject = sforceObject;
-
-            this.saveResultsList = new ArrayList<SaveResult[]>();
+    private void journal(SforceObject sforceObject, String[] sourceIds, byte status, int[] indexes,
+            UpsertResult[] results) {
+        if (sourceIds == null) {
+            return;
         }
-
-        @Override
-        public UpdateWorkerResponse call() throws Exception {
-            UpdateWorkerResponse resp = new UpdateWorkerResponse();
-
-            resp.sequence = sequence;
-            resp.startIndex = startIndex;
-            resp.endIndex = endIndex;
-
-            resp.saveResultsList = saveResultsList;
-
-            try {
-
-                SObjectBuffer sObjectBuffer = new SObjectBuffer(subList, sforceObject.getBatchSize());
-
-                log.info(sforceObject.getsObjectName() + " : Thread[" + sequence + "] Create/update Records: "
-                        + subList.length);
-
-                while (sObjectBuffer.hasAvailable()) {
-
-                    SObject[] buffernn = sObjectBuffer.getBuffer();
-                    SObject[] buffer = Arrays.copyOf(buffernn, buffernn.length, SObject[].class);
-
-                    SaveResult[] saveResults = connection.update(buffer);
-
-                    saveResultsList.add(saveResults);
-                    resp.recordsProcessed = resp.recordsProcessed + saveResults.length;
-
-                    log.info("Thread[" + sequence + "] Batch Records: " + resp.recordsProcessed);
-                }
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                log.error("Exception...", e);
-
-                Thread.currentThread().interrupt();
-                throw e;
-            } finally {
-
+        IdJournal journal = IdJournal.getInstance();
+        try {
+            for (int i = 0; i < results.length; i++) {
+                journal.append(sforceObject.getsObjectName(), sourceIds[indexes != null ? indexes[i] : i],
+                        results[i].getId(), results[i].isSuccess() ? status : IdJournal.FAILED);
             }
-            return resp;
-        }
-
-        public String toString() {
-            return "UpdateWorkerResponse[Thread[" + sequence + "] ,startIndex: " + startIndex + " ,endIndex:"
-                    + endIndex + "]";
+            journal.sync();
+        } catch (IOException e) {
+            // The records are in the target org, only a resumed run would not know about them
+            log.error("journal.Exception: sObjectAPIName: " + sforceObject.getsObjectName(), e);
+            e.printStackTrace();
         }
     }
 
+    private BulkTransport getBulkTransport() {
+        return new BulkTransport(SfdcConnectionFactory.getConnection().getTargetConnection());
+    }
 
-    public UpsertResult[] divideWorkDelete(String sObjectAPIName, final String[] deleteIds, boolean singleThreaded) {
-
-        int threadCount =
-                new Integer(PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
-                        "target.threads.count")).intValue();
+    // Workers: one per pooled target connection, or a single worker when single threaded
+    private BatchScheduler getBatchScheduler(SforceObject sforceObject, String operation, boolean singleThreaded,
+            RetryPolicy retryPolicy) {
+        return getBatchScheduler(sforceObject.getsObjectName(), operation, sforceObject.getBatchSize(),
+                singleThreaded, retryPolicy);
+    }
 
+    private BatchScheduler getBatchScheduler(String sObjectAPIName, String operation, int batchSize,
+            boolean singleThreaded, RetryPolicy retryPolicy) {
         if (!singleThreaded) {
             singleThreaded = isSingleThreaded(sObjectAPIName);
         }
 
-        SfdcConnection sfdcConnection = SfdcConnectionFactory.getConnection();
-        List<PartnerConnection> connections = sfdcConnection.getConnectionTargets();
-
-        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-        List<Future<DeleteWorkerResponse>> list = new ArrayList<Future<DeleteWorkerResponse>>();
-
-        int workerSize = 0;
-
-        if (deleteIds.length >= threadCount && !singleThreaded) {
-            workerSize = deleteIds.length / threadCount;
-
-            // Create Callables (It can be 1 if number of records are less threadCount )
-            int startIndex = 0;
-            int endIndex = 0;
-            int sequence = 1;
-            for (startIndex = 0; startIndex < deleteIds.length;) {
-
-                // If last sequence, then add everything remaining
-                int leftOuts = 0;
-                if (sequence == threadCount) {
-                    leftOuts = deleteIds.length % threadCount;
-                }
-
-                endIndex = startIndex + workerSize + leftOuts;
-
-                System.out.println("Thread[" + sequence + "], startIndex: " + startIndex + ", endIndex: " + endIndex);
-
-                String[] subList = new String[workerSize + leftOuts];
-                for (int j = 0; (startIndex + j) < endIndex; j++) {
-                    subList[j] = deleteIds[startIndex + j];
-                }
-
-                Callable<DeleteWorkerResponse> worker =
-                        new DeleteWorkerThread(connections.get(sequence - 1), sequence, startIndex, endIndex, subList,
-                                sObjectAPIName);
-                Future<DeleteWorkerResponse> submit = executor.submit(worker);
-                list.add(submit);
-
-                startIndex = startIndex + workerSize;
-
-                // get out if we are at last sequence since we are adding left overs in the last one
-                if (sequence == threadCount) {
-                    break;
-                }
-
-                sequence++;
-
-            }
-        } else {
-            Callable<DeleteWorkerResponse> worker =
-                    new DeleteWorkerThread(sfdcConnection.getTargetConnection(), 1, 0, deleteIds.length, deleteIds,
-                            sObjectAPIName);
-            Future<DeleteWorkerResponse> submit = executor.submit(worker);
-            list.add(submit);
-        }
-
-        int results = 0;
-        for (Future<DeleteWorkerResponse> future : list) {
-            try {
-                DeleteWorkerResponse resp = future.get();
-
-                results = results + resp.recordsProcessed;
-
-                System.out.println("DeleteWorkerResponse[sequence: " + resp.sequence + " ,startIndex: "
-                        + resp.startIndex + " ,endIndex:" + resp.endIndex + " ,recordsProcessed:"
-                        + resp.recordsProcessed + "]");
+        TargetConnectionPool connectionPool = SfdcConnectionFactory.getConnection().getTargetConnectionPool();
+        return new BatchScheduler(sObjectAPIName, connectionPool, singleThreaded ? 1 : connectionPool.getSize(),
+                BatchSizeController.get(sObjectAPIName, operation, batchSize), retryPolicy);
+    }
 
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    // Status code of the first error of each failed record, null for the records that succeeded
+    private static StatusCode[] statusCodes(SaveResult[] results) {
+        StatusCode[] statusCodes = new StatusCode[results.length];
+        for (int i = 0; i < results.length; i++) {
+            statusCodes[i] = results[i].isSuccess() ? null : statusCode(results[i].getErrors());
         }
+        return statusCodes;
+    }
 
-        UpsertResult[] saveResults = new UpsertResult[results];
-        int resultCounter = 0;
-
-        for (Future<DeleteWorkerResponse> future : list) {
-            try {
-                DeleteWorkerResponse resp = future.get();
-
-                List<UpsertResult[]> saveResultslist = resp.saveResultsList;
-
-                for (int i = 0; i < saveResultslist.size(); i++) {
-                    for (int j = 0; j < saveResultslist.get(i).length; j++) {
-                        saveResults[resultCounter] = saveResultslist.get(i)[j];
-                        resultCounter++;
-                    }
-                }
-
-                System.out.println("DeleteWorkerResponse[sequence: " + resp.sequence + " ,startIndex: "
-                        + resp.startIndex + " ,endIndex:" + resp.endIndex + " ,recordsProcessed:"
-                        + resp.recordsProcessed + "]");
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    private static StatusCode[] statusCodes(UpsertResult[] results) {
+        StatusCode[] statusCodes = new StatusCode[results.length];
+        for (int i = 0; i < results.length; i++) {
+            statusCodes[i] = results[i].isSuccess() ? null : statusCode(results[i].getErrors());
         }
-        executor.shutdown();
-        return saveResults;
+        return statusCodes;
     }
 
-    private static class DeleteWorkerResponse {
-        List<UpsertResult[]> saveResultsList;
-        int sequence;
-        int startIndex;
-        int endIndex;
-
-        int recordsProcessed;
+    private static StatusCode[] statusCodes(DeleteResult[] results) {
+        StatusCode[] statusCodes = new StatusCode[results.length];
+        for (int i = 0; i < results.length; i++) {
+            statusCodes[i] = results[i].isSuccess() ? null : statusCode(results[i].getErrors());
+        }
+        return statusCodes;
     }
 
-    class DeleteWorkerThread implements Callable<DeleteWorkerResponse> {
-        PartnerConnection connection;
-
-        List<UpsertResult[]> saveResultsList;
-        int sequence;
-        int startIndex;
-        int endIndex;
-        String sObjectAPIName;
-
-        String[] subList;
-
-        public DeleteWorkerThread(PartnerConnection connection, int sequence, int startIndex, int endIndex,
-                String[] subList1, String sObjectAPIName) {
-            this.connection = connection;
-            this.sequence = sequence;
-            this.startIndex = startIndex;
-            this.endIndex = endIndex;
-            this.subList = subList1;
-            this.sObjectAPIName = sObjectAPIName;
-
-            this.saveResultsList = new ArrayList<UpsertResult[]>();
+    private static StatusCode statusCode(com.sforce.soap.partner.Error[] errors) {
+        if (errors == null || errors.length == 0) {
+            return StatusCode.UNKNOWN_EXCEPTION;
         }
+        return errors[0].getStatusCode();
+    }
 
-        @Override
-        public DeleteWorkerResponse call() throws Exception {
-            DeleteWorkerResponse resp = new DeleteWorkerResponse();
-
-            resp.sequence = sequence;
-            resp.startIndex = startIndex;
-            resp.endIndex = endIndex;
-
-            resp.saveResultsList = saveResultsList;
-
-            try {
-
-                log.info(sObjectAPIName + " : Thread[" + sequence + "] Delete Records: " + subList.length);
-
-                SObjectDeleteBuffer sObjectBuffer = new SObjectDeleteBuffer(subList);
-                while (sObjectBuffer.hasAvailable()) {
-
-                    String[] deleteBuffer = sObjectBuffer.getBuffer();
-
-                    DeleteResult[] deleteResults = connection.delete(deleteBuffer);
-                    for (int i = 0; i < deleteResults.length; i++) {
-                        DeleteResult deleteResult = deleteResults[i];
-                        if (deleteResult.isSuccess()) {
-                        } else {
-                            // Handle the errors.
-                            com.sforce.soap.partner.Error[] errors = deleteResult.getErrors();
-                            if (errors.length > 0) {
-                                log.error("Error: could not delete " + "Record ID " + deleteResult.getId() + ".");
-                                log.error("   The error reported was: (" + errors[0].getStatusCode() + ") "
-                                        + errors[0].getMessage() + "\n");
-                            }
-                        }
-                    }
-                }
-
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                Thread.currentThread().interrupt();
-                throw e;
-            } finally {
-
-            }
-            return resp;
-        }
+    // Result for the records of a batch that could not be sent (e.g. connection failure)
+    private static SaveResult failedSaveResult(Exception e) {
+        SaveResult saveResult = new SaveResult();
+        saveResult.setSuccess(false);
+        saveResult.setErrors(batchErrors(e));
+        return saveResult;
+    }
 
-        public String toString() {
-            return "DeleteWorkerResponse[Thread[" + sequence + "] ,startIndex: " + startIndex + " ,endIndex:"
-                    + endIndex + "]";
-        }
+    private static com.sforce.soap.partner.Error[] batchErrors(Exception e) {
+        com.sforce.soap.partner.Error error = new com.sforce.soap.partner.Error();
+        error.setStatusCode(StatusCode.UNKNOWN_EXCEPTION);
+        error.setMessage("Batch failed: " + e.getMessage());
+        return new com.sforce.soap.partner.Error[] {error};
     }
 
     private boolean isSingleThreaded(String sObjectAPIName) {
@@ -28,7 +28,6 @@ package migrator.core.service.impl;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -44,6 +43,7 @@ import com.sforce.soap.partner.QueryResult;
 import com.sforce.soap.partner.sobject.SObject;
 import migrator.core.connect.SfdcConnection;
 import migrator.core.connect.SfdcConnectionFactory;
+import migrator.core.service.IdPairMap;
 import migrator.core.service.MetadataObjectHolder;
 import migrator.core.service.PropertiesReader;
 import migrator.core.service.SforceLookupProperties;
@@ -86,6 +86,7 @@ public class SfdcSerializerService extends MigrableMasterDetailObject {
 
     @Override
     public void setup() {
+        compare.prefetch(getMappedObjectNames());
 
         // Standalone or parent objects
         for (SforceObject sForceObj : sForceObjectList) {
@@ -253,7 +254,7 @@ public class SfdcSerializerService extends MigrableMasterDetailObject {
             }
             sforceObject.setLookup(false); // TODO: Anoop: This is hack for JSON store
             objectSet.add(sforceObject.getsObjectName());
-            Map<String, SforceObjectPair> sforceObjPairMap = new HashMap<String, SforceObjectPair>();
+            Map<String, SforceObjectPair> sforceObjPairMap = new IdPairMap();
             sforceObjPairMap =
                     SfdcApiServiceImpl.getSOQLQueryService().persistJson(sfdcConnection.getSourceConnection(),
                             sforceObject, sforceObjPairMap, true);
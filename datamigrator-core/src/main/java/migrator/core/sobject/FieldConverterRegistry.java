@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.sobject;
+
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.ws.bind.CalendarCodec;
+import com.sforce.ws.bind.DateCodec;
+import com.sforce.ws.types.Time;
+import com.sforce.ws.util.Base64;
+
+/**
+ * FieldConverterRegistry : Maps a FieldType to its FieldConverter. Resolve the converter once per
+ * field (see FieldMappingPlan) and call it per value, all converters are thread-safe.
+ */
+public class FieldConverterRegistry {
+
+    // Parsed date/datetime values kept per distinct string, cleared when full
+    private static final int MAX_CACHED_DATES = 10000;
+
+    private static final Map<FieldType, FieldConverter> converters = new EnumMap<FieldType, FieldConverter>(
+            FieldType.class);
+
+    // Values of other types are set as is
+    public static final FieldConverter STRING = new FieldConverter() {
+        @Override
+        public Object convert(String value) {
+            return value;
+        }
+    };
+
+    public static final FieldConverter INTEGER = new FieldConverter() {
+        @Override
+        public Object convert(String value) {
+            return parseInt(value);
+        }
+    };
+
+    public static final FieldConverter DOUBLE = new FieldConverter() {
+        @Override
+        public Object convert(String value) {
+            return parseDouble(value);
+        }
+    };
+
+    public static final FieldConverter CURRENCY = new FieldConverter() {
+        @Override
+        public Object convert(String value) {
+            return new BigDecimal(value);
+        }
+    };
+
+    public static final FieldConverter BOOLEAN = new FieldConverter() {
+        @Override
+        public Object convert(String value) {
+            return "true".equalsIgnoreCase(value) ? Boolean.TRUE : Boolean.FALSE;
+        }
+    };
+
+    public static final FieldConverter TIME = new FieldConverter() {
+        @Override
+        public Object convert(String value) {
+            return new Time(value);
+        }
+    };
+
+    public static final FieldConverter DATE = new FieldConverter() {
+        private final ThreadLocal<DateCodec> dateCodec = new ThreadLocal<DateCodec>() {
+            @Override
+            protected DateCodec initialValue() {
+                return new DateCodec();
+            }
+        };
+        private final Map<String, Long> cache = new ConcurrentHashMap<String, Long>();
+
+        @Override
+        public Object convert(String value) {
+            Long time = cache.get(value);
+            if (time == null) {
+                time = dateCodec.get().deserialize(value).getTimeInMillis();
+                if (cache.size() >= MAX_CACHED_DATES) {
+                    cache.clear();
+                }
+                cache.put(value, time);
+            }
+            return new Date(time);
+        }
+    };
+
+    public static final FieldConverter DATETIME = new FieldConverter() {
+        private final ThreadLocal<CalendarCodec> calendarCodec = new ThreadLocal<CalendarCodec>() {
+            @Override
+            protected CalendarCodec initialValue() {
+                return new CalendarCodec();
+            }
+        };
+        private final Map<String, Calendar> cache = new ConcurrentHashMap<String, Calendar>();
+
+        @Override
+        public Object convert(String value) {
+            Calendar calendar = cache.get(value);
+            if (calendar == null) {
+                calendar = calendarCodec.get().deserialize(value);
+                if (cache.size() >= MAX_CACHED_DATES) {
+                    cache.clear();
+                }
+                cache.put(value, calendar);
+            }
+            // Cached instance is never handed out, Calendar is mutable
+            return calendar.clone();
+        }
+    };
+
+    public static final FieldConverter BASE64 = new FieldConverter() {
+        @Override
+        public Object convert(String value) {
+            return decodeBase64(value);
+        }
+    };
+
+    static {
+        converters.put(FieldType.string, STRING);
+        converters.put(FieldType._int, INTEGER);
+        converters.put(FieldType._double, DOUBLE);
+        converters.put(FieldType.currency, CURRENCY);
+        converters.put(FieldType.time, TIME);
+        converters.put(FieldType.date, DATE);
+        converters.put(FieldType.datetime, DATETIME);
+        converters.put(FieldType._boolean, BOOLEAN);
+        converters.put(FieldType.base64, BASE64);
+    }
+
+    private FieldConverterRegistry() {}
+
+    public static FieldConverter get(FieldType fieldType) {
+        FieldConverter converter = fieldType != null ? converters.get(fieldType) : null;
+        return converter != null ? converter : STRING;
+    }
+
+    /**
+     * Converts the value, null and empty values are returned as is
+     */
+    public static Object convert(String value, FieldConverter converter) {
+        if (value == null || value.length() == 0) {
+            return value;
+        }
+        return converter.convert(value);
+    }
+
+    // Short decimal strings are parsed without Integer.parseInt, same results and exceptions
+    static Integer parseInt(String value) {
+        int length = value.length();
+        if (length == 0 || length > 9) {
+            return Integer.parseInt(value);
+        }
+        int index = 0;
+        boolean negative = false;
+        char first = value.charAt(0);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            index = 1;
+            if (length == 1) {
+                return Integer.parseInt(value);
+            }
+        }
+        int result = 0;
+        for (; index < length; index++) {
+            int digit = value.charAt(index) - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.parseInt(value);
+            }
+            result = result * 10 + digit;
+        }
+        return Integer.valueOf(negative ? -result : result);
+    }
+
+    static Double parseDouble(String value) {
+        if ("NaN".equals(value)) {
+            return Double.NaN;
+        } else if ("INF".equals(value)) {
+            return Double.POSITIVE_INFINITY;
+        } else if ("-INF".equals(value)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Double.parseDouble(value);
+    }
+
+    // Decodes padded base64 straight from the string. Anything else (line breaks, missing padding,
+    // characters outside the alphabet) goes to Base64.decode, which does not skip them
+    static byte[] decodeBase64(String value) {
+        int length = value.length();
+        int padding = 0;
+        while (padding < 2 && padding < length && value.charAt(length - 1 - padding) == '=') {
+            padding++;
+        }
+        if (length % 4 != 0) {
+            return Base64.decode(value.getBytes());
+        }
+        byte[] result = new byte[length / 4 * 3 - padding];
+        int size = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < length - padding; i++) {
+            int sextet = base64Value(value.charAt(i));
+            if (sextet < 0) {
+                return Base64.decode(value.getBytes());
+            }
+            bits = (bits << 6) | sextet;
+            count++;
+            if (count == 4) {
+                result[size++] = (byte) (bits >> 16);
+                result[size++] = (byte) (bits >> 8);
+                result[size++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 2) {
+            result[size++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            result[size++] = (byte) (bits >> 10);
+            result[size++] = (byte) (bits >> 2);
+        }
+        return result;
+    }
+
+    private static int base64Value(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        } else if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 26;
+        } else if (c >= '0' && c <= '9') {
+            return c - '0' + 52;
+        } else if (c == '+') {
+            return 62;
+        } else if (c == '/') {
+            return 63;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.sobject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.XmlObject;
+import com.sforce.ws.bind.XmlObjectWrapper;
+import migrator.core.mask.IMasker;
+import migrator.core.service.MetadataObjectHolder;
+import migrator.core.service.RecordStore;
+import migrator.core.service.SforceObject;
+import migrator.core.service.SforceObjectPair;
+
+/**
+ * FieldMappingPlan : The field mapping of a SforceObject compiled once after setup. The JSON
+ * field mapping, unmapped, common, createable and masked fields are resolved into an ordered array
+ * of field slots, each with its converter, so the per record mapping is a single pass over the
+ * source record plus a loop over the slots.
+ */
+public class FieldMappingPlan {
+
+    static Logger log = Logger.getLogger(FieldMappingPlan.class.getName());
+
+    private final FieldSlot[] slots;
+
+    // Source field name to slot index
+    private final Map<String, Integer> slotIndex;
+
+    private FieldMappingPlan(List<FieldSlot> slots) {
+        this.slots = slots.toArray(new FieldSlot[slots.size()]);
+        this.slotIndex = new HashMap<String, Integer>();
+        for (int i = 0; i < this.slots.length; i++) {
+            slotIndex.put(this.slots[i].sourceField, i);
+        }
+    }
+
+    /**
+     * Compiles the plan of the object, needs the describe details and common fields (see setup)
+     */
+    public static FieldMappingPlan compile(SforceObject sforceObject) {
+        MetadataObjectHolder.MetadataRefObject descRefObj = sforceObject.getDescRefObject();
+        Map<String, FieldType> fieldToTypeMap = descRefObj.getFieldToTypeMap();
+        String externalIdField = sforceObject.getExternalIdField();
+        Map<String, String> fieldMapping = sforceObject.getFieldsMapping();
+
+        List<FieldSlot> slots = new ArrayList<FieldSlot>();
+
+        if (fieldMapping != null && fieldMapping.size() > 0) {
+            for (Map.Entry<String, String> entry : fieldMapping.entrySet()) {
+                String sourceField = entry.getKey();
+                // Id should only be included in the mapping if it needs to be mapped to a different
+                // field ("Id": "Id_From_Na10__c")
+                slots.add(new FieldSlot(sourceField, entry.getValue(), fieldToTypeMap.get(sourceField), false,
+                        false, isExternalIdField(externalIdField, sourceField)));
+            }
+        } else {
+            Set<String> unmappedFields = sforceObject.getUnmappedFieldsSet();
+            Set<String> maskedFieldsSet = sforceObject.getMaskedFieldsSet();
+            Set<String> commonFields = sforceObject.getCommonFields();
+            Set<String> createableFieldSet = new HashSet<String>();
+            if (externalIdField == null || externalIdField.equals("")) {
+                createableFieldSet = descRefObj.getCreateableFieldSet();
+            }
+
+            for (String field : descRefObj.getPrimitiveFieldList()) {
+                if (field.equalsIgnoreCase("id")) {
+                    continue;
+                }
+                if (unmappedFields != null && unmappedFields.contains(field)) {
+                    continue;
+                }
+                if (commonFields != null && !commonFields.contains(field)) {
+                    log.warn(sforceObject.getsObjectName() + "." + field
+                            + " field definition not matching in source/target orgs!");
+                    continue;
+                }
+                if (!createableFieldSet.isEmpty() && !createableFieldSet.contains(field)) {
+                    continue;
+                }
+                slots.add(new FieldSlot(field, field, fieldToTypeMap.get(field),
+                        maskedFieldsSet != null && maskedFieldsSet.contains(field), true,
+                        isExternalIdField(externalIdField, field)));
+            }
+        }
+        return new FieldMappingPlan(slots);
+    }
+
+    /**
+     * Maps the fields of the source record into the insert record, straight from the columns when
+     * the record is in a RecordStore
+     */
+    public void apply(SforceObjectPair sourcePair, SObject insertRecord, IMasker masker) {
+        RecordStore store = sourcePair.getSourceStore();
+        if (store == null) {
+            apply(sourcePair.getSourceSObject(), insertRecord, masker);
+            return;
+        }
+        int row = sourcePair.getSourceRow();
+        Object[] values = new Object[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            values[i] = store.get(row, slots[i].sourceField);
+        }
+        map(values, insertRecord, masker, (String) store.get(row, "Id"));
+    }
+
+    /**
+     * Maps the fields of the source record into the insert record
+     */
+    public void apply(SObject sourceRecord, SObject insertRecord, IMasker masker) {
+        // One pass over the source record instead of a getField scan per field
+        Object[] values = new Object[slots.length];
+        Object id = null;
+        Iterator<XmlObject> children = sourceRecord.getChildren();
+        while (children.hasNext()) {
+            XmlObject child = children.next();
+            String name = child.getName().getLocalPart();
+            Integer index = slotIndex.get(name);
+            if (index != null && values[index] == null) {
+                // Same as SObject.getField
+                values[index] = child.hasChildren() ? child : child.getValue();
+            }
+            if (id == null && name.equals("Id")) {
+                id = child.getValue();
+            }
+        }
+        map(values, insertRecord, masker, (String) id);
+    }
+
+    private void map(Object[] values, SObject insertRecord, IMasker masker, String sourceId) {
+        for (int i = 0; i < slots.length; i++) {
+            FieldSlot slot = slots[i];
+            Object fielValue = values[i];
+            if (fielValue != null && !(slot.skipEmpty && fielValue.equals(""))) {
+                if (fielValue instanceof XmlObjectWrapper) {
+                    continue;
+                }
+                if (slot.masked) {
+                    fielValue = masker.mask((String) fielValue);
+                }
+                insertRecord.setField(slot.targetField, FieldConverterRegistry.convert((String) fielValue, slot.converter));
+            } else if (slot.externalId) {
+                // If externalIdField is on mapping but null in source, then use id from source as
+                // externalId value
+                insertRecord.setField(slot.targetField, sourceId);
+            }
+        }
+    }
+
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * Source fields read by the plan
+     */
+    public Set<String> getSourceFields() {
+        return new HashSet<String>(slotIndex.keySet());
+    }
+
+    private static boolean isExternalIdField(String externalIdField, String field) {
+        return externalIdField != null && externalIdField.equalsIgnoreCase(field);
+    }
+
+    // One mapped field
+    private static class FieldSlot {
+        final String sourceField;
+        final String targetField;
+        final FieldConverter converter;
+        final boolean masked;
+        // Empty source values are not mapped (default mapping only)
+        final boolean skipEmpty;
+        final boolean externalId;
+
+        FieldSlot(String sourceField, String targetField, FieldType type, boolean masked, boolean skipEmpty,
+                boolean externalId) {
+            this.sourceField = sourceField;
+            this.targetField = targetField;
+            this.converter = FieldConverterRegistry.get(type);
+            this.masked = masked;
+            this.skipEmpty = skipEmpty;
+            this.externalId = externalId;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.sobject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.fault.ApiQueryFault;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import migrator.core.service.MetadataObjectHolder;
+import migrator.core.service.PropertiesReader;
+import migrator.core.service.SforceLookupProperties;
+import migrator.core.utils.Utils;
+
+/**
+ * LookupResolver : Resolves lookups on demand instead of reading the whole lookup objects of both
+ * orgs. Before a set of records is mapped, the distinct source ids of each lookup field are
+ * collected, their composite keys are read from the source (Id IN (...)) and matched in the target
+ * on the first composite key field (IN (...)), lookup.query.chunk values per query. The target ids
+ * go into an LRU cache shared by all the objects of the run (lookup.cache.entries), lookups not
+ * found in the target are cached as missing until the lookup object is inserted (forgetMissing).
+ *
+ * A lookup query failing with a connection error is run again (lookup.resolve.attempts, 1s
+ * doubling), after the last attempt or on an error of the query itself the records fail to map
+ * with a RuntimeException: a lookup is never dropped because its query failed.
+ */
+public class LookupResolver {
+
+    static Logger log = Logger.getLogger(LookupResolver.class.getName());
+
+    private static final int DEFAULT_CHUNK = 200;
+    private static final int DEFAULT_CACHE_ENTRIES = 500000;
+    private static final int DEFAULT_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 1000L;
+
+    // Cached for lookups not in the target
+    private static final String MISSING = "";
+
+    private static Map<String, String> cache;
+
+    private final PartnerConnection sourceConnection;
+    private final PartnerConnection targetConnection;
+    private final int chunk;
+    private final int attempts;
+
+    public LookupResolver(PartnerConnection sourceConnection, PartnerConnection targetConnection) {
+        this.sourceConnection = sourceConnection;
+        this.targetConnection = targetConnection;
+        this.chunk = getInt("lookup.query.chunk", DEFAULT_CHUNK);
+        this.attempts = Math.max(1, getInt("lookup.resolve.attempts", DEFAULT_ATTEMPTS));
+        synchronized (LookupResolver.class) {
+            if (cache == null) {
+                final int maxEntries = getInt("lookup.cache.entries", DEFAULT_CACHE_ENTRIES);
+                cache = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                        return size() > maxEntries;
+                    }
+                };
+            }
+        }
+    }
+
+    /**
+     * lookup.on.demand (default false), only when the source is an org
+     */
+    public static boolean isEnabled() {
+        PropertiesReader properties = PropertiesReader.getInstance();
+        String onDemand = properties.getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, "lookup.on.demand");
+        String sourceType = properties.getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, "source.type");
+        return onDemand != null && onDemand.trim().equalsIgnoreCase("true")
+                && (sourceType == null || sourceType.equals("org"));
+    }
+
+    /**
+     * Lookups of the object were inserted in the target, resolve its missing lookups again
+     */
+    public static void forgetMissing(String lookupObjectName) {
+        if (cache == null) {
+            return;
+        }
+        String prefix = lookupObjectName + "|";
+        synchronized (cache) {
+            for (Iterator<Map.Entry<String, String>> it = cache.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, String> entry = it.next();
+                if (entry.getValue() == MISSING && entry.getKey().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Target records were deleted, nothing cached is valid anymore
+     */
+    public static void clear() {
+        if (cache != null) {
+            synchronized (cache) {
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * Resolves the lookups of the records that are not cached yet
+     */
+    public void prefetch(List<SforceLookupProperties> lookupList, Collection<SObject> sourceRecords) {
+        if (lookupList == null) {
+            return;
+        }
+        for (SforceLookupProperties loopProperty : lookupList) {
+            Set<String> sourceIds = new LinkedHashSet<String>();
+            for (SObject sourceRecord : sourceRecords) {
+                Object sourceId = sourceRecord == null ? null : sourceRecord.getField(loopProperty.getsLookupField());
+                if (sourceId != null && !sourceId.equals("") && get(key(loopProperty, sourceId.toString())) == null) {
+                    sourceIds.add(sourceId.toString());
+                }
+            }
+            if (!sourceIds.isEmpty()) {
+                resolve(loopProperty, new ArrayList<String>(sourceIds));
+            }
+        }
+    }
+
+    /**
+     * Target id of the lookup, null if it is not in the target. Throws a RuntimeException when the
+     * lookup could not be resolved (see resolve)
+     */
+    public String getTargetId(SforceLookupProperties loopProperty, String sourceId) {
+        String key = key(loopProperty, sourceId);
+        String targetId = get(key);
+        if (targetId == null) {
+            // Not prefetched (or evicted since)
+            List<String> sourceIds = new ArrayList<String>();
+            sourceIds.add(sourceId);
+            resolve(loopProperty, sourceIds);
+            targetId = get(key);
+        }
+        if (targetId == null || targetId == MISSING) {
+            log.warn("Lookup record doesn't exists in Target Org. LookupId in Source Org: " + sourceId
+                    + " ,lookObjectName:" + loopProperty.getsLookupSObjectName() + " ,lookupField:"
+                    + loopProperty.getsLookupField());
+            return null;
+        }
+        return targetId;
+    }
+
+    private void resolve(SforceLookupProperties loopProperty, List<String> sourceIds) {
+        String lookupObjectName = loopProperty.getsLookupSObjectName();
+        List<String> keyFields = loopProperty.getCompositeKeyFields();
+        if (keyFields == null || keyFields.isEmpty()) {
+            log.error("No compositeKeyFields for lookup " + lookupObjectName + "." + loopProperty.getsLookupField());
+            return;
+        }
+        String select = select(lookupObjectName, keyFields);
+        Map<String, String> resolved = null;
+        for (int attempt = 1; resolved == null; attempt++) {
+            try {
+                resolved = queryTargetIds(loopProperty, select, sourceIds);
+            } catch (ConnectionException ce) {
+                // Query errors (malformed query, unknown field or object) fail the same way again
+                if (attempt >= attempts || ce instanceof ApiQueryFault) {
+                    log.error("LookupResolver.resolve ConnectionException: " + lookupObjectName, ce);
+                    throw new RuntimeException("Lookups " + lookupObjectName + "." + loopProperty.getsLookupField()
+                            + " could not be resolved after " + attempt + " attempts", ce);
+                }
+                long delay = RETRY_DELAY_MILLIS << (attempt - 1);
+                log.warn("LookupResolver.resolve " + lookupObjectName + " failed (attempt " + attempt + " of "
+                        + attempts + "), trying again in " + delay + " ms: " + ce);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while resolving lookups " + lookupObjectName, e);
+                }
+            }
+        }
+        synchronized (cache) {
+            cache.putAll(resolved);
+        }
+        log.debug("Resolved " + resolved.size() + " " + lookupObjectName + " lookups");
+    }
+
+    // Target ids of the source ids, MISSING for the ones not in the target
+    private Map<String, String> queryTargetIds(SforceLookupProperties loopProperty, String select,
+            List<String> sourceIds) throws ConnectionException {
+        String lookupObjectName = loopProperty.getsLookupSObjectName();
+        List<String> keyFields = loopProperty.getCompositeKeyFields();
+        // Composite keys of the source lookups
+        Map<String, String> sourceKeys = new HashMap<String, String>();
+        Set<Object> firstKeyValues = new LinkedHashSet<Object>();
+        for (int start = 0; start < sourceIds.size(); start += chunk) {
+            List<String> ids = sourceIds.subList(start, Math.min(start + chunk, sourceIds.size()));
+            for (SObject record : query(sourceConnection, select + " WHERE Id IN (" + quoted(ids) + ")"
+                    + and(loopProperty.getWhere()))) {
+                sourceKeys.put(record.getId(), Utils.getKey(lookupObjectName, record, keyFields));
+                firstKeyValues.add(record.getField(keyFields.get(0)));
+            }
+        }
+
+        // Target records with the same composite keys
+        Map<String, String> targetIds = new HashMap<String, String>();
+        String keyField = keyFields.get(0);
+        List<Object> values = new ArrayList<Object>(firstKeyValues);
+        boolean withNull = values.remove(null);
+        List<String> filters = new ArrayList<String>();
+        for (int start = 0; start < values.size(); start += chunk) {
+            filters.add(keyField + " IN (" + literals(lookupObjectName, keyField,
+                    values.subList(start, Math.min(start + chunk, values.size()))) + ")");
+        }
+        if (withNull) {
+            filters.add(keyField + " = null");
+        }
+        for (String filter : filters) {
+            for (SObject record : query(targetConnection, select + " WHERE (" + filter + ")"
+                    + and(loopProperty.getWhere()))) {
+                targetIds.put(Utils.getKey(lookupObjectName, record, keyFields), record.getId());
+            }
+        }
+
+        Map<String, String> resolved = new HashMap<String, String>();
+        for (String sourceId : sourceIds) {
+            String compositeKey = sourceKeys.get(sourceId);
+            String targetId = compositeKey == null ? null : targetIds.get(compositeKey);
+            resolved.put(key(loopProperty, sourceId), targetId == null ? MISSING : targetId);
+        }
+        return resolved;
+    }
+
+    private String select(String lookupObjectName, List<String> keyFields) {
+        Set<String> fields = new LinkedHashSet<String>();
+        fields.add("Id");
+        for (String keyField : keyFields) {
+            if (!keyField.equalsIgnoreCase("Id")) {
+                fields.add(keyField);
+            }
+        }
+        StringBuilder select = new StringBuilder("SELECT ");
+        for (String field : fields) {
+            select.append(select.length() > 7 ? "," : "").append(field);
+        }
+        return select.append(" FROM ").append(lookupObjectName).toString();
+    }
+
+    private static List<SObject> query(PartnerConnection connection, String query) throws ConnectionException {
+        List<SObject> records = new ArrayList<SObject>();
+        QueryResult qr = connection.query(query);
+        while (true) {
+            if (qr.getRecords() != null) {
+                for (SObject record : qr.getRecords()) {
+                    records.add(record);
+                }
+            }
+            if (qr.isDone()) {
+                break;
+            }
+            qr = connection.queryMore(qr.getQueryLocator());
+        }
+        return records;
+    }
+
+    private static String and(String where) {
+        return where == null || where.trim().equals("") ? "" : " AND (" + where + ")";
+    }
+
+    private static String quoted(Collection<?> values) {
+        StringBuilder in = new StringBuilder();
+        for (Object value : values) {
+            in.append(in.length() == 0 ? "'" : ",'")
+                    .append(value.toString().replace("\\", "\\\\").replace("'", "\\'")).append("'");
+        }
+        return in.toString();
+    }
+
+    // Values as SOQL literals: numbers, booleans and dates are not quoted
+    private static String literals(String lookupObjectName, String keyField, List<Object> values) {
+        MetadataObjectHolder.MetadataRefObject descRefObj = MetadataObjectHolder.getInstance().get(lookupObjectName);
+        FieldType type = descRefObj == null || descRefObj.getFieldToTypeMapAll() == null ? null
+                : descRefObj.getFieldToTypeMapAll().get(keyField);
+        if (type == FieldType._boolean || type == FieldType._int || type == FieldType._double
+                || type == FieldType.currency || type == FieldType.percent || type == FieldType.date
+                || type == FieldType.datetime) {
+            StringBuilder in = new StringBuilder();
+            for (Object value : values) {
+                in.append(in.length() == 0 ? "" : ",").append(value);
+            }
+            return in.toString();
+        }
+        return quoted(values);
+    }
+
+    private static String key(SforceLookupProperties loopProperty, String sourceId) {
+        return loopProperty.getsLookupSObjectName() + "|" + loopProperty.getCompositeKeyFields() + "|"
+                + loopProperty.getWhere() + "|" + sourceId;
+    }
+
+    private static String get(String key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    private static int getInt(String name, int defaultValue) {
+        String value = PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, name);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+}
@@ -26,16 +26,16 @@
 package migrator.core.sobject;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.apache.log4j.Logger;
 import com.sforce.soap.partner.sobject.SObject;
+import migrator.core.journal.IdJournal;
+import migrator.core.service.IdPairMap;
 import migrator.core.service.SforceMasterDetail;
 import migrator.core.service.SforceObject;
 import migrator.core.service.SforceObjectPair;
 import migrator.core.service.impl.SfdcApiServiceImpl;
-import migrator.core.utils.Utils;
 
 /**
  * MigrableHierarchicalObject : Class to support hierarchical relationships
@@ -75,12 +75,21 @@ public class MigrableHierarchicalObject extends MigrableMasterDetailObject {
         return insertRecord;
     }
 
+    protected RecordTransformer.RecordMapper getUpdateMapper(final SforceObject sforceObject) {
+        return new RecordTransformer.RecordMapper() {
+            @Override
+            public SObject map(SforceObjectPair sourcePairObj) {
+                return buildMappingUpdate(sforceObject, sourcePairObj);
+            }
+        };
+    }
+
     // Using source Org only
     @SuppressWarnings("unchecked")
     private void exportSource() {
         for (SforceObject sforceObject : sForceObjectList) {
             if (sforceObject.getMasterDetail() == null && !sforceObject.isLookup()) {
-                Map<String, SforceObjectPair> sforceObjPairMap = new HashMap<String, SforceObjectPair>();
+                Map<String, SforceObjectPair> sforceObjPairMap = new IdPairMap();
                 sforceObjPairMap =
                         SfdcApiServiceImpl.getSOQLQueryService().query(sfdcConnection.getSourceConnection(),
                                 sforceObject, sforceObjPairMap, true);
@@ -91,7 +100,7 @@ public class MigrableHierarchicalObject extends MigrableMasterDetailObject {
                 SforceMasterDetail masterDetail = sforceObject.getMasterDetail();
                 Map<String, SforceObjectPair> sforceObjPairMap = sforceObject.getRecordsMap();
                 if (sforceObjPairMap == null) {
-                    sforceObjPairMap = new HashMap<String, SforceObjectPair>();
+                    sforceObjPairMap = new IdPairMap();
                 }
                 sforceObjPairMap =
                         SfdcApiServiceImpl.getSOQLQueryService().queryChildren(sfdcConnection.getSourceConnection(),
@@ -122,32 +131,18 @@ public class MigrableHierarchicalObject extends MigrableMasterDetailObject {
                 return;
             }
 
-            List<SforceObjectPair> sourceRecords = new ArrayList<SforceObjectPair>();
-            for (Map.Entry<String, SforceObjectPair> entry : sourceRecordsMap.entrySet()) {
-                // This map contains composite key also, discard those while
-                // inserting/updating
-                String mapKey = entry.getKey();
-                if (!mapKey.startsWith(Utils.PREFIX_COMPOSITE_KEY)) {
-                    sourceRecords.add(entry.getValue());
-                }
-            }
+            // This map contains composite key also, discard those while
+            // inserting/updating
+            List<SforceObjectPair> sourceRecords = IdPairMap.pairs(sourceRecordsMap);
 
-            int size = 0;
+            sourceRecords = skipJournaled(sforceObject, sourceRecords, IdJournal.CREATED);
             if (sourceRecords == null || sourceRecords.size() == 0) {
                 continue;
-            } else {
-                size = sourceRecords.size();
             }
 
-            SObject[] insertRecords = new SObject[size];
-
-            int counter = 0;
+            prefetchLookups(sforceObject, sourceRecords);
 
-            for (SforceObjectPair sObjectPairRecord : sourceRecords) {
-                SObject insertRecord = buildMapping(sforceObject, sObjectPairRecord);
-                insertRecords[counter] = insertRecord;
-                counter++;
-            }
+            SObject[] insertRecords = RecordTransformer.transform(sourceRecords, getMapper(sforceObject));
             SfdcApiServiceImpl.getSOQLQueryService().upsertWithExternalId(sfdcConnection.getTargetConnection(),
                     sforceObject, sforceObject.getExternalIdField(), sourceRecords, insertRecords, true, false);
 
@@ -178,29 +173,16 @@ public class MigrableHierarchicalObject extends MigrableMasterDetailObject {
                 return;
             }
 
-            List<SforceObjectPair> sourceRecords = new ArrayList<SforceObjectPair>();
-            for (Map.Entry<String, SforceObjectPair> entry : sourceRecordsMap.entrySet()) {
-                // This map contains composite key also, discard those while
-                // inserting/updating
-                String mapKey = entry.getKey();
-                if (!mapKey.startsWith(Utils.PREFIX_COMPOSITE_KEY)) {
-                    sourceRecords.add(entry.getValue());
-                }
-            }
+            // This map contains composite key also, discard those while
+            // inserting/updating
+            List<SforceObjectPair> sourceRecords = IdPairMap.pairs(sourceRecordsMap);
 
-            int size = 0;
+            sourceRecords = skipJournaled(sforceObject, sourceRecords, IdJournal.UPDATED);
             if (sourceRecords == null || sourceRecords.size() == 0) {
                 continue;
-            } else {
-                size = sourceRecords.size();
-            }
-            SObject[] insertRecords = new SObject[size];
-            int counter = 0;
-            for (SforceObjectPair sObjectPairRecord : sourceRecords) {
-                SObject insertRecord = buildMappingUpdate(sforceObject, sObjectPairRecord);
-                insertRecords[counter] = insertRecord;
-                counter++;
             }
+            prefetchLookups(sforceObject, sourceRecords);
+            SObject[] insertRecords = RecordTransformer.transform(sourceRecords, getUpdateMapper(sforceObject));
             SfdcApiServiceImpl.getSOQLQueryService().upsertWithExternalId(sfdcConnection.getTargetConnection(),
                     sforceObject, sforceObject.getExternalIdField(), sourceRecords, insertRecords, true, true);
         }
@@ -224,51 +206,20 @@ public class MigrableHierarchicalObject extends MigrableMasterDetailObject {
                 return;
             }
 
-            List<SforceObjectPair> sourceRecords = new ArrayList<SforceObjectPair>();
-            for (Map.Entry<String, SforceObjectPair> entry : sourceRecordsMap.entrySet()) {
-                // This map contains composite key also, discard those while
-                // inserting/updating
-                String mapKey = entry.getKey();
-                if (!mapKey.startsWith(Utils.PREFIX_COMPOSITE_KEY)) {
-                    sourceRecords.add(entry.getValue());
-                }
-            }
+            // This map contains composite key also, discard those while
+            // inserting/updating
+            List<SforceObjectPair> sourceRecords = IdPairMap.pairs(sourceRecordsMap);
 
-            int size = 0;
+            sourceRecords = skipJournaled(sforceObject, sourceRecords, IdJournal.UPDATED);
             if (sourceRecords == null || sourceRecords.size() == 0) {
                 continue;
-            } else {
-                size = sourceRecords.size();
-            }
-            SObject[] insertRecords = new SObject[size];
-
-            int counter = 0;
-            for (SforceObjectPair sObjectPairRecord : sourceRecords) {
-                SObject insertRecord = buildMappingUpdate(sforceObject, sObjectPairRecord);
-                insertRecords[counter] = insertRecord;
-                counter++;
             }
+            prefetchLookups(sforceObject, sourceRecords);
+            SObject[] insertRecords = RecordTransformer.transform(sourceRecords, getUpdateMapper(sforceObject));
 
             SfdcApiServiceImpl.getSOQLQueryService().upsertWithExternalId(sfdcConnection.getTargetConnection(),
                     sforceObject, sforceObject.getExternalIdField(), sourceRecords, insertRecords, true, true);
         }
     }
 
-    // Finds the lookup (Note: lookup!) SForceObject from the list
-    public SforceObject getLookupSforceObj(String lookObjectName) {
-        for (SforceObject sforceObject : sForceObjectList) {
-            String objectName = sforceObject.getsObjectName();
-
-            if (sforceObject.isLookup()) {
-                if (lookObjectName != null && objectName != null) {
-                    if (lookObjectName.equalsIgnoreCase(objectName)) {
-                        return sforceObject;
-                    }
-                }
-
-            }
-        }
-        return null;
-    }
-
 }
@@ -25,22 +25,24 @@
  */
 package migrator.core.sobject;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.log4j.Logger;
 import com.sforce.soap.partner.FieldType;
 import com.sforce.soap.partner.sobject.SObject;
-import com.sforce.ws.bind.CalendarCodec;
-import com.sforce.ws.bind.DateCodec;
-import com.sforce.ws.types.Time;
-import com.sforce.ws.util.Base64;
+import migrator.core.buffer.MemoryAccountant;
 import migrator.core.connect.SfdcConnection;
+import migrator.core.journal.IdJournal;
+import migrator.core.journal.WatermarkStore;
 import migrator.core.mask.Masker;
+import migrator.core.service.IdPairMap;
 import migrator.core.service.MetadataObjectHolder;
 import migrator.core.service.PropertiesReader;
 import migrator.core.service.SforceLookupProperties;
@@ -60,9 +62,13 @@ public class MigrableLookupObject extends MigrableObject {
 
     protected Map<String, List<SforceLookupProperties>> lookupPropertiesMap =
             new HashMap<String, List<SforceLookupProperties>>();
-    protected CalendarCodec calendarCodec = new CalendarCodec();
-    protected DateCodec dateCodec = new DateCodec();
     Masker masker = new Masker();
+    // On demand lookups (see getLookupResolver)
+    private LookupResolver lookupResolver;
+    // Compiled field mapping per object (see setup)
+    protected Map<SforceObject, FieldMappingPlan> mappingPlans = new ConcurrentHashMap<SforceObject, FieldMappingPlan>();
+    // Fields of the source views per object (see getSourceView)
+    private Map<SforceObject, Set<String>> viewFields = new ConcurrentHashMap<SforceObject, Set<String>>();
     static Logger log = Logger.getLogger(MigrableLookupObject.class.getName());
 
     public MigrableLookupObject() {
@@ -85,6 +91,8 @@ public class MigrableLookupObject extends MigrableObject {
         }
         query();
         insert();
+        finishDelta();
+        MemoryAccountant.getInstance().report();
         cleanup();
         disconnect();
     }
@@ -105,6 +113,9 @@ public class MigrableLookupObject extends MigrableObject {
         }
 
         MetadataCompareService compare = new MetadataCompareService(sourceLogin, true);
+        compare.prefetch(getMappedObjectNames());
+
+        sforceObjectIndex.rebuild(sForceObjectList);
 
         // Standalone or parent objects
         for (SforceObject sForceObj : sForceObjectList) {
@@ -138,6 +149,7 @@ public class MigrableLookupObject extends MigrableObject {
                     sForceObj.setLookupProperties(lookupList);
                     sForceObj.setCommonFields(commonFields);
                     sForceObjectList.add(sForceObj);
+                    sforceObjectIndex.add(sForceObj);
                 }
             }
         }
@@ -157,6 +169,9 @@ public class MigrableLookupObject extends MigrableObject {
             sForceObj.setWhere(masterObjectDetail.getWhere());
             sForceObj.setBatchSize(masterObjectDetail.getBatchSize());
             sForceObj.setRefresh(masterObjectDetail.isRefresh());
+            sForceObj.setStreaming(masterObjectDetail.isStreaming());
+            sForceObj.setBulkThreshold(masterObjectDetail.getBulkThreshold());
+            sForceObj.setIdRanges(masterObjectDetail.getIdRanges());
             sForceObj.setUnmappedFieldsSet(masterObjectDetail.getUnmappedFieldsSet());
             sForceObj.setNullableFields(masterObjectDetail.getNullableFields());
             sForceObj.setMaskedFieldsSet(masterObjectDetail.getMaskedFieldsSet());
@@ -166,8 +181,105 @@ public class MigrableLookupObject extends MigrableObject {
             sForceObj.setCommonFields(commonFields);
 
             sForceObjectList.add(sForceObj);
+            sforceObjectIndex.add(sForceObj);
         }
 
+        // Compile the field mappings once, not per record
+        String projectionValue = PropertiesReader.getInstance()
+                .getProperty(PropertiesReader.PROPERTY_TYPE.BUILD, "source.query.projection");
+        boolean projection = projectionValue != null && projectionValue.trim().equalsIgnoreCase("true");
+        for (SforceObject sForceObj : sForceObjectList) {
+            if (!sForceObj.isLookup()) {
+                FieldMappingPlan mappingPlan = FieldMappingPlan.compile(sForceObj);
+                mappingPlans.put(sForceObj, mappingPlan);
+                if (projection && sForceObj.getCommonFields() != null) {
+                    sForceObj.setQueryFields(projection(sForceObj, mappingPlan));
+                }
+            }
+        }
+
+        WatermarkStore watermarks = WatermarkStore.getInstance();
+        if (watermarks != null) {
+            for (SforceObject sForceObj : sForceObjectList) {
+                if (isDeltaCapable(sForceObj)) {
+                    sForceObj.setDelta(true);
+                    sForceObj.setModifiedSince(watermarks.since(sForceObj));
+                    log.info(sForceObj.getsObjectName() + " : delta, modified since "
+                            + (sForceObj.getModifiedSince() == null ? "ever" : sForceObj.getModifiedSince()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Delta runs read only the changed records of objects upserted on an external id. Hierarchical
+     * objects and parents of master-detail children in the mapping are read in full: the children
+     * need the target ids of all their parents.
+     */
+    protected boolean isDeltaCapable(SforceObject sforceObject) {
+        if (sforceObject.isLookup() || sforceObject.isRefresh()) {
+            return false;
+        }
+        if (sforceObject.getExternalIdField() == null || sforceObject.getExternalIdField().equals("")) {
+            log.warn(sforceObject.getsObjectName() + " : no externalIdField, read in full in delta runs");
+            return false;
+        }
+        for (SforceObject other : sForceObjectList) {
+            if (other.getMasterDetail() != null && other.getMasterDetail().getParentFieldObjectMap() != null) {
+                for (String parentName : other.getMasterDetail().getParentFieldObjectMap().values()) {
+                    if (parentName.equalsIgnoreCase(sforceObject.getsObjectName())) {
+                        log.info(sforceObject.getsObjectName() + " : parent of " + other.getsObjectName()
+                                + ", read in full in delta runs");
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fields of the source query: the fields the mapping writes, plus the fields needed to resolve
+     * lookups, parents, record types and nullable fields. Fields not in the common fields are never
+     * queried.
+     */
+    protected Set<String> projection(SforceObject sforceObject, FieldMappingPlan mappingPlan) {
+        Set<String> needed = new HashSet<String>();
+        needed.add("id");
+        needed.add("recordtypeid");
+        addLowerCase(needed, mappingPlan.getSourceFields());
+        addLowerCase(needed, sforceObject.getNullableFields());
+        addLowerCase(needed, sforceObject.getCompositeKeyFields());
+        if (sforceObject.getExternalIdField() != null) {
+            needed.add(sforceObject.getExternalIdField().toLowerCase());
+        }
+        if (sforceObject.getMasterDetail() != null && sforceObject.getMasterDetail().getParentFieldObjectMap() != null) {
+            addLowerCase(needed, sforceObject.getMasterDetail().getParentFieldObjectMap().keySet());
+        }
+        List<SforceLookupProperties> lookupList = lookupPropertiesMap.get(sforceObject.getsObjectName());
+        if (lookupList != null) {
+            for (SforceLookupProperties loopProperty : lookupList) {
+                needed.add(loopProperty.getsLookupField().toLowerCase());
+            }
+        }
+
+        Set<String> queryFields = new LinkedHashSet<String>();
+        for (String field : sforceObject.getCommonFields()) {
+            if (needed.contains(field.toLowerCase())) {
+                queryFields.add(field);
+            }
+        }
+        log.info(sforceObject.getsObjectName() + " : querying " + queryFields.size() + " of "
+                + sforceObject.getCommonFields().size() + " fields");
+        return queryFields;
+    }
+
+    private static void addLowerCase(Set<String> fields, Collection<String> names) {
+        if (names != null) {
+            for (String name : names) {
+                fields.add(name.toLowerCase());
+            }
+        }
     }
 
     public void cleanup() {
@@ -179,9 +291,10 @@ public class MigrableLookupObject extends MigrableObject {
         if (lookupPropertiesMap != null)
             lookupPropertiesMap.clear();
         sForceObjectList = null;
+        sforceObjectIndex.clear();
+        mappingPlans.clear();
+        viewFields.clear();
         lookupPropertiesMap = null;
-        calendarCodec = null;
-        dateCodec = null;
     }
 
     // Using source Org only
@@ -189,9 +302,9 @@ public class MigrableLookupObject extends MigrableObject {
     private void exportSource() {
 
         for (SforceObject sforceObject : sForceObjectList) {
-            // Its parent or standalone
-            if (!sforceObject.isLookup()) {
-                Map<String, SforceObjectPair> sforceObjPairMap = new HashMap<String, SforceObjectPair>();
+            // Its parent or standalone (streamed objects are queried while inserting)
+            if (!sforceObject.isLookup() && !StreamingInsertPipeline.isEnabled(sforceObject)) {
+                Map<String, SforceObjectPair> sforceObjPairMap = new IdPairMap();
                 sforceObjPairMap =
                         SfdcApiServiceImpl.getSOQLQueryService().query(sfdcConnection.getSourceConnection(),
                                 sforceObject, sforceObjPairMap, true);
@@ -205,7 +318,10 @@ public class MigrableLookupObject extends MigrableObject {
         Map<String, SforceObject> lookupObjects = getUniqueLookupObjects();
 
         for (SforceObject sforceObject : lookupObjects.values()) {
-            if (sforceObject.isLookup()) {
+            if (sforceObject.isLookup() && getLookupResolver() != null) {
+                // Resolved on demand, only what was missing may have changed
+                LookupResolver.forgetMissing(sforceObject.getsObjectName());
+            } else if (sforceObject.isLookup()) {
                 SfdcApiServiceImpl.getSOQLQueryService().queryLookup(sfdcConnection.getSourceConnection(),
                         sforceObject, lookupPropertiesMap, true);
                 SfdcApiServiceImpl.getSOQLQueryService().queryLookup(sfdcConnection.getTargetConnection(),
@@ -216,6 +332,10 @@ public class MigrableLookupObject extends MigrableObject {
 
     // Fetches lookups from source and target
     public void exportLookup(String sObjectName) {
+        if (getLookupResolver() != null) {
+            LookupResolver.forgetMissing(sObjectName);
+            return;
+        }
         Map<String, SforceObject> lookupObjects = getUniqueLookupObjects();
 
         for (SforceObject sforceObject : lookupObjects.values()) {
@@ -240,6 +360,10 @@ public class MigrableLookupObject extends MigrableObject {
     // re-issue
     // lookup query, so we have target ids set.
     public void reIssueLookupQuery(String lookupObjectName) {
+        if (getLookupResolver() != null) {
+            LookupResolver.forgetMissing(lookupObjectName);
+            return;
+        }
 
         for (SforceObject sforceObject : sForceObjectList) {
             String objectName = sforceObject.getsObjectName();
@@ -255,7 +379,7 @@ public class MigrableLookupObject extends MigrableObject {
 
                             Map<String, SforceObjectPair> sforceObjPairMap = sforceObject.getLookupRecordsMap();
                             if (sforceObjPairMap == null) {
-                                sforceObjPairMap = new HashMap<String, SforceObjectPair>();
+                                sforceObjPairMap = new IdPairMap();
                             }
 
                             String compositeKey =
@@ -288,41 +412,48 @@ public class MigrableLookupObject extends MigrableObject {
 
     // Inserts records
     public void createTarget() {
-        for (SforceObject sforceObject : sForceObjectList) {
-            if (sforceObject.isLookup()) {
-                continue;
-            }
-
-            Map<String, SforceObjectPair> sourceRecordsMap = sforceObject.getRecordsMap();
-            if (sourceRecordsMap == null) {
-                return;
-            }
-            List<SforceObjectPair> sourceRecords = new ArrayList<SforceObjectPair>(sourceRecordsMap.values());
-
-            int size = 0;
-            if (sourceRecords == null || sourceRecords.size() == 0) {
-                continue;
-            } else {
-                size = sourceRecords.size();
-            }
-            SObject[] insertRecords = new SObject[size];
+        final SourceLifecycle lifecycle =
+                SourceLifecycle.isEnabled() ? new SourceLifecycle(sForceObjectList, lookupPropertiesMap,
+                        sforceObjectIndex) : null;
+        new ObjectScheduler(sForceObjectList, lookupPropertiesMap, sforceObjectIndex)
+                .run(new ObjectScheduler.ObjectTask() {
+                    @Override
+                    public void run(SforceObject sforceObject) {
+                        createTarget(sforceObject);
+                        if (lifecycle != null) {
+                            lifecycle.transformed(sforceObject);
+                        }
+                    }
+                });
+    }
 
-            int counter = 0;
-            for (SforceObjectPair sObjectPairRecord : sourceRecords) {
-                SObject insertRecord = buildMapping(sforceObject, sObjectPairRecord);
+    // Inserts the records of one (non-lookup) object
+    protected void createTarget(SforceObject sforceObject) {
+        if (StreamingInsertPipeline.isEnabled(sforceObject)) {
+            new StreamingInsertPipeline(this, sforceObject, sfdcConnection.getSourceConnection(),
+                    sfdcConnection.getTargetConnection()).run();
+            return;
+        }
 
-                insertRecords[counter] = insertRecord;
-                counter++;
-            }
-            if (sforceObject.getExternalIdField() != null && !sforceObject.getExternalIdField().equals("")) {
-                SfdcApiServiceImpl.getSOQLQueryService().upsertWithExternalId(sfdcConnection.getTargetConnection(),
-                        sforceObject, sforceObject.getExternalIdField(), sourceRecords, insertRecords, true, false);
-            } else {
-                SfdcApiServiceImpl.getSOQLQueryService().create(sfdcConnection.getTargetConnection(), sforceObject,
-                        sourceRecords, insertRecords, true);
-            }
+        Map<String, SforceObjectPair> sourceRecordsMap = sforceObject.getRecordsMap();
+        if (sourceRecordsMap == null) {
+            return;
         }
+        List<SforceObjectPair> sourceRecords = new ArrayList<SforceObjectPair>(sourceRecordsMap.values());
+        sourceRecords = skipJournaled(sforceObject, sourceRecords, IdJournal.CREATED);
 
+        if (sourceRecords == null || sourceRecords.size() == 0) {
+            return;
+        }
+        prefetchLookups(sforceObject, sourceRecords);
+        SObject[] insertRecords = RecordTransformer.transform(sourceRecords, getMapper(sforceObject));
+        if (sforceObject.getExternalIdField() != null && !sforceObject.getExternalIdField().equals("")) {
+            SfdcApiServiceImpl.getSOQLQueryService().upsertWithExternalId(sfdcConnection.getTargetConnection(),
+                    sforceObject, sforceObject.getExternalIdField(), sourceRecords, insertRecords, true, false);
+        } else {
+            SfdcApiServiceImpl.getSOQLQueryService().create(sfdcConnection.getTargetConnection(), sforceObject,
+                    sourceRecords, insertRecords, true);
+        }
     }
 
     public String getLookupTargetId(SforceLookupProperties loopProperty, SforceObject sforceObject, SObject sourceRecord) {
@@ -332,6 +463,10 @@ public class MigrableLookupObject extends MigrableObject {
 
         Object sourceLookupFieldId = sourceRecord.getField(lookupField);
 
+        if (sourceLookupFieldId != null && getLookupResolver() != null) {
+            return getLookupResolver().getTargetId(loopProperty, sourceLookupFieldId.toString());
+        }
+
         // Lookup can be null
         if (sourceLookupFieldId != null) {
 
@@ -357,102 +492,78 @@ public class MigrableLookupObject extends MigrableObject {
         return null;
     }
 
-    // Finds the lookup (Note: lookup!) SForceObject from the list
-    public SforceObject getLookupSforceObj(String lookObjectName) {
-        for (SforceObject sforceObject : sForceObjectList) {
-            String objectName = sforceObject.getsObjectName();
+    /**
+     * Resolver of the lookups (see LookupResolver), null when the whole lookup objects are read
+     */
+    protected synchronized LookupResolver getLookupResolver() {
+        if (lookupResolver == null && LookupResolver.isEnabled()) {
+            lookupResolver =
+                    new LookupResolver(sfdcConnection.getSourceConnection(), sfdcConnection.getTargetConnection());
+        }
+        return lookupResolver;
+    }
 
-            if (sforceObject.isLookup()) {
-                if (lookObjectName != null && objectName != null) {
-                    if (lookObjectName.equalsIgnoreCase(objectName)) {
-                        return sforceObject;
-                    }
-                }
+    /**
+     * Resolves the lookups of the records in batches before they are mapped
+     */
+    public void prefetchLookups(SforceObject sforceObject, List<SforceObjectPair> sourceRecords) {
+        List<SforceLookupProperties> lookupList = lookupPropertiesMap.get(sforceObject.getsObjectName());
+        if (lookupList == null || getLookupResolver() == null || sourceRecords == null) {
+            return;
+        }
+        List<SObject> records = new ArrayList<SObject>(sourceRecords.size());
+        for (SforceObjectPair pair : sourceRecords) {
+            records.add(getSourceView(sforceObject, pair));
+        }
+        getLookupResolver().prefetch(lookupList, records);
+    }
 
+    /**
+     * The source record with the fields the lookup, record type, nullable and parent handling read.
+     * Records kept in a RecordStore are not built as a whole (the mapping plan reads the columns)
+     */
+    protected SObject getSourceView(SforceObject sforceObject, SforceObjectPair sourcePairObj) {
+        if (sourcePairObj.getSourceStore() == null) {
+            return sourcePairObj.getSourceSObject();
+        }
+        Set<String> fields = viewFields.get(sforceObject);
+        if (fields == null) {
+            fields = new HashSet<String>();
+            fields.add("RecordTypeId");
+            List<SforceLookupProperties> lookupList = lookupPropertiesMap.get(sforceObject.getsObjectName());
+            if (lookupList != null) {
+                for (SforceLookupProperties loopProperty : lookupList) {
+                    fields.add(loopProperty.getsLookupField());
+                }
+            }
+            if (sforceObject.getNullableFields() != null) {
+                fields.addAll(sforceObject.getNullableFields());
             }
+            if (sforceObject.getMasterDetail() != null
+                    && sforceObject.getMasterDetail().getParentFieldObjectMap() != null) {
+                fields.addAll(sforceObject.getMasterDetail().getParentFieldObjectMap().keySet());
+            }
+            viewFields.put(sforceObject, fields);
         }
-        return null;
+        return sourcePairObj.getSourceStore().toSObject(sourcePairObj.getSourceRow(), fields);
+    }
+
+    // Finds the lookup (Note: lookup!) SForceObject from the list
+    public SforceObject getLookupSforceObj(String lookObjectName) {
+        return sforceObjectIndex.getLookup(lookObjectName);
     }
 
     @Override
     public SObject buildMapping(SforceObject sforceObject, SforceObjectPair sourcePairObj) {
-        SObject sourceRecord = (SObject) sourcePairObj.getSourceSObject();
+        SObject sourceRecord = getSourceView(sforceObject, sourcePairObj);
         SObject insertRecord = new SObject();
 
         insertRecord.setType(sforceObject.getsObjectName());
 
         MetadataObjectHolder.MetadataRefObject descRefObj = sforceObject.getDescRefObject();
-        Map<String, FieldType> fieldToTypeMap = descRefObj.getFieldToTypeMap();
 
-        Set<String> unmappedFields = sforceObject.getUnmappedFieldsSet();
-        Set<String> maskedFieldsSet = sforceObject.getMaskedFieldsSet();
-        Set<String> commonFields = sforceObject.getCommonFields();
+        getMappingPlan(sforceObject).apply(sourcePairObj, insertRecord, masker);
 
-        List<String> fields = descRefObj.getPrimitiveFieldList();
-        Map<String, String> fieldMapping = sforceObject.getFieldsMapping();
-        Set<String> createableFieldSet  = new HashSet<String>();
-        
-        if (sforceObject.getExternalIdField() == null || sforceObject.getExternalIdField().equals("")) {
-        		createableFieldSet = descRefObj.getCreateableFieldSet();
-        }
-        if (fieldMapping != null && fieldMapping.size() > 0) {
-            for (Map.Entry<String, String> entry : fieldMapping.entrySet()) {
-                String sourceField = entry.getKey();
-                String targetField = entry.getValue();
-                // Id should only be included in the mapping if it needs to be mapped to a different
-                // field ("Id": "Id_From_Na10__c")
-                Object value = null;
-                Object fielValue = sourcePairObj.getSourceSObject().getField(sourceField);
-                if (fielValue != null) {
-                    if(fielValue instanceof com.sforce.ws.bind.XmlObjectWrapper) {
-                    		continue;
-                    }
-                    value = deserialize((String)fielValue, fieldToTypeMap.get(sourceField));
-                    insertRecord.setField(targetField, value);
-                } else {
-                	// If externalIdField is on mapping but null in source, then use id from source as externalId value
-                		if (sforceObject.getExternalIdField() != null && sforceObject.getExternalIdField().equalsIgnoreCase(sourceField)) {
-                			insertRecord.setField(targetField, (String)sourcePairObj.getSourceSObject().getField("Id"));
-                		}
-                }
-            }
-        } else {
-            for (String field : fields) {
-                if (field.equalsIgnoreCase("id")) {
-                    continue;
-                }
-
-                if (unmappedFields != null && unmappedFields.contains(field)) {
-                    continue;
-                }
-                if (commonFields != null && !commonFields.contains(field)) {
-                    log.warn(sforceObject.getsObjectName() + "." + field
-                            + " field definition not matching in source/target orgs!");
-                    continue;
-                }
-                if(!createableFieldSet.isEmpty() && !createableFieldSet.contains(field)) {
-                		continue;
-                }
-                
-                Object value = null;
-                Object fielValue = sourcePairObj.getSourceSObject().getField(field);
-                if (fielValue != null && !fielValue.equals("")) {
-                    if(fielValue instanceof com.sforce.ws.bind.XmlObjectWrapper) {
-                    	continue;
-                    }
-                    if (maskedFieldsSet != null && maskedFieldsSet.contains(field)) {
-                        fielValue = masker.mask((String)fielValue);
-                    }
-                    value = deserialize((String)fielValue, fieldToTypeMap.get(field));
-                    insertRecord.setField(field, value);
-                } else {
-                	// If externalIdField is on mapping but null in source, then use id from source as externalId value
-                	if (sforceObject.getExternalIdField() != null && sforceObject.getExternalIdField().equalsIgnoreCase(field)) {
-                		insertRecord.setField(field, (String)sourcePairObj.getSourceSObject().getField("Id"));
-                	}
-                }
-            }
-        }
         // Handle lookups
         handleLookups(insertRecord, sforceObject, sourceRecord);
         handleNullableFields(insertRecord, sforceObject, sourcePairObj);
@@ -461,6 +572,37 @@ public class MigrableLookupObject extends MigrableObject {
         return insertRecord;
     }
 
+    // Records done by an earlier run of the same journal (see IdJournal) are not sent again. Delta
+    // objects read only changed records, which have to be upserted again even when an earlier run
+    // journaled them
+    protected List<SforceObjectPair> skipJournaled(SforceObject sforceObject, List<SforceObjectPair> sourceRecords,
+            byte status) {
+        IdJournal journal = IdJournal.getInstance();
+        if (journal == null || sforceObject.isDelta()) {
+            return sourceRecords;
+        }
+        return journal.pending(sforceObject.getsObjectName(), sourceRecords, status);
+    }
+
+    // Maps the source records through buildMapping (see RecordTransformer)
+    protected RecordTransformer.RecordMapper getMapper(final SforceObject sforceObject) {
+        return new RecordTransformer.RecordMapper() {
+            @Override
+            public SObject map(SforceObjectPair sourcePairObj) {
+                return buildMapping(sforceObject, sourcePairObj);
+            }
+        };
+    }
+
+    public FieldMappingPlan getMappingPlan(SforceObject sforceObject) {
+        FieldMappingPlan mappingPlan = mappingPlans.get(sforceObject);
+        if (mappingPlan == null) {
+            mappingPlan = FieldMappingPlan.compile(sforceObject);
+            mappingPlans.put(sforceObject, mappingPlan);
+        }
+        return mappingPlan;
+    }
+
     public void handleLookups(SObject insertRecord, SforceObject sforceObject, SObject sourceRecord) {
         List<SforceLookupProperties> lookupList = lookupPropertiesMap.get(sforceObject.getsObjectName());
         if (lookupList != null) {
@@ -484,7 +626,7 @@ public class MigrableLookupObject extends MigrableObject {
         }
 
         for (String nullableField : sforceObject.getNullableFields()) {
-            String fielValue = (String) sourcePairObj.getSourceSObject().getField(nullableField);
+            String fielValue = (String) sourcePairObj.getSourceField(nullableField);
             if (fielValue == null || fielValue.equals("")) {
                 insertRecord.removeField(nullableField);
                 realNullableFields.add(nullableField);
@@ -522,55 +664,14 @@ public class MigrableLookupObject extends MigrableObject {
     }
 
     public Object deserialize(String value, FieldType localType) {
-        if (value != null && value != "" && value.length() > 0) {
-            if (FieldType.string.equals(localType)) {
-                return value;
-            } else if (FieldType._int.equals(localType)) {
-                return Integer.parseInt(value);
-            } else if (FieldType._double.equals(localType)) {
-                return parseDouble(value);
-            } else if (FieldType.currency.equals(localType)) {
-                return parseBigDecimal(value);
-            } else if (FieldType._double.equals(localType)) {
-                return parseBigDecimal(value);
-            } else if (FieldType._int.equals(localType)) {
-                return Long.parseLong(value);
-            } else if (FieldType.time.equals(localType)) {
-                return new Time(value);
-            } else if (FieldType.date.equals(localType)) {
-                return dateCodec.deserialize(value).getTime();
-            } else if (FieldType.datetime.equals(localType)) {
-                return calendarCodec.deserialize(value);
-            } else if (FieldType._boolean.equals(localType)) {
-                return Boolean.parseBoolean(value);
-            } else if (FieldType.base64.equals(localType)) {
-                return Base64.decode(value.getBytes());
-            } else {
-                return value;
-            }
-        }
-        return value;
+        return FieldConverterRegistry.convert(value, FieldConverterRegistry.get(localType));
     }
 
     public double parseDouble(String strValue) {
-        double value;
-        if ("NaN".equals(strValue)) {
-            value = Double.NaN;
-        } else if ("INF".equals(strValue)) {
-            value = Double.POSITIVE_INFINITY;
-        } else if ("-INF".equals(strValue)) {
-            value = Double.NEGATIVE_INFINITY;
-        } else {
-            if (strValue != null && strValue.length() > 0)
-                return Double.parseDouble(strValue);
-            else
-                return 0;
+        if (strValue == null || strValue.length() == 0) {
+            return 0;
         }
-        return value;
-    }
-
-    private BigDecimal parseBigDecimal(String value) {
-        return new BigDecimal(value);
+        return FieldConverterRegistry.parseDouble(strValue);
     }
 
     @SuppressWarnings("unused")
@@ -582,11 +683,16 @@ public class MigrableLookupObject extends MigrableObject {
 
         // Based on field (as parent referred in child)
         SObject sObjectSource = sourceSObjectParentMap.get(mappedField);
-        if (sObjectSource == null) {
+        String sObjectSourceId = null;
+        if (sObjectSource != null) {
+            sObjectSourceId = sObjectSource.getId();
+        } else if (sourcePairObj.getSourceField(mappedField) != null) {
+            // Parents are not attached at query time, use the child's reference
+            sObjectSourceId = sourcePairObj.getSourceField(mappedField).toString();
+        } else {
             log.warn("Parent might be missing: sParentObjectName:" + sParentObjectName + " mappedField:" + mappedField);
             return null;
         }
-        String sObjectSourceId = sObjectSource.getId();
         if (sObjectSourceId == null) {
             log.warn("Parent might be missing: sObjectSourceId is null, sParentObjectName:" + sParentObjectName
                     + " mappedField:" + mappedField);
@@ -607,16 +713,12 @@ public class MigrableLookupObject extends MigrableObject {
     }
 
     public SforceObject getParentSforceObject(String sParentObjectName) {
-        for (SforceObject sforceObj : sForceObjectList) {
-            if (!sforceObj.isLookup() && sParentObjectName.equalsIgnoreCase(sforceObj.getsObjectName())) {
-                return sforceObj;
-            }
-        }
-        return null;
+        return sforceObjectIndex.getNonLookup(sParentObjectName);
     }
 
     protected void readMapping() {
         sForceObjectList = objectMapping.getsForceObjectList();
+        sforceObjectIndex.rebuild(sForceObjectList);
         lookupPropertiesMap = objectMapping.getLookupPropertiesMap();
     }
 
@@ -640,15 +742,25 @@ public class MigrableLookupObject extends MigrableObject {
         return lookupMap;
     }
 
-    private boolean doesLookupExists(String lookObjectName) {
-        for (SforceObject sforceObject : sForceObjectList) {
-            if (sforceObject.isLookup()) {
-                if (sforceObject.getsObjectName().equals(lookObjectName)) {
-                    return true;
-                }
+    /**
+     * Objects of the mapping: standalone/parent, lookup and master-detail objects
+     */
+    protected Set<String> getMappedObjectNames() {
+        Set<String> objectNames = new LinkedHashSet<String>();
+        for (SforceObject sForceObj : sForceObjectList) {
+            objectNames.add(sForceObj.getsObjectName());
+        }
+        for (List<SforceLookupProperties> lookupList : lookupPropertiesMap.values()) {
+            for (SforceLookupProperties loopProperty : lookupList) {
+                objectNames.add(loopProperty.getsLookupSObjectName());
             }
         }
-        return false;
+        objectNames.addAll(objectMapping.getMasterDetailsMap().keySet());
+        return objectNames;
+    }
+
+    private boolean doesLookupExists(String lookObjectName) {
+        return sforceObjectIndex.getLookup(lookObjectName) != null;
     }
 
 }
@@ -26,19 +26,18 @@
 package migrator.core.sobject;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Set;
 
 import org.apache.log4j.Logger;
 
-import com.sforce.soap.partner.FieldType;
 import com.sforce.soap.partner.sobject.SObject;
 
+import migrator.core.buffer.MemoryAccountant;
+import migrator.core.journal.IdJournal;
+import migrator.core.service.IdPairMap;
 import migrator.core.service.MetadataObjectHolder;
 import migrator.core.service.SforceLookupProperties;
 import migrator.core.service.SforceMasterDetail;
@@ -75,6 +74,8 @@ public class MigrableMasterDetailObject extends MigrableLookupObject {
         }
         query();
         insert();
+        finishDelta();
+        MemoryAccountant.getInstance().report();
         cleanup();
         disconnect();
     }
@@ -95,6 +96,7 @@ public class MigrableMasterDetailObject extends MigrableLookupObject {
                 return p1.getSequence() - p2.getSequence();
             }
         });
+        sforceObjectIndex.rebuild(sForceObjectList);
     }
 
     public void cleanup() {
@@ -119,86 +121,14 @@ public class MigrableMasterDetailObject extends MigrableLookupObject {
 
     @Override
     public SObject buildMapping(SforceObject sforceObject, SforceObjectPair sourcePairObj) {
-        SObject sourceRecord = (SObject) sourcePairObj.getSourceSObject();
+        SObject sourceRecord = getSourceView(sforceObject, sourcePairObj);
         SObject insertRecord = new SObject();
 
         insertRecord.setType(sforceObject.getsObjectName());
 
         MetadataObjectHolder.MetadataRefObject descRefObj = sforceObject.getDescRefObject();
-        Map<String, FieldType> fieldToTypeMap = descRefObj.getFieldToTypeMap();
-
-        Set<String> unmappedFields = sforceObject.getUnmappedFieldsSet();
-        Set<String> maskedFieldsSet = sforceObject.getMaskedFieldsSet();
-        Set<String> commonFields = sforceObject.getCommonFields();
-
-        List<String> fields = descRefObj.getPrimitiveFieldList();
-        Map<String, String> fieldMapping = sforceObject.getFieldsMapping();
-        Set<String> createableFieldSet  = new HashSet<String>();
-        
-        if (sforceObject.getExternalIdField() == null || sforceObject.getExternalIdField().equals("")) {
-    			createableFieldSet = descRefObj.getCreateableFieldSet();
-        }
 
-        if (fieldMapping != null && fieldMapping.size() > 0) {
-            for (Map.Entry<String, String> entry : fieldMapping.entrySet()) {
-                String sourceField = entry.getKey();
-                String targetField = entry.getValue();
-                // Id should only be included in the mapping if it needs to be mapped to a different
-                // field ("Id": "Id_From_Na10__c")
-                Object value = null;
-                Object fielValue = sourcePairObj.getSourceSObject().getField(sourceField);
-                if (fielValue != null) {
-                    if(fielValue instanceof com.sforce.ws.bind.XmlObjectWrapper) {
-                    	continue;
-                    }
-                    value = deserialize((String)fielValue, fieldToTypeMap.get(sourceField));
-                    insertRecord.setField(targetField, value);
-                } else {
-                	// If externalIdField is on mapping but null in source, then use id from source as externalId value
-                		if (sforceObject.getExternalIdField() != null && sforceObject.getExternalIdField().equalsIgnoreCase(sourceField)) {
-                			insertRecord.setField(targetField, (String)sourcePairObj.getSourceSObject().getField("Id"));
-                		}
-                }
-            }
-        } else {
-            for (String field : fields) {
-
-                if (field.equalsIgnoreCase("id")) {
-                    continue;
-                }
-
-                if (unmappedFields != null && unmappedFields.contains(field)) {
-                    continue;
-                }
-                if (commonFields != null && !commonFields.contains(field)) {
-                    log.warn(sforceObject.getsObjectName() + "." + field
-                            + " field definition not matching in source/target orgs!");
-                    continue;
-                }
-                if(!createableFieldSet.isEmpty() && !createableFieldSet.contains(field)) {
-            			continue;
-                }   
-                
-                Object value = null;
-                Object fielValue = sourcePairObj.getSourceSObject().getField(field);
-
-                if (fielValue != null && !fielValue.equals("")) {
-                    if(fielValue instanceof com.sforce.ws.bind.XmlObjectWrapper) {
-                    	continue;
-                    }
-                    if (maskedFieldsSet != null && maskedFieldsSet.contains(field)) {
-                        fielValue = masker.mask((String)fielValue);
-                    }
-                    value = deserialize((String)fielValue, fieldToTypeMap.get(field));
-                    insertRecord.setField(field, value);
-	            } else {
-	            	// If externalIdField is on mapping but null in source, then use id from source as externalId value
-	            	if (sforceObject.getExternalIdField() != null && sforceObject.getExternalIdField().equalsIgnoreCase(field)) {
-	            		insertRecord.setField(field, (String)sourcePairObj.getSourceSObject().getField("Id"));
-	            	}
-	            }
-            }
-        }
+        getMappingPlan(sforceObject).apply(sourcePairObj, insertRecord, masker);
 
         // Handle masterdetail
         handleMasterDetail(insertRecord, sforceObject, sourcePairObj);
@@ -236,8 +166,13 @@ public class MigrableMasterDetailObject extends MigrableLookupObject {
 
             // Its parent (child in master is handled in below else part. Lookup handled in parent
             // class)
+            // Streamed objects are queried while inserting
+            if (StreamingInsertPipeline.isEnabled(sforceObject)) {
+                continue;
+            }
+
             if (sforceObject.getMasterDetail() == null && !sforceObject.isLookup()) {
-                Map<String, SforceObjectPair> sforceObjPairMap = new HashMap<String, SforceObjectPair>();
+                Map<String, SforceObjectPair> sforceObjPairMap = new IdPairMap();
                 sforceObjPairMap =
                         SfdcApiServiceImpl.getSOQLQueryService().query(sfdcConnection.getSourceConnection(),
                                 sforceObject, sforceObjPairMap, true);
@@ -249,7 +184,7 @@ public class MigrableMasterDetailObject extends MigrableLookupObject {
                 // Find parent sforceObject?
                 Map<String, SforceObjectPair> sforceObjPairMap = sforceObject.getRecordsMap();
                 if (sforceObjPairMap == null) {
-                    sforceObjPairMap = new HashMap<String, SforceObjectPair>();
+                    sforceObjPairMap = new IdPairMap();
                 }
                 sforceObjPairMap =
                         SfdcApiServiceImpl.getSOQLQueryService().queryChildren(sfdcConnection.getSourceConnection(),
@@ -258,57 +193,47 @@ public class MigrableMasterDetailObject extends MigrableLookupObject {
         }
     }
 
-    // Inserts records
+    // Inserts the records of one (non-lookup) object, parents are done (see ObjectScheduler)
     @Override
-    public void createTarget() {
-        boolean reIssueQuery = false;
-        for (SforceObject sforceObject : sForceObjectList) {
-            String objectName = sforceObject.getsObjectName();
-            reIssueQuery = false;
+    protected void createTarget(SforceObject sforceObject) {
+        String objectName = sforceObject.getsObjectName();
 
-            if (sforceObject.isLookup()) {
-                continue;
-            }
+        // Add example mapping here
+        boolean reIssueQuery = bReIssueLookupQuery(objectName);
 
-            // Add example mapping here
-            if (bReIssueLookupQuery(objectName)) {
-                reIssueQuery = true;
-            }
-
-            Map<String, SforceObjectPair> sourceRecordsMap = sforceObject.getRecordsMap();
-            if (sourceRecordsMap == null) {
-                return;
-            }
-            List<SforceObjectPair> sourceRecords = new ArrayList<SforceObjectPair>(sourceRecordsMap.values());
-
-            int size = 0;
-            if (sourceRecords == null || sourceRecords.size() == 0) {
-                continue;
-            } else {
-                size = sourceRecords.size();
+        if (StreamingInsertPipeline.isEnabled(sforceObject)) {
+            new StreamingInsertPipeline(this, sforceObject, sfdcConnection.getSourceConnection(),
+                    sfdcConnection.getTargetConnection()).run();
+            if (reIssueQuery) {
+                super.reIssueLookupQuery(objectName);
             }
+            return;
+        }
 
-            SObject[] insertRecords = new SObject[size];
+        Map<String, SforceObjectPair> sourceRecordsMap = sforceObject.getRecordsMap();
+        if (sourceRecordsMap == null) {
+            return;
+        }
+        List<SforceObjectPair> sourceRecords = new ArrayList<SforceObjectPair>(sourceRecordsMap.values());
+        sourceRecords = skipJournaled(sforceObject, sourceRecords, IdJournal.CREATED);
 
-            int counter = 0;
-            for (SforceObjectPair sObjectPairRecord : sourceRecords) {
-                SObject insertRecord = buildMapping(sforceObject, sObjectPairRecord);
+        if (sourceRecords == null || sourceRecords.size() == 0) {
+            return;
+        }
 
-                insertRecords[counter] = insertRecord;
-                counter++;
-            }
+        prefetchLookups(sforceObject, sourceRecords);
+        SObject[] insertRecords = RecordTransformer.transform(sourceRecords, getMapper(sforceObject));
 
-            if (sforceObject.getExternalIdField() != null && !sforceObject.getExternalIdField().equals("")) {
-                SfdcApiServiceImpl.getSOQLQueryService().upsertWithExternalId(sfdcConnection.getTargetConnection(),
-                        sforceObject, sforceObject.getExternalIdField(), sourceRecords, insertRecords, true, false);
-            } else {
-                SfdcApiServiceImpl.getSOQLQueryService().create(sfdcConnection.getTargetConnection(), sforceObject,
-                        sourceRecords, insertRecords, true);
-            }
+        if (sforceObject.getExternalIdField() != null && !sforceObject.getExternalIdField().equals("")) {
+            SfdcApiServiceImpl.getSOQLQueryService().upsertWithExternalId(sfdcConnection.getTargetConnection(),
+                    sforceObject, sforceObject.getExternalIdField(), sourceRecords, insertRecords, true, false);
+        } else {
+            SfdcApiServiceImpl.getSOQLQueryService().create(sfdcConnection.getTargetConnection(), sforceObject,
+                    sourceRecords, insertRecords, true);
+        }
 
-            if (reIssueQuery) {
-                super.reIssueLookupQuery(objectName);
-            }
+        if (reIssueQuery) {
+            super.reIssueLookupQuery(objectName);
         }
     }
 
@@ -338,11 +263,16 @@ public class MigrableMasterDetailObject extends MigrableLookupObject {
 
         // Based on field (as parent referred in child)
         SObject sObjectSource = sourceSObjectParentMap.get(mappedField);
-        if (sObjectSource == null) {
+        String sObjectSourceId = null;
+        if (sObjectSource != null) {
+            sObjectSourceId = sObjectSource.getId();
+        } else if (sourcePairObj.getSourceField(mappedField) != null) {
+            // Parents are not attached at query time, use the child's reference
+            sObjectSourceId = sourcePairObj.getSourceField(mappedField).toString();
+        } else {
             log.warn("Parent might be missing: sParentObjectName:" + sParentObjectName + " mappedField:" + mappedField);
             return null;
         }
-        String sObjectSourceId = sObjectSource.getId();
         if (sObjectSourceId == null) {
             log.warn("Parent might be missing: sObjectSourceId is null, sParentObjectName:" + sParentObjectName
                     + " mappedField:" + mappedField);
@@ -361,29 +291,4 @@ public class MigrableMasterDetailObject extends MigrableLookupObject {
         return null;
     }
 
-    public SforceObject getParentSforceObject(String sParentObjectName) {
-        for (SforceObject sforceObj : sForceObjectList) {
-            if (!sforceObj.isLookup() && sParentObjectName.equalsIgnoreCase(sforceObj.getsObjectName())) {
-                return sforceObj;
-            }
-        }
-        return null;
-    }
-
-    // Finds the lookup (Note: lookup!) SForceObject from the list
-    public SforceObject getLookupSforceObj(String lookObjectName) {
-        for (SforceObject sforceObject : sForceObjectList) {
-            String objectName = sforceObject.getsObjectName();
-
-            if (sforceObject.isLookup()) {
-                if (lookObjectName != null && objectName != null) {
-                    if (lookObjectName.equalsIgnoreCase(objectName)) {
-                        return sforceObject;
-                    }
-                }
-            }
-        }
-        return null;
-    }
-
 }
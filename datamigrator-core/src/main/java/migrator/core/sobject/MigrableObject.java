@@ -31,10 +31,15 @@ import java.util.ListIterator;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import org.apache.log4j.Logger;
+import migrator.core.buffer.MemoryAccountant;
 import migrator.core.connect.SfdcConnection;
 import migrator.core.connect.SfdcConnectionFactory;
+import migrator.core.journal.IdJournal;
+import migrator.core.journal.WatermarkStore;
 import migrator.core.service.PropertiesReader;
 import migrator.core.service.SforceObject;
+import migrator.core.service.SforceObjectIndex;
+import migrator.core.service.impl.ObjectPurger;
 import migrator.core.service.impl.SfdcApiServiceImpl;
 
 /**
@@ -48,6 +53,8 @@ public abstract class MigrableObject implements Migrable {
     protected ObjectMappingConfig objectMapping = null;
     protected String operation;
     protected List<SforceObject> sForceObjectList = new ArrayList<SforceObject>();
+    // Name index of sForceObjectList, keep in sync when adding objects
+    protected SforceObjectIndex sforceObjectIndex = new SforceObjectIndex();
 
     static {
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd hhmmss");
@@ -75,6 +82,7 @@ public abstract class MigrableObject implements Migrable {
         }
         query();
         insert();
+        MemoryAccountant.getInstance().report();
         disconnect();
     }
 
@@ -88,30 +96,41 @@ public abstract class MigrableObject implements Migrable {
     public void setup() {}
 
     public SforceObject getSforceObject(String sObjectName) {
-        for (SforceObject sforceObj : sForceObjectList) {
-            if (sObjectName.equalsIgnoreCase(sforceObj.getsObjectName())) {
-                return sforceObj;
-            }
-        }
-        return null;
+        return sforceObjectIndex.get(sObjectName);
     }
 
     public boolean handleDelete() {
         if (operation.equals(Migrable.Operation.DELETE.toString())) {
-            for (int counter = 0; counter < 2; counter++) {
-                for (ListIterator<SforceObject> iterator = sForceObjectList.listIterator(sForceObjectList.size()); iterator
-                        .hasPrevious();) {
-                    SforceObject sforceObject = iterator.previous();
-                    if (!sforceObject.isLookup()) {
-                        SfdcApiServiceImpl.getSOQLQueryService().delete(sforceObject.getsObjectName(), sfdcConnection);
-                    }
-                }
-            }
+            new ObjectPurger(sfdcConnection.getTargetConnection(), sForceObjectList).purge();
+            LookupResolver.clear();
             return true;
         }
         return false;
     }
 
+    /**
+     * Delta runs: deletes the records removed in the source (delta.deletes) and saves the watermarks
+     */
+    protected void finishDelta() {
+        WatermarkStore watermarks = WatermarkStore.getInstance();
+        if (watermarks == null || sForceObjectList == null) {
+            return;
+        }
+        String deletes = PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                "delta.deletes");
+        if (deletes != null && deletes.trim().equalsIgnoreCase("true")) {
+            for (ListIterator<SforceObject> iterator = sForceObjectList.listIterator(sForceObjectList.size()); iterator
+                    .hasPrevious();) {
+                SforceObject sforceObject = iterator.previous();
+                if (sforceObject.isDelta()) {
+                    SfdcApiServiceImpl.getSOQLQueryService().deleteRemoved(sfdcConnection.getSourceConnection(),
+                            sfdcConnection.getTargetConnection(), sforceObject);
+                }
+            }
+        }
+        watermarks.save();
+    }
+
     public boolean connect() {
         PropertiesReader.getInstance();
 
@@ -124,6 +143,8 @@ public abstract class MigrableObject implements Migrable {
     }
 
     public void disconnect() {
+        // Forces the journaled ids to disk and releases the file
+        IdJournal.shutdown();
         // disconnect from source and target
         sfdcConnection.disconnect();
     }
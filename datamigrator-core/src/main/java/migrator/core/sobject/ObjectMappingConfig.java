@@ -208,6 +208,18 @@ public class ObjectMappingConfig {
                     if (batchSize) {
                         sForceObj.setBatchSize((Integer) jsonObj.get("batchSize"));
                     }
+                    Boolean hasStreaming = jsonObj.has("streaming");
+                    if (hasStreaming) {
+                        sForceObj.setStreaming((Boolean) jsonObj.get("streaming"));
+                    }
+                    Boolean hasBulkThreshold = jsonObj.has("bulkThreshold");
+                    if (hasBulkThreshold) {
+                        sForceObj.setBulkThreshold((Integer) jsonObj.get("bulkThreshold"));
+                    }
+                    Boolean hasIdRanges = jsonObj.has("idRanges");
+                    if (hasIdRanges) {
+                        sForceObj.setIdRanges((Integer) jsonObj.get("idRanges"));
+                    }
                     sForceObjectListInt.add(sForceObj);
 
                     // handle children (might be nested)
@@ -266,6 +278,18 @@ public class ObjectMappingConfig {
                     if (batchSize) {
                         masterDetail.setBatchSize((Integer) jsonChildObj.get("batchSize"));
                     }
+                    Boolean hasStreaming = jsonChildObj.has("streaming");
+                    if (hasStreaming) {
+                        masterDetail.setStreaming((Boolean) jsonChildObj.get("streaming"));
+                    }
+                    Boolean hasBulkThreshold = jsonChildObj.has("bulkThreshold");
+                    if (hasBulkThreshold) {
+                        masterDetail.setBulkThreshold((Integer) jsonChildObj.get("bulkThreshold"));
+                    }
+                    Boolean hasIdRanges = jsonChildObj.has("idRanges");
+                    if (hasIdRanges) {
+                        masterDetail.setIdRanges((Integer) jsonChildObj.get("idRanges"));
+                    }
 
                     Boolean hasUnmappedFields = jsonChildObj.has("unmappedFields");
                     if (hasUnmappedFields) {
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.sobject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import migrator.core.service.PropertiesReader;
+import migrator.core.service.SforceLookupProperties;
+import migrator.core.service.SforceObject;
+import migrator.core.service.SforceObjectIndex;
+
+/**
+ * ObjectScheduler : Runs a task (e.g. the inserts) for every non-lookup object of a mapping in
+ * dependency order. An object depends on its master-detail parents and on the lookup objects that
+ * are migrated in the same mapping. With object.parallelism > 1, objects without a dependency
+ * between them run concurrently and a child starts as soon as all of its parents are done. With
+ * the default of 1 the objects run one after another in the list (sequence) order.
+ *
+ * A dependency cycle (e.g. through lookups) is broken at the first object of the cycle in sequence
+ * order, the parents it runs ahead of are logged.
+ */
+public class ObjectScheduler {
+
+    static Logger log = Logger.getLogger(ObjectScheduler.class.getName());
+
+    public interface ObjectTask {
+        public void run(SforceObject sforceObject);
+    }
+
+    // Non-lookup objects in list order
+    private final List<SforceObject> objects = new ArrayList<SforceObject>();
+    private final Map<SforceObject, Set<SforceObject>> parents = new HashMap<SforceObject, Set<SforceObject>>();
+    private final Map<SforceObject, List<SforceObject>> children = new HashMap<SforceObject, List<SforceObject>>();
+
+    public ObjectScheduler(List<SforceObject> sForceObjectList,
+            Map<String, List<SforceLookupProperties>> lookupPropertiesMap, SforceObjectIndex sforceObjectIndex) {
+        for (SforceObject sforceObject : sForceObjectList) {
+            if (!sforceObject.isLookup()) {
+                objects.add(sforceObject);
+                parents.put(sforceObject, new LinkedHashSet<SforceObject>());
+                children.put(sforceObject, new ArrayList<SforceObject>());
+            }
+        }
+        for (SforceObject sforceObject : objects) {
+            if (sforceObject.getMasterDetail() != null) {
+                for (String parentObjectName : sforceObject.getMasterDetail().getParentFieldObjectMap().values()) {
+                    addDependency(sforceObject, sforceObjectIndex.getNonLookup(parentObjectName));
+                }
+            }
+            List<SforceLookupProperties> lookupList =
+                    lookupPropertiesMap != null ? lookupPropertiesMap.get(sforceObject.getsObjectName()) : null;
+            if (lookupList != null) {
+                for (SforceLookupProperties loopProperty : lookupList) {
+                    addDependency(sforceObject, sforceObjectIndex.getNonLookup(loopProperty.getsLookupSObjectName()));
+                }
+            }
+        }
+    }
+
+    private void addDependency(SforceObject child, SforceObject parent) {
+        // Self references are handled within the object
+        if (parent == null || parent == child || !parents.containsKey(parent)) {
+            return;
+        }
+        if (parents.get(child).add(parent)) {
+            children.get(parent).add(child);
+        }
+    }
+
+    public void run(ObjectTask task) {
+        run(task, getParallelism());
+    }
+
+    void run(ObjectTask task, int parallelism) {
+        if (parallelism <= 1 || objects.size() <= 1) {
+            warnOutOfOrder();
+            for (SforceObject sforceObject : objects) {
+                task.run(sforceObject);
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ObjectThreadFactory());
+        try {
+            runGraph(executor, task);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void runGraph(ExecutorService executor, final ObjectTask task) {
+        CompletionService<SforceObject> completionService = new ExecutorCompletionService<SforceObject>(executor);
+
+        Map<SforceObject, Integer> pendingParents = new HashMap<SforceObject, Integer>();
+        for (SforceObject sforceObject : objects) {
+            pendingParents.put(sforceObject, parents.get(sforceObject).size());
+        }
+        List<SforceObject> waiting = new ArrayList<SforceObject>(objects);
+        Set<SforceObject> done = new HashSet<SforceObject>();
+        int running = 0;
+        RuntimeException failure = null;
+
+        while (!waiting.isEmpty() || running > 0) {
+            if (failure == null) {
+                for (Iterator<SforceObject> iterator = waiting.iterator(); iterator.hasNext();) {
+                    SforceObject sforceObject = iterator.next();
+                    if (pendingParents.get(sforceObject) == 0) {
+                        iterator.remove();
+                        submit(completionService, task, sforceObject);
+                        running++;
+                    }
+                }
+                if (running == 0 && !waiting.isEmpty()) {
+                    // Dependency cycle, break it at the first object in sequence order
+                    SforceObject sforceObject = waiting.remove(0);
+                    log.warn("ObjectScheduler: dependency cycle, running " + sforceObject.getsObjectName()
+                            + " before its parents " + names(pendingParents(sforceObject, done))
+                            + ", its lookups to them may not resolve");
+                    submit(completionService, task, sforceObject);
+                    running++;
+                }
+            } else if (running == 0) {
+                break;
+            }
+
+            try {
+                SforceObject completed = completionService.take().get();
+                running--;
+                done.add(completed);
+                for (SforceObject child : children.get(completed)) {
+                    pendingParents.put(child, pendingParents.get(child) - 1);
+                }
+            } catch (ExecutionException e) {
+                running--;
+                Throwable cause = e.getCause();
+                log.error("ObjectScheduler: object migration failed", cause);
+                if (failure == null) {
+                    failure = cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while migrating objects", e);
+            }
+        }
+
+        if (failure != null) {
+            for (SforceObject sforceObject : waiting) {
+                log.error("ObjectScheduler: skipped " + sforceObject.getsObjectName() + " after a failure");
+            }
+            throw failure;
+        }
+    }
+
+    // In list order an object runs before its parents that come later in the list (a dependency
+    // cycle, or a sequence not matching the dependencies)
+    private void warnOutOfOrder() {
+        Set<SforceObject> done = new HashSet<SforceObject>();
+        for (SforceObject sforceObject : objects) {
+            List<SforceObject> later = pendingParents(sforceObject, done);
+            if (!later.isEmpty()) {
+                log.warn("ObjectScheduler: " + sforceObject.getsObjectName() + " runs before its parents "
+                        + names(later) + ", its lookups to them may not resolve");
+            }
+            done.add(sforceObject);
+        }
+    }
+
+    // Parents of the object not done yet
+    private List<SforceObject> pendingParents(SforceObject sforceObject, Set<SforceObject> done) {
+        List<SforceObject> pending = new ArrayList<SforceObject>();
+        for (SforceObject parent : parents.get(sforceObject)) {
+            if (!done.contains(parent)) {
+                pending.add(parent);
+            }
+        }
+        return pending;
+    }
+
+    private static String names(List<SforceObject> sforceObjects) {
+        StringBuilder names = new StringBuilder();
+        for (SforceObject sforceObject : sforceObjects) {
+            names.append(names.length() > 0 ? ", " : "").append(sforceObject.getsObjectName());
+        }
+        return names.toString();
+    }
+
+    private void submit(CompletionService<SforceObject> completionService, final ObjectTask task,
+            final SforceObject sforceObject) {
+        log.info("ObjectScheduler: starting " + sforceObject.getsObjectName());
+        completionService.submit(new Callable<SforceObject>() {
+            @Override
+            public SforceObject call() {
+                long t1 = System.currentTimeMillis();
+                task.run(sforceObject);
+                log.info("ObjectScheduler: " + sforceObject.getsObjectName() + " took ["
+                        + (System.currentTimeMillis() - t1) + "]ms");
+                return sforceObject;
+            }
+        });
+    }
+
+    private static int getParallelism() {
+        String parallelism =
+                PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                        "object.parallelism");
+        if (parallelism == null || parallelism.trim().equals("")) {
+            return 1;
+        }
+        return Math.max(1, Integer.parseInt(parallelism.trim()));
+    }
+
+    private static class ObjectThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "migrator-object-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
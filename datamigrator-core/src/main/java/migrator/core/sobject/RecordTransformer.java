@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.sobject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.sobject.SObject;
+import migrator.core.service.PropertiesReader;
+import migrator.core.service.SforceObjectPair;
+
+/**
+ * RecordTransformer : Maps the source records into insert records on all cores (fork/join over
+ * index ranges of the source records). Every record is written to its own index, so insertRecords[i]
+ * always belongs to sourceRecords.get(i) as the create/upsert result correlation expects.
+ *
+ * The pool size comes from transform.threads (default: number of processors).
+ */
+public class RecordTransformer {
+
+    static Logger log = Logger.getLogger(RecordTransformer.class.getName());
+
+    // Ranges up to this size are mapped by one task
+    private static final int SPLIT_THRESHOLD = 256;
+
+    private static ForkJoinPool pool;
+
+    public interface RecordMapper {
+        public SObject map(SforceObjectPair sourcePairObj);
+    }
+
+    private RecordTransformer() {}
+
+    public static SObject[] transform(List<SforceObjectPair> sourceRecords, RecordMapper mapper) {
+        if (!(sourceRecords instanceof RandomAccess)) {
+            sourceRecords = new ArrayList<SforceObjectPair>(sourceRecords);
+        }
+        SObject[] insertRecords = new SObject[sourceRecords.size()];
+
+        ForkJoinPool forkJoinPool = getPool();
+        if (insertRecords.length <= SPLIT_THRESHOLD || forkJoinPool.getParallelism() == 1) {
+            for (int i = 0; i < insertRecords.length; i++) {
+                insertRecords[i] = mapper.map(sourceRecords.get(i));
+            }
+        } else {
+            forkJoinPool.invoke(new TransformTask(sourceRecords, insertRecords, mapper, 0, insertRecords.length));
+        }
+        return insertRecords;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            String threads =
+                    PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                            "transform.threads");
+            if (threads != null && !threads.trim().equals("")) {
+                parallelism = Math.max(1, Integer.parseInt(threads.trim()));
+            }
+            log.info("Starting record transformer with " + parallelism + " threads");
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    private static class TransformTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<SforceObjectPair> sourceRecords;
+        private final SObject[] insertRecords;
+        private final RecordMapper mapper;
+        private final int fromIndex;
+        private final int toIndex;
+
+        TransformTask(List<SforceObjectPair> sourceRecords, SObject[] insertRecords, RecordMapper mapper,
+                int fromIndex, int toIndex) {
+            this.sourceRecords = sourceRecords;
+            this.insertRecords = insertRecords;
+            this.mapper = mapper;
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+        }
+
+        @Override
+        protected void compute() {
+            if (toIndex - fromIndex <= SPLIT_THRESHOLD) {
+                for (int i = fromIndex; i < toIndex; i++) {
+                    insertRecords[i] = mapper.map(sourceRecords.get(i));
+                }
+                return;
+            }
+            int middle = (fromIndex + toIndex) >>> 1;
+            invokeAll(new TransformTask(sourceRecords, insertRecords, mapper, fromIndex, middle),
+                    new TransformTask(sourceRecords, insertRecords, mapper, middle, toIndex));
+        }
+    }
+}
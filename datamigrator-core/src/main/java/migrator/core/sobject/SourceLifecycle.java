@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.sobject;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.Logger;
+import migrator.core.service.PropertiesReader;
+import migrator.core.service.SforceLookupProperties;
+import migrator.core.service.SforceObject;
+import migrator.core.service.SforceObjectIndex;
+
+/**
+ * SourceLifecycle : Releases the source records of an object once they are no longer read. Every
+ * object is referenced by its own inserts and by each object that depends on it (master-detail
+ * children and objects with a lookup to it, lookup objects included). When the last of them is
+ * transformed, the source SObjects and record store of the object are dropped. The records maps
+ * keep the source and target ids, which is all the children need.
+ */
+public class SourceLifecycle {
+
+    static Logger log = Logger.getLogger(SourceLifecycle.class.getName());
+
+    // References left per object
+    private final Map<SforceObject, Integer> references = new HashMap<SforceObject, Integer>();
+    // Objects an object reads while it is transformed
+    private final Map<SforceObject, Set<SforceObject>> dependencies = new HashMap<SforceObject, Set<SforceObject>>();
+
+    public SourceLifecycle(List<SforceObject> sForceObjectList,
+            Map<String, List<SforceLookupProperties>> lookupPropertiesMap, SforceObjectIndex sforceObjectIndex) {
+        for (SforceObject sforceObject : sForceObjectList) {
+            if (!sforceObject.isLookup()) {
+                references.put(sforceObject, 1);
+                dependencies.put(sforceObject, new LinkedHashSet<SforceObject>());
+            }
+        }
+        for (SforceObject sforceObject : sForceObjectList) {
+            if (sforceObject.isLookup()) {
+                continue;
+            }
+            if (sforceObject.getMasterDetail() != null) {
+                for (String parentObjectName : sforceObject.getMasterDetail().getParentFieldObjectMap().values()) {
+                    addDependency(sforceObject, sforceObjectIndex.getNonLookup(parentObjectName));
+                }
+            }
+            List<SforceLookupProperties> lookupList =
+                    lookupPropertiesMap != null ? lookupPropertiesMap.get(sforceObject.getsObjectName()) : null;
+            if (lookupList != null) {
+                for (SforceLookupProperties loopProperty : lookupList) {
+                    addDependency(sforceObject, sforceObjectIndex.getNonLookup(loopProperty.getsLookupSObjectName()));
+                    addDependency(sforceObject, sforceObjectIndex.getLookup(loopProperty.getsLookupSObjectName()));
+                }
+            }
+        }
+    }
+
+    /**
+     * source.release.early (default false)
+     */
+    public static boolean isEnabled() {
+        String value =
+                PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                        "source.release.early");
+        return value != null && value.trim().equalsIgnoreCase("true");
+    }
+
+    // Self references read the lookup object, which is a separate SforceObject
+    private void addDependency(SforceObject child, SforceObject parent) {
+        if (parent == null || parent == child) {
+            return;
+        }
+        if (dependencies.get(child).add(parent)) {
+            Integer count = references.get(parent);
+            references.put(parent, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * The records of an object were transformed and inserted: releases it and the objects it read
+     * when nothing else reads them anymore
+     */
+    public void transformed(SforceObject sforceObject) {
+        Set<SforceObject> objects = dependencies.get(sforceObject);
+        if (objects == null) {
+            return;
+        }
+        dereference(sforceObject);
+        for (SforceObject parent : objects) {
+            dereference(parent);
+        }
+    }
+
+    private void dereference(SforceObject sforceObject) {
+        synchronized (references) {
+            Integer count = references.get(sforceObject);
+            if (count == null || count <= 0) {
+                return;
+            }
+            references.put(sforceObject, count - 1);
+            if (count > 1) {
+                return;
+            }
+        }
+        sforceObject.releaseSource();
+        log.info(sforceObject.getsObjectName() + (sforceObject.isLookup() ? " (lookup)" : "")
+                + " : source records released, ids kept");
+    }
+}
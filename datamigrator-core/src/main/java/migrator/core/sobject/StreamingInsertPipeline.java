@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.sobject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.sobject.SObject;
+import migrator.core.buffer.MemoryAccountant;
+import migrator.core.buffer.WorkerPool;
+import migrator.core.journal.IdJournal;
+import migrator.core.service.IQueryPageHandler;
+import migrator.core.service.IdPairMap;
+import migrator.core.service.PropertiesReader;
+import migrator.core.service.SforceObject;
+import migrator.core.service.SforceObjectPair;
+import migrator.core.service.impl.SfdcApiServiceImpl;
+
+/**
+ * StreamingInsertPipeline : Streams the source query pages through buildMapping into a bounded
+ * insert queue. A reader on the shared I/O pool (WorkerPool) walks query/queryMore and maps every
+ * page, the calling thread takes the mapped pages off the queue and inserts them into the target
+ * org. Only the pages waiting in the queue are held in memory. Once a page is inserted, its source records are reduced to their
+ * ids so the source-to-target id map of the object can still be used by the children.
+ */
+public class StreamingInsertPipeline {
+
+    static Logger log = Logger.getLogger(StreamingInsertPipeline.class.getName());
+
+    // Default number of mapped pages waiting to be inserted
+    private static final int DEFAULT_QUEUE_DEPTH = 4;
+
+    // Marks the end of the source pages
+    private static final InsertPage END_OF_PAGES = new InsertPage(null, null, null);
+
+    private final Migrable migrable;
+    private final SforceObject sforceObject;
+    private final PartnerConnection sourceConnection;
+    private final PartnerConnection targetConnection;
+    private final BlockingQueue<InsertPage> queue;
+
+    // Set when the inserting side stops early, so the reader does not wait on a full queue
+    private volatile boolean cancelled = false;
+
+    public StreamingInsertPipeline(Migrable migrable, SforceObject sforceObject, PartnerConnection sourceConnection,
+            PartnerConnection targetConnection) {
+        this.migrable = migrable;
+        this.sforceObject = sforceObject;
+        this.sourceConnection = sourceConnection;
+        this.targetConnection = targetConnection;
+        this.queue = new ArrayBlockingQueue<InsertPage>(getQueueDepth());
+    }
+
+    /**
+     * Streaming is used for non-lookup objects when turned on in the JSON mapping ("streaming":
+     * true) or for all objects with source.query.streaming=true. Objects with refresh need their
+     * full source records for the second (update) pass, so they are never streamed.
+     */
+    public static boolean isEnabled(SforceObject sforceObject) {
+        if (sforceObject.isLookup() || sforceObject.isRefresh()) {
+            return false;
+        }
+        if (sforceObject.isStreaming()) {
+            return true;
+        }
+        String streaming =
+                PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                        "source.query.streaming");
+        return streaming != null && Boolean.parseBoolean(streaming.trim());
+    }
+
+    /**
+     * Runs the query, mapping and inserts for the object. Returns the number of records sent to the
+     * target org. Throws when the source could not be read in full, so the object (and the objects
+     * depending on it) fail instead of being migrated from part of the source.
+     */
+    public int run() {
+        long t1 = System.currentTimeMillis();
+        log.info("Streaming " + sforceObject.getsObjectName() + " with queue depth: " + queue.remainingCapacity());
+
+        if (sforceObject.getRecordsMap() == null) {
+            sforceObject.setRecordsMap(new IdPairMap());
+        }
+
+        Future<?> readerFuture = WorkerPool.getIoExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SfdcApiServiceImpl.getSOQLQueryService().queryPages(sourceConnection, sforceObject,
+                            new PageMapper(), true);
+                } finally {
+                    putEndOfPages();
+                }
+            }
+        });
+
+        int inserted = 0;
+        try {
+            while (true) {
+                InsertPage page = queue.take();
+                if (page == END_OF_PAGES) {
+                    break;
+                }
+                // Handed over to the insert call, which accounts its records itself
+                MemoryAccountant.getInstance().release(MemoryAccountant.Stage.TRANSFORM,
+                        sforceObject.getsObjectName(), page.bytes);
+                insert(page);
+                inserted += page.sourceRecords.size();
+            }
+            readerFuture.get();
+        } catch (InterruptedException e) {
+            cancelled = true;
+            readerFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            log.error("StreamingInsertPipeline interrupted: sObjectAPIName: " + sforceObject.getsObjectName(), e);
+            throw new RuntimeException("Streaming of " + sforceObject.getsObjectName() + " interrupted", e);
+        } catch (ExecutionException e) {
+            log.error("StreamingInsertPipeline.Exception: sObjectAPIName: " + sforceObject.getsObjectName(), e);
+            throw new RuntimeException("Streaming of " + sforceObject.getsObjectName() + " failed after "
+                    + inserted + " records", e.getCause());
+        } finally {
+            cancelled = true;
+            readerFuture.cancel(true);
+            // Pages left behind by a failed run
+            for (InsertPage page : queue) {
+                MemoryAccountant.getInstance().release(MemoryAccountant.Stage.TRANSFORM,
+                        sforceObject.getsObjectName(), page.bytes);
+            }
+        }
+
+        log.info("Streamed " + inserted + " " + sforceObject.getsObjectName() + " records in ["
+                + (System.currentTimeMillis() - t1) + "]ms");
+        return inserted;
+    }
+
+    private void insert(InsertPage page) {
+        String externalIdField = sforceObject.getExternalIdField();
+        if (page.insertRecords.length == 0) {
+            // Whole page done by an earlier run
+        } else if (externalIdField != null && !externalIdField.equals("")) {
+            SfdcApiServiceImpl.getSOQLQueryService().upsertWithExternalId(targetConnection, sforceObject,
+                    externalIdField, page.sourceRecords, page.insertRecords, true, false);
+        } else {
+            SfdcApiServiceImpl.getSOQLQueryService().create(targetConnection, sforceObject, page.sourceRecords,
+                    page.insertRecords, true);
+        }
+
+        // Keep only the ids, children resolve their parents through the id map
+        Map<String, SforceObjectPair> recordsMap = sforceObject.getRecordsMap();
+        for (SforceObjectPair pair : page.pageRecords) {
+            SObject idOnly = new SObject();
+            idOnly.setType(sforceObject.getsObjectName());
+            idOnly.setId(pair.getSourceId());
+            pair.setSourceSObject(idOnly);
+            recordsMap.put(pair.getSourceId(), pair);
+        }
+    }
+
+    private void putEndOfPages() {
+        try {
+            offer(END_OF_PAGES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Blocks while the queue is full, gives up once the pipeline is cancelled
+    private void offer(InsertPage page) throws InterruptedException {
+        while (!queue.offer(page, 1, TimeUnit.SECONDS)) {
+            if (cancelled) {
+                throw new InterruptedException("Streaming of " + sforceObject.getsObjectName() + " cancelled");
+            }
+        }
+    }
+
+    private int getQueueDepth() {
+        String depth =
+                PropertiesReader.getInstance().getProperty(PropertiesReader.PROPERTY_TYPE.BUILD,
+                        "source.query.streaming.queue.depth");
+        if (depth == null || depth.trim().equals("")) {
+            return DEFAULT_QUEUE_DEPTH;
+        }
+        return Math.max(1, Integer.parseInt(depth.trim()));
+    }
+
+    // Maps every source page and parks it on the queue (blocks while the queue is full)
+    class PageMapper implements IQueryPageHandler {
+
+        @Override
+        public void handlePage(final SforceObject sforceObject, SObject[] records) throws Exception {
+            List<SforceObjectPair> pageRecords = new ArrayList<SforceObjectPair>(records.length);
+            for (int i = 0; i < records.length; i++) {
+                SforceObjectPair pair = new SforceObjectPair();
+                pair.setSourceId(records[i].getId());
+                pair.setSourceSObject(records[i]);
+                pageRecords.add(pair);
+            }
+            // Records created by an earlier run only go into the id map, except the changed records
+            // of a delta object (see MigrableLookupObject.skipJournaled)
+            List<SforceObjectPair> sourceRecords = pageRecords;
+            IdJournal journal = IdJournal.getInstance();
+            if (journal != null && !sforceObject.isDelta()) {
+                sourceRecords = journal.pending(sforceObject.getsObjectName(), pageRecords, IdJournal.CREATED);
+            }
+            if (migrable instanceof MigrableLookupObject) {
+                ((MigrableLookupObject) migrable).prefetchLookups(sforceObject, sourceRecords);
+            }
+            SObject[] insertRecords =
+                    RecordTransformer.transform(sourceRecords, new RecordTransformer.RecordMapper() {
+                        @Override
+                        public SObject map(SforceObjectPair sourcePairObj) {
+                            return migrable.buildMapping(sforceObject, sourcePairObj);
+                        }
+                    });
+            // Pauses the reader while the mapped pages waiting for the inserts use up the budget
+            InsertPage page = new InsertPage(pageRecords, sourceRecords, insertRecords);
+            MemoryAccountant.getInstance().acquire(MemoryAccountant.Stage.TRANSFORM, sforceObject.getsObjectName(),
+                    page.bytes);
+            try {
+                offer(page);
+            } catch (InterruptedException e) {
+                MemoryAccountant.getInstance().release(MemoryAccountant.Stage.TRANSFORM,
+                        sforceObject.getsObjectName(), page.bytes);
+                throw e;
+            }
+        }
+    }
+
+    private static class InsertPage {
+        final List<SforceObjectPair> pageRecords;
+        final List<SforceObjectPair> sourceRecords;
+        final SObject[] insertRecords;
+        // Estimated size of the insert records (see MemoryAccountant)
+        final long bytes;
+
+        InsertPage(List<SforceObjectPair> pageRecords, List<SforceObjectPair> sourceRecords,
+                SObject[] insertRecords) {
+            this.pageRecords = pageRecords;
+            this.sourceRecords = sourceRecords;
+            this.insertRecords = insertRecords;
+            this.bytes = MemoryAccountant.estimateBytes(insertRecords);
+        }
+    }
+}
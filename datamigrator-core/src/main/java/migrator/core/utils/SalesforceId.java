@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SalesforceId : Salesforce ids as primitive longs. The first 6 characters of an id (key prefix,
+ * instance, reserved) take a handful of values per org and are kept in a shared dictionary, the 9
+ * character record number after them is read as a base 62 number (< 2^54). An encoded id is
+ *
+ * bit 62: 15 character id, bits 54-61: prefix index, bits 0-53: record number
+ *
+ * The 18 character form is the 15 character id plus its case-checksum suffix, so both forms of an
+ * id have the same key (see key).
+ */
+public final class SalesforceId {
+
+    public static final long NONE = -1;
+
+    private static final String BASE62 = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final String CHECKSUM = "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345";
+
+    private static final int PREFIX_CHARS = 6;
+    private static final int NUMBER_CHARS = 9;
+    private static final int NUMBER_BITS = 54;
+    private static final int MAX_PREFIXES = 256;
+    private static final long NUMBER_MASK = (1L << NUMBER_BITS) - 1;
+    private static final long SHORT_FLAG = 1L << 62;
+
+    private static final List<String> prefixes = new ArrayList<String>();
+    private static final Map<String, Integer> prefixIndex = new ConcurrentHashMap<String, Integer>();
+
+    private SalesforceId() {}
+
+    /**
+     * Encoded id, NONE if the value is not a 15 or 18 character id with a valid checksum (or the
+     * prefix dictionary is full)
+     */
+    public static long encode(String id) {
+        if (id == null || (id.length() != 15 && id.length() != 18)) {
+            return NONE;
+        }
+        long number = 0;
+        for (int i = PREFIX_CHARS; i < PREFIX_CHARS + NUMBER_CHARS; i++) {
+            int digit = digit(id.charAt(i));
+            if (digit < 0) {
+                return NONE;
+            }
+            number = number * 62 + digit;
+        }
+        for (int i = 0; i < PREFIX_CHARS; i++) {
+            if (digit(id.charAt(i)) < 0) {
+                return NONE;
+            }
+        }
+        // The suffix is computed when the id is decoded
+        if (id.length() == 18 && !id.regionMatches(15, checksum(id), 0, 3)) {
+            return NONE;
+        }
+        int index = prefixIndex(id.substring(0, PREFIX_CHARS));
+        if (index < 0) {
+            return NONE;
+        }
+        long encoded = ((long) index << NUMBER_BITS) | number;
+        return id.length() == 15 ? encoded | SHORT_FLAG : encoded;
+    }
+
+    /**
+     * The id in the form it was encoded from
+     */
+    public static String decode(long encoded) {
+        String prefix;
+        synchronized (prefixes) {
+            prefix = prefixes.get((int) ((encoded & ~SHORT_FLAG) >>> NUMBER_BITS));
+        }
+        char[] chars = new char[PREFIX_CHARS + NUMBER_CHARS];
+        prefix.getChars(0, PREFIX_CHARS, chars, 0);
+        long number = encoded & NUMBER_MASK;
+        for (int i = chars.length - 1; i >= PREFIX_CHARS; i--) {
+            chars[i] = BASE62.charAt((int) (number % 62));
+            number /= 62;
+        }
+        String id = new String(chars);
+        return (encoded & SHORT_FLAG) != 0 ? id : id + checksum(id);
+    }
+
+    /**
+     * Same key for the 15 and the 18 character form of an id
+     */
+    public static long key(long encoded) {
+        return encoded & ~SHORT_FLAG;
+    }
+
+    // Case-checksum suffix of the 18 character id
+    static String checksum(String id15) {
+        char[] suffix = new char[3];
+        for (int chunk = 0; chunk < 3; chunk++) {
+            int bits = 0;
+            for (int i = 0; i < 5; i++) {
+                char c = id15.charAt(chunk * 5 + i);
+                if (c >= 'A' && c <= 'Z') {
+                    bits |= 1 << i;
+                }
+            }
+            suffix[chunk] = CHECKSUM.charAt(bits);
+        }
+        return new String(suffix);
+    }
+
+    private static int prefixIndex(String prefix) {
+        Integer index = prefixIndex.get(prefix);
+        if (index != null) {
+            return index;
+        }
+        synchronized (prefixes) {
+            index = prefixIndex.get(prefix);
+            if (index == null) {
+                if (prefixes.size() >= MAX_PREFIXES) {
+                    return -1;
+                }
+                index = prefixes.size();
+                prefixes.add(prefix);
+                prefixIndex.put(prefix, index);
+            }
+            return index;
+        }
+    }
+
+    private static int digit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 36;
+        }
+        return -1;
+    }
+}
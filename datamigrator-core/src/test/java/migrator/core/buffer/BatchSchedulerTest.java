@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.StatusCode;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+import migrator.core.buffer.BatchScheduler.BatchOperation;
+import migrator.core.connect.TargetConnectionPool;
+
+/**
+ * BatchSchedulerTest : Runs the scheduler over a fake operation and checks every record is sent
+ * and reported exactly as expected: no record lost or sent twice, retries, split of batches too
+ * large, parent groups and the memory held by batches in flight.
+ */
+public class BatchSchedulerTest {
+
+    private static final int CONNECTIONS = 4;
+
+    @Test(timeout = 30000)
+    public void sendsEveryRecordOnce() {
+        FakeOperation operation = new FakeOperation(1000);
+        int processed = scheduler(50, RetryPolicy.NONE).execute(1000, null, operation);
+
+        assertEquals(1000, processed);
+        operation.assertSentTimes(1000, 1);
+        assertEquals(0, operation.failedRecords.get());
+    }
+
+    @Test(timeout = 30000)
+    public void sendsFailedRecordsAgain() {
+        FakeOperation operation = new FakeOperation(500) {
+            @Override
+            StatusCode statusCode(int index, int attempt) {
+                // Every tenth record is locked on the first attempt, record 7 every time
+                if (index == 7 || (index % 10 == 0 && attempt == 1)) {
+                    return StatusCode.UNABLE_TO_LOCK_ROW;
+                }
+                return null;
+            }
+        };
+        scheduler(50, RetryPolicy.of(StatusCode.UNABLE_TO_LOCK_ROW)).execute(500, null, operation);
+
+        for (int i = 0; i < 500; i++) {
+            int expected = i == 7 ? 3 : i % 10 == 0 ? 2 : 1;
+            assertEquals("record " + i, expected, operation.sent.get(i));
+        }
+        // Record 7 is not sent again after its last attempt
+        assertEquals(50 + 2, operation.retried.get());
+    }
+
+    @Test(timeout = 30000)
+    public void doesNotRetryWithoutPolicy() {
+        FakeOperation operation = new FakeOperation(100) {
+            @Override
+            StatusCode statusCode(int index, int attempt) {
+                return StatusCode.UNABLE_TO_LOCK_ROW;
+            }
+        };
+        scheduler(10, RetryPolicy.NONE).execute(100, null, operation);
+
+        operation.assertSentTimes(100, 1);
+        assertEquals(0, operation.retried.get());
+    }
+
+    @Test(timeout = 30000)
+    public void splitsBatchesTooLarge() {
+        FakeOperation operation = new FakeOperation(400) {
+            @Override
+            void check(int[] indexes) throws Exception {
+                if (indexes.length > 12) {
+                    throw new Exception("EXCEEDED_MAX_SIZE_REQUEST: request too large");
+                }
+            }
+        };
+        int processed = scheduler(100, RetryPolicy.NONE).execute(400, null, operation);
+
+        assertEquals(400, processed);
+        operation.assertSentTimes(400, 1);
+        assertEquals(0, operation.failedRecords.get());
+    }
+
+    @Test(timeout = 30000)
+    public void failsSingleRecordTooLarge() {
+        FakeOperation operation = new FakeOperation(20) {
+            @Override
+            void check(int[] indexes) throws Exception {
+                for (int index : indexes) {
+                    if (index == 5) {
+                        throw new Exception("EXCEEDED_MAX_SIZE_REQUEST: request too large");
+                    }
+                }
+            }
+        };
+        scheduler(20, RetryPolicy.NONE).execute(20, null, operation);
+
+        assertEquals(1, operation.failedRecords.get());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("record " + i, i == 5 ? 0 : 1, operation.sent.get(i));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void reportsFailedBatches() {
+        FakeOperation operation = new FakeOperation(100) {
+            @Override
+            void check(int[] indexes) throws Exception {
+                if (indexes[0] == 30) {
+                    throw new ConnectionException("connection reset");
+                }
+            }
+        };
+        scheduler(10, RetryPolicy.NONE).execute(100, null, operation);
+
+        assertEquals(10, operation.failedRecords.get());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("record " + i, i >= 30 && i < 40 ? 0 : 1, operation.sent.get(i));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void failsRecordsOfADeadWorker() {
+        FakeOperation operation = new FakeOperation(100) {
+            @Override
+            void check(int[] indexes) throws Exception {
+                if (indexes[0] == 30) {
+                    throw new AssertionError("worker died");
+                }
+            }
+        };
+        scheduler(10, RetryPolicy.NONE).execute(100, null, operation);
+
+        // The other workers send the rest
+        assertEquals(10, operation.failedRecords.get());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("record " + i, i >= 30 && i < 40 ? 0 : 1, operation.sent.get(i));
+            assertEquals("record " + i, i >= 30 && i < 40 ? 1 : 0, operation.failed.get(i));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void failsRecordsNotSentOnceAllWorkersDied() {
+        FakeOperation operation = new FakeOperation(100) {
+            @Override
+            void check(int[] indexes) throws Exception {
+                if (indexes[0] >= 30) {
+                    throw new AssertionError("worker died");
+                }
+            }
+        };
+        scheduler(10, RetryPolicy.NONE).execute(100, null, operation);
+
+        assertEquals(70, operation.failedRecords.get());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("record " + i, i < 30 ? 1 : 0, operation.sent.get(i));
+            assertEquals("record " + i, i < 30 ? 0 : 1, operation.failed.get(i));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void neverSendsParentGroupTwiceAtOnce() {
+        int size = 600;
+        // Groups of 1 to 35 records, larger than a batch for some, and records without parent
+        final int[] groups = new int[size];
+        int group = 0;
+        int remaining = 0;
+        for (int i = 0; i < size; i++) {
+            if (i % 7 == 3) {
+                groups[i] = -1;
+                continue;
+            }
+            if (remaining == 0) {
+                remaining = 1 + (group * 13) % 35;
+                group++;
+            }
+            groups[i] = group - 1;
+            remaining--;
+        }
+        final AtomicIntegerArray groupsInFlight = new AtomicIntegerArray(group);
+        final AtomicInteger overlaps = new AtomicInteger();
+        FakeOperation operation = new FakeOperation(size) {
+            @Override
+            void check(int[] indexes) throws Exception {
+                List<Integer> batchGroups = new ArrayList<Integer>();
+                for (int index : indexes) {
+                    if (groups[index] >= 0 && !batchGroups.contains(groups[index])) {
+                        batchGroups.add(groups[index]);
+                    }
+                }
+                for (int batchGroup : batchGroups) {
+                    if (groupsInFlight.incrementAndGet(batchGroup) > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                }
+                Thread.sleep(2);
+                for (int batchGroup : batchGroups) {
+                    groupsInFlight.decrementAndGet(batchGroup);
+                }
+            }
+
+            @Override
+            StatusCode statusCode(int index, int attempt) {
+                return index % 11 == 0 && attempt == 1 ? StatusCode.UNABLE_TO_LOCK_ROW : null;
+            }
+        };
+        scheduler(10, RetryPolicy.of(StatusCode.UNABLE_TO_LOCK_ROW)).execute(size, null, groups, operation);
+
+        assertEquals(0, overlaps.get());
+        for (int i = 0; i < size; i++) {
+            assertEquals("record " + i, i % 11 == 0 ? 2 : 1, operation.sent.get(i));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void holdsMemoryOnlyWhileBatchesAreInFlight() {
+        final MemoryAccountant accountant = MemoryAccountant.getInstance();
+        final long heldBefore = accountant.getHeldBytes();
+        final long budget = 1024 * 1024;
+        int size = 200;
+        long[] recordBytes = new long[size];
+        for (int i = 0; i < size; i++) {
+            recordBytes[i] = 100 * 1024;
+        }
+        final AtomicLong peak = new AtomicLong();
+        FakeOperation operation = new FakeOperation(size) {
+            @Override
+            void check(int[] indexes) throws Exception {
+                long held = accountant.getHeldBytes() - heldBefore;
+                synchronized (peak) {
+                    peak.set(Math.max(peak.get(), held));
+                }
+                assertTrue("batch of " + indexes.length + " records not accounted", held >= indexes.length
+                        * 100 * 1024);
+                Thread.sleep(2);
+                if (indexes[0] == 40) {
+                    throw new ConnectionException("connection reset");
+                }
+            }
+        };
+        // Batches of 4 records (400 KB) on 4 connections: only two fit in the budget at a time
+        BatchSizeController controller = new BatchSizeController("Account.create", 4, false, 400 * 1024, 15000L, 0.05);
+        new BatchScheduler("Account", pool(), CONNECTIONS, controller, RetryPolicy.NONE).execute(size, recordBytes,
+                operation);
+
+        assertEquals(heldBefore, accountant.getHeldBytes());
+        assertTrue("peak " + peak.get() + " over budget", peak.get() <= budget);
+        assertTrue(peak.get() > 0);
+        assertEquals(size, operation.failedRecords.get() + sum(operation.sent, size));
+    }
+
+    private static BatchScheduler scheduler(int batchSize, RetryPolicy retryPolicy) {
+        BatchSizeController controller =
+                new BatchSizeController("Account.create", batchSize, false, 10000000L, 15000L, 0.05);
+        return new BatchScheduler("Account", pool(), CONNECTIONS, controller, retryPolicy);
+    }
+
+    private static TargetConnectionPool pool() {
+        List<PartnerConnection> connections = new ArrayList<PartnerConnection>();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            connections.add(connection());
+        }
+        return new TargetConnectionPool(connections, new TargetConnectionPool.ConnectionFactory() {
+            @Override
+            public PartnerConnection login() throws ConnectionException {
+                return connection();
+            }
+        }, 3600000L);
+    }
+
+    // Connection with a session, never used to call out
+    private static PartnerConnection connection() {
+        ConnectorConfig config = new ConnectorConfig();
+        config.setSessionId("00D000000000000!session");
+        config.setServiceEndpoint("http://localhost:1/services/Soap/u/44.0");
+        try {
+            return new PartnerConnection(config);
+        } catch (ConnectionException ce) {
+            throw new IllegalStateException(ce);
+        }
+    }
+
+    private static int sum(AtomicIntegerArray counts, int size) {
+        int sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += counts.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Operation counting the records it sends successfully, the records it is told to retry and
+     * the records reported failed
+     */
+    private static class FakeOperation implements BatchOperation {
+        final AtomicIntegerArray attempts;
+        final AtomicIntegerArray sent;
+        final AtomicInteger retried = new AtomicInteger();
+        final AtomicIntegerArray failed;
+        final AtomicInteger failedRecords = new AtomicInteger();
+
+        FakeOperation(int size) {
+            attempts = new AtomicIntegerArray(size);
+            sent = new AtomicIntegerArray(size);
+            failed = new AtomicIntegerArray(size);
+        }
+
+        // Throws to fail the whole call
+        void check(int[] indexes) throws Exception {}
+
+        // Status code of the record on the attempt, null for success
+        StatusCode statusCode(int index, int attempt) {
+            return null;
+        }
+
+        @Override
+        public StatusCode[] execute(PartnerConnection connection, int[] indexes) throws Exception {
+            check(indexes);
+            StatusCode[] statusCodes = new StatusCode[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                statusCodes[i] = statusCode(indexes[i], attempts.incrementAndGet(indexes[i]));
+                sent.incrementAndGet(indexes[i]);
+            }
+            return statusCodes;
+        }
+
+        @Override
+        public void beforeRetry(int index, StatusCode statusCode) {
+            retried.incrementAndGet();
+        }
+
+        @Override
+        public void failed(int[] indexes, Exception e) {
+            for (int index : indexes) {
+                failed.incrementAndGet(index);
+            }
+            failedRecords.addAndGet(indexes.length);
+        }
+
+        void assertSentTimes(int size, int times) {
+            for (int i = 0; i < size; i++) {
+                assertEquals("record " + i, times, sent.get(i));
+            }
+        }
+    }
+}
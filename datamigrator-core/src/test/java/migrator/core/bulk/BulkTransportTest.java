@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.StatusCode;
+import com.sforce.soap.partner.UpsertResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectorConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import migrator.core.service.IQueryPageHandler;
+import migrator.core.service.SforceObject;
+
+/**
+ * BulkTransportTest : Runs ingest and query jobs against a local stand-in of the Bulk API 2.0 job
+ * endpoints (an embedded HTTP server): job creation, upload, status polling, result mapping and
+ * paging of query results by Sforce-Locator.
+ */
+public class BulkTransportTest {
+
+    private static final String JOBS = "/services/data/v44.0/jobs/";
+
+    private HttpServer server;
+    private BulkTransport transport;
+
+    // Requests received ("METHOD path?query") and bodies of the uploads
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, String> uploads = Collections.synchronizedMap(new HashMap<String, String>());
+
+    // Job state returned by each status check, the last one repeats
+    private volatile String[] jobStates = {"InProgress", "InProgress", "JobComplete"};
+    private volatile int statusChecks;
+    // Response bodies by path below jobs/ (results), and the Sforce-Locator header of each
+    private final Map<String, String> responses = Collections.synchronizedMap(new HashMap<String, String>());
+    private final Map<String, String> locators = Collections.synchronizedMap(new HashMap<String, String>());
+
+    @Before
+    public void start() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(JOBS, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+
+        ConnectorConfig config = new ConnectorConfig();
+        config.setSessionId("00D000000000000!session");
+        config.setServiceEndpoint("http://localhost:" + server.getAddress().getPort()
+                + "/services/Soap/u/44.0/00D000000000000");
+        transport = new BulkTransport(new PartnerConnection(config));
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Test(timeout = 30000)
+    public void insertMapsJobResultsToRecords() throws Exception {
+        responses.put("ingest/750J1/successfulResults", "sf__Id,sf__Created,Name,Description\n"
+                + "001000000000001AAA,true,\"Acme, Inc\",\"said \"\"hi\"\"\"\n"
+                + "001000000000002AAA,true,Globex,\"two\nlines\"\n");
+        responses.put("ingest/750J1/failedResults", "\"sf__Id\",\"sf__Error\",Name,Description\n"
+                + ",REQUIRED_FIELD_MISSING:Required fields are missing: [Industry],Initech,\n");
+        responses.put("ingest/750J1/unprocessedrecords", "Name,Description\nHooli,\n");
+
+        SaveResult[] results =
+                transport.insert(sforceObject(), new SObject[] {account("Acme, Inc", "said \"hi\""),
+                        account("Globex", "two\nlines"), account("Initech", null), account("Hooli", null)});
+
+        assertEquals(4, results.length);
+        assertTrue(results[0].isSuccess());
+        assertEquals("001000000000001AAA", results[0].getId());
+        assertTrue(results[1].isSuccess());
+        assertEquals("001000000000002AAA", results[1].getId());
+        assertFalse(results[2].isSuccess());
+        assertEquals(StatusCode.REQUIRED_FIELD_MISSING, results[2].getErrors()[0].getStatusCode());
+        assertEquals("Required fields are missing: [Industry]", results[2].getErrors()[0].getMessage());
+        assertFalse(results[3].isSuccess());
+        assertEquals(StatusCode.UNKNOWN_EXCEPTION, results[3].getErrors()[0].getStatusCode());
+
+        assertEquals("Name,Description\n\"Acme, Inc\",\"said \"\"hi\"\"\"\nGlobex,\"two\nlines\"\nInitech,\nHooli,\n",
+                uploads.get("ingest/750J1/batches"));
+        assertTrue(requests.contains("POST " + JOBS + "ingest"));
+        assertTrue(requests.contains("POST " + JOBS + "ingest/750J1?_HttpMethod=PATCH"));
+        assertEquals(3, statusChecks);
+    }
+
+    @Test(timeout = 30000)
+    public void upsertMatchesResultsByExternalId() throws Exception {
+        responses.put("ingest/750J1/successfulResults", "sf__Id,sf__Created,Name,Ext__c\n"
+                + "001000000000002AAA,false,Globex,E2\n001000000000001AAA,true,Acme,E1\n");
+        responses.put("ingest/750J1/failedResults", "sf__Id,sf__Error,Name,Ext__c\n");
+
+        SObject acme = account("Acme", null);
+        acme.setField("Ext__c", "E1");
+        SObject globex = account("Globex", null);
+        globex.setField("Ext__c", "E2");
+        UpsertResult[] results = transport.upsert(sforceObject(), "Ext__c", new SObject[] {acme, globex});
+
+        assertEquals("001000000000001AAA", results[0].getId());
+        assertTrue(results[0].isCreated());
+        assertEquals("001000000000002AAA", results[1].getId());
+        assertFalse(results[1].isCreated());
+    }
+
+    @Test(timeout = 30000)
+    public void failedJobFailsRecordsWithoutResult() throws Exception {
+        jobStates = new String[] {"InProgress", "Failed"};
+        responses.put("ingest/750J1/successfulResults", "sf__Id,sf__Created,Name\n001000000000001AAA,true,Acme\n");
+
+        SaveResult[] results = transport.insert(sforceObject(), new SObject[] {account("Acme", null),
+                account("Globex", null)});
+
+        assertTrue(results[0].isSuccess());
+        assertFalse(results[1].isSuccess());
+        assertTrue(results[1].getErrors()[0].getMessage().contains("Failed"));
+    }
+
+    @Test(timeout = 30000)
+    public void queryFollowsLocatorThroughPages() throws Exception {
+        responses.put("query/750J1/results", "Id,Name\n001000000000001AAA,\"Acme, Inc\"\n001000000000002AAA,Globex\n");
+        locators.put("query/750J1/results", "LOC1");
+        responses.put("query/750J1/results?LOC1", "Id,Name\n001000000000003AAA,\"two\r\nlines\"\n");
+        locators.put("query/750J1/results?LOC1", "LOC2");
+        responses.put("query/750J1/results?LOC2", "Id,Name\n001000000000004AAA,\n");
+        locators.put("query/750J1/results?LOC2", "null");
+
+        final List<SObject> records = new ArrayList<SObject>();
+        final List<Integer> pages = new ArrayList<Integer>();
+        transport.query(sforceObject(), "SELECT Id, Name FROM Account", new IQueryPageHandler() {
+            @Override
+            public void handlePage(SforceObject sforceObject, SObject[] page) throws Exception {
+                pages.add(page.length);
+                Collections.addAll(records, page);
+            }
+        });
+
+        assertEquals(3, pages.size());
+        assertEquals(4, records.size());
+        assertEquals("001000000000001AAA", records.get(0).getId());
+        assertEquals("Acme, Inc", records.get(0).getField("Name"));
+        assertEquals("two\r\nlines", records.get(2).getField("Name"));
+        assertNull(records.get(3).getField("Name"));
+        assertEquals("Account", records.get(3).getType());
+    }
+
+    @Test(timeout = 30000)
+    public void failedQueryJobThrows() throws Exception {
+        jobStates = new String[] {"Failed"};
+        try {
+            transport.query(sforceObject(), "SELECT Id FROM Account", new IQueryPageHandler() {
+                @Override
+                public void handlePage(SforceObject sforceObject, SObject[] page) throws Exception {
+                    fail("No page expected");
+                }
+            });
+            fail("Failed job expected to throw");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Failed"));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void failedResultsDownloadThrows() throws Exception {
+        responses.put("query/750J1/results", "Id\n001000000000001AAA\n");
+        locators.put("query/750J1/results", "LOC1");
+        // No page for LOC1: the stand-in answers 404
+        try {
+            transport.query(sforceObject(), "SELECT Id FROM Account", new IQueryPageHandler() {
+                @Override
+                public void handlePage(SforceObject sforceObject, SObject[] page) throws Exception {}
+            });
+            fail("Failed download expected to throw");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("download failed"));
+        }
+    }
+
+    // Stand-in of the job endpoints, every job is 750J1
+    private void serve(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath().substring(JOBS.length());
+        String query = exchange.getRequestURI().getRawQuery();
+        requests.add(method + " " + JOBS + path + (query != null ? "?" + query : ""));
+        String body = read(exchange.getRequestBody());
+
+        if (!"Bearer 00D000000000000!session".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            respond(exchange, 401, "[{\"errorCode\":\"INVALID_SESSION_ID\"}]");
+        } else if (method.equals("POST") && (path.equals("ingest") || path.equals("query"))) {
+            respond(exchange, 200, "{\"id\":\"750J1\",\"state\":\"Open\"}");
+        } else if (method.equals("PUT") && path.endsWith("/batches")) {
+            uploads.put(path, body);
+            respond(exchange, 201, "");
+        } else if (method.equals("POST") && "_HttpMethod=PATCH".equals(query)) {
+            respond(exchange, 200, "{\"id\":\"750J1\"," + body.substring(1));
+        } else if (method.equals("GET") && path.endsWith("/750J1")) {
+            String state = jobStates[Math.min(statusChecks, jobStates.length - 1)];
+            statusChecks++;
+            respond(exchange, 200, "{\"id\":\"750J1\",\"state\":\"" + state + "\",\"errorMessage\":\"\"}");
+        } else {
+            String key = path;
+            if (query != null && query.contains("locator=")) {
+                key = path + "?" + query.substring(query.indexOf("locator=") + "locator=".length());
+            }
+            String response = responses.get(key);
+            if (response == null) {
+                respond(exchange, path.startsWith("ingest") ? 200 : 404, "");
+                return;
+            }
+            if (locators.containsKey(key)) {
+                exchange.getResponseHeaders().add("Sforce-Locator", locators.get(key));
+            }
+            respond(exchange, 200, response);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static SforceObject sforceObject() {
+        SforceObject sforceObject = new SforceObject();
+        sforceObject.setsObjectName("Account");
+        return sforceObject;
+    }
+
+    private static SObject account(String name, String description) {
+        SObject sObject = new SObject();
+        sObject.setType("Account");
+        sObject.setField("Name", name);
+        if (description != null) {
+            sObject.setField("Description", description);
+        }
+        return sObject;
+    }
+}
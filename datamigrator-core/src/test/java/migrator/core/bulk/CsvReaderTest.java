@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.bulk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+import org.junit.Test;
+
+/**
+ * CsvReaderTest : Rows of RFC 4180 CSV as returned by the Bulk API 2.0
+ */
+public class CsvReaderTest {
+
+    @Test
+    public void readsPlainRows() throws IOException {
+        CsvReader reader = reader("Id,Name\n001,Acme\n002,\n");
+        assertArrayEquals(new String[] {"Id", "Name"}, reader.readRow());
+        assertArrayEquals(new String[] {"001", "Acme"}, reader.readRow());
+        assertArrayEquals(new String[] {"002", ""}, reader.readRow());
+        assertNull(reader.readRow());
+    }
+
+    @Test
+    public void readsQuotedCommas() throws IOException {
+        CsvReader reader = reader("\"Acme, Inc\",\"a,b,c\",x\n");
+        assertArrayEquals(new String[] {"Acme, Inc", "a,b,c", "x"}, reader.readRow());
+        assertNull(reader.readRow());
+    }
+
+    @Test
+    public void readsEscapedQuotes() throws IOException {
+        CsvReader reader = reader("\"say \"\"hi\"\"\",\"\"\"\",\"\"\n");
+        assertArrayEquals(new String[] {"say \"hi\"", "\"", ""}, reader.readRow());
+        assertNull(reader.readRow());
+    }
+
+    @Test
+    public void readsCrlfLineEndings() throws IOException {
+        CsvReader reader = reader("a,b\r\nc,d\r\n\"e\",f\r\n");
+        assertArrayEquals(new String[] {"a", "b"}, reader.readRow());
+        assertArrayEquals(new String[] {"c", "d"}, reader.readRow());
+        assertArrayEquals(new String[] {"e", "f"}, reader.readRow());
+        assertNull(reader.readRow());
+    }
+
+    @Test
+    public void readsEmbeddedNewlines() throws IOException {
+        CsvReader reader = reader("1,\"line one\nline two\",x\r\n2,\"a\r\nb\",y\n");
+        assertArrayEquals(new String[] {"1", "line one\nline two", "x"}, reader.readRow());
+        assertArrayEquals(new String[] {"2", "a\r\nb", "y"}, reader.readRow());
+        assertNull(reader.readRow());
+    }
+
+    @Test
+    public void readsLastRowWithoutLineEnding() throws IOException {
+        CsvReader reader = reader("a,b\nc,\"d\"");
+        assertArrayEquals(new String[] {"a", "b"}, reader.readRow());
+        assertArrayEquals(new String[] {"c", "d"}, reader.readRow());
+        assertNull(reader.readRow());
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnUnterminatedQuote() throws IOException {
+        reader("a,\"b\n").readRow();
+    }
+
+    private static CsvReader reader(String csv) {
+        return new CsvReader(new StringReader(csv));
+    }
+}
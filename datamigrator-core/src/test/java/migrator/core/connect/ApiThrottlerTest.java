@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.connect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import com.sforce.soap.partner.fault.ApiFault;
+import com.sforce.soap.partner.fault.ExceptionCode;
+import com.sforce.ws.ConnectionException;
+
+/**
+ * ApiThrottlerTest : Rates set by the reported API usage, calls waiting at the reserve and after
+ * REQUEST_LIMIT_EXCEEDED
+ */
+public class ApiThrottlerTest {
+
+    @Test
+    public void slowsDownAboveTheReserve() {
+        ApiThrottler throttler = new ApiThrottler("target", 0, 0.1, 0.1, 1000, 25, 60);
+        throttler.update(1000, 100000);
+        assertEquals(0, throttler.getRate(), 0);
+
+        // 5000 calls left above the reserve, half of the slowdown range
+        throttler.update(94000, 100000);
+        assertEquals(5.0, throttler.getRate(), 0.001);
+        throttler.update(98990, 100000);
+        assertEquals(0.1, throttler.getRate(), 0.001);
+        assertFalse(throttler.isExhausted());
+
+        throttler.update(2000, 100000);
+        assertEquals(0, throttler.getRate(), 0);
+    }
+
+    @Test(timeout = 10000)
+    public void waitsAtTheReserve() throws Exception {
+        final ApiThrottler throttler = new ApiThrottler("target", 0, 0.1, 0.1, 1000, 25, 60);
+        throttler.update(99000, 100000);
+        assertTrue(throttler.isExhausted());
+
+        CountDownLatch done = acquireInBackground(throttler);
+        assertFalse("call made at the reserve", done.await(300, TimeUnit.MILLISECONDS));
+
+        // Usage down again, e.g. read by the Bulk API
+        throttler.update(90000, 100000);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(throttler.isExhausted());
+    }
+
+    @Test(timeout = 10000)
+    public void checksTheUsageOncePerInterval() throws Exception {
+        final ApiThrottler throttler = new ApiThrottler("target", 0, 0.1, 0.1, 1000, 25, 0.2);
+        throttler.update(99500, 100000);
+
+        long start = System.nanoTime();
+        throttler.acquire();
+        throttler.release(null);
+        long firstCheck = System.nanoTime() - start;
+        assertTrue("checked after " + firstCheck / 1000000 + " ms", firstCheck >= 150 * 1000000L);
+
+        // Still at the reserve, the next check is an interval later
+        throttler.update(99600, 100000);
+        start = System.nanoTime();
+        throttler.acquire();
+        throttler.release(null);
+        assertTrue(System.nanoTime() - start >= 150 * 1000000L);
+    }
+
+    @Test(timeout = 10000)
+    public void waitsAfterRequestLimitExceeded() throws Exception {
+        ApiThrottler throttler = new ApiThrottler("target", 0, 0.1, 0.1, 0, 25, 60);
+        ApiFault fault = new ApiFault();
+        fault.setExceptionCode(ExceptionCode.REQUEST_LIMIT_EXCEEDED);
+        assertTrue(throttler.failed(fault));
+        assertTrue(throttler.isExhausted());
+
+        ApiFault other = new ApiFault();
+        other.setExceptionCode(ExceptionCode.INVALID_SESSION_ID);
+        assertFalse(throttler.failed(other));
+        assertFalse(throttler.failed(new ConnectionException("connection reset")));
+
+        CountDownLatch done = acquireInBackground(throttler);
+        assertFalse(done.await(300, TimeUnit.MILLISECONDS));
+        throttler.update(50000, 100000);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private static CountDownLatch acquireInBackground(final ApiThrottler throttler) {
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    throttler.acquire();
+                    throttler.release(null);
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return done;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * IdJournalTest : Journal written, closed and read back, over several mapping windows and with a
+ * record cut off at the end
+ */
+public class IdJournalTest {
+
+    // Smallest window, about 196 KB
+    private static final long WINDOW = 1;
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("idjournal", ".dmj");
+        file.delete();
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void readsBackRecordsAcrossWindows() throws IOException {
+        IdJournal journal = new IdJournal(file, WINDOW);
+        for (int i = 0; i < 20000; i++) {
+            journal.append("Account", sourceId(i), targetId(i), IdJournal.CREATED);
+            if (i % 3 == 0) {
+                journal.append("Contact", sourceId(i), targetId(i), IdJournal.UPDATED);
+            }
+            if (i % 1000 == 0) {
+                journal.sync();
+            }
+        }
+        journal.append("Account", "001000000000000FFF", null, IdJournal.FAILED);
+        journal.close();
+        assertTrue("file spans several windows", file.length() > 4 * 200 * 1024);
+
+        IdJournal reopened = new IdJournal(file, WINDOW);
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(targetId(i), reopened.getCreatedId("Account", sourceId(i)));
+            assertEquals(i % 3 == 0, reopened.isUpdated("Contact", sourceId(i)));
+        }
+        assertNull(reopened.getCreatedId("Account", "001000000000000FFF"));
+        assertNull(reopened.getCreatedId("Contact", sourceId(0)));
+        reopened.close();
+    }
+
+    @Test
+    public void dropsRecordCutOffAtTheEnd() throws IOException {
+        IdJournal journal = new IdJournal(file, WINDOW);
+        journal.append("Account", sourceId(1), targetId(1), IdJournal.CREATED);
+        journal.append("Account", sourceId(2), targetId(2), IdJournal.CREATED);
+        journal.close();
+        long complete = file.length();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(complete - 5);
+        } finally {
+            raf.close();
+        }
+
+        IdJournal reopened = new IdJournal(file, WINDOW);
+        assertEquals(targetId(1), reopened.getCreatedId("Account", sourceId(1)));
+        assertNull(reopened.getCreatedId("Account", sourceId(2)));
+        // Appends go after the last complete record
+        reopened.append("Account", sourceId(3), targetId(3), IdJournal.CREATED);
+        reopened.close();
+
+        IdJournal again = new IdJournal(file, WINDOW);
+        assertEquals(targetId(1), again.getCreatedId("Account", sourceId(1)));
+        assertEquals(targetId(3), again.getCreatedId("Account", sourceId(3)));
+        assertFalse(again.isUpdated("Account", sourceId(1)));
+        again.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeInt(0x12345678);
+        } finally {
+            raf.close();
+        }
+        new IdJournal(file, WINDOW);
+    }
+
+    private static String sourceId(int i) {
+        return String.format("001000000%06dAAA", i);
+    }
+
+    private static String targetId(int i) {
+        return String.format("001000001%06dAAA", i);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import migrator.core.utils.SalesforceId;
+import migrator.core.utils.Utils;
+
+/**
+ * IdPairMapTest : IdPairMap against a HashMap: lookups by either form of an id, keys that are not
+ * ids, removal by key and through the iterator on tables small enough for the probe sequences to
+ * collide and wrap around the end of the table
+ */
+public class IdPairMapTest {
+
+    private static final String BASE62 = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    @Test
+    public void findsBothFormsOfAnId() {
+        IdPairMap map = new IdPairMap();
+        SforceObjectPair pair = pair("0015g00000AbCdE");
+        map.put("0015g00000AbCdE", pair);
+
+        assertSame(pair, map.get("0015g00000AbCdE"));
+        assertSame(pair, map.get(id18("0015g00000AbCdE")));
+        assertTrue(map.containsKey(id18("0015g00000AbCdE")));
+        // Ids differing in case only are different records
+        assertNull(map.get("0015g00000ABCDE"));
+        assertEquals(1, map.size());
+
+        // Put by the 18 character form replaces the pair, the key keeps its form
+        SforceObjectPair replaced = pair("0015g00000AbCdE");
+        assertSame(pair, map.put(id18("0015g00000AbCdE"), replaced));
+        assertSame(replaced, map.get("0015g00000AbCdE"));
+        assertEquals(1, map.size());
+        assertEquals("0015g00000AbCdE", map.keySet().iterator().next());
+
+        assertSame(replaced, map.remove(id18("0015g00000AbCdE")));
+        assertNull(map.get("0015g00000AbCdE"));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void keepsOtherKeysApart() {
+        IdPairMap map = new IdPairMap();
+        String compositeKey = Utils.PREFIX_COMPOSITE_KEY + "Widget";
+        String badChecksum = "0015g00000AbCdEAAA";
+        SforceObjectPair pair = pair("0015g00000AbCdE");
+        map.put("0015g00000AbCdE", pair);
+        map.put(compositeKey, pair);
+        map.put(badChecksum, pair("0015g00000AbCdE"));
+        map.put("not-an-id", pair("0015g00000AbCdE"));
+        map.put("", pair("0015g00000AbCdE"));
+
+        assertEquals(5, map.size());
+        assertSame(pair, map.get(compositeKey));
+        assertFalse(map.get(badChecksum) == pair);
+        assertNull(map.get(null));
+        assertNull(map.get(42));
+        assertEquals(map, new HashMap<String, SforceObjectPair>(map));
+
+        // The composite key duplicates are not pairs of their own
+        List<SforceObjectPair> pairs = IdPairMap.pairs(map);
+        assertEquals(4, pairs.size());
+
+        assertSame(pair, map.remove(compositeKey));
+        assertNull(map.remove("missing"));
+        assertEquals(4, map.size());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get("0015g00000AbCdE"));
+    }
+
+    @Test
+    public void growsAndRemovesLikeHashMap() {
+        // Each record in one form, HashMap tells the two forms apart
+        Random random = new Random(20);
+        IdPairMap map = new IdPairMap();
+        Map<String, SforceObjectPair> expected = new HashMap<String, SforceObjectPair>();
+        for (int i = 0; i < 20000; i++) {
+            int number = random.nextInt(4000);
+            String key = random.nextInt(8) == 0 ? Utils.PREFIX_COMPOSITE_KEY + random.nextInt(500)
+                    : id(number, number % 2 == 0);
+            if (random.nextInt(3) == 0) {
+                assertEquals(key, expected.remove(key), map.remove(key));
+            } else {
+                SforceObjectPair pair = pair(key);
+                assertEquals(key, expected.put(key, pair), map.put(key, pair));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertEquals(expected, new HashMap<String, SforceObjectPair>(map));
+        for (String key : expected.keySet()) {
+            assertSame(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void iteratorRemovesWithoutSkippingOrRepeating() {
+        // 12 ids in 16 slots: the probe sequences collide and often wrap around the end of the table
+        for (int seed = 0; seed < 2000; seed++) {
+            Random random = new Random(seed);
+            IdPairMap map = new IdPairMap();
+            Map<String, SforceObjectPair> expected = new HashMap<String, SforceObjectPair>();
+            for (int i = 0; i < 12; i++) {
+                int number = random.nextInt(1 << 20);
+                String key = i < 10 ? id(number, number % 2 == 0) : "other" + i;
+                SforceObjectPair pair = pair(key);
+                map.put(key, pair);
+                expected.put(key, pair);
+            }
+            int size = expected.size();
+
+            Set<String> seen = new HashSet<String>();
+            Iterator<Map.Entry<String, SforceObjectPair>> iterator = map.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, SforceObjectPair> entry = iterator.next();
+                assertTrue("seed " + seed + " repeated " + entry.getKey(), seen.add(entry.getKey()));
+                assertSame(expected.get(entry.getKey()), entry.getValue());
+                if (random.nextBoolean()) {
+                    iterator.remove();
+                    expected.remove(entry.getKey());
+                }
+            }
+            assertEquals("seed " + seed, size, seen.size());
+            assertEquals("seed " + seed, expected, new HashMap<String, SforceObjectPair>(map));
+            for (String key : expected.keySet()) {
+                assertSame(expected.get(key), map.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void iteratorRemovesEverything() {
+        IdPairMap map = new IdPairMap();
+        for (int i = 0; i < 100; i++) {
+            map.put(id(i * 7919, i % 2 == 0), pair("x"));
+        }
+        map.put(Utils.PREFIX_COMPOSITE_KEY + "x", pair("x"));
+        Iterator<String> iterator = map.keySet().iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            count++;
+        }
+        assertEquals(101, count);
+        assertTrue(map.isEmpty());
+        try {
+            iterator.remove();
+            fail("Remove without next expected to throw");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static SforceObjectPair pair(String sourceId) {
+        SforceObjectPair pair = new SforceObjectPair();
+        pair.setSourceId(sourceId);
+        return pair;
+    }
+
+    // Account id of the record number, in its 15 or 18 character form
+    private static String id(int number, boolean shortForm) {
+        char[] digits = new char[9];
+        for (int i = digits.length - 1; i >= 0; i--) {
+            digits[i] = BASE62.charAt(number % 62);
+            number /= 62;
+        }
+        String id15 = "0015g0" + new String(digits);
+        return shortForm ? id15 : id18(id15);
+    }
+
+    private static String id18(String id15) {
+        return SalesforceId.decode(SalesforceId.key(SalesforceId.encode(id15)));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * RecordStoreTest : Values read back as they were added, by the typed columns and from the values
+ * that do not fit them, before and after the pages are spilled
+ */
+public class RecordStoreTest {
+
+    private static final File SPILL_DIR = new File("target/spill");
+
+    @Test
+    public void roundTripsNumbers() {
+        List<String> values =
+                Arrays.asList("0", "42", "-42", "12.50", "-12.5", "0.5", "-0.5", "0.05", "-0.05", "0.0", "0.00",
+                        // Kept as text: no sign on a zero, leading zeros, no digit around the point
+                        "-0", "-0.0", "-0.00", "007", "-007", "00.5", "1.", ".5", "-", "1..2", "1.2.3",
+                        // 18 digits fit, 19 do not
+                        "999999999999999999", "-999999999999999999", "0.12345678901234567",
+                        "1234567890123456789", "-9223372036854775808", "0.123456789012345678",
+                        // Exponents, signs and other text
+                        "1E5", "1e5", "1.5E-3", "+5", " 5", "5 ", "", "NaN", "Infinity");
+        assertRoundTrip(values, "Amount", FieldType._double);
+    }
+
+    @Test
+    public void roundTripsIds() {
+        List<String> values =
+                Arrays.asList("0015g00000AbCdE", "0015g00000AbCdEAAV", "00Q000000000001", "00Q000000000001EAA",
+                        "001000000000000", "001000000000000AAA", "001zzzzzzzzzzzz",
+                        // Bad checksum, lower case checksum
+                        "0015g00000AbCdEAAA", "0015g00000AbCdEaav",
+                        // Not an id
+                        "0015g00000AbCd", "0015g00000AbCdEA", "0015g00000AbCdEAAVX", "0015g00000AbC-E", "");
+        assertRoundTrip(values, "Id", FieldType.id);
+        assertRoundTrip(values, "ParentId", FieldType.reference);
+    }
+
+    @Test
+    public void switchesADictionaryToPlainStrings() {
+        List<String> values = new ArrayList<String>();
+        // 4 values with repeats, then more values than the dictionary holds
+        for (int i = 0; i < 30; i++) {
+            values.add(i % 3 == 0 ? null : "value " + (i < 12 ? i % 4 : i));
+        }
+        assertRoundTrip(values, "Name", FieldType.string);
+    }
+
+    @Test
+    public void decodesPagesAfterTheyAreSpilled() {
+        Map<String, List<String>> fields = spilledFields();
+        int before = spillFiles(SPILL_DIR);
+        RecordStore store = store(fields, FieldType.id, FieldType._double, FieldType.string, FieldType.textarea);
+        try {
+            assertTrue("Pages expected to be spilled", spillFiles(SPILL_DIR) > before);
+            assertFields(store, fields);
+            // Again, once the pages read back were spilled in turn
+            assertFields(store, fields);
+        } finally {
+            store.clear();
+        }
+    }
+
+    @Test
+    public void deletesTheSpillFilesOfAClearedStore() {
+        Map<String, List<String>> fields = spilledFields();
+        // Files left by an earlier run that did not end
+        int before = spillFiles(SPILL_DIR);
+        RecordStore first = store(fields, FieldType.id, FieldType._double, FieldType.string, FieldType.textarea);
+        RecordStore second = store(fields, FieldType.id, FieldType._double, FieldType.string, FieldType.textarea);
+        try {
+            int files = spillFiles(SPILL_DIR) - before;
+            first.clear();
+            int left = spillFiles(SPILL_DIR) - before;
+            assertTrue(left + " of " + files + " spill files left", left > 0 && left < files);
+            assertFields(second, fields);
+            second.clear();
+            assertEquals(before, spillFiles(SPILL_DIR));
+        } finally {
+            first.clear();
+            second.clear();
+        }
+    }
+
+    // Over the 1 MB budget
+    private static Map<String, List<String>> spilledFields() {
+        List<String> ids = new ArrayList<String>();
+        List<String> amounts = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        List<String> descriptions = new ArrayList<String>();
+        char[] filler = new char[400];
+        Arrays.fill(filler, 'x');
+        for (int i = 0; i < 3000; i++) {
+            ids.add(i % 2 == 0 ? "0015g00000" + String.format("%05d", i) : null);
+            amounts.add(i % 5 == 0 ? "-0" : (i - 1500) + "." + (i % 100));
+            names.add(i % 7 == 0 ? null : "name " + (i % 3));
+            descriptions.add(i + new String(filler));
+        }
+        Map<String, List<String>> fields = new LinkedHashMap<String, List<String>>();
+        fields.put("Id", ids);
+        fields.put("Amount", amounts);
+        fields.put("Name", names);
+        fields.put("Description", descriptions);
+        return fields;
+    }
+
+    private static void assertRoundTrip(List<String> values, String field, FieldType type) {
+        Map<String, List<String>> fields = new LinkedHashMap<String, List<String>>();
+        fields.put(field, values);
+        RecordStore store = store(fields, type);
+        try {
+            assertFields(store, fields);
+        } finally {
+            store.clear();
+        }
+    }
+
+    private static void assertFields(RecordStore store, Map<String, List<String>> fields) {
+        for (Map.Entry<String, List<String>> field : fields.entrySet()) {
+            List<String> values = field.getValue();
+            for (int row = 0; row < values.size(); row++) {
+                assertEquals(field.getKey() + " of row " + row, values.get(row), store.get(row, field.getKey()));
+            }
+        }
+        assertNull(store.get(0, "Missing"));
+    }
+
+    // One record per value, the field types in the order of the fields
+    private static RecordStore store(Map<String, List<String>> fields, FieldType... types) {
+        Map<String, FieldType> fieldToTypeMap = new HashMap<String, FieldType>();
+        int rows = 0;
+        int i = 0;
+        for (Map.Entry<String, List<String>> field : fields.entrySet()) {
+            fieldToTypeMap.put(field.getKey(), types[i++]);
+            rows = field.getValue().size();
+        }
+        MetadataObjectHolder.MetadataRefObject descRefObject = new MetadataObjectHolder.MetadataRefObject("Account");
+        descRefObject.setFieldToTypeMap(fieldToTypeMap);
+        SforceObject sforceObject = new SforceObject();
+        sforceObject.setsObjectName("Account");
+        sforceObject.setDescRefObject(descRefObject);
+
+        RecordStore store = new RecordStore(sforceObject);
+        for (int row = 0; row < rows; row++) {
+            SObject record = new SObject();
+            record.setType("Account");
+            for (Map.Entry<String, List<String>> field : fields.entrySet()) {
+                String value = field.getValue().get(row);
+                if (value != null) {
+                    record.setField(field.getKey(), value);
+                }
+            }
+            assertEquals(row, store.add(record));
+        }
+        return store;
+    }
+
+    private static int spillFiles(File dir) {
+        File[] files = dir.listFiles();
+        int count = 0;
+        if (files != null) {
+            for (File file : files) {
+                count += file.getName().endsWith(".spill") ? 1 : spillFiles(file);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+import migrator.core.service.IQueryPageHandler;
+import migrator.core.service.SforceObject;
+
+/**
+ * IdRangeReaderTest : Range boundaries, and Id range reads against a fake connection answering the
+ * keyset queries from a sorted list of Ids, with a range that keeps failing
+ */
+public class IdRangeReaderTest {
+
+    private static final String BASE62 = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    @Test
+    public void splitsIntoIncreasingBoundaries() {
+        List<String> boundaries = IdRangeReader.split("001000000000000", "001000000zzzzzz", 4);
+        assertEquals(3, boundaries.size());
+        String previous = "001000000000000";
+        for (String boundary : boundaries) {
+            assertEquals(15, boundary.length());
+            assertTrue(boundary.startsWith("001000000"));
+            assertTrue(previous + " < " + boundary, previous.compareTo(boundary) < 0);
+            previous = boundary;
+        }
+        assertTrue(previous.compareTo("001000000zzzzzz") < 0);
+        // A quarter of the record numbers after the prefix, rounded down: 62^6 / 4 - 1
+        assertEquals("001000000FUzzzz", boundaries.get(0));
+    }
+
+    @Test
+    public void splitsAfterTheCommonPrefix() {
+        List<String> boundaries = IdRangeReader.split("0015g0000000001", "0015g00000000zz", 2);
+        assertEquals(1, boundaries.size());
+        assertEquals("0015g00000000V0", boundaries.get(0));
+    }
+
+    @Test
+    public void noBoundariesWithoutRoom() {
+        assertTrue(IdRangeReader.split("001000000000001", "001000000000001", 4).isEmpty());
+        assertTrue(IdRangeReader.split("001000000000001", "001000000zzzzzz", 1).isEmpty());
+        // Fewer Ids than ranges
+        assertTrue(IdRangeReader.split("001000000000001", "001000000000003", 4).isEmpty());
+    }
+
+    @Test
+    public void readsEveryRangeInPages() throws Exception {
+        FakeConnection connection = new FakeConnection(ids(40), null);
+        final List<String> read = new ArrayList<String>();
+        int records = new IdRangeReader(connection, sforceObject(4), "SELECT Id FROM Account", null)
+                .read(new IQueryPageHandler() {
+                    public void handlePage(SforceObject sforceObject, SObject[] records) {
+                        for (SObject record : records) {
+                            read.add(record.getId());
+                        }
+                    }
+                });
+        assertEquals(40, records);
+        assertEquals(ids(40), read);
+    }
+
+    @Test
+    public void readsNothingFromAnEmptyObject() throws Exception {
+        FakeConnection connection = new FakeConnection(new ArrayList<String>(), null);
+        assertEquals(0, new IdRangeReader(connection, sforceObject(4), "SELECT Id FROM Account", null)
+                .read(new IQueryPageHandler() {
+                    public void handlePage(SforceObject sforceObject, SObject[] records) {
+                        fail("No page expected");
+                    }
+                }));
+    }
+
+    @Test
+    public void failsWhenARangeKeepsFailing() throws Exception {
+        List<String> ids = ids(40);
+        // In the second of four ranges
+        FakeConnection connection = new FakeConnection(ids, ids.get(15));
+        final AtomicInteger handled = new AtomicInteger();
+        try {
+            new IdRangeReader(connection, sforceObject(4), "SELECT Id FROM Account", null)
+                    .read(new IQueryPageHandler() {
+                        public void handlePage(SforceObject sforceObject, SObject[] records) {
+                            handled.addAndGet(records.length);
+                        }
+                    });
+            fail("Failed range expected to fail the read");
+        } catch (ConnectionException e) {
+            assertSame(FakeConnection.FAILURE, e.getMessage());
+        }
+        assertTrue(handled.get() < 40);
+        // Tried once and retried once, the ranges after it are not read
+        assertEquals(2, connection.failures.get());
+        assertTrue(connection.lastQuery, connection.lastQuery.contains("Id > '" + ids.get(14) + "'"));
+    }
+
+    private static SforceObject sforceObject(int idRanges) {
+        SforceObject sforceObject = new SforceObject();
+        sforceObject.setsObjectName("Account");
+        sforceObject.setIdRanges(idRanges);
+        return sforceObject;
+    }
+
+    // Ids spread over the record numbers, in Id order
+    private static List<String> ids(int count) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            int number = i * 97 + 5;
+            ids.add("00100000000" + BASE62.charAt(number / (62 * 62 * 62) % 62)
+                    + BASE62.charAt(number / (62 * 62) % 62) + BASE62.charAt(number / 62 % 62)
+                    + BASE62.charAt(number % 62));
+        }
+        return ids;
+    }
+
+    /**
+     * Answers the boundary queries (ORDER BY Id ASC|DESC LIMIT 1) and the keyset queries (Id > 'a'
+     * AND Id <= 'b' ORDER BY Id LIMIT n). A query that would return the failing Id throws
+     */
+    private static class FakeConnection extends PartnerConnection {
+        static final String FAILURE = "range query failed";
+
+        private static final Pattern LOWER = Pattern.compile("Id > '(\\w+)'");
+        private static final Pattern UPPER = Pattern.compile("Id <= '(\\w+)'");
+        private static final Pattern LIMIT = Pattern.compile("LIMIT (\\d+)");
+
+        final List<String> ids;
+        final String failingId;
+        final AtomicInteger failures = new AtomicInteger();
+        volatile String lastQuery;
+
+        FakeConnection(List<String> ids, String failingId) throws ConnectionException {
+            super(config());
+            this.ids = ids;
+            this.failingId = failingId;
+        }
+
+        @Override
+        public QueryResult query(String query) throws ConnectionException {
+            lastQuery = query;
+            String lower = group(LOWER, query);
+            String upper = group(UPPER, query);
+            int limit = Integer.parseInt(group(LIMIT, query));
+            List<String> matched = new ArrayList<String>();
+            for (String id : ids) {
+                if ((lower == null || id.compareTo(lower) > 0) && (upper == null || id.compareTo(upper) <= 0)) {
+                    matched.add(id);
+                }
+            }
+            if (query.contains("ORDER BY Id DESC")) {
+                matched = matched.isEmpty() ? matched : matched.subList(matched.size() - 1, matched.size());
+            }
+            matched = matched.subList(0, Math.min(limit, matched.size()));
+            if (matched.contains(failingId)) {
+                failures.incrementAndGet();
+                throw new ConnectionException(FAILURE);
+            }
+
+            SObject[] records = new SObject[matched.size()];
+            for (int i = 0; i < records.length; i++) {
+                records[i] = new SObject();
+                records[i].setType("Account");
+                records[i].setId(matched.get(i));
+            }
+            QueryResult result = new QueryResult();
+            result.setRecords(records);
+            result.setSize(records.length);
+            result.setDone(true);
+            return result;
+        }
+
+        private static String group(Pattern pattern, String query) {
+            Matcher matcher = pattern.matcher(query);
+            return matcher.find() ? matcher.group(1) : null;
+        }
+
+        private static ConnectorConfig config() {
+            ConnectorConfig config = new ConnectorConfig();
+            config.setSessionId("00D000000000000!session");
+            config.setServiceEndpoint("http://localhost:1/services/Soap/u/44.0");
+            return config;
+        }
+    }
+}
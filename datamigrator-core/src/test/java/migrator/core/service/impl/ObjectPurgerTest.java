@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+import migrator.core.service.SforceObject;
+
+/**
+ * ObjectPurgerTest : Objects whose Ids could not all be read, against a fake connection failing the
+ * queryMore calls
+ */
+public class ObjectPurgerTest {
+
+    @Test
+    public void retriesAnIncompleteObject() throws Exception {
+        FakeConnection connection = new FakeConnection(1);
+        ObjectPurger.Counts counts = purge(connection).get("Account");
+        // Read again by the second pass, in full this time
+        assertEquals(2, connection.queries.get());
+        assertFalse(counts.isIncomplete());
+        assertEquals(0, counts.getFailed());
+    }
+
+    @Test
+    public void reportsAnObjectStillIncomplete() throws Exception {
+        FakeConnection connection = new FakeConnection(Integer.MAX_VALUE);
+        ObjectPurger.Counts counts = purge(connection).get("Account");
+        assertEquals(2, connection.queries.get());
+        assertTrue(counts.isIncomplete());
+        assertTrue(counts.toString(), counts.toString().endsWith(", incomplete"));
+    }
+
+    private static Map<String, ObjectPurger.Counts> purge(PartnerConnection connection) {
+        SforceObject sforceObject = new SforceObject();
+        sforceObject.setsObjectName("Account");
+        return new ObjectPurger(connection, Collections.singletonList(sforceObject)).purge();
+    }
+
+    /**
+     * Answers the Id query with an empty page that is not done, the first queryMore calls throw
+     */
+    private static class FakeConnection extends PartnerConnection {
+        final AtomicInteger queries = new AtomicInteger();
+        final AtomicInteger failures;
+
+        FakeConnection(int failures) throws ConnectionException {
+            super(config());
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public QueryResult query(String query) throws ConnectionException {
+            queries.incrementAndGet();
+            QueryResult result = new QueryResult();
+            result.setRecords(new SObject[0]);
+            result.setQueryLocator("01g000000000001-2000");
+            result.setDone(false);
+            return result;
+        }
+
+        @Override
+        public QueryResult queryMore(String queryLocator) throws ConnectionException {
+            if (failures.getAndDecrement() > 0) {
+                throw new ConnectionException("queryMore failed");
+            }
+            QueryResult result = new QueryResult();
+            result.setRecords(new SObject[0]);
+            result.setDone(true);
+            return result;
+        }
+
+        private static ConnectorConfig config() {
+            ConnectorConfig config = new ConnectorConfig();
+            config.setSessionId("00D000000000000!session");
+            config.setServiceEndpoint("http://localhost:1/services/Soap/u/44.0");
+            return config;
+        }
+    }
+}
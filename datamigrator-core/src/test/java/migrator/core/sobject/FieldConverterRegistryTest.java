@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.sobject;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import com.sforce.ws.bind.CalendarCodec;
+import com.sforce.ws.bind.DateCodec;
+import com.sforce.ws.util.Base64;
+
+/**
+ * FieldConverterRegistryTest : The fast paths give the results of Integer.parseInt and
+ * Base64.decode, and the date converters can be shared by threads
+ */
+public class FieldConverterRegistryTest {
+
+    @Test
+    public void parsesIntegersAsIntegerParseInt() {
+        List<String> values =
+                Arrays.asList("0", "7", "-7", "+7", "-0", "+0", "007", "-007", "123456789", "-12345678",
+                        "+12345678", "999999999", "2147483647", "-2147483648", "+2147483647",
+                        // Overflow
+                        "2147483648", "-2147483649", "99999999999",
+                        // Signs, spaces and other characters
+                        "", "-", "+", "--1", "+-1", "1-", " 1", "1 ", "1.0", "1e3", "0x1F", "\u0663", "-\u0663\u0664");
+        for (String value : values) {
+            Object expected;
+            try {
+                expected = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                expected = e.getClass();
+            }
+            Object actual;
+            try {
+                actual = FieldConverterRegistry.parseInt(value);
+            } catch (NumberFormatException e) {
+                actual = e.getClass();
+            }
+            assertEquals("'" + value + "'", expected, actual);
+        }
+    }
+
+    @Test
+    public void decodesBase64AsBase64Decode() throws Exception {
+        List<String> values =
+                Arrays.asList("", "TQ==", "TWE=", "TWFu", "TR==", "TWF=", "////", "+/+/",
+                        // Missing or extra padding
+                        "TQ", "TQ=", "TWE", "T", "TWFuT", "=", "==", "====", "TQ===", "A===", "TQ==TWFu",
+                        // Whitespace and line breaks
+                        "TW Fu", "TW\nFu", "TWFu\n", "TW\r\nFu\r\n", " TWFu", "TWFu TWE=", "TQ==\n",
+                        // Outside the alphabet
+                        "TW*Fu", "-_w=", "TW\u00e9Fu");
+        for (String value : values) {
+            Object expected;
+            try {
+                expected = Arrays.toString(Base64.decode(value.getBytes()));
+            } catch (RuntimeException e) {
+                expected = e.getClass();
+            }
+            Object actual;
+            try {
+                actual = Arrays.toString(FieldConverterRegistry.decodeBase64(value));
+            } catch (RuntimeException e) {
+                actual = e.getClass();
+            }
+            assertEquals("'" + value + "'", expected, actual);
+        }
+        Random random = new Random(7);
+        for (int length = 0; length < 100; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String value = new String(Base64.encode(bytes), "US-ASCII");
+            assertArrayEquals(value, bytes, FieldConverterRegistry.decodeBase64(value));
+        }
+    }
+
+    @Test
+    public void convertsDatesOnSeveralThreads() throws Exception {
+        final List<String> dates = new ArrayList<String>();
+        final List<String> datetimes = new ArrayList<String>();
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(1990, Calendar.JANUARY, 1);
+        for (int i = 0; i < 4000; i++) {
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            dates.add(String.format("%1$tY-%1$tm-%1$td", calendar));
+            datetimes.add(String.format("%1$tY-%1$tm-%1$tdT%2$02d:%3$02d:%4$02d.000Z", calendar, i % 24, i % 60,
+                    (i * 7) % 60));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int thread = 0; thread < 8; thread++) {
+                final int offset = thread * 500;
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        DateCodec dateCodec = new DateCodec();
+                        CalendarCodec calendarCodec = new CalendarCodec();
+                        for (int n = 0; n < dates.size(); n++) {
+                            int i = (offset + n) % dates.size();
+                            Date date = (Date) FieldConverterRegistry.DATE.convert(dates.get(i));
+                            if (date.getTime() != dateCodec.deserialize(dates.get(i)).getTimeInMillis()) {
+                                return dates.get(i) + " read as " + date;
+                            }
+                            Calendar datetime = (Calendar) FieldConverterRegistry.DATETIME.convert(datetimes.get(i));
+                            if (datetime.getTimeInMillis() != calendarCodec.deserialize(datetimes.get(i))
+                                    .getTimeInMillis()) {
+                                return datetimes.get(i) + " read as " + datetime.getTime();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<String> future : futures) {
+                String mismatch = future.get();
+                if (mismatch != null) {
+                    fail(mismatch);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.sobject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.fault.MalformedQueryFault;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+import migrator.core.service.SforceLookupProperties;
+
+/**
+ * LookupResolverTest : On demand lookups over fake source and target connections: lookups found
+ * and missing, and query failures retried, then failing the records instead of dropping the lookup
+ */
+public class LookupResolverTest {
+
+    private FakeConnection source;
+    private FakeConnection target;
+    private SforceLookupProperties lookup;
+
+    @Before
+    public void setUp() throws ConnectionException {
+        LookupResolver.clear();
+        source = new FakeConnection();
+        source.add("Product2", "01t000000000001AAA", "Widget");
+        source.add("Product2", "01t000000000002AAA", "Gadget");
+        source.add("Product2", "01t000000000003AAA", "Gizmo");
+        target = new FakeConnection();
+        target.add("Product2", "01t000000000101AAA", "Widget");
+        target.add("Product2", "01t000000000102AAA", "Gadget");
+
+        lookup = new SforceLookupProperties();
+        lookup.setsObjectName("PricebookEntry");
+        lookup.setsLookupField("Product2Id");
+        lookup.setsLookupSObjectName("Product2");
+        lookup.setCompositeKeyFields(Arrays.asList("Name"));
+    }
+
+    @Test
+    public void resolvesPrefetchedLookups() {
+        LookupResolver resolver = new LookupResolver(source, target);
+        resolver.prefetch(Arrays.asList(lookup), Arrays.asList(record("01t000000000001AAA"),
+                record("01t000000000002AAA"), record("01t000000000003AAA"), record("01t000000000001AAA")));
+        int queries = source.queries.get() + target.queries.get();
+
+        assertEquals("01t000000000101AAA", resolver.getTargetId(lookup, "01t000000000001AAA"));
+        assertEquals("01t000000000102AAA", resolver.getTargetId(lookup, "01t000000000002AAA"));
+        // Not in the target, cached as missing
+        assertNull(resolver.getTargetId(lookup, "01t000000000003AAA"));
+        assertEquals(queries, source.queries.get() + target.queries.get());
+    }
+
+    @Test
+    public void resolvesLookupsNotPrefetched() {
+        LookupResolver resolver = new LookupResolver(source, target);
+        assertEquals("01t000000000102AAA", resolver.getTargetId(lookup, "01t000000000002AAA"));
+        assertEquals(1, source.queries.get());
+    }
+
+    @Test
+    public void retriesConnectionErrors() {
+        source.failures = 1;
+        LookupResolver resolver = new LookupResolver(source, target);
+        assertEquals("01t000000000101AAA", resolver.getTargetId(lookup, "01t000000000001AAA"));
+        assertEquals(2, source.queries.get());
+    }
+
+    @Test
+    public void failsAfterLastAttempt() {
+        source.failures = 2;
+        LookupResolver resolver = new LookupResolver(source, target);
+        try {
+            resolver.getTargetId(lookup, "01t000000000001AAA");
+            fail("Failed lookup expected to throw");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof ConnectionException);
+        }
+        assertEquals(2, source.queries.get());
+
+        // Nothing was cached, the next use queries again
+        assertEquals("01t000000000101AAA", resolver.getTargetId(lookup, "01t000000000001AAA"));
+    }
+
+    @Test
+    public void failsQueryErrorsWithoutRetry() {
+        source.queryError = true;
+        LookupResolver resolver = new LookupResolver(source, target);
+        try {
+            resolver.prefetch(Arrays.asList(lookup), Arrays.asList(record("01t000000000001AAA")));
+            fail("Failed lookup expected to throw");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof MalformedQueryFault);
+        }
+        assertEquals(1, source.queries.get());
+    }
+
+    private static SObject record(String productId) {
+        SObject sObject = new SObject();
+        sObject.setType("PricebookEntry");
+        sObject.setField("Product2Id", productId);
+        return sObject;
+    }
+
+    /**
+     * Connection answering "SELECT Id,Name FROM Product2 WHERE ..." with the records added whose Id
+     * or Name is in the where clause. The first failures calls throw a ConnectionException
+     */
+    private static class FakeConnection extends PartnerConnection {
+        final List<SObject> records = new ArrayList<SObject>();
+        final AtomicInteger queries = new AtomicInteger();
+        int failures;
+        boolean queryError;
+
+        FakeConnection() throws ConnectionException {
+            super(config());
+        }
+
+        void add(String type, String id, String name) {
+            SObject sObject = new SObject();
+            sObject.setType(type);
+            sObject.setId(id);
+            sObject.setField("Name", name);
+            records.add(sObject);
+        }
+
+        @Override
+        public QueryResult query(String query) throws ConnectionException {
+            queries.incrementAndGet();
+            if (queryError) {
+                throw new MalformedQueryFault();
+            }
+            if (failures > 0) {
+                failures--;
+                throw new ConnectionException("connection reset");
+            }
+            String where = query.substring(query.indexOf(" WHERE "));
+            List<SObject> matched = new ArrayList<SObject>();
+            for (SObject record : records) {
+                if (where.contains("'" + record.getId() + "'") || where.contains("'" + record.getField("Name") + "'")) {
+                    matched.add(record);
+                }
+            }
+            QueryResult result = new QueryResult();
+            result.setRecords(matched.toArray(new SObject[matched.size()]));
+            result.setSize(matched.size());
+            result.setDone(true);
+            return result;
+        }
+
+        private static ConnectorConfig config() {
+            ConnectorConfig config = new ConnectorConfig();
+            config.setSessionId("00D000000000000!session");
+            config.setServiceEndpoint("http://localhost:1/services/Soap/u/44.0");
+            return config;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.sobject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import migrator.core.service.SforceLookupProperties;
+import migrator.core.service.SforceObject;
+import migrator.core.service.SforceObjectIndex;
+
+/**
+ * ObjectSchedulerTest : Dependency order of the objects of a mapping, run serially and as a graph:
+ * parents before children, cycles broken, and a failure stopping the dependants.
+ */
+public class ObjectSchedulerTest {
+
+    private final List<SforceObject> objects = new ArrayList<SforceObject>();
+    private final Map<String, List<SforceLookupProperties>> lookups =
+            new HashMap<String, List<SforceLookupProperties>>();
+
+    // Start and end of every object run, in order
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    @Test(timeout = 30000)
+    public void runsParentsBeforeChildren() {
+        object("A");
+        object("B", "A");
+        object("C", "A");
+        object("D", "B", "C");
+        object("E");
+
+        scheduler().run(recordingTask(null), 4);
+
+        assertRunOnce("A", "B", "C", "D", "E");
+        assertBefore("A", "B");
+        assertBefore("A", "C");
+        assertBefore("B", "D");
+        assertBefore("C", "D");
+        assertTrue("independent objects run concurrently", maxConcurrent.get() > 1);
+    }
+
+    @Test(timeout = 30000)
+    public void breaksCycleAtFirstObjectInSequence() {
+        object("A");
+        object("B", "A", "C");
+        object("C", "B");
+        object("D", "C");
+
+        scheduler().run(recordingTask(null), 4);
+
+        assertRunOnce("A", "B", "C", "D");
+        assertBefore("A", "B");
+        assertBefore("B", "C");
+        assertBefore("C", "D");
+    }
+
+    @Test(timeout = 30000)
+    public void breaksCycleOfAllObjects() {
+        object("A", "B");
+        object("B", "A");
+
+        scheduler().run(recordingTask(null), 2);
+
+        assertRunOnce("A", "B");
+        assertBefore("A", "B");
+    }
+
+    @Test(timeout = 30000)
+    public void failureSkipsDependants() {
+        object("A");
+        object("B", "A");
+        object("C", "B");
+        object("D", "C");
+        object("E", "A");
+
+        try {
+            scheduler().run(recordingTask("B"), 4);
+            fail("Failure of B expected");
+        } catch (RuntimeException e) {
+            assertEquals("B failed", e.getMessage());
+        }
+        assertTrue(events.contains("start A"));
+        assertTrue(events.contains("start B"));
+        assertFalse(events.contains("start C"));
+        assertFalse(events.contains("start D"));
+        // Objects already running finish before the failure is thrown
+        for (String event : new ArrayList<String>(events)) {
+            if (event.startsWith("start ") && !event.equals("start B")) {
+                assertTrue(events.contains("end " + event.substring(6)));
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void failureInCycleStopsTheRest() {
+        object("A", "B");
+        object("B", "A");
+        object("C", "B");
+
+        try {
+            scheduler().run(recordingTask("A"), 2);
+            fail("Failure of A expected");
+        } catch (RuntimeException e) {
+            assertEquals("A failed", e.getMessage());
+        }
+        assertEquals(Collections.singletonList("start A"), events);
+    }
+
+    @Test(timeout = 30000)
+    public void runsInListOrderWithoutParallelism() {
+        object("C", "B");
+        object("A");
+        object("B", "A");
+
+        scheduler().run(recordingTask(null), 1);
+
+        assertEquals(Arrays.asList("start C", "end C", "start A", "end A", "start B", "end B"), events);
+    }
+
+    @Test(timeout = 30000)
+    public void ignoresSelfReferencesAndLookupObjects() {
+        object("A", "A", "User");
+        SforceObject user = new SforceObject();
+        user.setsObjectName("User");
+        user.setLookup(true);
+        objects.add(user);
+        object("B", "a");
+
+        scheduler().run(recordingTask(null), 2);
+
+        assertRunOnce("A", "B");
+        assertBefore("A", "B");
+    }
+
+    private ObjectScheduler scheduler() {
+        return new ObjectScheduler(objects, lookups, new SforceObjectIndex(objects));
+    }
+
+    // Object with lookups to the parents
+    private void object(String name, String... parents) {
+        SforceObject sforceObject = new SforceObject();
+        sforceObject.setsObjectName(name);
+        objects.add(sforceObject);
+        List<SforceLookupProperties> lookupList = new ArrayList<SforceLookupProperties>();
+        for (String parent : parents) {
+            SforceLookupProperties lookup = new SforceLookupProperties();
+            lookup.setsObjectName(name);
+            lookup.setsLookupField(parent + "__c");
+            lookup.setsLookupSObjectName(parent);
+            lookupList.add(lookup);
+        }
+        lookups.put(name, lookupList);
+    }
+
+    // Records the start and end of each object, fails the object named failing
+    private ObjectScheduler.ObjectTask recordingTask(final String failing) {
+        return new ObjectScheduler.ObjectTask() {
+            @Override
+            public void run(SforceObject sforceObject) {
+                String name = sforceObject.getsObjectName();
+                events.add("start " + name);
+                int running = concurrent.incrementAndGet();
+                synchronized (maxConcurrent) {
+                    maxConcurrent.set(Math.max(maxConcurrent.get(), running));
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                concurrent.decrementAndGet();
+                if (name.equals(failing)) {
+                    throw new RuntimeException(name + " failed");
+                }
+                events.add("end " + name);
+            }
+        };
+    }
+
+    private void assertRunOnce(String... names) {
+        assertEquals(2 * names.length, events.size());
+        for (String name : names) {
+            assertEquals(1, Collections.frequency(events, "start " + name));
+            assertEquals(1, Collections.frequency(events, "end " + name));
+        }
+    }
+
+    private void assertBefore(String parent, String child) {
+        assertTrue(parent + " done before " + child + " starts: " + events,
+                events.indexOf("end " + parent) < events.indexOf("start " + child));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2018, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ * 
+ * 3. Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package migrator.core.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+/**
+ * SalesforceIdTest : Encoding of the 15 and 18 character ids, and of values that are not ids
+ */
+public class SalesforceIdTest {
+
+    @Test
+    public void computesTheChecksum() {
+        assertEquals("AAA", SalesforceId.checksum("001000000000000"));
+        assertEquals("AAV", SalesforceId.checksum("0015g00000AbCdE"));
+        assertEquals("555", SalesforceId.checksum("ABCDEABCDEABCDE"));
+    }
+
+    @Test
+    public void decodesTheFormEncoded() {
+        String[] ids = {"0015g00000AbCdE", "0015g00000AbCdEAAV", "a0B5g000001zzzz", "00Q000000000000EAA",
+            "001zzzzzzzzzzzz", "0010000000000000AA".substring(0, 15)};
+        for (String id : ids) {
+            long encoded = SalesforceId.encode(id);
+            assertFalse(id, encoded == SalesforceId.NONE);
+            assertEquals(id, SalesforceId.decode(encoded));
+        }
+    }
+
+    @Test
+    public void sameKeyForBothForms() {
+        long id15 = SalesforceId.encode("0015g00000AbCdE");
+        long id18 = SalesforceId.encode("0015g00000AbCdEAAV");
+        assertFalse(id15 == id18);
+        assertEquals(SalesforceId.key(id15), SalesforceId.key(id18));
+        assertEquals("0015g00000AbCdEAAV", SalesforceId.decode(SalesforceId.key(id15)));
+        // Case matters
+        assertFalse(SalesforceId.key(id15) == SalesforceId.key(SalesforceId.encode("0015g00000ABCDE")));
+        // Other objects, same record number
+        assertFalse(SalesforceId.key(id15) == SalesforceId.key(SalesforceId.encode("0035g00000AbCdE")));
+    }
+
+    @Test
+    public void rejectsValuesThatAreNotIds() {
+        String[] values = {null, "", "0015g00000AbCd", "0015g00000AbCdEI", "0015g00000AbCdEAAVX",
+            "0015g00000AbCdEAAA", "0015g00000AbCd-", "KEY_0015g00000AbC", "001-g00000AbCdE"};
+        for (String value : values) {
+            assertEquals(value, SalesforceId.NONE, SalesforceId.encode(value));
+        }
+    }
+}